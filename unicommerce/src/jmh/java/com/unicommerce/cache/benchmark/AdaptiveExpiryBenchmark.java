@@ -0,0 +1,87 @@
+package com.unicommerce.cache.benchmark;
+
+import com.unicommerce.cache.AddressCache;
+import com.unicommerce.cache.AddressReloader;
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * contains() hits of 4096 hot addresses by 4 threads: with a fixed lifetime of an hour,
+ * with a sliding lifetime of 2s (each address extended every 250ms) and refreshed ahead
+ * from 1s before a deadline of 2s. The sliding and refreshing hits must stay close to the
+ * fixed ones, the lock only being taken to extend a deadline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Threads(4)
+@State(Scope.Benchmark)
+public class AdaptiveExpiryBenchmark {
+
+    @Param({"FIXED", "SLIDING", "REFRESHING"})
+    String expiry;
+
+    AddressCache cache;
+    ExecutorService executor;
+
+    @State(Scope.Thread)
+    public static class Reader {
+        int next;
+
+        int address() {
+            return AddressCacheBenchmark.PRESENT_BASE + (next = (next + 1) & (AddressCacheBenchmark.KEYS - 1));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws CacheExpiredException {
+        executor = Executors.newFixedThreadPool(2);
+        if ("FIXED".equals(expiry)) {
+            cache = new AddressCache(1, TimeUnit.HOURS);
+        } else if ("SLIDING".equals(expiry)) {
+            cache = new AddressCache(2, TimeUnit.SECONDS);
+            cache.slideExpiry();
+        } else {
+            cache = new AddressCache(2, TimeUnit.SECONDS);
+            cache.refreshAhead(1, TimeUnit.SECONDS, new AddressReloader() {
+                public boolean reload(InetAddress address) {
+                    return true;
+                }
+            }, executor);
+        }
+        for (int i = 0; i < AddressCacheBenchmark.KEYS; i++) {
+            cache.add(AddressCacheBenchmark.PRESENT_BASE + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.close();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public boolean containsHit(Reader reader) {
+        return cache.contains(reader.address());
+    }
+}
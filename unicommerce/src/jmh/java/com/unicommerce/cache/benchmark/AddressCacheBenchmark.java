@@ -0,0 +1,204 @@
+package com.unicommerce.cache.benchmark;
+
+import com.unicommerce.cache.AddressCache;
+import com.unicommerce.cache.CacheEngine;
+import com.unicommerce.cache.ShardedAddressCache;
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of the AddressCache operations for every storage engine and cache size.
+ *
+ * The cache is filled with the addresses 10.0.0.0 + i before the measurement and keeps
+ * that size: add() is paired with remove() and take() with add() of the same address.
+ * Max age is an hour, nothing expires while measuring.
+ *
+ * The single operations run with -t 1, 4, 16...; the groups mix readers and writers,
+ * 3:1 for readMostly and 1:1 for balanced, -tg scales them (e.g. -tg 12,4).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class AddressCacheBenchmark {
+
+    // 10.0.0.0/8 for the cached addresses, 11.0.0.0/8 for the ones added by the writers.
+    static final int PRESENT_BASE = 0x0a000000;
+    static final int ABSENT_BASE = 0x0b000000;
+    static final int ADDRESS_MASK = 0x00ffffff;
+    // keys are prepared up front, so that InetAddress creation is not measured.
+    static final int KEYS = 4096;
+
+    @Param({"LOCKING", "LOCK_FREE", "OFF_HEAP", "SHARDED"})
+    String engine;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int size;
+
+    AddressCache cache;
+
+    private final AtomicInteger writers = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws CacheExpiredException {
+        if ("SHARDED".equals(engine)) {
+            cache = new ShardedAddressCache(1, TimeUnit.HOURS);
+        } else {
+            cache = new AddressCache(1, TimeUnit.HOURS, CacheEngine.valueOf(engine));
+        }
+        for (int i = 0; i < size; i++) {
+            cache.add(PRESENT_BASE + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.close();
+    }
+
+    /**
+     * Keys of one benchmark thread: addresses in the cache, and a range of addresses
+     * out of it which no other thread writes.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+
+        InetAddress[] present = new InetAddress[KEYS];
+        InetAddress[] absent = new InetAddress[KEYS];
+        int[] presentIpv4 = new int[KEYS];
+        int[] absentIpv4 = new int[KEYS];
+        byte[] buffer = new byte[16];
+        int cursor;
+
+        @Setup(Level.Trial)
+        public void setUp(AddressCacheBenchmark benchmark) throws UnknownHostException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int writer = benchmark.writers.getAndIncrement();
+            for (int i = 0; i < KEYS; i++) {
+                presentIpv4[i] = PRESENT_BASE + random.nextInt(benchmark.size);
+                absentIpv4[i] = ABSENT_BASE + ((writer * KEYS + i) & ADDRESS_MASK);
+                present[i] = toInetAddress(presentIpv4[i]);
+                absent[i] = toInetAddress(absentIpv4[i]);
+            }
+        }
+
+        int next() {
+            return cursor = (cursor + 1) & (KEYS - 1);
+        }
+    }
+
+    @Benchmark
+    public boolean containsHit(Keys keys) {
+        return cache.contains(keys.present[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean containsMiss(Keys keys) {
+        return cache.contains(keys.absent[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean containsRaw(Keys keys) {
+        return cache.contains(keys.presentIpv4[keys.next()]);
+    }
+
+    @Benchmark
+    public InetAddress peek() throws CacheExpiredException {
+        return cache.peek();
+    }
+
+    @Benchmark
+    public int peekRaw(Keys keys) throws CacheExpiredException {
+        return cache.peekInto(keys.buffer);
+    }
+
+    @Benchmark
+    public boolean addRemove(Keys keys) throws CacheExpiredException {
+        InetAddress address = keys.absent[keys.next()];
+        return cache.add(address) & cache.remove(address);
+    }
+
+    @Benchmark
+    public boolean addRemoveRaw(Keys keys) throws CacheExpiredException {
+        int address = keys.absentIpv4[keys.next()];
+        return cache.add(address) & cache.remove(address);
+    }
+
+    /**
+     * take() of the most recent address and add() of it back, the cache keeps its size.
+     * take() waits while the cache is empty, the smallest size is well above the thread
+     * counts so it never does.
+     */
+    @Benchmark
+    public boolean takeAdd() throws CacheExpiredException {
+        InetAddress address = cache.take();
+        return address != null && cache.add(address);
+    }
+
+    @Benchmark
+    public boolean takeAddRaw(Keys keys) throws CacheExpiredException {
+        // every address of the benchmark is IPv4.
+        return cache.takeInto(keys.buffer) != 0 && cache.add(ipv4(keys.buffer));
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(3)
+    public boolean readMostlyContains(Keys keys) {
+        return cache.contains(keys.present[keys.next()]);
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(1)
+    public boolean readMostlyAddRemove(Keys keys) throws CacheExpiredException {
+        InetAddress address = keys.absent[keys.next()];
+        return cache.add(address) & cache.remove(address);
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(1)
+    public boolean balancedContains(Keys keys) {
+        return cache.contains(keys.present[keys.next()]);
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(1)
+    public boolean balancedAddRemove(Keys keys) throws CacheExpiredException {
+        InetAddress address = keys.absent[keys.next()];
+        return cache.add(address) & cache.remove(address);
+    }
+
+    static InetAddress toInetAddress(int ipv4) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{
+                (byte) (ipv4 >>> 24), (byte) (ipv4 >>> 16), (byte) (ipv4 >>> 8), (byte) ipv4});
+    }
+
+    private static int ipv4(byte[] address) {
+        return (address[0] & 0xff) << 24 | (address[1] & 0xff) << 16 | (address[2] & 0xff) << 8 | address[3] & 0xff;
+    }
+}
@@ -0,0 +1,121 @@
+package com.unicommerce.cache.benchmark;
+
+import com.unicommerce.cache.AddressCache;
+import com.unicommerce.cache.AddressLoader;
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Loading of an address list file (90% IPv4, 10% IPv6) into an empty AddressCache:
+ * line by line with InetAddress.getByName() & add(), against the AddressLoader on the
+ * plain file (mapped, parsed in parallel) and on its gzip copy (streamed). One operation
+ * is a whole file, run with -prof gc to compare the garbage.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class AddressLoaderBenchmark {
+
+    @Param({"1000000", "10000000"})
+    int lines;
+
+    Path plain;
+    Path gzip;
+    AddressCache cache;
+
+    @Setup(Level.Trial)
+    public void writeFiles() throws IOException {
+        plain = Files.createTempFile("addresses", ".txt");
+        gzip = Files.createTempFile("addresses", ".txt.gz");
+        Random random = new Random(42);
+        Writer writer = Files.newBufferedWriter(plain, StandardCharsets.US_ASCII);
+        try {
+            for (int i = 0; i < lines; i++) {
+                int address = random.nextInt();
+                if (i % 10 == 0) {
+                    writer.write("2001:db8:" + Integer.toHexString(address >>> 16) + "::" + Integer.toHexString(address & 0xffff));
+                } else {
+                    writer.write((address >>> 24) + "." + (address >>> 16 & 0xff) + "." + (address >>> 8 & 0xff) + "." + (address & 0xff));
+                }
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        OutputStream output = new GZIPOutputStream(Files.newOutputStream(gzip), 64 * 1024);
+        try {
+            Files.copy(plain, output);
+        } finally {
+            output.close();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        cache = new AddressCache(1, TimeUnit.HOURS);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        cache.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        Files.delete(plain);
+        Files.delete(gzip);
+    }
+
+    @Benchmark
+    public int getByNameAndAdd() throws IOException, CacheExpiredException {
+        int added = 0;
+        BufferedReader reader = Files.newBufferedReader(plain, StandardCharsets.US_ASCII);
+        try {
+            for (String line; (line = reader.readLine()) != null; ) {
+                if (cache.add(InetAddress.getByName(line))) {
+                    added++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return added;
+    }
+
+    @Benchmark
+    public long loadMapped() throws IOException, CacheExpiredException {
+        return new AddressLoader(cache).load(plain).getAdded();
+    }
+
+    @Benchmark
+    public long loadGzip() throws IOException, CacheExpiredException {
+        return new AddressLoader(cache).load(gzip).getAdded();
+    }
+}
@@ -0,0 +1,32 @@
+package com.unicommerce.cache.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the cache benchmarks with the GC profiler, which reports the bytes allocated per
+ * operation (gc.alloc.rate.norm) next to the throughput, and writes the results as JSON
+ * so that two runs (two engines, or a change and its baseline) can be compared.
+ *
+ * Usage: BenchmarkRunner [regexp of the benchmarks] [result file]
+ * e.g. BenchmarkRunner "AddressCacheBenchmark.contains.*" build/jmh/contains.json
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "com.unicommerce.cache.benchmark.*";
+        String result = args.length > 1 ? args[1] : "jmh-result.json";
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,103 @@
+package com.unicommerce.cache.benchmark;
+
+import com.unicommerce.cache.AddressCache;
+import com.unicommerce.cache.CacheChanges;
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * add() & remove() of an address by 4 threads, without subscriber, with one draining the
+ * changes and with one stuck in its listener: the writers must not be slowed by the
+ * latter. Run with -prof gc to check publishing does not allocate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Threads(4)
+@State(Scope.Benchmark)
+public class CacheChangesBenchmark {
+
+    @Param({"NONE", "DRAINING", "STUCK"})
+    String subscriber;
+
+    AddressCache cache;
+    ExecutorService executor;
+    final Object stuck = new Object();
+    final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Writer {
+        int base;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(CacheChangesBenchmark benchmark) {
+            base = AddressCacheBenchmark.PRESENT_BASE + (benchmark.threads.getAndIncrement() << 20);
+        }
+
+        int address() {
+            return base + (next = (next + 1) & 0xfffff);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws CacheExpiredException {
+        cache = new AddressCache(1, TimeUnit.HOURS);
+        executor = Executors.newSingleThreadExecutor();
+        if ("DRAINING".equals(subscriber)) {
+            cache.subscribe(new CacheChanges.Listener() {
+                long sum;
+
+                public void onChanges(CacheChanges.Batch changes) {
+                    for (int i = 0; i < changes.size(); i++) {
+                        sum += changes.low(i);
+                    }
+                }
+            }, executor);
+        } else if ("STUCK".equals(subscriber)) {
+            cache.subscribe(new CacheChanges.Listener() {
+                public void onChanges(CacheChanges.Batch changes) {
+                    synchronized (stuck) {
+                        try {
+                            stuck.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            }, executor);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.close();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public boolean addThenRemove(Writer writer) throws CacheExpiredException {
+        int address = writer.address();
+        return cache.add(address) & cache.remove(address);
+    }
+}
@@ -0,0 +1,116 @@
+package com.unicommerce.cache.benchmark;
+
+import com.unicommerce.cache.AddressCache;
+import com.unicommerce.cache.AddressCacheClient;
+import com.unicommerce.cache.AddressCacheServer;
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * contains() through AddressCacheServer over loopback, half hits, one client per thread:
+ * a round-trip per request, against batches of 1000 requests per frame, one at a time and
+ * 4 pipelined. Scores are requests per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class CacheServerBenchmark {
+
+    static final int SIZE = 100000;
+    static final int BATCH = 1000;
+    static final int PIPELINED = 4;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        AddressCache cache;
+        AddressCacheServer server;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, CacheExpiredException {
+            cache = new AddressCache(1, TimeUnit.HOURS);
+            for (int i = 0; i < SIZE; i++) {
+                cache.add(i);
+            }
+            server = new AddressCacheServer(cache, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                    Runtime.getRuntime().availableProcessors() / 2 + 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            server.close();
+            cache.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        AddressCacheClient client;
+        final AddressCacheClient.Batch[] batches = new AddressCacheClient.Batch[PIPELINED];
+        final AddressCacheClient.Results results = new AddressCacheClient.Results();
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) throws IOException {
+            client = new AddressCacheClient(server.server.getLocalAddress());
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int b = 0; b < batches.length; b++) {
+                batches[b] = new AddressCacheClient.Batch();
+                for (int i = 0; i < BATCH; i++) {
+                    batches[b].contains(random.nextInt(2 * SIZE));
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public boolean roundTrip(Client client) throws IOException, CacheExpiredException {
+        return client.client.contains(ThreadLocalRandom.current().nextInt(2 * SIZE));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public boolean batch(Client client) throws IOException, CacheExpiredException {
+        return client.client.execute(client.batches[0], client.results).isTrue(BATCH - 1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH * PIPELINED)
+    public boolean pipelined(Client client) throws IOException, CacheExpiredException {
+        for (AddressCacheClient.Batch batch : client.batches) {
+            client.client.send(batch);
+        }
+        boolean last = false;
+        for (int b = 0; b < PIPELINED; b++) {
+            last = client.client.receive(client.results).isTrue(BATCH - 1);
+        }
+        return last;
+    }
+}
@@ -0,0 +1,141 @@
+package com.unicommerce.cache.benchmark;
+
+import com.unicommerce.cache.ExpirableCacheStack;
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of the ExpirableCacheStack operations by cache size, same shape as
+ * {@link AddressCacheBenchmark}: the stack is filled with 0..size-1 and keeps that size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class ExpirableCacheStackBenchmark {
+
+    static final int KEYS = 4096;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    int size;
+
+    ExpirableCacheStack stack;
+
+    private final AtomicInteger writers = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws CacheExpiredException {
+        stack = new ExpirableCacheStack(1, TimeUnit.HOURS);
+        for (int i = 0; i < size; i++) {
+            stack.add(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        stack.close();
+    }
+
+    /**
+     * Keys of one benchmark thread: elements in the stack, and negative ones out of it
+     * which no other thread writes.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+
+        int[] present = new int[KEYS];
+        int[] absent = new int[KEYS];
+        int cursor;
+
+        @Setup(Level.Trial)
+        public void setUp(ExpirableCacheStackBenchmark benchmark) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int writer = benchmark.writers.getAndIncrement();
+            for (int i = 0; i < KEYS; i++) {
+                present[i] = random.nextInt(benchmark.size);
+                absent[i] = -1 - (writer * KEYS + i);
+            }
+        }
+
+        int next() {
+            return cursor = (cursor + 1) & (KEYS - 1);
+        }
+    }
+
+    @Benchmark
+    public boolean containsHit(Keys keys) {
+        return stack.contains(keys.present[keys.next()]);
+    }
+
+    @Benchmark
+    public boolean containsMiss(Keys keys) {
+        return stack.contains(keys.absent[keys.next()]);
+    }
+
+    @Benchmark
+    public Integer peek() throws CacheExpiredException {
+        return stack.peek();
+    }
+
+    @Benchmark
+    public boolean addRemove(Keys keys) throws CacheExpiredException {
+        int element = keys.absent[keys.next()];
+        return stack.add(element) & stack.remove(element);
+    }
+
+    @Benchmark
+    public boolean takeAdd() throws CacheExpiredException {
+        Integer element = stack.take();
+        return element != null && stack.add(element.intValue());
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(3)
+    public boolean readMostlyContains(Keys keys) {
+        return stack.contains(keys.present[keys.next()]);
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(1)
+    public boolean readMostlyAddRemove(Keys keys) throws CacheExpiredException {
+        int element = keys.absent[keys.next()];
+        return stack.add(element) & stack.remove(element);
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(1)
+    public boolean balancedContains(Keys keys) {
+        return stack.contains(keys.present[keys.next()]);
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(1)
+    public boolean balancedAddRemove(Keys keys) throws CacheExpiredException {
+        int element = keys.absent[keys.next()];
+        return stack.add(element) & stack.remove(element);
+    }
+}
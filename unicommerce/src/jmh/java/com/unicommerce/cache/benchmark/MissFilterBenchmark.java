@@ -0,0 +1,84 @@
+package com.unicommerce.cache.benchmark;
+
+import com.unicommerce.cache.AddressCache;
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * contains() of an AddressCache with and without the Bloom filter of filterMisses(),
+ * for the hits and the misses. Run with threads (-t) to see the misses skip the lock the
+ * writers hold; the filter metrics of the cache are printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class MissFilterBenchmark {
+
+    static final int KEYS = 4096;
+
+    @Param({"false", "true"})
+    boolean filtered;
+
+    @Param({"100000", "1000000", "10000000"})
+    int size;
+
+    AddressCache cache;
+
+    final int[] present = new int[KEYS];
+    final int[] absent = new int[KEYS];
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws CacheExpiredException {
+        cache = new AddressCache(1, TimeUnit.HOURS);
+        if (filtered) {
+            cache.filterMisses(size, 0.01);
+        }
+        for (int i = 0; i < size; i++) {
+            cache.add(AddressCacheBenchmark.PRESENT_BASE + i);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < KEYS; i++) {
+            present[i] = AddressCacheBenchmark.PRESENT_BASE + random.nextInt(size);
+            absent[i] = AddressCacheBenchmark.ABSENT_BASE + (random.nextInt() & AddressCacheBenchmark.ADDRESS_MASK);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println(cache.metrics());
+        cache.close();
+    }
+
+    int next() {
+        return cursor = (cursor + 1) & (KEYS - 1);
+    }
+
+    @Benchmark
+    public boolean containsHit() {
+        return cache.contains(present[next()]);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+        return cache.contains(absent[next()]);
+    }
+}
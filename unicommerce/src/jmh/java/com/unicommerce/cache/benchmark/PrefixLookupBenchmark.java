@@ -0,0 +1,93 @@
+package com.unicommerce.cache.benchmark;
+
+import com.unicommerce.cache.AddressCache;
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the address lookups against the ranges (CIDR) of an AddressCache, for
+ * growing numbers of ranges. The ranges are random IPv4 prefixes of 8 to 32 bits, like
+ * a blocklist mixing networks and single hosts; the raw lookups allocate nothing, check
+ * with -prof gc.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class PrefixLookupBenchmark {
+
+    static final int KEYS = 4096;
+
+    @Param({"1000", "100000", "1000000", "4000000"})
+    int ranges;
+
+    AddressCache cache;
+
+    // addresses inside a range, and random addresses mostly outside of them.
+    final int[] covered = new int[KEYS];
+    final int[] random = new int[KEYS];
+    final byte[][] coveredBytes = new byte[KEYS][];
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws CacheExpiredException, UnknownHostException {
+        cache = new AddressCache(1, TimeUnit.HOURS);
+        Random generator = new Random(42);
+        int[] networks = new int[ranges];
+        int[] lengths = new int[ranges];
+        for (int i = 0; i < ranges; i++) {
+            lengths[i] = 8 + generator.nextInt(25);
+            networks[i] = generator.nextInt() & (int) (0xffffffff00000000L >>> lengths[i]);
+            cache.add(AddressCacheBenchmark.toInetAddress(networks[i]), lengths[i]);
+        }
+        for (int i = 0; i < KEYS; i++) {
+            int range = generator.nextInt(ranges);
+            // a shift by 32 is no shift, a /32 only covers its network.
+            covered[i] = lengths[range] == 32 ? networks[range] : networks[range] | generator.nextInt() >>> lengths[range];
+            random[i] = generator.nextInt();
+            coveredBytes[i] = AddressCacheBenchmark.toInetAddress(covered[i]).getAddress();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.close();
+    }
+
+    int next() {
+        return cursor = (cursor + 1) & (KEYS - 1);
+    }
+
+    @Benchmark
+    public boolean containsCovered() {
+        return cache.contains(covered[next()]);
+    }
+
+    @Benchmark
+    public boolean containsRandom() {
+        return cache.contains(random[next()]);
+    }
+
+    @Benchmark
+    public int longestMatch() {
+        return cache.longestMatch(coveredBytes[next()]);
+    }
+}
@@ -0,0 +1,87 @@
+package com.unicommerce.cache.benchmark;
+
+import com.unicommerce.cache.AddressCache;
+import com.unicommerce.cache.WindowCounting;
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * add() of an address already there and frequency() over the whole window and its last
+ * sixteenth, without counting (NONE) and with the EXACT & SKETCH counters of
+ * trackFrequency(). Run with -prof gc to check neither allocates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class WindowFrequencyBenchmark {
+
+    static final int KEYS = 4096;
+
+    @Param({"NONE", "EXACT", "SKETCH"})
+    String counting;
+
+    @Param({"100000", "1000000"})
+    int size;
+
+    AddressCache cache;
+
+    final int[] present = new int[KEYS];
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws CacheExpiredException {
+        cache = new AddressCache(1, TimeUnit.HOURS);
+        if (!"NONE".equals(counting)) {
+            cache.trackFrequency(1, TimeUnit.MINUTES, WindowCounting.valueOf(counting), size);
+        }
+        for (int i = 0; i < size; i++) {
+            cache.add(AddressCacheBenchmark.PRESENT_BASE + i);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < KEYS; i++) {
+            present[i] = AddressCacheBenchmark.PRESENT_BASE + random.nextInt(size);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.close();
+    }
+
+    int next() {
+        return cursor = (cursor + 1) & (KEYS - 1);
+    }
+
+    @Benchmark
+    public boolean addAgain() throws CacheExpiredException {
+        return cache.add(present[next()]);
+    }
+
+    @Benchmark
+    public int frequencyOfTheWindow() {
+        return "NONE".equals(counting) ? 0 : cache.frequency(present[next()], 1, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public int frequencyOfTheLastBucket() {
+        return "NONE".equals(counting) ? 0 : cache.frequency(present[next()], 3, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,50 @@
+package com.unicommerce.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lossy buffer of the keys read by contains(), so that readers feed the eviction policy
+ * without taking its lock. Readers append to a ring striped by thread with a single CAS;
+ * when the ring is full or the CAS fails the access is dropped, the policy only needs a
+ * sample. The writer holding the policy lock replays them with {@link #drain(Eviction)}.
+ *
+ * A key read while its slot is being written may come out mixed with the previous one,
+ * the policy then ignores it as an unknown key.
+ */
+final class AccessBuffer {
+
+    private static final int STRIPES = 4;
+    private static final int SLOTS = 64;
+    // counters of different stripes on different cache lines.
+    private static final int PADDING = 16;
+
+    private final AtomicLongArray keys = new AtomicLongArray(STRIPES * SLOTS * 2);
+    private final AtomicLongArray writes = new AtomicLongArray(STRIPES * PADDING);
+    private final AtomicLongArray reads = new AtomicLongArray(STRIPES * PADDING);
+
+    void record(long high, long low) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        long write = writes.get(stripe * PADDING);
+        if (write - reads.get(stripe * PADDING) >= SLOTS
+                || !writes.compareAndSet(stripe * PADDING, write, write + 1)) {
+            return;
+        }
+        int at = (stripe * SLOTS + (int) (write & (SLOTS - 1))) * 2;
+        keys.lazySet(at, high);
+        keys.lazySet(at + 1, low);
+    }
+
+    /**
+     * Hands the buffered accesses to the policy, called by one thread at a time.
+     */
+    void drain(Eviction eviction) {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            long write = writes.get(stripe * PADDING);
+            for (long read = reads.get(stripe * PADDING); read < write; read++) {
+                int at = (stripe * SLOTS + (int) (read & (SLOTS - 1))) * 2;
+                eviction.onAccess(keys.get(at), keys.get(at + 1));
+            }
+            reads.lazySet(stripe * PADDING, write);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.unicommerce.cache;
+
+/**
+ * What a contains() or peek() hit does with the deadline of the address found, see
+ * AddressCache#slideExpiry() and AddressCache#refreshAhead(): a sliding lifetime gives a
+ * new deadline to the addresses hit once their deadline is stale, and the refresher is
+ * asked to reload the addresses hit close to their deadline. Immutable, the engines read
+ * it without lock.
+ */
+final class AccessExpiry {
+
+    // null if the hits do not extend the deadlines.
+    private final Lifetime sliding;
+    private final long refreshAhead;
+    // null if the addresses are not refreshed.
+    private final Refresher refresher;
+
+    /**
+     * @param sliding      lifetime given to the addresses hit, null for none.
+     * @param refreshAhead time before its deadline from which an address hit is refreshed.
+     * @param refresher    null for none.
+     */
+    AccessExpiry(Lifetime sliding, long refreshAhead, Refresher refresher) {
+        this.sliding = sliding;
+        this.refreshAhead = refreshAhead;
+        this.refresher = refresher;
+    }
+
+    /**
+     * @return true if a hit of an address of the given deadline has anything to do: extend
+     * or refresh it.
+     */
+    boolean isDue(long deadline, long now) {
+        return isStale(deadline, now) || isRefreshDue(deadline, now);
+    }
+
+    boolean isStale(long deadline, long now) {
+        return sliding != null && sliding.isStale(deadline, now);
+    }
+
+    /**
+     * @return the deadline extending a stale one.
+     */
+    long extended(long now) {
+        return sliding.deadline(now);
+    }
+
+    boolean isRefreshDue(long deadline, long now) {
+        return refresher != null && deadline != IndexedStack.NEVER && deadline - now <= refreshAhead;
+    }
+
+    /**
+     * Asks for the refresh of the address, called out of the engine's lock.
+     */
+    void refresh(long high, long low, long deadline) {
+        refresher.refresh(high, low, deadline);
+    }
+
+    interface Refresher {
+
+        /**
+         * Called by each hit of an address close to its deadline, until it is refreshed:
+         * must be quick and coalesce the requests of the same address.
+         *
+         * @param high key of the address, see {@link AddressCodec#keyHigh(byte[])}.
+         * @param low  key of the address, see {@link AddressCodec#keyLow(byte[])}.
+         */
+        void refresh(long high, long low, long deadline);
+    }
+}
@@ -0,0 +1,335 @@
+package com.unicommerce.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Replicated state of the addresses of an AddressCache: an add-wins set with TTL (an
+ * observed-remove set), one {@link Entry} per address, spread over the leaves of a
+ * {@link MerkleDigest} by address hash.
+ *
+ * An entry keeps, per node, the version of the latest add that node made and its wall
+ * clock expiry, and the version of that node's latest add a remove observed. The address
+ * is in the set while one node has an add not observed by a remove nor expired: a remove
+ * only cancels the adds it saw, an add concurrent to it wins. Entries merge component by
+ * component with max, so replicas converge whatever the order and the repetitions.
+ *
+ * Versions are hybrid: the wall clock in ms shifted left by 20 bits, bumped past the last
+ * one issued or seen for the node, so a restarted node never reuses one.
+ *
+ * Not thread-safe, guarded by the lock of its AddressReplicator.
+ */
+final class AddWinsSet {
+
+    private final int node;
+    private long clock;
+
+    private final MerkleDigest digest = new MerkleDigest();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final HashMap<Key, Entry>[] buckets = new HashMap[MerkleDigest.LEAVES];
+    private int size;
+
+    AddWinsSet(int node) {
+        this.node = node;
+    }
+
+    /**
+     * Records an add made by this node.
+     *
+     * @return the entry of the address.
+     */
+    Entry add(Key key, long expiresAtMillis) {
+        clock = Math.max(clock + 1, System.currentTimeMillis() << 20);
+        Entry entry = entryOf(key, true);
+        long before = entry.hash(key);
+        entry.put(node, clock, expiresAtMillis, 0);
+        changed(key, before, entry);
+        return entry;
+    }
+
+    /**
+     * Records a remove made by this node: the adds seen so far are cancelled.
+     *
+     * @return the entry of the address, null if the set never saw it.
+     */
+    Entry remove(Key key) {
+        Entry entry = entryOf(key, false);
+        if (entry == null) {
+            return null;
+        }
+        long before = entry.hash(key);
+        entry.observeAdds();
+        changed(key, before, entry);
+        return entry;
+    }
+
+    /**
+     * Merges an entry received from another node. Entries with every add expired are
+     * ignored, they could only bring back tombstones already dropped.
+     *
+     * @return the merged entry if it changed, null otherwise.
+     */
+    Entry merge(Key key, Entry received, long nowMillis) {
+        if (received.isDead(nowMillis)) {
+            return null;
+        }
+        clock = Math.max(clock, received.addedBy(node));
+        Entry entry = entryOf(key, true);
+        long before = entry.hash(key);
+        if (!entry.merge(received)) {
+            return null;
+        }
+        changed(key, before, entry);
+        return entry;
+    }
+
+    /**
+     * @return the entry of the address, null if none.
+     */
+    Entry get(Key key) {
+        HashMap<Key, Entry> bucket = buckets[MerkleDigest.leafOf(key.high, key.low)];
+        return bucket == null ? null : bucket.get(key);
+    }
+
+    /**
+     * @return the entries of a leaf of the digest, null if none.
+     */
+    Map<Key, Entry> bucket(int leaf) {
+        return buckets[leaf];
+    }
+
+    /**
+     * Drops the entries whose adds all expired, present or removed alike: once expired, an
+     * add has no effect anymore and its tombstone can go.
+     *
+     * @return number of entries dropped.
+     */
+    int sweep(int firstLeaf, int leaves, long nowMillis) {
+        int dropped = 0;
+        for (int i = 0; i < leaves; i++) {
+            int leaf = (firstLeaf + i) & (MerkleDigest.LEAVES - 1);
+            HashMap<Key, Entry> bucket = buckets[leaf];
+            if (bucket == null) {
+                continue;
+            }
+            for (Iterator<Map.Entry<Key, Entry>> it = bucket.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Key, Entry> next = it.next();
+                if (next.getValue().isDead(nowMillis)) {
+                    digest.update(leaf, -next.getValue().hash(next.getKey()));
+                    it.remove();
+                    dropped++;
+                }
+            }
+        }
+        size -= dropped;
+        return dropped;
+    }
+
+    MerkleDigest digest() {
+        return digest;
+    }
+
+    /**
+     * @return number of entries, tombstones included.
+     */
+    int size() {
+        return size;
+    }
+
+    private Entry entryOf(Key key, boolean create) {
+        int leaf = MerkleDigest.leafOf(key.high, key.low);
+        HashMap<Key, Entry> bucket = buckets[leaf];
+        if (bucket == null) {
+            if (!create) {
+                return null;
+            }
+            bucket = buckets[leaf] = new HashMap<Key, Entry>();
+        }
+        Entry entry = bucket.get(key);
+        if (entry == null && create) {
+            entry = new Entry();
+            bucket.put(key, entry);
+            size++;
+        }
+        return entry;
+    }
+
+    private void changed(Key key, long before, Entry entry) {
+        digest.update(MerkleDigest.leafOf(key.high, key.low), entry.hash(key) - before);
+    }
+
+    /**
+     * An address as its (high, low) key, IPv4-mapped for IPv4.
+     */
+    static final class Key {
+
+        final long high;
+        final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return high == other.high && low == other.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) MerkleDigest.mix(high ^ MerkleDigest.mix(low));
+        }
+    }
+
+    /**
+     * State of one address: per node, (version of its latest add, expiry of that add in
+     * wall clock ms, version of its latest add a remove observed), sorted by node.
+     */
+    static final class Entry {
+
+        private static final int[] NO_NODES = new int[0];
+        private static final long[] NO_VERSIONS = new long[0];
+
+        int[] nodes = NO_NODES;
+        long[] added = NO_VERSIONS;
+        long[] expiresAt = NO_VERSIONS;
+        long[] removed = NO_VERSIONS;
+
+        /**
+         * @return true if an add not observed by a remove is still alive.
+         */
+        boolean isPresent(long nowMillis) {
+            for (int i = 0; i < nodes.length; i++) {
+                if (added[i] > removed[i] && expiresAt[i] > nowMillis) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the latest expiry of the adds in effect, in wall clock ms, 0 if none.
+         */
+        long expiresAt(long nowMillis) {
+            long latest = 0;
+            for (int i = 0; i < nodes.length; i++) {
+                if (added[i] > removed[i] && expiresAt[i] > nowMillis) {
+                    latest = Math.max(latest, expiresAt[i]);
+                }
+            }
+            return latest;
+        }
+
+        /**
+         * @return true if every add expired, removed or not.
+         */
+        boolean isDead(long nowMillis) {
+            for (int i = 0; i < nodes.length; i++) {
+                if (expiresAt[i] > nowMillis) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int components() {
+            return nodes.length;
+        }
+
+        /**
+         * Sets the component of a node to the given one if it is newer, see merge().
+         *
+         * @return true if changed.
+         */
+        boolean put(int node, long addedVersion, long expiry, long removedVersion) {
+            int i = Arrays.binarySearch(nodes, node);
+            if (i < 0) {
+                i = -i - 1;
+                nodes = insert(nodes, i, node);
+                added = insert(added, i, addedVersion);
+                expiresAt = insert(expiresAt, i, expiry);
+                removed = insert(removed, i, removedVersion);
+                return true;
+            }
+            boolean changed = false;
+            if (addedVersion > added[i] || (addedVersion == added[i] && expiry > expiresAt[i])) {
+                added[i] = addedVersion;
+                expiresAt[i] = expiry;
+                changed = true;
+            }
+            if (removedVersion > removed[i]) {
+                removed[i] = removedVersion;
+                changed = true;
+            }
+            return changed;
+        }
+
+        /**
+         * Joins the given entry into this one, component by component.
+         *
+         * @return true if changed.
+         */
+        boolean merge(Entry other) {
+            boolean changed = false;
+            for (int i = 0; i < other.nodes.length; i++) {
+                changed |= put(other.nodes[i], other.added[i], other.expiresAt[i], other.removed[i]);
+            }
+            return changed;
+        }
+
+        /**
+         * @return version of the latest add of the node, 0 if none.
+         */
+        long addedBy(int node) {
+            int i = Arrays.binarySearch(nodes, node);
+            return i < 0 ? 0 : added[i];
+        }
+
+        void observeAdds() {
+            System.arraycopy(added, 0, removed, 0, added.length);
+        }
+
+        /**
+         * @return hash of the address and its state, the same on every node holding it.
+         */
+        long hash(Key key) {
+            if (nodes.length == 0) {
+                return 0;
+            }
+            long hash = MerkleDigest.mix(key.high ^ MerkleDigest.mix(key.low));
+            for (int i = 0; i < nodes.length; i++) {
+                hash = MerkleDigest.mix(hash ^ nodes[i]);
+                hash = MerkleDigest.mix(hash ^ added[i]);
+                hash = MerkleDigest.mix(hash ^ expiresAt[i]);
+                hash = MerkleDigest.mix(hash ^ removed[i]);
+            }
+            return hash;
+        }
+
+        private static int[] insert(int[] array, int index, int value) {
+            int[] grown = new int[array.length + 1];
+            System.arraycopy(array, 0, grown, 0, index);
+            grown[index] = value;
+            System.arraycopy(array, index, grown, index + 1, array.length - index);
+            return grown;
+        }
+
+        private static long[] insert(long[] array, int index, long value) {
+            long[] grown = new long[array.length + 1];
+            System.arraycopy(array, 0, grown, 0, index);
+            grown[index] = value;
+            System.arraycopy(array, index, grown, index + 1, array.length - index);
+            return grown;
+        }
+    }
+}
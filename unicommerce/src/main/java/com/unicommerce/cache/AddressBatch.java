@@ -0,0 +1,173 @@
+package com.unicommerce.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Raw addresses collected by the bulk loader before they are pushed into an engine in
+ * one call: IPv4 addresses as ints, IPv6 addresses as (high, low) pairs, the ranges
+ * (CIDR) aside. Addresses are numbered IPv4 first, then IPv6; high(i)/low(i) give the
+ * 128-bit key of any of them, IPv4-mapped for IPv4. Not thread-safe, one batch per task.
+ */
+final class AddressBatch {
+
+    private int[] ipv4;
+    private int ipv4Count;
+    // high & low of each IPv6 address in turn.
+    private long[] ipv6;
+    private int ipv6Count;
+    private final List<AddressPrefix> ranges = new ArrayList<AddressPrefix>();
+
+    AddressBatch(int capacity) {
+        this.ipv4 = new int[Math.max(capacity, 16)];
+        this.ipv6 = new long[32];
+    }
+
+    void add(int address) {
+        if (ipv4Count == ipv4.length) {
+            ipv4 = Arrays.copyOf(ipv4, ipv4.length * 2);
+        }
+        ipv4[ipv4Count++] = address;
+    }
+
+    void add(long high, long low) {
+        if (2 * ipv6Count == ipv6.length) {
+            ipv6 = Arrays.copyOf(ipv6, ipv6.length * 2);
+        }
+        ipv6[2 * ipv6Count] = high;
+        ipv6[2 * ipv6Count + 1] = low;
+        ipv6Count++;
+    }
+
+    void add(AddressPrefix range) {
+        ranges.add(range);
+    }
+
+    /**
+     * @return number of addresses, the ranges apart.
+     */
+    int size() {
+        return ipv4Count + ipv6Count;
+    }
+
+    int ipv4Count() {
+        return ipv4Count;
+    }
+
+    /**
+     * @param i 0 to ipv4Count() - 1.
+     */
+    int ipv4(int i) {
+        return ipv4[i];
+    }
+
+    long high(int i) {
+        return i < ipv4Count ? 0 : ipv6[2 * (i - ipv4Count)];
+    }
+
+    long low(int i) {
+        return i < ipv4Count ? AddressCodec.mapped(ipv4[i]) : ipv6[2 * (i - ipv4Count) + 1];
+    }
+
+    /**
+     * @return the bytes of the address i, 4 for IPv4 and 16 for IPv6, in a new array.
+     */
+    byte[] address(int i) {
+        if (i < ipv4Count) {
+            byte[] address = new byte[AddressCodec.IPV4_LENGTH];
+            AddressCodec.writeIpv4(ipv4[i], address);
+            return address;
+        }
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        AddressCodec.writeIpv6(high(i), low(i), address);
+        return address;
+    }
+
+    List<AddressPrefix> ranges() {
+        return ranges;
+    }
+
+    /**
+     * Sorts the addresses in unsigned order and drops the duplicates, so the batch goes
+     * into the engine with its neighbours together and each address once.
+     */
+    void sortDistinct() {
+        if (ipv4Count > 1) {
+            // flipping the sign bit turns the signed order into the unsigned one.
+            for (int i = 0; i < ipv4Count; i++) {
+                ipv4[i] ^= Integer.MIN_VALUE;
+            }
+            Arrays.sort(ipv4, 0, ipv4Count);
+            int distinct = 0;
+            for (int i = 0; i < ipv4Count; i++) {
+                if (distinct == 0 || ipv4[i] != ipv4[distinct - 1]) {
+                    ipv4[distinct++] = ipv4[i];
+                }
+            }
+            for (int i = 0; i < distinct; i++) {
+                ipv4[i] ^= Integer.MIN_VALUE;
+            }
+            ipv4Count = distinct;
+        }
+        if (ipv6Count > 1) {
+            heapSortPairs();
+            int distinct = 1;
+            for (int i = 1; i < ipv6Count; i++) {
+                if (comparePairs(i, distinct - 1) != 0) {
+                    ipv6[2 * distinct] = ipv6[2 * i];
+                    ipv6[2 * distinct + 1] = ipv6[2 * i + 1];
+                    distinct++;
+                }
+            }
+            ipv6Count = distinct;
+        }
+    }
+
+    void clear() {
+        ipv4Count = 0;
+        ipv6Count = 0;
+        ranges.clear();
+    }
+
+    /**
+     * In place, the pairs cannot go through Arrays.sort without boxing them.
+     */
+    private void heapSortPairs() {
+        for (int i = ipv6Count / 2 - 1; i >= 0; i--) {
+            siftDown(i, ipv6Count);
+        }
+        for (int end = ipv6Count - 1; end > 0; end--) {
+            swapPairs(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (2 * i + 1 < end) {
+            int child = 2 * i + 1;
+            if (child + 1 < end && comparePairs(child + 1, child) > 0) {
+                child++;
+            }
+            if (comparePairs(i, child) >= 0) {
+                return;
+            }
+            swapPairs(i, child);
+            i = child;
+        }
+    }
+
+    private int comparePairs(int i, int j) {
+        int high = Long.compareUnsigned(ipv6[2 * i], ipv6[2 * j]);
+        return high != 0 ? high : Long.compareUnsigned(ipv6[2 * i + 1], ipv6[2 * j + 1]);
+    }
+
+    private void swapPairs(int i, int j) {
+        long high = ipv6[2 * i];
+        long low = ipv6[2 * i + 1];
+        ipv6[2 * i] = ipv6[2 * j];
+        ipv6[2 * i + 1] = ipv6[2 * j + 1];
+        ipv6[2 * j] = high;
+        ipv6[2 * j + 1] = low;
+    }
+}
@@ -2,11 +2,15 @@ package com.unicommerce.cache;
 
 import com.unicommerce.cache.exception.CacheExpiredException;
 
+import java.io.IOException;
+import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by vsaini on 11/19/18.
@@ -16,203 +20,1001 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * for adding elements, a remove method for removing, a peek method which
  * returns the most recently added element, and a take method which removes
  * and returns the most recently added element.
+ *
+ * The max age applies to every element from its insertion time: an element older
+ * than that is no more visible to peek/take/contains and is dropped by the shared
+ * ExpiryScheduler on the next tick of the timing wheel, the rest of the cache stays usable.
+ * A cache no more needed should be closed.
+ *
+ * It is the ExpirableCache of InetAddress, whose operations, waiting consumers (take(),
+ * takeAsync(), publisher()) and metrics it shares, plus what is specific to addresses.
+ *
+ * The storage engine is chosen at construction, see CacheEngine: a locked indexed
+ * stack by default, or a lock-free Treiber stack.
+ *
+ * Besides InetAddress, addresses can be given raw: an int for IPv4 or the 4/16 address
+ * bytes. With the default engine the addresses are stored as primitives and the raw
+ * methods neither box nor allocate, the InetAddress methods are adapters over them.
+ *
+ * Address ranges in CIDR notation can be added as well, add(network, prefixLength): the
+ * contains() of an address is then true if the address itself or a range covering it is
+ * in the cache, and longestMatch() tells the most specific range covering it. Ranges
+ * have the same max age as the addresses and their own LIFO order, see peekPrefix() and
+ * takePrefix(). The lookups go through a compressed radix trie and do not allocate.
+ * Ranges are neither bounded by the capacity nor saved by the snapshots and the log.
+ *
+ * A cache may be bounded, see Capacity: once full, each add() evicts an address chosen
+ * by the EvictionPolicy (oldest, least recently used or W-TinyLFU). Its mutations are then
+ * serialized through the policy, reads are not affected.
+ *
+ * For a warm restart, the cache loads the snapshot its predecessor saved and keeps one
+ * up to date, periodically and on close:
+ *   cache.loadSnapshot(file);
+ *   cache.snapshotTo(file, 1, TimeUnit.MINUTES);
+ * Mutations between two snapshots are lost on a crash, unless the cache logs them to a
+ * write-ahead log, see openLog().
+ *
+ * When most contains() calls miss, filterMisses() puts a counting Bloom filter in front
+ * of the addresses: the misses it is sure of are answered without lock nor probe.
+ *
+ * The caches of several nodes can share their addresses, see replicate(): what is added,
+ * removed or taken on one node is gossiped to the others.
+ *
+ * To tell whether an address was seen N times in the last T seconds, trackFrequency()
+ * counts every add() of an address, already there or not, in a sliding window that
+ * frequency() queries.
+ *
+ * To follow the changes of the cache without polling it, e.g. to feed an audit log or a
+ * secondary index, subscribe() delivers each address added, removed, taken, evicted or
+ * expired, in batches on the executor of the subscriber, see CacheChanges.
+ *
+ * So that hot addresses neither expire while in use nor all get resolved again at the
+ * same moment, jitterExpiry() spreads the deadlines, slideExpiry() makes each contains()
+ * or peek() hit extend the lifetime of the address, and refreshAhead() reloads the
+ * addresses hit close to their deadline in the background.
  */
-public class AddressCache {
+public class AddressCache extends ExpirableCache<InetAddress> {
 
-    private long age;
-    private TimeUnit unit;
-    private long timeToLive;
-    private ArrayDeque<InetAddress> inetAddressStack;
-    private Thread purgeThread;
-    private boolean isExpired = false;
+    // the storage, wrapped by a LoggedAddressEngine once openLog() was called, then by a
+    // FilteredAddressEngine once filterMisses() was called, then by a ReplicatedAddressEngine
+    // once replicate() was called. The first subscribe() wraps the current one in an
+    // ObservedAddressEngine, between the last two.
+    private final AddressEngine addressStorage;
+    private volatile AddressEngine inetAddressStack;
 
-    private ReentrantReadWriteLock.WriteLock writeLock = new ReentrantReadWriteLock().writeLock();
-    private ReentrantReadWriteLock.ReadLock readLock = new ReentrantReadWriteLock().readLock();
-    private Condition waitTillDataArrive = writeLock.newCondition();
+    // lock of the saves, the periodic task, close() and saveSnapshot() never overlap.
+    // Set by close(): a periodic save running late must not overwrite the last snapshot.
+    private final AtomicBoolean snapshotsStopped = new AtomicBoolean();
+    private Path snapshotFile;
+    private ExpiryScheduler.Registration snapshotRegistration;
+
+    // created by the first add() of a range, a cache without any stays as cheap as before.
+    private volatile PrefixEngine prefixes;
+    private ExpiryScheduler.Registration prefixRegistration;
+
+    private WriteAheadLog log;
+    private ExpiryScheduler.Registration logFlushRegistration;
+    private ExpiryScheduler.Registration checkpointRegistration;
+
+    private FilteredAddressEngine missFilter;
+    private ExpiryScheduler.Registration missFilterRegistration;
+
+    private AddressReplicator replicator;
+    private ExpiryScheduler.Registration gossipRegistration;
+
+    // set by trackFrequency(), null if the sightings are not counted.
+    private volatile WindowCounter sightings;
+    private ExpiryScheduler.Registration sightingsRegistration;
+
+    // created by the first subscribe(), a cache without subscriber publishes nothing.
+    private ChangeRing changes;
+
+    // lifetime of the addresses added, jittered by jitterExpiry().
+    private volatile Lifetime lifetime;
+    // set by slideExpiry() and refreshAhead(), given to the storage as one AccessExpiry.
+    private boolean sliding;
+    private long refreshAhead;
+    private AddressRefresher refresher;
 
     public AddressCache(long maxAge, TimeUnit unit) {
-        this.age = maxAge;
-        this.unit = unit;
-        this.timeToLive = unit.toMillis(age);
+        this(maxAge, unit, CacheEngine.LOCKING);
+    }
 
-        inetAddressStack = new ArrayDeque<InetAddress>();
+    public AddressCache(long maxAge, TimeUnit unit, CacheEngine engine) {
+        this(maxAge, unit, engine.createAddressEngine(unit.toNanos(maxAge)));
+    }
 
+    /**
+     * Bounded cache: an add() which takes the cache past its capacity evicts the address
+     * chosen by the eviction policy of the capacity.
+     *
+     * @param maxAge
+     * @param unit
+     * @param engine
+     * @param capacity
+     */
+    public AddressCache(long maxAge, TimeUnit unit, CacheEngine engine, Capacity capacity) {
+        this(maxAge, unit, capacity.bound(engine.createAddressEngine(unit.toNanos(maxAge)), engine.estimatedEntryBytes()));
+    }
 
-        /*
-        * This thread is for counting on the life of the cache.
-        * As soon as the TTL elapsed this thread is all set to perform two tasks
-        * first - send a final signal to all waiting threads then
-        * second - marking this cache as expired and invalidating.
-        */
-        this.purgeThread = new Thread(new Runnable() {
-            public void run() {
-                try {
-                    Thread.sleep(timeToLive);
-                    isExpired = true;
-                    finalSignalBeforePurgingCache();
-                    System.out.println("\nGoing to purge the cache now TTL-expired: ");
-                    printCache();
-                    inetAddressStack.clear();
-                } catch (InterruptedException e) {
-                    System.out.println("Error while setting-up cache : TimeToLive given : " + timeToLive);
-                    e.printStackTrace();
-                }
-            }
-        });
-        // starting the purge thread to count on TTL.
-        this.purgeThread.start();
+    AddressCache(long maxAge, TimeUnit unit, AddressEngine engine) {
+        super(maxAge, unit, engine);
+        addressStorage = engine;
+        inetAddressStack = engine;
+        lifetime = new Lifetime(timeToLive, 0);
+    }
+
+    @Override
+    AddressEngine engine() {
+        return inetAddressStack;
+    }
+
+    @Override
+    long deadline(long now) {
+        return lifetime.deadline(now);
+    }
+
+    /**
+     * add() of a raw IPv4 address, e.g. 0x0a000001 for 10.0.0.1.
+     *
+     * @param ipv4
+     * @return true if the element was successfully added.
+     */
+    public boolean add(int ipv4) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        seen(0, AddressCodec.mapped(ipv4), now);
+        return added(this.inetAddressStack.push(ipv4, deadline(now), now), now);
     }
 
     /**
-     * add() method must store unique elements only (existing elements must be ignored).
-     * This will return true if the element was successfully added.
+     * add() of a raw IPv4 (4 bytes) or IPv6 (16 bytes) address.
      *
      * @param address
-     * @return
+     * @return true if the element was successfully added.
      */
+    public boolean add(byte[] address) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        seen(AddressCodec.keyHigh(address), AddressCodec.keyLow(address), now);
+        return added(this.inetAddressStack.push(address, deadline(now), now), now);
+    }
 
-    public boolean add(InetAddress address) throws CacheExpiredException {
-        boolean out = false;
+    @Override
+    public boolean add(InetAddress element) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        seen(element, now);
+        return added(this.inetAddressStack.push(element, deadline(now), now), now);
+    }
 
-        if (this.isExpired) {
-            throw new CacheExpiredException("Cache already expired!");
+    @Override
+    public int addAll(Collection<InetAddress> elements) throws CacheExpiredException {
+        checkOpen();
+        if (this.sightings != null) {
+            long now = System.nanoTime();
+            for (InetAddress element : elements) {
+                seen(element, now);
+            }
         }
+        return super.addAll(elements);
+    }
 
-        try {
-            writeLock.lock();
-            out = this.inetAddressStack.offerLast(address);
-            waitTillDataArrive.signalAll();
+    /**
+     * Bulk add of the raw addresses of a batch under one lock of the storage, then of its
+     * ranges one by one.
+     *
+     * @return number of addresses and ranges added.
+     */
+    int addAll(AddressBatch batch) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        int added = this.inetAddressStack.pushAll(batch, deadline(now), now);
+        metrics.addedAll(added, batch.size());
+        WindowCounter counter = this.sightings;
+        for (int i = 0; counter != null && i < batch.size(); i++) {
+            counter.record(batch.high(i), batch.low(i), now);
+        }
+        for (AddressPrefix range : batch.ranges()) {
+            if (add(range.getNetwork(), range.getLength())) {
+                added++;
+            }
+        }
+        if (added > 0) {
+            signalWaitingConsumers();
+        }
+        return added;
+    }
 
-        } finally {
-            writeLock.unlock();
+    /**
+     * Adds the addresses & ranges of a list file, one per line, plain or gzip, parsed in
+     * parallel on the common pool. See {@link AddressLoader} for the format, the progress
+     * reports and the other inputs.
+     *
+     * @param file
+     * @return the counters of the load.
+     * @throws IOException if the file cannot be read.
+     */
+    public AddressLoader.Report loadAddresses(Path file) throws CacheExpiredException, IOException {
+        return new AddressLoader(this).load(file);
+    }
+
+    public boolean remove(int ipv4) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        return removed(this.inetAddressStack.remove(ipv4, now), now);
+    }
+
+    public boolean remove(byte[] address) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        return removed(this.inetAddressStack.remove(address, now), now);
+    }
+
+    /**
+     * @return true if the address, or a range covering it, is in the cache.
+     */
+    @Override
+    public boolean contains(InetAddress element) {
+        long now = System.nanoTime();
+        boolean found = this.inetAddressStack.contains(element, now);
+        if (!found) {
+            PrefixEngine ranges = this.prefixes;
+            if (ranges != null) {
+                byte[] address = element.getAddress();
+                found = ranges.matches(AddressCodec.keyHigh(address), AddressCodec.keyLow(address), now);
+            }
+        }
+        return looked(found, now);
+    }
+
+    public boolean contains(int ipv4) {
+        long now = System.nanoTime();
+        boolean found = this.inetAddressStack.contains(ipv4, now);
+        if (!found) {
+            PrefixEngine ranges = this.prefixes;
+            found = ranges != null && ranges.matches(0, AddressCodec.mapped(ipv4), now);
         }
-        return out;
+        return looked(found, now);
     }
 
+    public boolean contains(byte[] address) {
+        long now = System.nanoTime();
+        boolean found = this.inetAddressStack.contains(address, now);
+        if (!found) {
+            PrefixEngine ranges = this.prefixes;
+            found = ranges != null && ranges.matches(AddressCodec.keyHigh(address), AddressCodec.keyLow(address), now);
+        }
+        return looked(found, now);
+    }
 
     /**
-     * remove() method will return true if the address was successfully removed
+     * Adds the range of addresses in CIDR notation, e.g. (10.0.0.0, 8) for 10.0.0.0/8.
+     * The addresses of the range are then contained in the cache until it reaches the max age.
      *
-     * @param address
-     * @return
+     * @param network      any address of the range, the bits past the prefix length are ignored.
+     * @param prefixLength 0 to 32 for IPv4, 0 to 128 for IPv6.
+     * @return true if the range was successfully added, false if already there.
+     * @throws IllegalArgumentException if the prefix length is out of range.
      */
-    public boolean remove(InetAddress address) throws CacheExpiredException {
+    public boolean add(InetAddress network, int prefixLength) throws CacheExpiredException {
+        byte[] address = network.getAddress();
+        int length = AddressPrefix.mappedLength(address, prefixLength);
+        checkOpen();
+        long now = System.nanoTime();
+        boolean added = prefixEngine().push(AddressCodec.keyHigh(address), AddressCodec.keyLow(address), length,
+                deadline(now), now);
+        metrics.added(added, now);
+        return added;
+    }
 
-        boolean result;
+    /**
+     * Removes the range added with the same network and prefix length, the ranges it
+     * covers or which cover it stay.
+     *
+     * @return true if the range was successfully removed.
+     */
+    public boolean remove(InetAddress network, int prefixLength) throws CacheExpiredException {
+        byte[] address = network.getAddress();
+        int length = AddressPrefix.mappedLength(address, prefixLength);
+        checkOpen();
+        long now = System.nanoTime();
+        PrefixEngine ranges = this.prefixes;
+        return removed(ranges != null && ranges.remove(AddressCodec.keyHigh(address), AddressCodec.keyLow(address),
+                length, now), now);
+    }
 
-        if (this.isExpired) {
-            throw new CacheExpiredException("Cache already expired!");
+    /**
+     * @return true if this very range is in the cache, see contains(InetAddress) for the addresses.
+     */
+    public boolean contains(InetAddress network, int prefixLength) {
+        byte[] address = network.getAddress();
+        int length = AddressPrefix.mappedLength(address, prefixLength);
+        long now = System.nanoTime();
+        PrefixEngine ranges = this.prefixes;
+        return looked(ranges != null && ranges.contains(AddressCodec.keyHigh(address), AddressCodec.keyLow(address),
+                length, now), now);
+    }
+
+    /**
+     * Longest-prefix match: the most specific range of the cache covering the address.
+     *
+     * @return prefix length of that range, -1 if no range covers the address.
+     */
+    public int longestMatch(InetAddress address) {
+        return longestMatch(address.getAddress());
+    }
+
+    /**
+     * longestMatch() of a raw IPv4 (4 bytes) or IPv6 (16 bytes) address, allocation-free.
+     */
+    public int longestMatch(byte[] address) {
+        PrefixEngine ranges = this.prefixes;
+        if (ranges == null) {
+            return -1;
+        }
+        int length = ranges.longestMatch(AddressCodec.keyHigh(address), AddressCodec.keyLow(address), System.nanoTime());
+        if (length >= 0 && AddressCodec.isIpv4(address)) {
+            // an IPv6 range shorter than ::ffff:0:0/96 covers all of IPv4.
+            return Math.max(0, length - 96);
+        }
+        return length;
+    }
+
+    /**
+     * @return the most recently added range, null if no range exists.
+     */
+    public AddressPrefix peekPrefix() throws CacheExpiredException {
+        checkOpen();
+        PrefixEngine ranges = this.prefixes;
+        return ranges == null ? null : ranges.peek(System.nanoTime());
+    }
+
+    /**
+     * Removes and returns the most recently added range. Unlike take(), does not wait.
+     *
+     * @return null if no range exists.
+     */
+    public AddressPrefix takePrefix() throws CacheExpiredException {
+        checkOpen();
+        PrefixEngine ranges = this.prefixes;
+        return ranges == null ? null : ranges.poll(System.nanoTime());
+    }
+
+    /**
+     * Clearing the cache manually, the ranges and the sightings included.
+     */
+    @Override
+    public void clear() {
+        super.clear();
+        PrefixEngine ranges = this.prefixes;
+        if (ranges != null) {
+            ranges.clear();
+        }
+        WindowCounter counter = this.sightings;
+        if (counter != null) {
+            counter.clear();
         }
+    }
 
+    /**
+     * Counts the sightings of the addresses: from now on every add() of an address, whether
+     * already in the cache or not, counts one sighting, see frequency(). Time is cut into 16
+     * buckets of a sixteenth of the window, aged out by the expiry scheduler, so windows are
+     * measured to the bucket. Ranges are not counted, nor the addresses loaded from a
+     * snapshot, the log or a peer.
+     *
+     * To be called once, before the cache is used. Counting & frequency() are O(1) and do
+     * not allocate, the table of EXACT aside, which grows with the addresses seen.
+     *
+     * @param window            longest window frequency() is asked for, e.g. 1 minute.
+     * @param unit
+     * @param counting          EXACT counters per address, or a SKETCH of fixed memory.
+     * @param expectedAddresses number of distinct addresses seen per window, sizes the counters.
+     */
+    public void trackFrequency(long window, TimeUnit unit, WindowCounting counting, int expectedAddresses)
+            throws CacheExpiredException {
+        WindowCounter counter = counting.create(unit.toNanos(window), expectedAddresses);
+        stateLock.lock();
         try {
-            writeLock.lock();
-            result = this.inetAddressStack.remove(address);
+            checkOpen();
+            if (this.sightings != null) {
+                throw new IllegalStateException("Frequency already tracked");
+            }
+            this.sightingsRegistration = ExpiryScheduler.shared().register(this,
+                    tickTask(counter), counter.getTickNanos());
+            this.sightings = counter;
         } finally {
-            writeLock.unlock();
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * @param window at most the window of trackFrequency().
+     * @return number of add() of the address in the last window, to the bucket.
+     * @throws IllegalStateException if trackFrequency() was not called.
+     */
+    public int frequency(InetAddress address, long window, TimeUnit unit) {
+        return frequency(address.getAddress(), window, unit);
+    }
+
+    /**
+     * frequency() of a raw IPv4 address, allocation-free.
+     */
+    public int frequency(int ipv4, long window, TimeUnit unit) {
+        WindowCounter counter = sightingCounter();
+        return counter.frequency(0, AddressCodec.mapped(ipv4), counter.bucketsOf(unit.toNanos(window)),
+                System.nanoTime());
+    }
+
+    /**
+     * frequency() of a raw IPv4 (4 bytes) or IPv6 (16 bytes) address, allocation-free.
+     */
+    public int frequency(byte[] address, long window, TimeUnit unit) {
+        WindowCounter counter = sightingCounter();
+        return counter.frequency(AddressCodec.keyHigh(address), AddressCodec.keyLow(address),
+                counter.bucketsOf(unit.toNanos(window)), System.nanoTime());
+    }
+
+    /**
+     * peek() writing the most recently added address into the given array.
+     *
+     * @param address array of at least 16 bytes.
+     * @return number of bytes written (4 or 16), 0 if no element exists.
+     */
+    public int peekInto(byte[] address) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        int length = inetAddressStack.peekInto(address, now);
+        metrics.peeked(now);
+        return length;
+    }
+
+    /**
+     * take() writing the most recently added address into the given array,
+     * waits if necessary until an element becomes available.
+     *
+     * @param address array of at least 16 bytes.
+     * @return number of bytes written (4 or 16), 0 if interrupted while waiting.
+     */
+    public int takeInto(byte[] address) throws CacheExpiredException {
+        checkOpen();
+        long start = System.nanoTime();
+        if (!hasWaitingConsumers()) {
+            int length = this.inetAddressStack.pollInto(address, start);
+            if (length != 0) {
+                metrics.taken(start);
+                return length;
+            }
+        }
+        // only a consumer which had to wait gets an InetAddress.
+        InetAddress found = take();
+        if (found == null) {
+            return 0;
+        }
+        byte[] bytes = found.getAddress();
+        System.arraycopy(bytes, 0, address, 0, bytes.length);
+        return bytes.length;
+    }
+
+    /**
+     * Writes the addresses of the cache with their remaining age to a memory-mapped file,
+     * replacing the previous snapshot only once complete.
+     *
+     * @param file
+     * @return number of addresses written.
+     */
+    public int saveSnapshot(Path file) throws CacheExpiredException, IOException {
+        checkOpen();
+        synchronized (snapshotsStopped) {
+            return AddressSnapshot.write(this.addressStorage, file, System.nanoTime());
+        }
+    }
+
+    /**
+     * Adds the addresses of a snapshot on top of the cache, in their original order.
+     * Addresses which reached the max age since the snapshot was taken are skipped.
+     *
+     * @param file
+     * @return number of addresses loaded, 0 if the file does not exist.
+     * @throws IOException if the file is not a snapshot.
+     */
+    public int loadSnapshot(Path file) throws CacheExpiredException, IOException {
+        checkOpen();
+        int loaded = AddressSnapshot.read(file, this.inetAddressStack, timeToLive, System.nanoTime());
+        if (loaded > 0) {
+            signalWaitingConsumers();
         }
-        return result;
+        return loaded;
     }
 
     /**
-     * The peek() method will return the most recently added element,
-     * null if no element exists.
+     * Saves a snapshot to the given file every period, on an I/O thread of the
+     * ExpiryScheduler, and a last one on close().
+     * Replaces the snapshot file configured before, if any.
      *
-     * @return
+     * @param file
+     * @param period
+     * @param unit
      */
-    public InetAddress peek() throws CacheExpiredException {
+    public void snapshotTo(Path file, long period, TimeUnit unit) throws CacheExpiredException {
+        stateLock.lock();
+        try {
+            checkOpen();
+            if (this.snapshotRegistration != null) {
+                this.snapshotRegistration.cancel();
+            }
+            this.snapshotFile = file;
+            this.snapshotRegistration = ExpiryScheduler.shared().registerIo(this,
+                    snapshotTask(this.addressStorage, file, snapshotsStopped), unit.toNanos(period));
+        } finally {
+            stateLock.unlock();
+        }
+    }
 
-        InetAddress found = null;
+    /**
+     * Makes the cache durable: recovers the addresses from the given directory (latest
+     * snapshot + log replayed on top of it), then logs every add/remove/take/clear before
+     * returning, as durable as the given mode. The snapshots & log are compacted every
+     * checkpoint period and on close().
+     *
+     * To be called once, before the cache is used. A durable cache serializes its
+     * mutations to keep the log in order, reads are not affected.
+     *
+     * @param directory holds the snapshots and the log segments.
+     * @param durability
+     * @param checkpointPeriod
+     * @param unit
+     * @return number of records recovered, snapshot entries included.
+     */
+    public int openLog(Path directory, WriteAheadLog.Durability durability, long checkpointPeriod, TimeUnit unit)
+            throws CacheExpiredException, IOException {
+        int recovered;
+        stateLock.lock();
+        try {
+            checkOpen();
+            if (this.log != null) {
+                throw new IllegalStateException("Log already open : " + directory);
+            }
+            if (this.missFilter != null) {
+                throw new IllegalStateException("Miss filter already set, the log must be opened before it");
+            }
+            if (this.changes != null) {
+                throw new IllegalStateException("Changes already subscribed to, the log must be opened before");
+            }
+            checkNotReplicated();
+            WriteAheadLog opened = new WriteAheadLog(directory, durability, WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+            recovered = opened.recover(this.addressStorage, timeToLive);
+            this.log = opened;
+            this.inetAddressStack = new LoggedAddressEngine(this.addressStorage, opened);
+            if (durability == WriteAheadLog.Durability.ASYNC) {
+                this.logFlushRegistration = ExpiryScheduler.shared().registerIo(this,
+                        opened.flushTask(), TimeUnit.MILLISECONDS.toNanos(WriteAheadLog.ASYNC_FLUSH_MILLIS));
+            }
+            this.checkpointRegistration = ExpiryScheduler.shared().registerIo(this,
+                    checkpointTask(opened, this.addressStorage), unit.toNanos(checkpointPeriod));
+        } finally {
+            stateLock.unlock();
+        }
+        if (recovered > 0) {
+            signalWaitingConsumers();
+        }
+        return recovered;
+    }
 
-        if (this.isExpired) {
-            throw new CacheExpiredException("Cache already expired!");
+    /**
+     * Saves a snapshot covering the log written so far, and deletes the log segments and
+     * snapshots it replaces. Done periodically once openLog() was called.
+     *
+     * @return number of addresses in the snapshot.
+     */
+    public int checkpoint() throws CacheExpiredException, IOException {
+        checkOpen();
+        if (this.log == null) {
+            throw new IllegalStateException("No log open");
         }
 
+        return this.log.checkpoint(this.addressStorage);
+    }
+
+    /**
+     * Puts a counting Bloom filter in front of the addresses, built from the addresses
+     * already there: a contains() of an address the filter never counted returns false
+     * without locking nor probing the storage. Worth it when most lookups miss, e.g. a
+     * blocklist. The ranges are not filtered.
+     *
+     * add/remove/take keep the filter up to date, the addresses expired or evicted stay
+     * counted until the filter is rebuilt from the storage, done on an I/O thread of the
+     * expiry scheduler once they make a quarter of the size. The filter is never wrong
+     * about an address in the cache, its false positive rate and memory are in the metrics.
+     *
+     * To be called once, before the cache is used, after openLog() and before replicate() if any.
+     *
+     * @param expectedEntries   number of addresses the filter is sized for, it grows past it.
+     * @param falsePositiveRate wanted share of the misses the filter lets through, e.g. 0.01.
+     */
+    public void filterMisses(long expectedEntries, double falsePositiveRate) throws CacheExpiredException {
+        stateLock.lock();
         try {
-            readLock.tryLock();
-            found = inetAddressStack.peekLast();
+            checkOpen();
+            if (this.missFilter != null) {
+                throw new IllegalStateException("Miss filter already set");
+            }
+            checkNotReplicated();
+            FilteredAddressEngine filtered = new FilteredAddressEngine(this.inetAddressStack, expectedEntries,
+                    falsePositiveRate);
+            this.missFilterRegistration = ExpiryScheduler.shared().registerIo(this,
+                    refreshTask(filtered), filtered.getTickNanos());
+            this.missFilter = filtered;
+            this.inetAddressStack = filtered;
+            metrics.filtering(filtered);
         } finally {
-            readLock.unlock();
+            stateLock.unlock();
         }
-        return found;
     }
 
     /**
-     * take() method retrieves and removes the most recently added element
-     * from the cache and waits if necessary until an element becomes available.
+     * Replicates the addresses with the caches of the other nodes joined to the transport.
+     * Every gossip period, the addresses added, removed or taken here since the previous
+     * period are sent to each peer as one batch of deltas, merged there into an add-wins set
+     * with TTL: an add concurrent to a remove wins, a remove only cancels the adds it saw,
+     * and an address replicated expires everywhere at its wall clock deadline. Every ten
+     * periods the node compares a Merkle digest of its addresses with one peer, and the two
+     * exchange the entries they disagree on: lost deltas are repaired and a node joining or
+     * back from a partition catches up without a full copy.
+     *
+     * To be called once, before the cache is used, after openLog() and filterMisses() if
+     * any. The addresses already in the cache are replicated as added. A replicated cache
+     * serializes its mutations to keep the replicated set in step, reads are not affected.
+     * Ranges (CIDR) and evictions are not replicated. Closing the cache leaves the transport.
      *
-     * @return
+     * @param node         number of this node, unique in the cluster.
+     * @param transport    carries the messages to the peers, e.g. a LoopbackTransport.
+     * @param gossipPeriod
+     * @param unit
      */
-    public InetAddress take() throws CacheExpiredException {
+    public void replicate(int node, ReplicationTransport transport, long gossipPeriod, TimeUnit unit)
+            throws CacheExpiredException {
+        stateLock.lock();
+        try {
+            checkOpen();
+            checkNotReplicated();
+            final AddressReplicator created = new AddressReplicator(node, transport, this.inetAddressStack);
+            created.addedAll(System.nanoTime());
+            this.inetAddressStack = new ReplicatedAddressEngine(this.inetAddressStack, created);
+            transport.join(node, new ReplicationTransport.Receiver() {
+                public void receive(int from, ByteBuffer message) {
+                    if (created.receive(from, message)) {
+                        signalWaitingConsumers();
+                    }
+                }
+            });
+            this.gossipRegistration = ExpiryScheduler.shared().register(this,
+                    AddressReplicator.gossipTask(created), unit.toNanos(gossipPeriod));
+            this.replicator = created;
+            metrics.replicating(created);
+        } finally {
+            stateLock.unlock();
+        }
+    }
 
-        InetAddress found = null;
-        if (this.isExpired) {
-            throw new CacheExpiredException("Cache already expired!");
+    /**
+     * Delivers the changes of the cache from now on to the listener, in batches run by the
+     * given executor, one at a time: each address added, removed, taken, evicted or
+     * expired, and each clear(). The changes are written to a ring buffer of 32768 changes
+     * shared by the subscribers, without lock nor allocation, and the threads changing the
+     * cache never wait for a subscriber: one falling a whole ring behind loses the oldest
+     * changes instead, see CacheChanges.Batch#lost(). Ranges (CIDR) are not covered.
+     *
+     * The deliveries are submitted to the executor by a shared "cache-changes" thread, never
+     * by a thread changing the cache, so a listener may use the cache. An executor running
+     * them on the calling thread holds up the deliveries of the other subscribers.
+     *
+     * The first subscription is to be made after openLog() and before replicate() if any,
+     * the changes replicated from the peers are then delivered as well. Closing the cache
+     * ends the changes, not the subscriptions: the changes made before are still delivered.
+     *
+     * @param listener
+     * @param executor runs the deliveries, e.g. a single thread executor per subscriber.
+     * @return the subscription, to cancel it.
+     */
+    public CacheChanges.Subscription subscribe(CacheChanges.Listener listener, Executor executor)
+            throws CacheExpiredException {
+        if (listener == null || executor == null) {
+            throw new NullPointerException("listener and executor are required");
         }
+        stateLock.lock();
+        try {
+            checkOpen();
+            if (this.changes == null) {
+                checkNotReplicated();
+                ChangeRing ring = new ChangeRing(ChangeRing.DEFAULT_CAPACITY);
+                this.addressStorage.setExpiryListener(ring.publisher(CacheChanges.Type.EXPIRED));
+                if (this.addressStorage instanceof BoundedAddressEngine) {
+                    ((BoundedAddressEngine) this.addressStorage).setEvictionListener(
+                            ring.publisher(CacheChanges.Type.EVICTED));
+                }
+                this.inetAddressStack = new ObservedAddressEngine(this.inetAddressStack, ring);
+                this.changes = ring;
+            }
+            return this.changes.subscribe(listener, executor);
+        } finally {
+            stateLock.unlock();
+        }
+    }
 
+    /**
+     * Shortens the lifetime of each address added from now on by a random jitter of up to
+     * the given time, so that addresses added together, e.g. by a bulk load, do not all
+     * expire and get resolved again together. The max age stays the longest lifetime.
+     * Ranges are jittered as well.
+     *
+     * With the LOCK_FREE and OFF_HEAP engines, which drop their addresses in insertion
+     * order, an address past its deadline is hidden at once but may be dropped up to the
+     * jitter later.
+     *
+     * @param jitter at most half of the max age, 0 for none.
+     * @param unit
+     * @throws IllegalArgumentException if the jitter is out of range.
+     */
+    public void jitterExpiry(long jitter, TimeUnit unit) throws CacheExpiredException {
+        Lifetime jittered = new Lifetime(timeToLive, unit.toNanos(jitter));
+        stateLock.lock();
         try {
-            writeLock.lock();
-            while (this.inetAddressStack.isEmpty() && !this.isExpired()) {
-                waitTillDataArrive.await(this.age, this.unit);
+            checkOpen();
+            if (this.sliding) {
+                this.addressStorage.setAccessExpiry(new AccessExpiry(jittered, this.refreshAhead, this.refresher));
             }
-            found = this.inetAddressStack.pollLast();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            this.lifetime = jittered;
         } finally {
-            writeLock.unlock();
+            stateLock.unlock();
         }
-        return found;
     }
 
+    /**
+     * Makes the lifetime of the addresses sliding: a contains() or peek() hit of an address
+     * gives it a new lifetime from the hit, jitter included, so a hot address stays in the
+     * cache while a cold one still expires at the max age. An address extends its deadline
+     * at most once per eighth of the max age, the other hits stay lock-free reads. take()
+     * and the ranges are not hits. The extended deadlines are neither logged nor replicated.
+     *
+     * To be called once.
+     *
+     * @throws UnsupportedOperationException unless the engine is LOCKING, the others drop
+     * their addresses in insertion order.
+     */
+    public void slideExpiry() throws CacheExpiredException {
+        stateLock.lock();
+        try {
+            checkOpen();
+            if (this.sliding) {
+                throw new IllegalStateException("Expiry already sliding");
+            }
+            this.addressStorage.setAccessExpiry(new AccessExpiry(this.lifetime, this.refreshAhead, this.refresher));
+            this.sliding = true;
+        } finally {
+            stateLock.unlock();
+        }
+    }
 
     /**
-     * Method to check if the cache is already expired.
+     * Refreshes the addresses in use ahead of their expiry: a contains() or peek() hit of an
+     * address within the given time of its deadline submits its reload to the executor,
+     * then the address gets a new lifetime if the reloader keeps it, or is removed. The hits
+     * of an address being reloaded are coalesced into its reload. A cold address is not
+     * reloaded and expires, the hot ones are reloaded as they are hit instead of all at once
+     * past their deadline. The reloads stop when the cache is closed.
+     *
+     * To be called once.
      *
-     * @return
+     * @param ahead    time before the deadline, at most half of the max age, e.g. a tenth.
+     * @param unit
+     * @param reloader
+     * @param executor runs the reloads, e.g. a small thread pool.
+     * @throws UnsupportedOperationException unless the engine is LOCKING, the others drop
+     * their addresses in insertion order.
      */
-    public boolean isExpired() {
-        return isExpired;
+    public void refreshAhead(long ahead, TimeUnit unit, AddressReloader reloader, Executor executor)
+            throws CacheExpiredException {
+        if (reloader == null || executor == null) {
+            throw new NullPointerException("reloader and executor are required");
+        }
+        long aheadNanos = unit.toNanos(ahead);
+        if (aheadNanos <= 0 || aheadNanos > timeToLive / 2) {
+            throw new IllegalArgumentException("Refresh must start within half of the max age : " + ahead);
+        }
+        stateLock.lock();
+        try {
+            checkOpen();
+            if (this.refresher != null) {
+                throw new IllegalStateException("Refresh ahead already set");
+            }
+            AddressRefresher created = new AddressRefresher(this, reloader, executor);
+            this.addressStorage.setAccessExpiry(new AccessExpiry(this.sliding ? this.lifetime : null,
+                    aheadNanos, created));
+            this.refreshAhead = aheadNanos;
+            this.refresher = created;
+        } finally {
+            stateLock.unlock();
+        }
     }
 
+    /**
+     * Gives the address a new lifetime from now if it is still there, for the refresher.
+     *
+     * @return true if the address is there.
+     */
+    boolean renew(InetAddress element) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        return this.inetAddressStack.renew(element.getAddress(), deadline(now), now);
+    }
 
     /**
-     * Method to send the final signal to waiting consumers(take()) before purging the cache.
+     * Closing an AddressCache also saves a last snapshot if snapshotTo() was called, then
+     * checkpoints and closes the log if openLog() was called.
      */
-    private void finalSignalBeforePurgingCache() {
-        writeLock.lock();
-        waitTillDataArrive.signalAll();
-        writeLock.unlock();
+    @Override
+    void closing() {
+        if (this.sliding || this.refresher != null) {
+            this.addressStorage.setAccessExpiry(null);
+        }
+        if (this.replicator != null) {
+            this.gossipRegistration.cancel();
+            // the last deltas, then the peers stop sending.
+            this.replicator.gossip();
+            this.replicator.leave();
+        }
+        if (this.missFilter != null) {
+            this.missFilterRegistration.cancel();
+        }
+        if (this.sightings != null) {
+            this.sightingsRegistration.cancel();
+        }
+        if (this.prefixes != null) {
+            this.prefixRegistration.cancel();
+            this.prefixes.clear();
+        }
+        if (this.snapshotRegistration != null) {
+            this.snapshotRegistration.cancel();
+            synchronized (snapshotsStopped) {
+                snapshotsStopped.set(true);
+                try {
+                    AddressSnapshot.write(this.addressStorage, this.snapshotFile, System.nanoTime());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (this.log != null) {
+            this.checkpointRegistration.cancel();
+            if (this.logFlushRegistration != null) {
+                this.logFlushRegistration.cancel();
+            }
+            try {
+                this.log.checkpoint(this.addressStorage);
+                this.log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
+    private void seen(long high, long low, long now) {
+        WindowCounter counter = this.sightings;
+        if (counter != null) {
+            counter.record(high, low, now);
+        }
+    }
+
+    private void seen(InetAddress element, long now) {
+        WindowCounter counter = this.sightings;
+        if (counter == null) {
+            return;
+        }
+        if (element instanceof Inet4Address) {
+            // the hash code of an Inet4Address is its address, read without copying it.
+            counter.record(0, AddressCodec.mapped(element.hashCode()), now);
+        } else {
+            byte[] address = element.getAddress();
+            counter.record(AddressCodec.keyHigh(address), AddressCodec.keyLow(address), now);
+        }
+    }
+
+    private WindowCounter sightingCounter() {
+        WindowCounter counter = this.sightings;
+        if (counter == null) {
+            throw new IllegalStateException("Frequency not tracked, see trackFrequency()");
+        }
+        return counter;
+    }
+
+    private void checkNotReplicated() {
+        if (this.replicator != null) {
+            throw new IllegalStateException("Cache already replicated as node " + this.replicator.node()
+                    + ", replicate() must come last");
+        }
+    }
 
     /**
-     * Printing the cache elements
+     * @return the engine of the ranges, created and registered for expiry on first use.
      */
-    public void printCache() {
-        readLock.lock();
-        System.out.println("Cache:::  " + this.inetAddressStack);
-        readLock.unlock();
+    private PrefixEngine prefixEngine() throws CacheExpiredException {
+        PrefixEngine ranges = this.prefixes;
+        if (ranges != null) {
+            return ranges;
+        }
+        stateLock.lock();
+        try {
+            checkOpen();
+            if (this.prefixes == null) {
+                PrefixEngine created = new PrefixEngine(timeToLive);
+                this.prefixRegistration = ExpiryScheduler.shared().register(this,
+                        purgeTask(created, metrics), created.getTickNanos());
+                this.prefixes = created;
+            }
+            return this.prefixes;
+        } finally {
+            stateLock.unlock();
+        }
     }
 
     /**
-     * Clearing the cache manually
+     * ShardedAddressCache included, the address caches export their metrics as one type.
      */
-    public void clear() {
-        writeLock.lock();
-        this.inetAddressStack.clear();
-        writeLock.unlock();
+    @Override
+    String metricsType() {
+        return "AddressCache";
     }
 
     /**
-     * Check if the given element is available in Cache.
-     * @param ele
-     * @return
+     * @return periodic save, must not reference the cache either.
      */
-    public boolean contains(InetAddress ele) {
-        readLock.lock();
-        boolean result = this.inetAddressStack.contains(ele);
-        readLock.unlock();
-        return result;
+    private static Runnable snapshotTask(final AddressEngine engine, final Path file, final AtomicBoolean stopped) {
+        return new Runnable() {
+            public void run() {
+                synchronized (stopped) {
+                    if (stopped.get()) {
+                        return;
+                    }
+                    try {
+                        AddressSnapshot.write(engine, file, System.nanoTime());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
     }
 
+    /**
+     * @return periodic rebuild of the miss filter, when due. Must not reference the cache either.
+     */
+    private static Runnable refreshTask(final FilteredAddressEngine filtered) {
+        return new Runnable() {
+            public void run() {
+                filtered.refresh();
+            }
+        };
+    }
 
+    private static Runnable tickTask(final WindowCounter counter) {
+        return new Runnable() {
+            public void run() {
+                counter.tick(System.nanoTime());
+            }
+        };
+    }
+
+    private static Runnable checkpointTask(final WriteAheadLog log, final AddressEngine storage) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    log.checkpoint(storage);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+    }
 }
@@ -0,0 +1,369 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client of an {@link AddressCacheServer}, over one blocking connection. The single calls
+ * (add, contains...) send a frame of one request and wait for its response. For throughput,
+ * requests are collected in a {@link Batch} sent as one frame, and batches can be pipelined:
+ * send() several before receive() their {@link Results}, in the same order.
+ *
+ * Buffers are direct and reused, the raw operations allocate nothing. Not thread-safe,
+ * one client per thread.
+ */
+public final class AddressCacheClient implements AutoCloseable {
+
+    private final SocketChannel channel;
+    // read mode: the response bytes received and not parsed yet.
+    private final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+    private final Batch single = new Batch();
+    private final Results singleResult = new Results();
+    private int framesInFlight;
+
+    public AddressCacheClient(InetSocketAddress server) throws IOException {
+        this.channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(server);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        in.limit(0);
+    }
+
+    public boolean add(int ipv4) throws IOException, CacheExpiredException {
+        return call(single.add(ipv4)).isTrue(0);
+    }
+
+    /**
+     * @param address 4 or 16 bytes.
+     */
+    public boolean add(byte[] address) throws IOException, CacheExpiredException {
+        return call(single.add(address)).isTrue(0);
+    }
+
+    public boolean add(InetAddress address) throws IOException, CacheExpiredException {
+        return add(address.getAddress());
+    }
+
+    public boolean remove(int ipv4) throws IOException, CacheExpiredException {
+        return call(single.remove(ipv4)).isTrue(0);
+    }
+
+    public boolean remove(byte[] address) throws IOException, CacheExpiredException {
+        return call(single.remove(address)).isTrue(0);
+    }
+
+    public boolean remove(InetAddress address) throws IOException, CacheExpiredException {
+        return remove(address.getAddress());
+    }
+
+    public boolean contains(int ipv4) throws IOException, CacheExpiredException {
+        return call(single.contains(ipv4)).isTrue(0);
+    }
+
+    public boolean contains(byte[] address) throws IOException, CacheExpiredException {
+        return call(single.contains(address)).isTrue(0);
+    }
+
+    public boolean contains(InetAddress address) throws IOException, CacheExpiredException {
+        return contains(address.getAddress());
+    }
+
+    /**
+     * @return the most recently added address, null if the cache is empty.
+     */
+    public InetAddress peek() throws IOException, CacheExpiredException {
+        return call(single.peek()).address(0);
+    }
+
+    /**
+     * @param address array of at least 16 bytes.
+     * @return number of bytes written (4 or 16), 0 if the cache is empty.
+     */
+    public int peekInto(byte[] address) throws IOException, CacheExpiredException {
+        return call(single.peek()).addressInto(0, address);
+    }
+
+    /**
+     * Takes the most recently added address, waiting up to the timeout for one.
+     *
+     * @param timeout 0 not to wait, negative to wait as long as needed.
+     * @return null on timeout.
+     */
+    public InetAddress take(long timeout, TimeUnit unit) throws IOException, CacheExpiredException {
+        return call(single.take(timeout, unit)).address(0);
+    }
+
+    /**
+     * Writes the requests of the batch as one frame, without waiting for the responses.
+     * The batch can be cleared and reused once sent.
+     */
+    public void send(Batch batch) throws IOException {
+        ByteBuffer frame = batch.frame();
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+        framesInFlight++;
+    }
+
+    /**
+     * Reads the responses to the oldest batch sent and not received yet.
+     *
+     * @param into reused results, overwritten.
+     * @return into.
+     * @throws CacheExpiredException if the cache was closed for any of the requests.
+     */
+    public Results receive(Results into) throws IOException, CacheExpiredException {
+        if (framesInFlight == 0) {
+            throw new IllegalStateException("No batch sent");
+        }
+        framesInFlight--;
+        ensure(CacheProtocol.RESPONSE_HEADER_BYTES);
+        int count = in.getShort() & 0xffff;
+        into.reset(count);
+        boolean closed = false;
+        for (int i = 0; i < count; i++) {
+            ensure(1);
+            byte status = in.get();
+            if (status == CacheProtocol.ADDRESS) {
+                ensure(1);
+                int length = in.get();
+                if (!CacheProtocol.isAddressLength(length)) {
+                    throw new IOException("Malformed response, address length : " + length);
+                }
+                ensure(length);
+                in.get(into.addresses, i * AddressCodec.IPV6_LENGTH, length);
+                into.lengths[i] = (byte) length;
+            } else if (status > CacheProtocol.CLOSED || status < 0) {
+                throw new IOException("Malformed response, status : " + status);
+            }
+            into.statuses[i] = status;
+            closed |= status == CacheProtocol.CLOSED;
+        }
+        if (closed) {
+            throw new CacheExpiredException("Cache closed on the server");
+        }
+        return into;
+    }
+
+    /**
+     * send() then receive().
+     */
+    public Results execute(Batch batch, Results into) throws IOException, CacheExpiredException {
+        send(batch);
+        return receive(into);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private Results call(Batch request) throws IOException, CacheExpiredException {
+        try {
+            return execute(request, singleResult);
+        } finally {
+            request.clear();
+        }
+    }
+
+    /**
+     * Reads until the given bytes are available.
+     */
+    private void ensure(int bytes) throws IOException {
+        if (in.remaining() >= bytes) {
+            return;
+        }
+        in.compact();
+        try {
+            while (in.position() < bytes) {
+                if (channel.read(in) < 0) {
+                    throw new EOFException("Connection closed by the server");
+                }
+            }
+        } finally {
+            in.flip();
+        }
+    }
+
+    /**
+     * Requests sent in one frame, encoded as they are added. Reusable after clear().
+     */
+    public static final class Batch {
+
+        private final ByteBuffer frame = ByteBuffer.allocateDirect(CacheProtocol.REQUEST_HEADER_BYTES
+                + CacheProtocol.MAX_FRAME_BYTES);
+        private int count;
+
+        public Batch() {
+            clear();
+        }
+
+        public Batch add(int ipv4) {
+            return request(CacheProtocol.ADD, ipv4);
+        }
+
+        public Batch add(byte[] address) {
+            return request(CacheProtocol.ADD, address);
+        }
+
+        public Batch remove(int ipv4) {
+            return request(CacheProtocol.REMOVE, ipv4);
+        }
+
+        public Batch remove(byte[] address) {
+            return request(CacheProtocol.REMOVE, address);
+        }
+
+        public Batch contains(int ipv4) {
+            return request(CacheProtocol.CONTAINS, ipv4);
+        }
+
+        public Batch contains(byte[] address) {
+            return request(CacheProtocol.CONTAINS, address);
+        }
+
+        public Batch peek() {
+            room(1);
+            frame.put(CacheProtocol.PEEK);
+            return this;
+        }
+
+        /**
+         * @param timeout 0 not to wait, negative to wait as long as needed.
+         */
+        public Batch take(long timeout, TimeUnit unit) {
+            room(5);
+            long millis = timeout < 0 ? -1 : Math.min(unit.toMillis(timeout), Integer.MAX_VALUE);
+            frame.put(CacheProtocol.TAKE).putInt((int) millis);
+            return this;
+        }
+
+        /**
+         * @return number of requests.
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * @return true if a request of any kind still fits.
+         */
+        public boolean hasRoom() {
+            return count < CacheProtocol.MAX_REQUESTS && frame.remaining() >= CacheProtocol.MAX_REQUEST_BYTES;
+        }
+
+        public void clear() {
+            frame.clear();
+            frame.position(CacheProtocol.REQUEST_HEADER_BYTES);
+            count = 0;
+        }
+
+        private Batch request(byte op, int ipv4) {
+            room(2 + AddressCodec.IPV4_LENGTH);
+            frame.put(op).put((byte) AddressCodec.IPV4_LENGTH).putInt(ipv4);
+            return this;
+        }
+
+        private Batch request(byte op, byte[] address) {
+            if (!CacheProtocol.isAddressLength(address.length)) {
+                throw new IllegalArgumentException("Not an IP address, length : " + address.length);
+            }
+            room(2 + address.length);
+            frame.put(op).put((byte) address.length).put(address);
+            return this;
+        }
+
+        /**
+         * @throws IllegalStateException if the request does not fit in the frame.
+         */
+        private void room(int bytes) {
+            if (count == CacheProtocol.MAX_REQUESTS || frame.remaining() < bytes) {
+                throw new IllegalStateException("Batch full, " + count + " requests");
+            }
+            count++;
+        }
+
+        /**
+         * @return the frame, header written, ready to be written out.
+         */
+        ByteBuffer frame() {
+            ByteBuffer duplicate = frame.duplicate();
+            duplicate.flip();
+            duplicate.putInt(0, duplicate.limit() - 4).putShort(4, (short) count);
+            return duplicate;
+        }
+    }
+
+    /**
+     * Responses to a batch, by request index. Reusable.
+     */
+    public static final class Results {
+
+        private byte[] statuses = new byte[0];
+        private byte[] lengths = new byte[0];
+        private byte[] addresses = new byte[0];
+        private int count;
+
+        public int size() {
+            return count;
+        }
+
+        /**
+         * @return the result of an add, remove or contains.
+         */
+        public boolean isTrue(int i) {
+            return status(i) == CacheProtocol.TRUE;
+        }
+
+        /**
+         * @return the address of a peek or take, null if none.
+         */
+        public InetAddress address(int i) {
+            if (status(i) != CacheProtocol.ADDRESS) {
+                return null;
+            }
+            byte[] address = new byte[lengths[i]];
+            System.arraycopy(addresses, i * AddressCodec.IPV6_LENGTH, address, 0, address.length);
+            return AddressCodec.toInetAddress(address);
+        }
+
+        /**
+         * @param address array of at least 16 bytes.
+         * @return number of bytes written (4 or 16) for a peek or take, 0 if none.
+         */
+        public int addressInto(int i, byte[] address) {
+            if (status(i) != CacheProtocol.ADDRESS) {
+                return 0;
+            }
+            System.arraycopy(addresses, i * AddressCodec.IPV6_LENGTH, address, 0, lengths[i]);
+            return lengths[i];
+        }
+
+        private byte status(int i) {
+            if (i < 0 || i >= count) {
+                throw new IndexOutOfBoundsException("Result " + i + " of " + count);
+            }
+            return statuses[i];
+        }
+
+        private void reset(int count) {
+            if (statuses.length < count) {
+                statuses = new byte[count];
+                lengths = new byte[count];
+                addresses = new byte[count * AddressCodec.IPV6_LENGTH];
+            }
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Serves an {@link AddressCache} over TCP with the binary {@link CacheProtocol}: add,
+ * remove, contains, peek and take, see {@link AddressCacheClient} for the client side.
+ *
+ * One thread accepts the connections and hands them round-robin to the I/O threads, each
+ * running a {@link Selector} over its connections. A connection reads into a direct buffer
+ * holding whole frames and the requests are served straight from it, the responses written
+ * into a direct buffer flushed once per batch of frames: nothing is allocated per request
+ * but for take() and the IPv6 peek(), which go through InetAddress in the cache too.
+ *
+ * A take() which has to wait does not block the I/O thread: the later requests of the
+ * connection wait behind it until the takeAsync() future completes or its timeout passes,
+ * to keep the responses in order. Once the client is gone, an address handed to
+ * its take() is added back. The responses are not flushed until the client reads them,
+ * reading stops meanwhile.
+ */
+public final class AddressCacheServer implements AutoCloseable {
+
+    private static final int OUT_BUFFER_BYTES = 64 * 1024;
+
+    private final AddressCache cache;
+    private final ServerSocketChannel server;
+    private final Worker[] workers;
+    private final Thread acceptor;
+    private final LongAdder requests = new LongAdder();
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Binds and starts serving.
+     *
+     * @param address   port 0 for any free port, see getLocalAddress().
+     * @param ioThreads number of selector threads, e.g. the number of cores.
+     */
+    public AddressCacheServer(AddressCache cache, InetSocketAddress address, int ioThreads) throws IOException {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("ioThreads must be positive : " + ioThreads);
+        }
+        this.cache = cache;
+        this.server = ServerSocketChannel.open();
+        this.workers = new Worker[ioThreads];
+        try {
+            server.bind(address, 1024);
+            for (int i = 0; i < ioThreads; i++) {
+                workers[i] = new Worker(Selector.open());
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (int i = 0; i < ioThreads; i++) {
+            workers[i].thread = daemon(workers[i], "address-cache-server-io-" + i);
+            workers[i].thread.start();
+        }
+        this.acceptor = daemon(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "address-cache-server-accept");
+        acceptor.start();
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * @return number of requests served since started.
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return number of connections open.
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Stops accepting and closes the connections, the cache stays open. Returns once the
+     * I/O threads are done, no request is served after.
+     */
+    public void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Worker worker : workers) {
+            if (worker != null) {
+                worker.selector.wakeup();
+            }
+        }
+        boolean interrupted = false;
+        for (Worker worker : workers) {
+            while (worker != null && worker.thread != null && worker.thread.isAlive()) {
+                try {
+                    worker.thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept() {
+        int next = 0;
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.configureBlocking(false);
+                Worker worker = workers[next++ % workers.length];
+                worker.accepted.add(channel);
+                worker.selector.wakeup();
+            } catch (ClosedChannelException e) {
+                // closed.
+                return;
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Selector thread of a share of the connections.
+     */
+    private final class Worker implements Runnable {
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+        // connections whose pending take() completed, from the adding threads.
+        private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+        // connections waiting in take(), touched by this thread only.
+        private final List<Connection> waiting = new ArrayList<Connection>();
+        private Thread thread;
+
+        Worker(Selector selector) {
+            this.selector = selector;
+        }
+
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select(nextDeadlineMillis());
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        register(channel);
+                    }
+                    Connection connection;
+                    while ((connection = ready.poll()) != null) {
+                        connection.resume(false);
+                    }
+                    if (!waiting.isEmpty()) {
+                        long now = System.nanoTime();
+                        for (Connection waiter : new ArrayList<Connection>(waiting)) {
+                            if (now - waiter.takeDeadline >= 0) {
+                                waiter.resume(true);
+                            }
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((Connection) key.attachment()).ready(key);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                SocketChannel channel;
+                while ((channel = accepted.poll()) != null) {
+                    closeQuietly(channel);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.incrementAndGet();
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+
+        /**
+         * @return millis to the first deadline of the takes waiting, 0 (no timeout) if none.
+         */
+        private long nextDeadlineMillis() {
+            if (waiting.isEmpty()) {
+                return 0;
+            }
+            long first = Long.MAX_VALUE;
+            long now = System.nanoTime();
+            for (Connection waiter : waiting) {
+                first = Math.min(first, waiter.takeDeadline - now);
+            }
+            return Math.max(TimeUnit.NANOSECONDS.toMillis(first), 1);
+        }
+    }
+
+    /**
+     * One client: the frame being served, the responses not flushed yet and the take()
+     * it waits on, if any. Touched by the thread of its worker only.
+     */
+    private final class Connection {
+
+        private final Worker worker;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        // write mode: the bytes read and not served yet.
+        private final ByteBuffer in = ByteBuffer.allocateDirect(CacheProtocol.REQUEST_HEADER_BYTES
+                + CacheProtocol.MAX_FRAME_BYTES);
+        // write mode: the responses not flushed yet.
+        private final ByteBuffer out = ByteBuffer.allocateDirect(OUT_BUFFER_BYTES);
+        private final byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        // of the frame being served.
+        private int requestsLeft;
+        private int bytesLeft;
+        private CompletableFuture<InetAddress> pendingTake;
+        private long takeDeadline;
+        private boolean open = true;
+
+        Connection(Worker worker, SocketChannel channel) {
+            this.worker = worker;
+            this.channel = channel;
+        }
+
+        void ready(SelectionKey key) {
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    if (channel.read(in) < 0) {
+                        close();
+                        return;
+                    }
+                }
+                serve();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Answers the take() waited on once it completed, or gave up on it at its deadline.
+         */
+        void resume(boolean deadline) {
+            CompletableFuture<InetAddress> take = pendingTake;
+            if (!open || take == null || !(take.isDone() || deadline)) {
+                return;
+            }
+            pendingTake = null;
+            worker.waiting.remove(this);
+            take.cancel(false);
+            try {
+                respondTaken(take);
+                serve();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Serves the requests read as far as possible, then flushes.
+         */
+        private void serve() throws IOException {
+            in.flip();
+            try {
+                while (pendingTake == null) {
+                    if (out.remaining() < CacheProtocol.RESPONSE_HEADER_BYTES + CacheProtocol.MAX_RESPONSE_BYTES
+                            && !flush()) {
+                        break;
+                    }
+                    if (requestsLeft == 0 && !startFrame()) {
+                        break;
+                    }
+                    if (requestsLeft > 0) {
+                        serveRequest();
+                    }
+                }
+            } finally {
+                in.compact();
+            }
+            flush();
+        }
+
+        /**
+         * Starts serving the next frame if read whole.
+         *
+         * @return false if not read yet.
+         */
+        private boolean startFrame() throws IOException {
+            if (in.remaining() < CacheProtocol.REQUEST_HEADER_BYTES) {
+                return false;
+            }
+            int length = in.getInt(in.position());
+            if (length < 2 || length > CacheProtocol.MAX_FRAME_BYTES + 2) {
+                throw new IOException("Malformed frame, length : " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                return false;
+            }
+            in.getInt();
+            requestsLeft = in.getShort() & 0xffff;
+            bytesLeft = length - 2;
+            out.putShort((short) requestsLeft);
+            if (requestsLeft == 0 && bytesLeft != 0) {
+                throw new IOException("Malformed frame, no request in " + bytesLeft + " bytes");
+            }
+            return true;
+        }
+
+        private void serveRequest() throws IOException {
+            byte op = take(1).get();
+            requests.increment();
+            try {
+                switch (op) {
+                    case CacheProtocol.ADD:
+                    case CacheProtocol.REMOVE:
+                    case CacheProtocol.CONTAINS:
+                        out.put(serveAddress(op) ? CacheProtocol.TRUE : CacheProtocol.FALSE);
+                        break;
+                    case CacheProtocol.PEEK:
+                        int length = cache.peekInto(address);
+                        if (length == 0) {
+                            out.put(CacheProtocol.EMPTY);
+                        } else {
+                            CacheProtocol.putAddress(out, address, length);
+                        }
+                        break;
+                    case CacheProtocol.TAKE:
+                        int timeoutMillis = take(4).getInt();
+                        CompletableFuture<InetAddress> taken = cache.takeAsync();
+                        if (!taken.isDone() && timeoutMillis != 0) {
+                            pendingTake = taken;
+                            takeDeadline = System.nanoTime() + (timeoutMillis < 0 ? Long.MAX_VALUE >> 1
+                                    : TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+                            worker.waiting.add(this);
+                            taken.whenComplete(new BiConsumer<InetAddress, Throwable>() {
+                                public void accept(InetAddress address, Throwable error) {
+                                    worker.ready.add(Connection.this);
+                                    worker.selector.wakeup();
+                                }
+                            });
+                            // answered by resume(), later.
+                            return;
+                        }
+                        taken.cancel(false);
+                        respondTaken(taken);
+                        return;
+                    default:
+                        throw new IOException("Malformed frame, unknown request : " + op);
+                }
+            } catch (CacheExpiredException e) {
+                out.put(CacheProtocol.CLOSED);
+            }
+            responded();
+        }
+
+        private boolean serveAddress(byte op) throws IOException, CacheExpiredException {
+            int length = take(1).get();
+            if (!CacheProtocol.isAddressLength(length)) {
+                throw new IOException("Malformed frame, address length : " + length);
+            }
+            take(length);
+            if (length == AddressCodec.IPV4_LENGTH) {
+                int ipv4 = in.getInt();
+                return op == CacheProtocol.ADD ? cache.add(ipv4)
+                        : op == CacheProtocol.REMOVE ? cache.remove(ipv4) : cache.contains(ipv4);
+            }
+            in.get(address);
+            return op == CacheProtocol.ADD ? cache.add(address)
+                    : op == CacheProtocol.REMOVE ? cache.remove(address) : cache.contains(address);
+        }
+
+        /**
+         * Answers a completed or cancelled take().
+         */
+        private void respondTaken(CompletableFuture<InetAddress> taken) throws IOException {
+            try {
+                byte[] bytes = taken.getNow(null).getAddress();
+                CacheProtocol.putAddress(out, bytes, bytes.length);
+            } catch (CancellationException e) {
+                out.put(CacheProtocol.EMPTY);
+            } catch (CompletionException e) {
+                out.put(CacheProtocol.CLOSED);
+            }
+            responded();
+        }
+
+        private void responded() throws IOException {
+            requestsLeft--;
+            if (requestsLeft == 0 && bytesLeft != 0) {
+                throw new IOException("Malformed frame, " + bytesLeft + " bytes past the requests");
+            }
+        }
+
+        /**
+         * @return the input, checked to hold the given bytes of the frame.
+         */
+        private ByteBuffer take(int bytes) throws IOException {
+            bytesLeft -= bytes;
+            if (bytesLeft < 0) {
+                throw new IOException("Malformed frame, requests past the length");
+            }
+            return in;
+        }
+
+        /**
+         * Writes the responses, then reads only once they are all written.
+         *
+         * @return true if all written.
+         */
+        private boolean flush() throws IOException {
+            if (!open) {
+                return false;
+            }
+            out.flip();
+            try {
+                channel.write(out);
+            } finally {
+                out.compact();
+            }
+            boolean flushed = out.position() == 0;
+            // keeps reading behind a waiting take() while there is room, to see the client leave.
+            int ops = !flushed ? SelectionKey.OP_WRITE
+                    : pendingTake == null || in.hasRemaining() ? SelectionKey.OP_READ : 0;
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+            return flushed;
+        }
+
+        void close() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            // the take first: once the connection is uncounted, its address is back.
+            CompletableFuture<InetAddress> take = pendingTake;
+            pendingTake = null;
+            if (take != null && !take.cancel(false)) {
+                giveBack(take);
+            }
+            worker.waiting.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            connections.decrementAndGet();
+        }
+
+        private void giveBack(CompletableFuture<InetAddress> take) {
+            try {
+                cache.add(take.join());
+            } catch (CompletionException e) {
+                // failed, the cache was closed.
+            } catch (CacheExpiredException e) {
+                // closed meanwhile, nothing to give back to.
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // closing anyway.
+        }
+    }
+}
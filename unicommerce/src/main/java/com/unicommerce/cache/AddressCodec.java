@@ -0,0 +1,168 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Conversions between raw address bytes and their primitive forms: an int for IPv4,
+ * two longs (high and low 64 bits) for IPv6. IPv4-mapped IPv6 addresses (::ffff:a.b.c.d)
+ * are treated as IPv4, like {@link InetAddress} does.
+ */
+public final class AddressCodec {
+
+    public static final int IPV4_LENGTH = 4;
+    public static final int IPV6_LENGTH = 16;
+
+    private static final long IPV4_MAPPED = 0x0000ffff00000000L;
+
+    private AddressCodec() {
+    }
+
+    /**
+     * @return true if the bytes hold an IPv4 address, mapped or not.
+     * @throws IllegalArgumentException if the bytes are neither an IPv4 nor an IPv6 address.
+     */
+    public static boolean isIpv4(byte[] address) {
+        if (address.length == IPV4_LENGTH) {
+            return true;
+        }
+        if (address.length != IPV6_LENGTH) {
+            throw new IllegalArgumentException("Not an IP address, length : " + address.length);
+        }
+        return high(address) == 0 && (int) (low(address) >>> 32) == 0x0000ffff;
+    }
+
+    /**
+     * @return the IPv4 address (4 bytes or IPv4-mapped) packed in an int.
+     */
+    public static int ipv4(byte[] address) {
+        int offset = address.length - IPV4_LENGTH;
+        return (address[offset] & 0xff) << 24 | (address[offset + 1] & 0xff) << 16
+                | (address[offset + 2] & 0xff) << 8 | (address[offset + 3] & 0xff);
+    }
+
+    /**
+     * @return the high 64 bits of an IPv6 address.
+     */
+    public static long high(byte[] address) {
+        return readLong(address, 0);
+    }
+
+    /**
+     * @return the low 64 bits of an IPv6 address.
+     */
+    public static long low(byte[] address) {
+        return readLong(address, 8);
+    }
+
+    /**
+     * @return the low 64 bits of the IPv4-mapped form (::ffff:a.b.c.d) of the address, the
+     * high ones are 0. Gives every address a single (high, low) key.
+     */
+    public static long mapped(int ipv4) {
+        return IPV4_MAPPED | (ipv4 & 0xffffffffL);
+    }
+
+    /**
+     * @return high half of the (high, low) key of the address, 0 for IPv4.
+     */
+    public static long keyHigh(byte[] address) {
+        return isIpv4(address) ? 0 : high(address);
+    }
+
+    /**
+     * @return low half of the (high, low) key of the address, IPv4-mapped for IPv4.
+     */
+    public static long keyLow(byte[] address) {
+        return isIpv4(address) ? mapped(ipv4(address)) : low(address);
+    }
+
+    /**
+     * @return true if the (high, low) key is an IPv4-mapped address, see {@link #mapped(int)}.
+     */
+    public static boolean isMapped(long high, long low) {
+        return high == 0 && (low & 0xffffffff00000000L) == IPV4_MAPPED;
+    }
+
+    /**
+     * Writes the address of a (high, low) key at the beginning of the given array, as
+     * IPv4 if it is IPv4-mapped.
+     *
+     * @return number of bytes written.
+     */
+    public static int write(long high, long low, byte[] into) {
+        if (isMapped(high, low)) {
+            return writeIpv4((int) low, into);
+        }
+        return writeIpv6(high, low, into);
+    }
+
+    /**
+     * Writes the IPv4 address at the beginning of the given array.
+     *
+     * @return number of bytes written.
+     */
+    public static int writeIpv4(int ipv4, byte[] into) {
+        into[0] = (byte) (ipv4 >>> 24);
+        into[1] = (byte) (ipv4 >>> 16);
+        into[2] = (byte) (ipv4 >>> 8);
+        into[3] = (byte) ipv4;
+        return IPV4_LENGTH;
+    }
+
+    /**
+     * Reads the IPv4 address at the beginning of the given array, see writeIpv4().
+     */
+    public static int readIpv4(byte[] from) {
+        return (from[0] & 0xff) << 24 | (from[1] & 0xff) << 16 | (from[2] & 0xff) << 8 | (from[3] & 0xff);
+    }
+
+    /**
+     * Writes the IPv6 address at the beginning of the given array.
+     *
+     * @return number of bytes written.
+     */
+    public static int writeIpv6(long high, long low, byte[] into) {
+        writeLong(high, into, 0);
+        writeLong(low, into, 8);
+        return IPV6_LENGTH;
+    }
+
+    public static InetAddress toInetAddress(int ipv4) {
+        byte[] address = new byte[IPV4_LENGTH];
+        writeIpv4(ipv4, address);
+        return toInetAddress(address);
+    }
+
+    public static InetAddress toInetAddress(long high, long low) {
+        byte[] address = new byte[IPV6_LENGTH];
+        writeIpv6(high, low, address);
+        return toInetAddress(address);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are neither an IPv4 nor an IPv6 address.
+     */
+    public static InetAddress toInetAddress(byte[] address) {
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Not an IP address, length : " + address.length, e);
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = value << 8 | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void writeLong(long value, byte[] into, int offset) {
+        for (int i = offset + 7; i >= offset; i--) {
+            into[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
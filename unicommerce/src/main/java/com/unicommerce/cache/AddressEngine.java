@@ -0,0 +1,89 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+
+/**
+ * {@link StackEngine} of addresses also taking them in raw form: an int for IPv4 or the
+ * 4/16 address bytes. Raw reads write the address bytes into a caller supplied array of
+ * at least 16 bytes and return the number of bytes written, 0 if there is no element.
+ */
+interface AddressEngine extends StackEngine<InetAddress> {
+
+    boolean push(int ipv4, long expiresAt, long now);
+
+    boolean push(byte[] address, long expiresAt, long now);
+
+    boolean remove(int ipv4, long now);
+
+    boolean remove(byte[] address, long now);
+
+    boolean contains(int ipv4, long now);
+
+    boolean contains(byte[] address, long now);
+
+    int peekInto(byte[] address, long now);
+
+    int pollInto(byte[] address, long now);
+
+    /**
+     * Raw pushAll(): pushes the addresses of the batch in batch order under one lock. The
+     * ranges of the batch are not the engine's, they are left out.
+     *
+     * @return number of addresses pushed.
+     */
+    int pushAll(AddressBatch batch, long expiresAt, long now);
+
+    /**
+     * Raw {@link #forEach(StackEngine.Visitor, long)}: visits the addresses not expired from
+     * the oldest to the most recent.
+     */
+    void forEach(AddressVisitor visitor, long now);
+
+    /**
+     * Sets the listener told of every address the engine drops once expired, by expire()
+     * or by another operation meeting it. Called by the thread dropping it, once it released
+     * the engine's lock if the engine records its drops (PrimitiveAddressEngine), under it
+     * otherwise: it must be quick, thread-safe, and must not call the engine back.
+     *
+     * @param listener null for none.
+     */
+    void setExpiryListener(KeyListener listener);
+
+    /**
+     * Sets what the contains() and peek() hits do with the deadline of the address found,
+     * see {@link AccessExpiry}.
+     *
+     * @param expiry null for nothing.
+     * @throws UnsupportedOperationException if the engine drops its addresses in insertion
+     * order, their deadlines cannot move.
+     */
+    void setAccessExpiry(AccessExpiry expiry);
+
+    /**
+     * Moves the deadline of the address, if there and not expired, to the given one if later.
+     *
+     * @return true if the address is there.
+     * @throws UnsupportedOperationException as setAccessExpiry().
+     */
+    boolean renew(byte[] address, long expiresAt, long now);
+
+    interface AddressVisitor {
+
+        /**
+         * @param address the address bytes, the array may be reused once the call returns.
+         * @param length  number of address bytes (4 or 16).
+         * @param expiresAt deadline of the address, {@link IndexedStack#NEVER} if none.
+         */
+        void visit(byte[] address, int length, long expiresAt);
+    }
+
+    interface KeyListener {
+
+        /**
+         * @param high key of the address, see {@link AddressCodec#keyHigh(byte[])}.
+         * @param low  key of the address, see {@link AddressCodec#keyLow(byte[])}.
+         * @param time when the address was dropped: its deadline if expired.
+         */
+        void dropped(long high, long low, long time);
+    }
+}
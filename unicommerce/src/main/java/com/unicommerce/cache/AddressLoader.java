@@ -0,0 +1,546 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Bulk loader of address lists (threat feeds...) into an {@link AddressCache}: one address
+ * or CIDR range per line, see {@link AddressParser} for the syntax. Lines which are not
+ * addresses are counted as invalid and skipped.
+ *
+ * Plain files are memory-mapped and split into segments parsed in parallel on a
+ * {@link ForkJoinPool}, straight from the mapped bytes. Compressed input is a streaming
+ * stage: the calling thread decompresses blocks of whole lines and hands them to the pool.
+ * Gzip files are recognized by their magic number; other formats (zstd...) go through
+ * {@link #load(InputStream)} with the decompressing stream of their library.
+ *
+ * Each task collects its addresses in batches, sorted and without duplicates, pushed into
+ * the cache under one lock each. The order of the list is therefore not kept: the last
+ * line does not end as the most recent address. The progress is reported from the
+ * calling thread every period and once at the end.
+ */
+public final class AddressLoader {
+
+    /**
+     * Called from the thread running load().
+     */
+    public interface Progress {
+
+        void progress(Report report);
+    }
+
+    // parallel tasks split the mapped files down to segments of this size.
+    private static final long SEGMENT_BYTES = 8 << 20;
+    private static final int BLOCK_BYTES = 4 << 20;
+    private static final int BATCH_SIZE = 64 * 1024;
+    // a segment reads this far past its end for its last line.
+    private static final int MAX_LINE_BYTES = 4096;
+    private static final int GZIP_MAGIC = 0x1f8b;
+    private static final int ZSTD_MAGIC = 0x28b52ffd;
+
+    private final AddressCache cache;
+    private final ForkJoinPool pool;
+    private final Progress progress;
+    private final long periodNanos;
+
+    /**
+     * Loads on the common pool without progress reports.
+     */
+    public AddressLoader(AddressCache cache) {
+        this(cache, ForkJoinPool.commonPool(), null, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param progress called every period while loading, null for none.
+     */
+    public AddressLoader(AddressCache cache, ForkJoinPool pool, Progress progress, long period, TimeUnit unit) {
+        this.cache = cache;
+        this.pool = pool;
+        this.progress = progress;
+        this.periodNanos = Math.max(unit.toNanos(period), TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * Loads a plain or gzip file.
+     *
+     * @throws IOException if the file cannot be read, or is compressed in another format than gzip.
+     */
+    public Report load(Path file) throws CacheExpiredException, IOException {
+        int magic = magicOf(file);
+        if (magic >>> 16 == GZIP_MAGIC) {
+            InputStream input = Files.newInputStream(file);
+            try {
+                Counters counters = new Counters(Files.size(file));
+                return load(new GZIPInputStream(counters.counting(input), 64 * 1024), counters);
+            } finally {
+                input.close();
+            }
+        }
+        if (magic == ZSTD_MAGIC) {
+            throw new IOException("zstd input, load it through load(InputStream) with a zstd stream : " + file);
+        }
+        return loadMapped(file);
+    }
+
+    /**
+     * Loads the lines of an uncompressed stream, e.g. a decompressing one, until its end.
+     * The stream is not closed.
+     */
+    public Report load(InputStream input) throws CacheExpiredException, IOException {
+        Counters counters = new Counters(-1);
+        return load(counters.counting(input), counters);
+    }
+
+    private Report loadMapped(Path file) throws CacheExpiredException, IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            Counters counters = new Counters(channel.size());
+            ForkJoinTask<Void> task = pool.submit(new Segment(channel, 0, channel.size(), counters));
+            await(task, counters);
+            return finish(counters);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private Report load(InputStream input, Counters counters) throws CacheExpiredException, IOException {
+        // blocks in flight, each holds BLOCK_BYTES.
+        Semaphore inFlight = new Semaphore(2 * pool.getParallelism());
+        List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+        byte[] block = new byte[BLOCK_BYTES];
+        int filled = 0;
+        boolean skipping = false;
+        long reported = System.nanoTime();
+        try {
+            for (int read; (read = input.read(block, filled, block.length - filled)) >= 0; ) {
+                filled += read;
+                if (filled < block.length) {
+                    continue;
+                }
+                if (skipping) {
+                    int skipped = firstLineEnd(block, filled);
+                    skipping = skipped < 0;
+                    filled = skipped < 0 ? 0 : moveTail(block, skipped, filled);
+                    continue;
+                }
+                int lineEnd = lastLineEnd(block, filled);
+                if (lineEnd < 0) {
+                    // a line longer than a block, not an address: skipped up to its end.
+                    counters.lines.increment();
+                    counters.invalid.increment();
+                    skipping = true;
+                    filled = 0;
+                    continue;
+                }
+                inFlight.acquire();
+                byte[] next = new byte[BLOCK_BYTES];
+                System.arraycopy(block, lineEnd, next, 0, filled - lineEnd);
+                tasks.add(pool.submit(new Block(block, lineEnd, counters, inFlight)));
+                filled -= lineEnd;
+                block = next;
+                if (progress != null && System.nanoTime() - reported > periodNanos) {
+                    progress.progress(counters.report());
+                    reported = System.nanoTime();
+                }
+            }
+            if (skipping) {
+                int skipped = firstLineEnd(block, filled);
+                filled = skipped < 0 ? 0 : moveTail(block, skipped, filled);
+            }
+            if (filled > 0) {
+                inFlight.acquire();
+                tasks.add(pool.submit(new Block(block, filled, counters, inFlight)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading", e);
+        }
+        for (ForkJoinTask<Void> task : tasks) {
+            await(task, counters);
+        }
+        return finish(counters);
+    }
+
+    /**
+     * Waits for the task, reporting the progress every period.
+     */
+    private void await(ForkJoinTask<Void> task, Counters counters) throws CacheExpiredException, IOException {
+        try {
+            while (true) {
+                try {
+                    task.get(periodNanos, TimeUnit.NANOSECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    if (progress != null) {
+                        progress.progress(counters.report());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Closed) {
+                throw ((Closed) cause).exception;
+            }
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private Report finish(Counters counters) {
+        Report report = counters.report();
+        if (progress != null) {
+            progress.progress(report);
+        }
+        return report;
+    }
+
+    private static int magicOf(Path file) throws IOException {
+        InputStream input = Files.newInputStream(file);
+        try {
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = input.read();
+                magic = magic << 8 | (b < 0 ? 0 : b);
+            }
+            return magic;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return the index past the last '\n' of block[0, length), -1 if none.
+     */
+    private static int lastLineEnd(byte[] block, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (block[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index past the first '\n' of block[0, length), -1 if none.
+     */
+    private static int firstLineEnd(byte[] block, int length) {
+        for (int i = 0; i < length; i++) {
+            if (block[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int moveTail(byte[] block, int from, int length) {
+        System.arraycopy(block, from, block, 0, length - from);
+        return length - from;
+    }
+
+    /**
+     * Parses the lines starting in [from, owned) of the buffer, the last one ending before
+     * end, and adds their addresses to the cache.
+     *
+     * @param complete true if the data ends at end, false if a line running past end is cut.
+     */
+    private void parse(ByteBuffer buffer, int from, int owned, int end, boolean complete, Counters counters) {
+        AddressParser parser = new AddressParser();
+        AddressBatch batch = new AddressBatch(BATCH_SIZE);
+        long lines = 0;
+        long invalid = 0;
+        int lineStart = from;
+        while (lineStart < owned) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            lines++;
+            if (lineEnd == end && !complete) {
+                invalid++;
+                break;
+            }
+            if (parser.parseLine(buffer, lineStart, lineEnd, batch) == AddressParser.INVALID) {
+                invalid++;
+            }
+            if (batch.size() + batch.ranges().size() >= BATCH_SIZE) {
+                flush(batch, counters);
+            }
+            lineStart = lineEnd + 1;
+        }
+        flush(batch, counters);
+        counters.lines.add(lines);
+        counters.invalid.add(invalid);
+    }
+
+    private void flush(AddressBatch batch, Counters counters) {
+        if (batch.size() + batch.ranges().size() == 0) {
+            return;
+        }
+        counters.addresses.add(batch.size());
+        counters.ranges.add(batch.ranges().size());
+        batch.sortDistinct();
+        try {
+            counters.added.add(cache.addAll(batch));
+        } catch (CacheExpiredException e) {
+            throw new Closed(e);
+        }
+        batch.clear();
+    }
+
+    /**
+     * A segment of a mapped file: split in halves down to SEGMENT_BYTES, then mapped and
+     * parsed. A segment owns the lines starting in it; it skips the line cut at its start
+     * and reads past its end for its last line.
+     */
+    private final class Segment extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final Counters counters;
+
+        Segment(FileChannel channel, long start, long end, Counters counters) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.counters = counters;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > SEGMENT_BYTES) {
+                long middle = start + (end - start) / 2;
+                invokeAll(new Segment(channel, start, middle, counters), new Segment(channel, middle, end, counters));
+                return;
+            }
+            MappedByteBuffer window = null;
+            try {
+                long fileSize = channel.size();
+                // one more byte before the start tells whether a line begins at the start.
+                long mapStart = Math.max(start - 1, 0);
+                long mapEnd = Math.min(end + MAX_LINE_BYTES, fileSize);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+                int from = (int) (start - mapStart);
+                if (start > 0) {
+                    // the line cut at the start is the previous segment's.
+                    while (from < window.limit() && window.get(from - 1) != '\n') {
+                        from++;
+                    }
+                }
+                parse(window, from, (int) (end - mapStart), window.limit(), mapEnd == fileSize, counters);
+                counters.bytes.add(end - start);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                DirectBuffers.free(window);
+            }
+        }
+    }
+
+    /**
+     * A block of whole lines of a stream.
+     */
+    private final class Block extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] bytes;
+        private final int length;
+        private final Counters counters;
+        private final Semaphore inFlight;
+
+        Block(byte[] bytes, int length, Counters counters, Semaphore inFlight) {
+            this.bytes = bytes;
+            this.length = length;
+            this.counters = counters;
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                parse(ByteBuffer.wrap(bytes), 0, length, length, true, counters);
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Carries the CacheExpiredException of a closed cache out of the tasks.
+     */
+    private static final class Closed extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final CacheExpiredException exception;
+
+        Closed(CacheExpiredException exception) {
+            super(exception);
+            this.exception = exception;
+        }
+    }
+
+    private static final class Counters {
+
+        private final long totalBytes;
+        private final long started = System.nanoTime();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder lines = new LongAdder();
+        private final LongAdder addresses = new LongAdder();
+        private final LongAdder ranges = new LongAdder();
+        private final LongAdder added = new LongAdder();
+        private final LongAdder invalid = new LongAdder();
+
+        Counters(long totalBytes) {
+            this.totalBytes = totalBytes;
+        }
+
+        /**
+         * @return the input, counting the bytes read in bytes.
+         */
+        InputStream counting(InputStream input) {
+            return new FilterInputStream(input) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        bytes.increment();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] into, int offset, int length) throws IOException {
+                    int read = super.read(into, offset, length);
+                    if (read > 0) {
+                        bytes.add(read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        Report report() {
+            return new Report(bytes.sum(), totalBytes, lines.sum(), addresses.sum(), ranges.sum(), added.sum(),
+                    invalid.sum(), System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Counters of a load, at the time of the report.
+     */
+    public static final class Report {
+
+        private final long bytes;
+        private final long totalBytes;
+        private final long lines;
+        private final long addresses;
+        private final long ranges;
+        private final long added;
+        private final long invalid;
+        private final long elapsedNanos;
+
+        Report(long bytes, long totalBytes, long lines, long addresses, long ranges, long added, long invalid,
+               long elapsedNanos) {
+            this.bytes = bytes;
+            this.totalBytes = totalBytes;
+            this.lines = lines;
+            this.addresses = addresses;
+            this.ranges = ranges;
+            this.added = added;
+            this.invalid = invalid;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return bytes of input processed, compressed bytes for a compressed file.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return size of the input, -1 for a stream.
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public long getLines() {
+            return lines;
+        }
+
+        /**
+         * @return addresses parsed, the duplicates included.
+         */
+        public long getAddresses() {
+            return addresses;
+        }
+
+        public long getRanges() {
+            return ranges;
+        }
+
+        /**
+         * @return addresses and ranges added to the cache, the ones already there excluded.
+         */
+        public long getAdded() {
+            return added;
+        }
+
+        /**
+         * @return lines neither an address, a range, a comment nor blank.
+         */
+        public long getInvalid() {
+            return invalid;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public long getLinesPerSecond() {
+            return elapsedNanos == 0 ? 0 : lines * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "lines=" + lines + " addresses=" + addresses + " ranges=" + ranges + " added=" + added
+                    + " invalid=" + invalid + " bytes=" + bytes + (totalBytes >= 0 ? "/" + totalBytes : "")
+                    + " elapsed=" + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms lines/s=" + getLinesPerSecond();
+        }
+    }
+}
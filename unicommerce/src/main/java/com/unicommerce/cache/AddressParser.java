@@ -0,0 +1,196 @@
+package com.unicommerce.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parses the lines of an address list straight from their bytes, without String nor
+ * InetAddress: one IPv4 (dotted) or IPv6 (RFC 4291 text, :: and a dotted tail included)
+ * address per line, optionally in CIDR notation. Leading blanks are skipped; whatever
+ * follows the address after a blank, ',', ';' or '#' is ignored, so comments and the
+ * extra columns of the feeds are. IPv4-mapped IPv6 addresses are taken as IPv4, as
+ * {@link java.net.InetAddress} does; zone ids are not addresses of a list.
+ *
+ * Not thread-safe, one parser per task.
+ */
+final class AddressParser {
+
+    static final int PARSED = 0;
+    static final int SKIPPED = 1;
+    static final int INVALID = 2;
+
+    private final int[] groups = new int[8];
+    private long high;
+    private long low;
+
+    /**
+     * Parses the line [from, to) of the buffer, without its line break, into the batch.
+     *
+     * @return PARSED if an address or a range was added, SKIPPED for a blank or comment
+     * line, INVALID otherwise.
+     */
+    int parseLine(ByteBuffer buffer, int from, int to, AddressBatch into) {
+        int start = from;
+        while (start < to && isBlank(buffer.get(start))) {
+            start++;
+        }
+        if (start == to || buffer.get(start) == '#' || buffer.get(start) == ';') {
+            return SKIPPED;
+        }
+        int end = start;
+        int slash = -1;
+        boolean ipv6 = false;
+        for (byte b; end < to && !isDelimiter(b = buffer.get(end)); end++) {
+            if (b == ':') {
+                ipv6 = true;
+            } else if (b == '/' && slash < 0) {
+                slash = end;
+            }
+        }
+        int addressEnd = slash < 0 ? end : slash;
+        int maxLength = ipv6 ? 128 : 32;
+        int length = maxLength;
+        if (slash >= 0) {
+            length = parseDecimal(buffer, slash + 1, end, 3);
+            if (length < 0 || length > maxLength) {
+                return INVALID;
+            }
+        }
+        if (ipv6) {
+            if (!parseIpv6(buffer, start, addressEnd)) {
+                return INVALID;
+            }
+        } else {
+            long ipv4 = parseIpv4(buffer, start, addressEnd);
+            if (ipv4 < 0) {
+                return INVALID;
+            }
+            high = 0;
+            low = AddressCodec.mapped((int) ipv4);
+            length += 96;
+        }
+        if (length < 128) {
+            into.add(AddressPrefix.of(high, low, length));
+        } else if (AddressCodec.isMapped(high, low)) {
+            into.add((int) low);
+        } else {
+            into.add(high, low);
+        }
+        return PARSED;
+    }
+
+    /**
+     * @return the dotted IPv4 address of [from, to) as an unsigned int, -1 if not one.
+     */
+    static long parseIpv4(ByteBuffer buffer, int from, int to) {
+        long address = 0;
+        int i = from;
+        for (int part = 0; part < 4; part++) {
+            int end = i;
+            while (end < to && buffer.get(end) != '.') {
+                end++;
+            }
+            int value = parseDecimal(buffer, i, end, 3);
+            if (value < 0 || value > 255 || (part < 3) == (end == to)) {
+                return -1;
+            }
+            address = address << 8 | value;
+            i = end + 1;
+        }
+        return address;
+    }
+
+    /**
+     * Parses [from, to) into high & low.
+     *
+     * @return false if not an IPv6 address.
+     */
+    private boolean parseIpv6(ByteBuffer buffer, int from, int to) {
+        int count = 0;
+        int gap = -1;
+        int i = from;
+        if (to - i >= 2 && buffer.get(i) == ':' && buffer.get(i + 1) == ':') {
+            gap = 0;
+            i += 2;
+        }
+        while (i < to) {
+            if (count == 8) {
+                return false;
+            }
+            int start = i;
+            int value = 0;
+            for (int digit; i < to && i - start < 4 && (digit = Character.digit(buffer.get(i), 16)) >= 0; i++) {
+                value = value << 4 | digit;
+            }
+            if (i < to && buffer.get(i) == '.') {
+                // dotted IPv4 tail, the last 32 bits.
+                long ipv4 = count <= 6 ? parseIpv4(buffer, start, to) : -1;
+                if (ipv4 < 0) {
+                    return false;
+                }
+                groups[count++] = (int) (ipv4 >>> 16);
+                groups[count++] = (int) (ipv4 & 0xffff);
+                break;
+            }
+            if (i == start) {
+                return false;
+            }
+            groups[count++] = value;
+            if (i == to) {
+                break;
+            }
+            if (buffer.get(i) != ':' || ++i == to) {
+                return false;
+            }
+            if (buffer.get(i) == ':') {
+                if (gap >= 0) {
+                    return false;
+                }
+                gap = count;
+                i++;
+            }
+        }
+        if (gap < 0 ? count != 8 : count == 8) {
+            return false;
+        }
+        int zeros = 8 - count;
+        long high = 0;
+        long low = 0;
+        for (int g = 0, source = 0; g < 8; g++) {
+            int group = gap >= 0 && g >= gap && g < gap + zeros ? 0 : groups[source++];
+            if (g < 4) {
+                high = high << 16 | group;
+            } else {
+                low = low << 16 | group;
+            }
+        }
+        this.high = high;
+        this.low = low;
+        return true;
+    }
+
+    /**
+     * @return the decimal number of [from, to), -1 if empty, longer than maxDigits or not a number.
+     */
+    private static int parseDecimal(ByteBuffer buffer, int from, int to, int maxDigits) {
+        if (from == to || to - from > maxDigits) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static boolean isDelimiter(byte b) {
+        return isBlank(b) || b == ',' || b == ';' || b == '#';
+    }
+}
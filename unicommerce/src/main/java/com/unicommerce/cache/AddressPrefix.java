@@ -0,0 +1,95 @@
+package com.unicommerce.cache;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+/**
+ * An address range in CIDR notation, e.g. 10.0.0.0/8 or 2001:db8::/32: the network
+ * address, host bits cleared, and the prefix length. Immutable.
+ */
+public final class AddressPrefix {
+
+    private final InetAddress network;
+    private final int length;
+
+    /**
+     * @param address any address of the range, the bits past the prefix length are ignored.
+     * @param length  prefix length, 0 to 32 for IPv4 and 0 to 128 for IPv6.
+     * @throws IllegalArgumentException if the length is out of range.
+     */
+    public AddressPrefix(InetAddress address, int length) {
+        byte[] bytes = address.getAddress();
+        checkLength(bytes, length);
+        for (int i = 0; i < bytes.length; i++) {
+            int kept = Math.max(0, Math.min(8, length - i * 8));
+            bytes[i] &= (byte) (0xff00 >>> kept);
+        }
+        this.network = AddressCodec.toInetAddress(bytes);
+        this.length = length;
+    }
+
+    /**
+     * @return the prefix of a 128-bit key of the prefix stacks, IPv4 if IPv4-mapped.
+     */
+    static AddressPrefix of(long high, long low, int length) {
+        if (length >= 96 && AddressCodec.isMapped(high, low)) {
+            return new AddressPrefix(AddressCodec.toInetAddress((int) low), length - 96);
+        }
+        return new AddressPrefix(AddressCodec.toInetAddress(high, low), length);
+    }
+
+    /**
+     * @return the prefix length on 128 bits, IPv4 prefixes living in the IPv4-mapped space.
+     */
+    static int mappedLength(byte[] address, int length) {
+        checkLength(address, length);
+        return address.length == AddressCodec.IPV4_LENGTH ? 96 + length : length;
+    }
+
+    public InetAddress getNetwork() {
+        return network;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return true if the address is in this range.
+     */
+    public boolean contains(InetAddress address) {
+        if ((address instanceof Inet4Address) != (network instanceof Inet4Address)) {
+            return false;
+        }
+        return new AddressPrefix(address, length).equals(this);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof AddressPrefix)) {
+            return false;
+        }
+        AddressPrefix prefix = (AddressPrefix) other;
+        return length == prefix.length && network.equals(prefix.network);
+    }
+
+    @Override
+    public int hashCode() {
+        return network.hashCode() * 31 + length;
+    }
+
+    @Override
+    public String toString() {
+        return network.getHostAddress() + "/" + length;
+    }
+
+    private static void checkLength(byte[] address, int length) {
+        if (length < 0 || length > address.length * 8) {
+            throw new IllegalArgumentException("Prefix length out of range : " + length
+                    + ", max " + address.length * 8);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+
+import java.net.InetAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Refresher of an AddressCache: reloads the addresses hit close to their deadline through
+ * the reloader, on the executor, then renews or removes them.
+ *
+ * The reloads in flight are flagged in a table indexed by the hash of the (high, low)
+ * key: a hit whose flag is set is coalesced into the reload in flight, with a volatile
+ * read and without allocating, and each address is reloaded once at a time. Two addresses
+ * sharing a flag are not reloaded together, the second one is on a hit after the first
+ * one is done. The InetAddress is only built for a reload actually submitted.
+ */
+final class AddressRefresher implements AccessExpiry.Refresher {
+
+    // far more than the reloads an executor runs at a time, so that flags are seldom shared.
+    private static final int FLAGS = 4096;
+    private static final int IDLE = 0;
+    private static final int IN_FLIGHT = 1;
+
+    private final AddressCache cache;
+    private final AddressReloader reloader;
+    private final Executor executor;
+    private final AtomicIntegerArray inFlight = new AtomicIntegerArray(FLAGS);
+
+    AddressRefresher(AddressCache cache, AddressReloader reloader, Executor executor) {
+        this.cache = cache;
+        this.reloader = reloader;
+        this.executor = executor;
+    }
+
+    /**
+     * Submits the reload of the address unless its flag is set. A reload the executor
+     * rejects is dropped, the next hit submits it again.
+     */
+    public void refresh(long high, long low, long deadline) {
+        final int flag = PrimitiveIndexedStack.mix(high * 0x9e3779b97f4a7c15L + low) & (FLAGS - 1);
+        if (inFlight.get(flag) != IDLE || !inFlight.compareAndSet(flag, IDLE, IN_FLIGHT)) {
+            return;
+        }
+        final InetAddress address = AddressCodec.isMapped(high, low) ? AddressCodec.toInetAddress((int) low)
+                : AddressCodec.toInetAddress(high, low);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        reload(address);
+                    } finally {
+                        inFlight.set(flag, IDLE);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.set(flag, IDLE);
+        }
+    }
+
+    /**
+     * @return number of reloads submitted and not done yet.
+     */
+    int inFlight() {
+        int count = 0;
+        for (int flag = 0; flag < FLAGS; flag++) {
+            if (inFlight.get(flag) != IDLE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void reload(InetAddress address) {
+        boolean keep;
+        try {
+            keep = reloader.reload(address);
+        } catch (Exception e) {
+            // the deadline is kept, the next hit tries again.
+            e.printStackTrace();
+            return;
+        }
+        try {
+            if (keep) {
+                cache.renew(address);
+            } else {
+                cache.remove(address);
+            }
+        } catch (CacheExpiredException e) {
+            // closed meanwhile, nothing to refresh anymore.
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+
+/**
+ * Reloads the addresses of an AddressCache close to their expiry, see
+ * {@link AddressCache#refreshAhead(long, java.util.concurrent.TimeUnit, AddressReloader, java.util.concurrent.Executor)}.
+ */
+public interface AddressReloader {
+
+    /**
+     * Resolves the address again, e.g. checks it against its source. Called on the executor
+     * of the refreshes, never twice at a time for the same address.
+     *
+     * @return true to keep the address for a new lifetime, false to remove it.
+     * @throws Exception to keep the deadline of the address, the next hit tries again.
+     */
+    boolean reload(InetAddress address) throws Exception;
+}
@@ -0,0 +1,368 @@
+package com.unicommerce.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Replication of the addresses of an AddressCache to its peers, see AddressCache#replicate.
+ *
+ * The local mutations are recorded in an {@link AddWinsSet} by a ReplicatedAddressEngine,
+ * under {@link #lock} so the set and the engine agree. Each gossip round sends the entries
+ * changed since the previous one to every peer, in batches of at most MAX_BATCH entries
+ * carrying a sequence number and the send time. The peers merge them and apply the result
+ * to their storage, below their own ReplicatedAddressEngine: a delta is never relayed.
+ *
+ * Every ANTI_ENTROPY_ROUNDS rounds, the node compares its {@link MerkleDigest} with one
+ * random peer: the two exchange the hashes of the tree nodes which differ, one level per
+ * message, then the entries of the leaves which differ, both ways. A node which missed
+ * deltas, or joined late, thus catches up with the leaves it lags on only.
+ *
+ * Expiry is not replicated: every add carries its wall clock deadline and each node expires
+ * it on its own, the clocks of the nodes are assumed close. Evictions of a bounded cache
+ * stay local.
+ */
+final class AddressReplicator {
+
+    static final int MAX_BATCH = 512;
+    static final int ANTI_ENTROPY_ROUNDS = 10;
+    // leaves swept for expired entries per round, the whole set every 64 rounds.
+    private static final int SWEPT_LEAVES = MerkleDigest.LEAVES / 64;
+
+    private final int node;
+    private final ReplicationTransport transport;
+    // the engine under the ReplicatedAddressEngine, the remote changes are applied to it.
+    private final AddressEngine local;
+
+    // guards the set, the pending keys and the local engine mutations.
+    final ReentrantLock lock = new ReentrantLock();
+    private final AddWinsSet set;
+    private final Set<AddWinsSet.Key> pending = new LinkedHashSet<AddWinsSet.Key>();
+    private long sequence;
+    private long rounds;
+    private int sweptLeaf;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder repaired = new LongAdder();
+
+    AddressReplicator(int node, ReplicationTransport transport, AddressEngine local) {
+        this.node = node;
+        this.transport = transport;
+        this.local = local;
+        this.set = new AddWinsSet(node);
+    }
+
+    int node() {
+        return node;
+    }
+
+    /**
+     * Stops receiving from the peers, they no longer send to this node.
+     */
+    void leave() {
+        transport.leave(node);
+    }
+
+    // ---- local mutations, under the lock.
+
+    void added(long high, long low, long expiresAt, long now) {
+        AddWinsSet.Key key = new AddWinsSet.Key(high, low);
+        set.add(key, System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(expiresAt - now));
+        pending.add(key);
+    }
+
+    void removed(long high, long low) {
+        AddWinsSet.Key key = new AddWinsSet.Key(high, low);
+        if (set.remove(key) != null) {
+            pending.add(key);
+        }
+    }
+
+    /**
+     * Records the addresses of the local engine, e.g. the ones there before the replication.
+     */
+    void addedAll(final long now) {
+        local.forEach(new AddressEngine.AddressVisitor() {
+            public void visit(byte[] address, int length, long expiresAt) {
+                if (length == AddressCodec.IPV4_LENGTH) {
+                    added(0, AddressCodec.mapped(AddressCodec.readIpv4(address)), expiresAt, now);
+                } else {
+                    added(AddressCodec.high(address), AddressCodec.low(address), expiresAt, now);
+                }
+            }
+        }, now);
+    }
+
+    /**
+     * Records the removal of every address the set holds.
+     */
+    void removedAll() {
+        List<AddWinsSet.Key> keys = new ArrayList<AddWinsSet.Key>();
+        for (int leaf = 0; leaf < MerkleDigest.LEAVES; leaf++) {
+            Map<AddWinsSet.Key, AddWinsSet.Entry> bucket = set.bucket(leaf);
+            if (bucket != null) {
+                keys.addAll(bucket.keySet());
+            }
+        }
+        for (AddWinsSet.Key key : keys) {
+            removed(key.high, key.low);
+        }
+    }
+
+    // ---- gossip.
+
+    /**
+     * One gossip round: sends the pending deltas to every peer, drops the expired entries of
+     * a few leaves, and every ANTI_ENTROPY_ROUNDS rounds starts an anti-entropy with a peer.
+     */
+    void gossip() {
+        int[] peers = transport.peers(node);
+        List<ByteBuffer> deltas = new ArrayList<ByteBuffer>();
+        long root = 0;
+        boolean antiEntropy;
+        lock.lock();
+        try {
+            long nowMillis = System.currentTimeMillis();
+            if (peers.length == 0) {
+                pending.clear();
+            }
+            List<AddWinsSet.Key> keys = new ArrayList<AddWinsSet.Key>();
+            List<AddWinsSet.Entry> entries = new ArrayList<AddWinsSet.Entry>();
+            for (AddWinsSet.Key key : pending) {
+                AddWinsSet.Entry entry = set.get(key);
+                if (entry == null) {
+                    continue;
+                }
+                keys.add(key);
+                entries.add(entry);
+                if (entries.size() == MAX_BATCH) {
+                    deltas.add(ReplicationMessage.delta(++sequence, nowMillis, keys, entries));
+                    sent.add(entries.size());
+                    keys.clear();
+                    entries.clear();
+                }
+            }
+            if (!entries.isEmpty()) {
+                deltas.add(ReplicationMessage.delta(++sequence, nowMillis, keys, entries));
+                sent.add(entries.size());
+            }
+            pending.clear();
+            set.sweep(sweptLeaf, SWEPT_LEAVES, nowMillis);
+            sweptLeaf = (sweptLeaf + SWEPT_LEAVES) & (MerkleDigest.LEAVES - 1);
+            antiEntropy = ++rounds % ANTI_ENTROPY_ROUNDS == 0 && peers.length > 0;
+            if (antiEntropy) {
+                root = set.digest().root();
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (int peer : peers) {
+            for (ByteBuffer delta : deltas) {
+                transport.send(node, peer, delta.duplicate());
+            }
+        }
+        if (antiEntropy) {
+            int peer = peers[ThreadLocalRandom.current().nextInt(peers.length)];
+            transport.send(node, peer, ReplicationMessage.digest(0, new int[]{0}, new long[]{root}, 1));
+        }
+    }
+
+    /**
+     * Handles a message of a peer, replying to it if the anti-entropy goes on.
+     *
+     * @return true if addresses were added to the local engine.
+     */
+    boolean receive(int from, ByteBuffer bytes) {
+        ReplicationMessage message = ReplicationMessage.decode(bytes);
+        List<ByteBuffer> replies = new ArrayList<ByteBuffer>();
+        boolean added;
+        lock.lock();
+        try {
+            switch (message.type) {
+                case ReplicationMessage.DELTA:
+                    added = merge(message.keys, message.entries, false);
+                    break;
+                case ReplicationMessage.DIGEST:
+                    compare(message, replies);
+                    added = false;
+                    break;
+                default:
+                    added = merge(message.keys, message.entries, true);
+                    if (message.reply) {
+                        entriesOf(message.leaves, false, replies);
+                    }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (ByteBuffer reply : replies) {
+            transport.send(node, from, reply);
+        }
+        return added;
+    }
+
+    /**
+     * @return entries sent in deltas.
+     */
+    long sent() {
+        return sent.sum();
+    }
+
+    /**
+     * @return entries received from the peers which changed the local state.
+     */
+    long applied() {
+        return applied.sum();
+    }
+
+    /**
+     * @return entries received through the anti-entropy, changing the state or not.
+     */
+    long repaired() {
+        return repaired.sum();
+    }
+
+    /**
+     * @return number of entries of the replicated set, tombstones included.
+     */
+    int entries() {
+        lock.lock();
+        try {
+            return set.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the gossip rounds, run by the ExpiryScheduler. Must not reference the cache.
+     */
+    static Runnable gossipTask(final AddressReplicator replicator) {
+        return new Runnable() {
+            public void run() {
+                replicator.gossip();
+            }
+        };
+    }
+
+    private boolean merge(AddWinsSet.Key[] keys, AddWinsSet.Entry[] entries, boolean repair) {
+        long nowMillis = System.currentTimeMillis();
+        long now = System.nanoTime();
+        boolean added = false;
+        if (repair) {
+            repaired.add(entries.length);
+        }
+        for (int i = 0; i < entries.length; i++) {
+            AddWinsSet.Entry merged = set.merge(keys[i], entries[i], nowMillis);
+            if (merged != null) {
+                applied.increment();
+                added |= apply(keys[i], merged, nowMillis, now);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Makes the local engine agree with the merged entry.
+     *
+     * @return true if the address was added.
+     */
+    private boolean apply(AddWinsSet.Key key, AddWinsSet.Entry entry, long nowMillis, long now) {
+        boolean ipv4 = AddressCodec.isMapped(key.high, key.low);
+        if (entry.isPresent(nowMillis)) {
+            long expiresAt = now + TimeUnit.MILLISECONDS.toNanos(entry.expiresAt(nowMillis) - nowMillis);
+            if (ipv4) {
+                return local.push((int) key.low, expiresAt, now);
+            }
+            byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+            AddressCodec.writeIpv6(key.high, key.low, address);
+            return local.push(address, expiresAt, now);
+        }
+        if (ipv4) {
+            local.remove((int) key.low, now);
+        } else {
+            byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+            AddressCodec.writeIpv6(key.high, key.low, address);
+            local.remove(address, now);
+        }
+        return false;
+    }
+
+    /**
+     * Compares the hashes of a peer with the local ones: goes one level down under the tree
+     * nodes which differ, or sends the entries of the leaves which differ.
+     */
+    private void compare(ReplicationMessage message, List<ByteBuffer> replies) {
+        MerkleDigest digest = set.digest();
+        List<Integer> differing = new ArrayList<Integer>();
+        for (int i = 0; i < message.indices.length; i++) {
+            if (digest.hash(message.level, message.indices[i]) != message.hashes[i]) {
+                differing.add(message.indices[i]);
+            }
+        }
+        if (differing.isEmpty()) {
+            return;
+        }
+        if (message.level == MerkleDigest.DEPTH) {
+            entriesOf(differing, true, replies);
+            return;
+        }
+        int level = message.level + 1;
+        int[] indices = new int[differing.size() * MerkleDigest.FANOUT];
+        long[] hashes = new long[indices.length];
+        int count = 0;
+        for (int index : differing) {
+            for (int child = index * MerkleDigest.FANOUT, end = child + MerkleDigest.FANOUT; child < end; child++) {
+                indices[count] = child;
+                hashes[count++] = digest.hash(level, child);
+            }
+        }
+        replies.add(ReplicationMessage.digest(level, indices, hashes, count));
+    }
+
+    private void entriesOf(int[] leaves, boolean reply, List<ByteBuffer> replies) {
+        List<Integer> list = new ArrayList<Integer>(leaves.length);
+        for (int leaf : leaves) {
+            list.add(leaf & (MerkleDigest.LEAVES - 1));
+        }
+        entriesOf(list, reply, replies);
+    }
+
+    /**
+     * Sends the entries of the given leaves, a message per MAX_BATCH entries or so: a leaf
+     * is never split, the receiver replies with whole leaves.
+     */
+    private void entriesOf(List<Integer> leaves, boolean reply, List<ByteBuffer> replies) {
+        List<Integer> group = new ArrayList<Integer>();
+        List<AddWinsSet.Key> keys = new ArrayList<AddWinsSet.Key>();
+        List<AddWinsSet.Entry> entries = new ArrayList<AddWinsSet.Entry>();
+        for (int leaf : leaves) {
+            Map<AddWinsSet.Key, AddWinsSet.Entry> bucket = set.bucket(leaf);
+            Map<AddWinsSet.Key, AddWinsSet.Entry> contents = bucket == null
+                    ? Collections.<AddWinsSet.Key, AddWinsSet.Entry>emptyMap() : bucket;
+            group.add(leaf);
+            for (Map.Entry<AddWinsSet.Key, AddWinsSet.Entry> entry : contents.entrySet()) {
+                keys.add(entry.getKey());
+                entries.add(entry.getValue());
+            }
+            if (entries.size() >= MAX_BATCH) {
+                replies.add(ReplicationMessage.entries(reply, group, keys, entries));
+                group.clear();
+                keys.clear();
+                entries.clear();
+            }
+        }
+        if (!group.isEmpty()) {
+            replies.add(ReplicationMessage.entries(reply, group, keys, entries));
+        }
+    }
+}
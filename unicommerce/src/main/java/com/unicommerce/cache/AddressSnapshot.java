@@ -0,0 +1,236 @@
+package com.unicommerce.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary snapshot of the addresses of a cache, written to and read from memory-mapped
+ * files so that a restarted node gets its working set back in a fraction of a second.
+ *
+ * Layout, big-endian:
+ * <pre>
+ *   header : magic(4) savedAtMillis(8) count(4)
+ *   entry  : length(1) address(4 or 16) remainingNanos(8)
+ * </pre>
+ * Entries go from the oldest to the most recent address, so loading them in file order
+ * rebuilds the LIFO order. The remaining time to live is relative to the wall clock time
+ * of the snapshot ({@link System#nanoTime()} does not survive a restart), Long.MAX_VALUE
+ * for addresses which never expire.
+ *
+ * The entries are copied to memory first, the engine is only locked for that copy and
+ * never while writing. The file is written next to the target and moved over it once
+ * complete, a crash while saving leaves the previous snapshot in place.
+ */
+final class AddressSnapshot {
+
+    static final int MAGIC = 0x41435331; // "ACS1"
+    static final int HEADER_BYTES = 16;
+
+    private static final int MAX_ENTRY_BYTES = 1 + AddressCodec.IPV6_LENGTH + 8;
+    // files are mapped by windows, a snapshot may be larger than one buffer can address.
+    private static final int WINDOW_BYTES = 16 << 20;
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private AddressSnapshot() {
+    }
+
+    /**
+     * Writes the addresses of the engine not expired at the given time.
+     *
+     * @return number of addresses written.
+     */
+    static int write(AddressEngine engine, Path file, long now) throws IOException {
+        Entries entries = new Entries(now);
+        engine.forEach(entries, now);
+        long savedAtMillis = System.currentTimeMillis();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            Writer writer = new Writer(channel);
+            try {
+                writer.write(entries.bytes());
+                writer.finish(savedAtMillis, entries.count);
+            } finally {
+                writer.release();
+            }
+        } finally {
+            channel.close();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return entries.count;
+    }
+
+    /**
+     * Pushes the addresses of a snapshot into the engine, skipping the ones whose time to
+     * live has passed since the snapshot was taken.
+     *
+     * @param maxTimeToLive upper bound of the restored time to live, the max age of the cache.
+     * @return number of addresses loaded, 0 if the file does not exist.
+     * @throws IOException if the file is not a snapshot or is truncated.
+     */
+    static int read(Path file, AddressEngine engine, long maxTimeToLive, long now) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        MappedByteBuffer window = null;
+        try {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_BYTES) {
+                throw new IOException("Not an address snapshot : " + file);
+            }
+            window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, WINDOW_BYTES));
+            if (window.getInt() != MAGIC) {
+                throw new IOException("Not an address snapshot : " + file);
+            }
+            long elapsed = TimeUnit.MILLISECONDS.toNanos(Math.max(System.currentTimeMillis() - window.getLong(), 0));
+            int count = window.getInt();
+            long windowStart = 0;
+            byte[] ipv6 = new byte[AddressCodec.IPV6_LENGTH];
+            int loaded = 0;
+            for (int i = 0; i < count; i++) {
+                if (window.remaining() < MAX_ENTRY_BYTES && windowStart + window.limit() < fileSize) {
+                    windowStart += window.position();
+                    MappedByteBuffer previous = window;
+                    window = null;
+                    DirectBuffers.free(previous);
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                            Math.min(fileSize - windowStart, WINDOW_BYTES));
+                }
+                int length = window.remaining() > 0 ? window.get() : 0;
+                if (window.remaining() < length + 8) {
+                    throw new IOException("Truncated address snapshot : " + file);
+                }
+                int ipv4 = 0;
+                if (length == AddressCodec.IPV4_LENGTH) {
+                    ipv4 = window.getInt();
+                } else if (length == AddressCodec.IPV6_LENGTH) {
+                    window.get(ipv6);
+                } else {
+                    throw new IOException("Corrupted address snapshot : " + file);
+                }
+                long remaining = window.getLong();
+                long expiresAt;
+                if (remaining == NEVER) {
+                    expiresAt = IndexedStack.NEVER;
+                } else if (remaining - elapsed > 0) {
+                    expiresAt = now + Math.min(remaining - elapsed, maxTimeToLive);
+                } else {
+                    // aged out while the node was down.
+                    continue;
+                }
+                boolean pushed = length == AddressCodec.IPV4_LENGTH
+                        ? engine.push(ipv4, expiresAt, now) : engine.push(ipv6, expiresAt, now);
+                if (pushed) {
+                    loaded++;
+                }
+            }
+            return loaded;
+        } finally {
+            DirectBuffers.free(window);
+            channel.close();
+        }
+    }
+
+    /**
+     * Copies the entries visited into a heap buffer, in the file layout.
+     */
+    private static final class Entries implements AddressEngine.AddressVisitor {
+
+        private final long now;
+        private ByteBuffer buffer = ByteBuffer.allocate(64 << 10);
+        private int count;
+
+        Entries(long now) {
+            this.now = now;
+        }
+
+        public void visit(byte[] address, int length, long expiresAt) {
+            if (buffer.remaining() < MAX_ENTRY_BYTES) {
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            buffer.put((byte) length);
+            buffer.put(address, 0, length);
+            buffer.putLong(expiresAt == IndexedStack.NEVER ? NEVER : expiresAt - now);
+            count++;
+        }
+
+        ByteBuffer bytes() {
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    /**
+     * Appends the entries through a window mapped over the file, remapping further
+     * once the window is full.
+     */
+    private static final class Writer {
+
+        private final FileChannel channel;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        Writer(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.window = channel.map(FileChannel.MapMode.READ_WRITE, 0, WINDOW_BYTES);
+            // header written by finish().
+            this.window.position(HEADER_BYTES);
+        }
+
+        /**
+         * Writes the bytes, an entry may span two windows.
+         */
+        void write(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) {
+                if (!window.hasRemaining()) {
+                    remap();
+                }
+                ByteBuffer chunk = bytes.duplicate();
+                chunk.limit(bytes.position() + Math.min(bytes.remaining(), window.remaining()));
+                window.put(chunk);
+                bytes.position(chunk.position());
+            }
+        }
+
+        void finish(long savedAtMillis, int count) throws IOException {
+            long end = windowStart + window.position();
+            window.force();
+            release();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.putInt(MAGIC).putLong(savedAtMillis).putInt(count);
+            header.force();
+            DirectBuffers.free(header);
+            // the last window was mapped past the end of the entries.
+            channel.truncate(end);
+            channel.force(true);
+        }
+
+        /**
+         * Unmaps the current window, if any.
+         */
+        void release() {
+            MappedByteBuffer previous = window;
+            window = null;
+            DirectBuffers.free(previous);
+        }
+
+        private void remap() throws IOException {
+            windowStart += window.position();
+            window.force();
+            release();
+            window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, WINDOW_BYTES);
+        }
+    }
+}
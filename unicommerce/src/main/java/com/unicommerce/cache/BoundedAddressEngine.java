@@ -0,0 +1,386 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link AddressEngine} keeping the engine it wraps within a maximum number of addresses:
+ * an addition which makes it overflow evicts the address chosen by the
+ * {@link EvictionPolicy}, O(1) per eviction. A reader may see one address over the
+ * maximum while the addition evicts, or more over a sharded engine whose size() sums
+ * the stripes one at a time.
+ *
+ * Mutations go through the policy lock, so that the policy sees them in the engine's
+ * order. Readers never take it: peek goes straight to the engine, and contains() hits
+ * are only recorded in an {@link AccessBuffer} the next writer drains.
+ *
+ * Addresses the engine drops on expiry stay in the policy until evicted, which then
+ * evicts nothing, or until the expiry task prunes them once they outnumber the live ones.
+ */
+class BoundedAddressEngine implements AddressEngine {
+
+    private static final int PRUNE_SLACK = 1024;
+
+    private final AddressEngine delegate;
+    private final int maximumSize;
+    private final Eviction eviction;
+    // null when the policy ignores the reads.
+    private final AccessBuffer accesses;
+    private final LongAdder evictions = new LongAdder();
+    private final ReentrantLock lock = new ReentrantLock();
+    // told of the evicted addresses, null if none.
+    private volatile KeyListener evictionListener;
+
+    // scratch of the lock holder.
+    private final long[] victim = new long[2];
+    private final byte[] ipv6 = new byte[AddressCodec.IPV6_LENGTH];
+
+    BoundedAddressEngine(AddressEngine delegate, int maximumSize, EvictionPolicy policy) {
+        this.delegate = delegate;
+        this.maximumSize = maximumSize;
+        this.eviction = policy.create(maximumSize);
+        this.accesses = policy.recordsAccesses() ? new AccessBuffer() : null;
+    }
+
+    public boolean push(int ipv4, long expiresAt, long now) {
+        lock.lock();
+        try {
+            if (!delegate.push(ipv4, expiresAt, now)) {
+                return false;
+            }
+            added(0, AddressCodec.mapped(ipv4), now);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean push(byte[] address, long expiresAt, long now) {
+        lock.lock();
+        try {
+            return pushLocked(address, expiresAt, now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean push(InetAddress element, long expiresAt, long now) {
+        return push(element.getAddress(), expiresAt, now);
+    }
+
+    public boolean remove(int ipv4, long now) {
+        lock.lock();
+        try {
+            if (!delegate.remove(ipv4, now)) {
+                return false;
+            }
+            eviction.onRemove(0, AddressCodec.mapped(ipv4));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean remove(byte[] address, long now) {
+        lock.lock();
+        try {
+            return removeLocked(address, now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean remove(InetAddress element, long now) {
+        return remove(element.getAddress(), now);
+    }
+
+    public boolean contains(int ipv4, long now) {
+        boolean found = delegate.contains(ipv4, now);
+        if (found && accesses != null) {
+            accesses.record(0, AddressCodec.mapped(ipv4));
+        }
+        return found;
+    }
+
+    public boolean contains(byte[] address, long now) {
+        boolean found = delegate.contains(address, now);
+        if (found && accesses != null) {
+            boolean ipv4 = AddressCodec.isIpv4(address);
+            accesses.record(highOf(address, ipv4), lowOf(address, ipv4));
+        }
+        return found;
+    }
+
+    public boolean contains(InetAddress element, long now) {
+        return contains(element.getAddress(), now);
+    }
+
+    public int peekInto(byte[] address, long now) {
+        return delegate.peekInto(address, now);
+    }
+
+    public InetAddress peek(long now) {
+        return delegate.peek(now);
+    }
+
+    public int pollInto(byte[] address, long now) {
+        lock.lock();
+        try {
+            return pollIntoLocked(address, now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public InetAddress poll(long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        int length = pollInto(address, now);
+        if (length == 0) {
+            return null;
+        }
+        return AddressCodec.toInetAddress(Arrays.copyOf(address, length));
+    }
+
+    public int pushAll(Collection<? extends InetAddress> elements, long expiresAt, long now) {
+        byte[][] addresses = PrimitiveAddressEngine.addressesOf(elements);
+        int pushed = 0;
+        lock.lock();
+        try {
+            for (byte[] address : addresses) {
+                if (pushLocked(address, expiresAt, now)) {
+                    pushed++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return pushed;
+    }
+
+    public int pushAll(AddressBatch batch, long expiresAt, long now) {
+        int pushed = 0;
+        lock.lock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                if (pushLocked(batch.address(i), expiresAt, now)) {
+                    pushed++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return pushed;
+    }
+
+    public int removeAll(Collection<? extends InetAddress> elements, long now) {
+        byte[][] addresses = PrimitiveAddressEngine.addressesOf(elements);
+        int removed = 0;
+        lock.lock();
+        try {
+            for (byte[] address : addresses) {
+                if (removeLocked(address, now)) {
+                    removed++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return removed;
+    }
+
+    public boolean containsAll(Collection<? extends InetAddress> elements, long now) {
+        return delegate.containsAll(elements, now);
+    }
+
+    public int pollN(int n, Collection<? super InetAddress> into, long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        int polled = 0;
+        lock.lock();
+        try {
+            int length;
+            while (polled < n && (length = pollIntoLocked(address, now)) != 0) {
+                into.add(AddressCodec.toInetAddress(Arrays.copyOf(address, length)));
+                polled++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return polled;
+    }
+
+    public int size() {
+        return delegate.size();
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            delegate.clear();
+            eviction.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void forEach(Visitor<? super InetAddress> visitor, long now) {
+        delegate.forEach(visitor, now);
+    }
+
+    public void forEach(AddressVisitor visitor, long now) {
+        delegate.forEach(visitor, now);
+    }
+
+    /**
+     * Expires the engine, then prunes the policy if most of the keys it tracks are gone.
+     */
+    public int expire(final long now) {
+        int expired = delegate.expire(now);
+        lock.lock();
+        try {
+            int live = delegate.size();
+            if (eviction.size() > live + Math.max(live, PRUNE_SLACK)) {
+                eviction.retain(new Eviction.KeyFilter() {
+                    public boolean retain(long high, long low) {
+                        return containsKey(high, low, now);
+                    }
+                });
+            }
+        } finally {
+            lock.unlock();
+        }
+        return expired;
+    }
+
+    public long estimatedBytes() {
+        lock.lock();
+        try {
+            return delegate.estimatedBytes() + eviction.estimatedBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getTickNanos() {
+        return delegate.getTickNanos();
+    }
+
+    public void setExpiryListener(KeyListener listener) {
+        delegate.setExpiryListener(listener);
+    }
+
+    public void setAccessExpiry(AccessExpiry expiry) {
+        delegate.setAccessExpiry(expiry);
+    }
+
+    public boolean renew(byte[] address, long expiresAt, long now) {
+        return delegate.renew(address, expiresAt, now);
+    }
+
+    /**
+     * Sets the listener told of every address evicted, called under the policy lock by
+     * the addition evicting it, with the time of the addition.
+     *
+     * @param listener null for none.
+     */
+    void setEvictionListener(KeyListener listener) {
+        this.evictionListener = listener;
+    }
+
+    int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * @return number of addresses evicted so far.
+     */
+    long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+    private boolean pushLocked(byte[] address, long expiresAt, long now) {
+        if (!delegate.push(address, expiresAt, now)) {
+            return false;
+        }
+        boolean ipv4 = AddressCodec.isIpv4(address);
+        added(highOf(address, ipv4), lowOf(address, ipv4), now);
+        return true;
+    }
+
+    private boolean removeLocked(byte[] address, long now) {
+        if (!delegate.remove(address, now)) {
+            return false;
+        }
+        boolean ipv4 = AddressCodec.isIpv4(address);
+        eviction.onRemove(highOf(address, ipv4), lowOf(address, ipv4));
+        return true;
+    }
+
+    private int pollIntoLocked(byte[] address, long now) {
+        int length = delegate.pollInto(address, now);
+        if (length == AddressCodec.IPV4_LENGTH) {
+            eviction.onRemove(0, AddressCodec.mapped(readIpv4(address)));
+        } else if (length == AddressCodec.IPV6_LENGTH) {
+            eviction.onRemove(AddressCodec.high(address), AddressCodec.low(address));
+        }
+        return length;
+    }
+
+    /**
+     * Tracks the address just pushed, then evicts until the engine is back within bounds.
+     */
+    private void added(long high, long low, long now) {
+        if (accesses != null) {
+            accesses.drain(eviction);
+        }
+        eviction.onAdd(high, low);
+        while (delegate.size() > maximumSize && eviction.evict(victim)) {
+            // the victim may have expired meanwhile, then nothing is evicted.
+            if (removeKey(victim[0], victim[1], now)) {
+                evictions.increment();
+                KeyListener listener = this.evictionListener;
+                if (listener != null) {
+                    listener.dropped(victim[0], victim[1], now);
+                }
+            }
+        }
+    }
+
+    private boolean removeKey(long high, long low, long now) {
+        if (AddressCodec.isMapped(high, low)) {
+            return delegate.remove((int) low, now);
+        }
+        AddressCodec.writeIpv6(high, low, ipv6);
+        return delegate.remove(ipv6, now);
+    }
+
+    private boolean containsKey(long high, long low, long now) {
+        if (AddressCodec.isMapped(high, low)) {
+            return delegate.contains((int) low, now);
+        }
+        AddressCodec.writeIpv6(high, low, ipv6);
+        return delegate.contains(ipv6, now);
+    }
+
+    private static long highOf(byte[] address, boolean ipv4) {
+        return ipv4 ? 0 : AddressCodec.high(address);
+    }
+
+    private static long lowOf(byte[] address, boolean ipv4) {
+        return ipv4 ? AddressCodec.mapped(AddressCodec.ipv4(address)) : AddressCodec.low(address);
+    }
+
+    /**
+     * @return the IPv4 address written at the beginning of a larger array.
+     */
+    private static int readIpv4(byte[] address) {
+        return (address[0] & 0xff) << 24 | (address[1] & 0xff) << 16 | (address[2] & 0xff) << 8 | (address[3] & 0xff);
+    }
+}
@@ -0,0 +1,183 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+
+/**
+ * Changes of an AddressCache delivered to its subscribers, see AddressCache#subscribe():
+ * each address added, removed, taken, evicted or expired, and each clear().
+ *
+ * The changes go through a ring buffer of fixed size: the threads changing the cache
+ * write them without lock nor allocation, and never wait for a subscriber. Each
+ * subscriber reads the ring on its own executor, in batches of up to 256 changes, in the
+ * order the changes were written. A subscriber falling a whole ring behind loses the
+ * oldest changes it did not read, the batch after the gap tells how many.
+ */
+public final class CacheChanges {
+
+    private static final Type[] TYPES = Type.values();
+
+    private CacheChanges() {
+    }
+
+    public enum Type {
+        /**
+         * add() of an address not in the cache, loads from a snapshot and a peer included.
+         */
+        ADDED,
+        /**
+         * remove() of an address in the cache.
+         */
+        REMOVED,
+        /**
+         * take() or poll of an address.
+         */
+        TAKEN,
+        /**
+         * Address evicted by an add() to a full bounded cache.
+         */
+        EVICTED,
+        /**
+         * Address dropped once past its max age, by the expiry scheduler or by an
+         * operation meeting it.
+         */
+        EXPIRED,
+        /**
+         * clear() of the cache, the addresses dropped are not listed.
+         */
+        CLEARED
+    }
+
+    public interface Listener {
+
+        /**
+         * Called by the executor of the subscription, one batch at a time. A listener
+         * throwing is cancelled.
+         *
+         * @param changes valid during the call only, reused for the next batch.
+         */
+        void onChanges(Batch changes);
+    }
+
+    public interface Subscription {
+
+        /**
+         * Stops the deliveries, a batch being delivered meanwhile still completes.
+         */
+        void cancel();
+
+        /**
+         * @return number of changes delivered so far.
+         */
+        long delivered();
+
+        /**
+         * @return number of changes lost so far, overwritten before they were read.
+         */
+        long lost();
+    }
+
+    /**
+     * Batch of changes, oldest first. An address is given by its (high, low) key, see
+     * {@link AddressCodec#keyHigh(byte[])}: 0 and the IPv4-mapped address for IPv4.
+     */
+    public static final class Batch {
+
+        private final int[] types;
+        private final long[] highs;
+        private final long[] lows;
+        private final long[] times;
+        private int size;
+        private long lost;
+
+        Batch(int capacity) {
+            this.types = new int[capacity];
+            this.highs = new long[capacity];
+            this.lows = new long[capacity];
+            this.times = new long[capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return number of changes lost right before this batch, 0 if none.
+         */
+        public long lost() {
+            return lost;
+        }
+
+        public Type type(int i) {
+            return TYPES[types[check(i)]];
+        }
+
+        public long high(int i) {
+            return highs[check(i)];
+        }
+
+        public long low(int i) {
+            return lows[check(i)];
+        }
+
+        /**
+         * @return {@link System#nanoTime()} of the change, the deadline of an EXPIRED address.
+         */
+        public long time(int i) {
+            return times[check(i)];
+        }
+
+        /**
+         * Writes the address of the change at the beginning of the given array, allocation-free.
+         *
+         * @param address array of at least 16 bytes.
+         * @return number of bytes written (4 or 16), 0 for CLEARED.
+         */
+        public int addressInto(int i, byte[] address) {
+            if (types[check(i)] == Type.CLEARED.ordinal()) {
+                return 0;
+            }
+            return AddressCodec.write(highs[i], lows[i], address);
+        }
+
+        /**
+         * @return address of the change, null for CLEARED.
+         */
+        public InetAddress address(int i) {
+            if (types[check(i)] == Type.CLEARED.ordinal()) {
+                return null;
+            }
+            if (AddressCodec.isMapped(highs[i], lows[i])) {
+                return AddressCodec.toInetAddress((int) lows[i]);
+            }
+            return AddressCodec.toInetAddress(highs[i], lows[i]);
+        }
+
+        void reset() {
+            size = 0;
+            lost = 0;
+        }
+
+        boolean isFull() {
+            return size == types.length;
+        }
+
+        void add(int type, long high, long low, long time) {
+            types[size] = type;
+            highs[size] = high;
+            lows[size] = low;
+            times[size] = time;
+            size++;
+        }
+
+        void lost(long count) {
+            lost += count;
+        }
+
+        private int check(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("Change " + i + " of " + size);
+            }
+            return i;
+        }
+    }
+}
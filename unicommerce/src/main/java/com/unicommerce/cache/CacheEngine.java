@@ -0,0 +1,75 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+
+/**
+ * Concurrency strategy of a cache, chosen at construction.
+ */
+public enum CacheEngine {
+
+    /**
+     * Indexed stack guarded by a read/write lock, the default. Addresses are stored as
+     * primitives (int for IPv4, two longs for IPv6).
+     */
+    LOCKING,
+
+    /**
+     * Lock-free Treiber stack with an elimination array, for heavy concurrent add/take
+     * traffic. Waiting take() callers only park while the stack is empty.
+     */
+    LOCK_FREE,
+
+    /**
+     * Indexed stack kept in direct buffer slabs out of the java heap, guarded by a
+     * read/write lock. For tens of millions of addresses without a large heap nor long
+     * GC pauses; clear() and close() give the memory back to the OS.
+     */
+    OFF_HEAP;
+
+    /**
+     * @return engine for an AddressCache, the LOCKING one stores the addresses as primitives.
+     */
+    AddressEngine createAddressEngine(long timeToLiveNanos) {
+        switch (this) {
+            case LOCK_FREE:
+                return new ObjectAddressEngine(new TreiberStackEngine<InetAddress>(timeToLiveNanos));
+            case OFF_HEAP:
+                return new OffHeapAddressEngine(timeToLiveNanos);
+            default:
+                return new PrimitiveAddressEngine(timeToLiveNanos);
+        }
+    }
+
+    /**
+     * @return engine for an ExpirableCache of any element type.
+     * @throws IllegalArgumentException for OFF_HEAP, which only stores addresses.
+     */
+    <E> StackEngine<E> createStackEngine(long timeToLiveNanos) {
+        switch (this) {
+            case LOCK_FREE:
+                return new TreiberStackEngine<E>(timeToLiveNanos);
+            case OFF_HEAP:
+                throw new IllegalArgumentException("OFF_HEAP only stores addresses, see AddressCache");
+            default:
+                return new ObjectStackEngine<E>(timeToLiveNanos);
+        }
+    }
+
+    /**
+     * @return rough estimate of the memory one IPv4 address takes in the engine, to turn
+     * a memory budget into a number of addresses, see {@link Capacity#bytes(long, EvictionPolicy)}.
+     */
+    int estimatedEntryBytes() {
+        switch (this) {
+            case LOCK_FREE:
+                // Treiber node & its index entries, plus the InetAddress.
+                return 144;
+            case OFF_HEAP:
+                // one 40 bytes record, tables at half load.
+                return 80;
+            default:
+                // one 49 bytes slot, tables at half load.
+                return 98;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.unicommerce.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, latency histograms and gauges of one cache, read with the getters or over
+ * JMX. The counters are {@link LongAdder}s, striped per core, and the histograms have
+ * fixed arrays: recording takes one more {@link System#nanoTime()} per operation (the
+ * cache reads the clock anyway) and allocates nothing.
+ *
+ * Hits and misses count the contains() calls. Latencies include the lock waits, and for
+ * take() the time spent waiting for an element.
+ *
+ * The filter metrics are 0 unless the cache filters its misses, see AddressCache#filterMisses,
+ * and the replication ones unless it is replicated, see AddressCache#replicate.
+ */
+public final class CacheMetrics implements CacheMetricsMXBean {
+
+    private final StackEngine<?> engine;
+    private volatile FilteredAddressEngine filter;
+    private volatile AddressReplicator replicator;
+
+    private final LongAdder adds = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder removes = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder takeTimeouts = new LongAdder();
+
+    private final LatencyHistogram addLatency = new LatencyHistogram();
+    private final LatencyHistogram removeLatency = new LatencyHistogram();
+    private final LatencyHistogram containsLatency = new LatencyHistogram();
+    private final LatencyHistogram peekLatency = new LatencyHistogram();
+    private final LatencyHistogram takeLatency = new LatencyHistogram();
+
+    CacheMetrics(StackEngine<?> engine) {
+        this.engine = engine;
+    }
+
+    void filtering(FilteredAddressEngine filter) {
+        this.filter = filter;
+    }
+
+    void replicating(AddressReplicator replicator) {
+        this.replicator = replicator;
+    }
+
+    // ---- recording, start is the System.nanoTime() read when the operation began.
+
+    void added(boolean added, long start) {
+        (added ? adds : duplicates).increment();
+        addLatency.record(System.nanoTime() - start);
+    }
+
+    void addedAll(int added, int requested) {
+        adds.add(added);
+        duplicates.add(Math.max(requested - added, 0));
+    }
+
+    void removed(boolean removed, long start) {
+        if (removed) {
+            removes.increment();
+        }
+        removeLatency.record(System.nanoTime() - start);
+    }
+
+    void removedAll(int removed) {
+        removes.add(removed);
+    }
+
+    void looked(boolean found, long start) {
+        (found ? hits : misses).increment();
+        containsLatency.record(System.nanoTime() - start);
+    }
+
+    void peeked(long start) {
+        peekLatency.record(System.nanoTime() - start);
+    }
+
+    void taken(long start) {
+        takeLatency.record(System.nanoTime() - start);
+    }
+
+    void takeTimedOut() {
+        takeTimeouts.increment();
+    }
+
+    void expired(int expired) {
+        if (expired > 0) {
+            expirations.add(expired);
+        }
+    }
+
+    // ---- reading.
+
+    public long getAdds() {
+        return adds.sum();
+    }
+
+    /**
+     * @return add() calls ignored because the address was already there.
+     */
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * @return addresses removed by remove(), take() not included.
+     */
+    public long getRemoves() {
+        return removes.sum();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return addresses dropped by the expiry scheduler once older than the max age.
+     */
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    /**
+     * @return addresses evicted to keep a bounded cache within its capacity.
+     */
+    public long getEvictions() {
+        return engine instanceof BoundedAddressEngine ? ((BoundedAddressEngine) engine).evictions() : 0;
+    }
+
+    /**
+     * @return takeN() calls which timed out without an element.
+     */
+    public long getTakeTimeouts() {
+        return takeTimeouts.sum();
+    }
+
+    /**
+     * @return number of addresses, may include expired ones not dropped yet.
+     */
+    public long getSize() {
+        return engine.size();
+    }
+
+    /**
+     * @return rough estimate of the memory held by the storage, heap and off-heap.
+     */
+    public long getEstimatedBytes() {
+        return engine.estimatedBytes();
+    }
+
+    /**
+     * @return contains() calls answered false by the miss filter alone.
+     */
+    public long getFilterNegatives() {
+        FilteredAddressEngine current = filter;
+        return current == null ? 0 : current.negatives();
+    }
+
+    /**
+     * @return contains() calls the miss filter let through for an address not there.
+     */
+    public long getFilterFalsePositives() {
+        FilteredAddressEngine current = filter;
+        return current == null ? 0 : current.falsePositives();
+    }
+
+    /**
+     * @return share of the misses the filter let through, as measured.
+     */
+    public double getFilterFalsePositiveRate() {
+        FilteredAddressEngine current = filter;
+        return current == null ? 0 : current.falsePositiveRate();
+    }
+
+    /**
+     * @return false positive rate the filter should have with what it holds now.
+     */
+    public double getFilterExpectedFalsePositiveRate() {
+        FilteredAddressEngine current = filter;
+        return current == null ? 0 : current.expectedFalsePositiveRate();
+    }
+
+    /**
+     * @return memory held by the miss filter, not included in the estimated bytes.
+     */
+    public long getFilterBytes() {
+        FilteredAddressEngine current = filter;
+        return current == null ? 0 : current.filterBytes();
+    }
+
+    /**
+     * @return address entries sent to the peers as deltas.
+     */
+    public long getReplicationSent() {
+        AddressReplicator current = replicator;
+        return current == null ? 0 : current.sent();
+    }
+
+    /**
+     * @return address entries received from the peers which changed this node.
+     */
+    public long getReplicationApplied() {
+        AddressReplicator current = replicator;
+        return current == null ? 0 : current.applied();
+    }
+
+    /**
+     * @return address entries received through the anti-entropy, changing this node or not.
+     */
+    public long getReplicationRepaired() {
+        AddressReplicator current = replicator;
+        return current == null ? 0 : current.repaired();
+    }
+
+    public LatencyHistogram.Snapshot getAddLatency() {
+        return addLatency.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getRemoveLatency() {
+        return removeLatency.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getContainsLatency() {
+        return containsLatency.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getPeekLatency() {
+        return peekLatency.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getTakeLatency() {
+        return takeLatency.snapshot();
+    }
+
+    @Override
+    public String toString() {
+        String filtered = filter == null ? "" : " filterNegatives=" + getFilterNegatives()
+                + " filterFalsePositives=" + getFilterFalsePositives() + " filterBytes=" + getFilterBytes();
+        String replicated = replicator == null ? "" : " replicationSent=" + getReplicationSent()
+                + " replicationApplied=" + getReplicationApplied() + " replicationRepaired=" + getReplicationRepaired();
+        return "adds=" + getAdds() + " duplicates=" + getDuplicates() + " removes=" + getRemoves()
+                + " hits=" + getHits() + " misses=" + getMisses() + " expirations=" + getExpirations()
+                + " evictions=" + getEvictions() + " takeTimeouts=" + getTakeTimeouts() + " size=" + getSize()
+                + " estimatedBytes=" + getEstimatedBytes() + filtered + replicated;
+    }
+}
@@ -0,0 +1,54 @@
+package com.unicommerce.cache;
+
+/**
+ * JMX view of the {@link CacheMetrics} of a cache, see AddressCache#exportMetrics(String).
+ * Latencies are in nanoseconds.
+ */
+public interface CacheMetricsMXBean {
+
+    long getAdds();
+
+    long getDuplicates();
+
+    long getRemoves();
+
+    long getHits();
+
+    long getMisses();
+
+    long getExpirations();
+
+    long getEvictions();
+
+    long getTakeTimeouts();
+
+    long getSize();
+
+    long getEstimatedBytes();
+
+    long getFilterNegatives();
+
+    long getFilterFalsePositives();
+
+    double getFilterFalsePositiveRate();
+
+    double getFilterExpectedFalsePositiveRate();
+
+    long getFilterBytes();
+
+    long getReplicationSent();
+
+    long getReplicationApplied();
+
+    long getReplicationRepaired();
+
+    LatencyHistogram.Snapshot getAddLatency();
+
+    LatencyHistogram.Snapshot getRemoveLatency();
+
+    LatencyHistogram.Snapshot getContainsLatency();
+
+    LatencyHistogram.Snapshot getPeekLatency();
+
+    LatencyHistogram.Snapshot getTakeLatency();
+}
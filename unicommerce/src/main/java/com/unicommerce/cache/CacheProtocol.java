@@ -0,0 +1,62 @@
+package com.unicommerce.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary protocol between {@link AddressCacheClient} and {@link AddressCacheServer}, over
+ * TCP, big-endian.
+ *
+ * The client sends request frames, each a batch of requests, and may send further frames
+ * before the responses arrive (pipelining). The server answers every frame with a response
+ * frame, in the order of the frames, holding one response per request in request order.
+ * <pre>
+ *   request frame  : length(4) count(2) request*   length covers count & requests
+ *   request        : ADD | REMOVE | CONTAINS (1) addressLength(1) address(4 or 16)
+ *                  | PEEK (1)
+ *                  | TAKE (1) timeoutMillis(4)     0 does not wait, -1 waits as long as needed
+ *   response frame : count(2) response*
+ *   response       : FALSE | TRUE | EMPTY | CLOSED (1)
+ *                  | ADDRESS (1) addressLength(1) address(4 or 16)
+ * </pre>
+ * CLOSED answers any request once the cache is closed. A malformed frame closes the
+ * connection.
+ */
+final class CacheProtocol {
+
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+    static final byte CONTAINS = 3;
+    static final byte PEEK = 4;
+    static final byte TAKE = 5;
+
+    static final byte FALSE = 0;
+    static final byte TRUE = 1;
+    static final byte ADDRESS = 2;
+    static final byte EMPTY = 3;
+    static final byte CLOSED = 4;
+
+    static final int REQUEST_HEADER_BYTES = 6;
+    static final int RESPONSE_HEADER_BYTES = 2;
+    // bytes of requests in a frame, so a whole frame fits in the read buffer of a connection.
+    static final int MAX_FRAME_BYTES = 64 * 1024;
+    static final int MAX_REQUESTS = 0xffff;
+    static final int MAX_REQUEST_BYTES = 2 + AddressCodec.IPV6_LENGTH;
+    static final int MAX_RESPONSE_BYTES = 2 + AddressCodec.IPV6_LENGTH;
+
+    private CacheProtocol() {
+    }
+
+    /**
+     * @return true for the address lengths of the protocol, 4 and 16.
+     */
+    static boolean isAddressLength(int length) {
+        return length == AddressCodec.IPV4_LENGTH || length == AddressCodec.IPV6_LENGTH;
+    }
+
+    /**
+     * Writes ADDRESS and the address bytes[0, length) to the buffer.
+     */
+    static void putAddress(ByteBuffer buffer, byte[] address, int length) {
+        buffer.put(ADDRESS).put((byte) length).put(address, 0, length);
+    }
+}
@@ -0,0 +1,67 @@
+package com.unicommerce.cache;
+
+/**
+ * Publisher of the elements taken from an ExpirableCache, see ExpirableCache#publisher().
+ * Each subscriber takes elements as it requests them: an element goes to one subscriber
+ * only and is removed from the cache, exactly as by take(). No thread waits while there
+ * is nothing to take, the elements are handed over by the next add().
+ *
+ * The interfaces follow the contract of java.util.concurrent.Flow (Reactive Streams),
+ * which is not available in Java 8: signals to a subscriber are serial, request(n)
+ * with n <= 0 ends the subscription with an IllegalArgumentException, and the
+ * subscription ends with onError(CacheExpiredException) when the cache is closed, at
+ * the latest on its next request().
+ * On Java 9+ a Flow.Subscriber is adapted by forwarding the four calls.
+ *
+ * @param <E> element type of the cache.
+ */
+public final class CachePublisher<E> {
+
+    private final TakerQueue<E> takers;
+
+    CachePublisher(TakerQueue<E> takers) {
+        this.takers = takers;
+    }
+
+    /**
+     * Starts a subscription, nothing is taken before the subscriber requests it.
+     *
+     * @param subscriber
+     */
+    public void subscribe(Subscriber<? super E> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        takers.subscribe(subscriber);
+    }
+
+    public interface Subscriber<E> {
+
+        void onSubscribe(Subscription subscription);
+
+        void onNext(E element);
+
+        void onError(Throwable error);
+
+        /**
+         * Never called by an ExpirableCache: the cache only ends its subscriptions on close(),
+         * with onError().
+         */
+        void onComplete();
+    }
+
+    public interface Subscription {
+
+        /**
+         * Adds n to the number of elements the subscriber takes, Long.MAX_VALUE for no limit.
+         *
+         * @param n
+         */
+        void request(long n);
+
+        /**
+         * Stops the deliveries, an element being delivered meanwhile may still arrive.
+         */
+        void cancel();
+    }
+}
@@ -0,0 +1,73 @@
+package com.unicommerce.cache;
+
+/**
+ * Bound of a cache, as a number of addresses or as a memory budget, with the policy
+ * choosing the address evicted once the bound is reached:
+ *   new AddressCache(1, TimeUnit.HOURS, CacheEngine.LOCKING, Capacity.entries(100000, EvictionPolicy.TINY_LFU));
+ *
+ * A budget is turned into a number of addresses at construction, from the estimated
+ * footprint of one address in the engine and in the policy.
+ */
+public final class Capacity {
+
+    private final long maximumSize;
+    private final long maximumBytes;
+    private final EvictionPolicy policy;
+
+    private Capacity(long maximumSize, long maximumBytes, EvictionPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("No eviction policy");
+        }
+        this.maximumSize = maximumSize;
+        this.maximumBytes = maximumBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * @param maximumSize number of addresses kept at most.
+     */
+    public static Capacity entries(int maximumSize, EvictionPolicy policy) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive : " + maximumSize);
+        }
+        return new Capacity(maximumSize, -1, policy);
+    }
+
+    /**
+     * @param maximumBytes memory the addresses may take, heap and off-heap.
+     */
+    public static Capacity bytes(long maximumBytes, EvictionPolicy policy) {
+        if (maximumBytes <= 0) {
+            throw new IllegalArgumentException("Maximum bytes must be positive : " + maximumBytes);
+        }
+        return new Capacity(-1, maximumBytes, policy);
+    }
+
+    public EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @param engineEntryBytes estimated footprint of one address in the engine.
+     * @return number of addresses kept at most, at least 1.
+     */
+    int maximumSize(int engineEntryBytes) {
+        if (maximumSize > 0) {
+            return (int) maximumSize;
+        }
+        long entries = maximumBytes / (engineEntryBytes + policy.estimatedEntryBytes());
+        return (int) Math.max(1, Math.min(entries, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return the engine wrapped to keep within this capacity.
+     */
+    AddressEngine bound(AddressEngine engine, int engineEntryBytes) {
+        return new BoundedAddressEngine(engine, maximumSize(engineEntryBytes), policy);
+    }
+
+    @Override
+    public String toString() {
+        return (maximumSize > 0 ? maximumSize + " entries" : maximumBytes + " bytes") + ", " + policy;
+    }
+}
@@ -0,0 +1,293 @@
+package com.unicommerce.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring buffer of the {@link CacheChanges}, multi-producer and lossy: the writers claim a
+ * sequence number from a shared cursor, then write their change in the slot of the
+ * sequence, overwriting the change one lap older whether it was read or not. The slots
+ * are preallocated, a change costs a getAndIncrement, a CAS and a few ordered stores.
+ *
+ * Each slot takes 8 longs for its 5 fields, which spreads the writers over the cache
+ * lines without isolating them: the array is not line-aligned, so two neighbouring slots
+ * may still share a line. Each slot is stamped with the sequence of its change: BUSY
+ * while written, then the sequence once published. A reader checks the stamp before
+ * and after reading the fields, a seqlock: a stamp ahead of the sequence it expects
+ * means the change was overwritten, i.e. lost. A writer only waits for the writer of
+ * the same slot one lap earlier, still writing.
+ *
+ * A subscription drains the ring on its executor, at most one drain at a time. A writer
+ * schedules the drain of the subscriptions idle once its change is published; a drain
+ * running out of changes goes idle, then looks again, so no change is left unread.
+ * The writers may hold the locks of the cache: they never call an executor, the shared
+ * {@link DrainDispatcher} submits the drains they schedule.
+ */
+final class ChangeRing {
+
+    static final int DEFAULT_CAPACITY = 1 << 15;
+    static final int BATCH_SIZE = 256;
+
+    // batches delivered by one drain before it yields its executor thread.
+    private static final int BATCHES_PER_DRAIN = 16;
+    private static final int SLOT_SHIFT = 3;
+    private static final int HIGH = 1;
+    private static final int LOW = 2;
+    private static final int TIME = 3;
+    private static final int TYPE = 4;
+    private static final long EMPTY = -1;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong();
+    private final DrainDispatcher dispatcher = DrainDispatcher.shared();
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    /**
+     * @param capacity number of changes held, a power of 2.
+     */
+    ChangeRing(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of 2 : " + capacity);
+        }
+        this.slots = new AtomicLongArray(capacity << SLOT_SHIFT);
+        this.mask = capacity - 1;
+        for (int slot = 0; slot < capacity; slot++) {
+            slots.set(slot << SLOT_SHIFT, EMPTY);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Writes the change, then schedules the idle subscriptions. Never waits for them nor
+     * calls their executors, may be called under a lock.
+     */
+    void publish(CacheChanges.Type type, long high, long low, long time) {
+        long sequence = cursor.getAndIncrement();
+        int base = (int) (sequence & mask) << SLOT_SHIFT;
+        for (;;) {
+            long stamp = slots.get(base);
+            if (stamp >= sequence || stamp < EMPTY && busySequence(stamp) > sequence) {
+                // a whole lap went by since the cursor was read, the change is lost.
+                return;
+            }
+            if (stamp < EMPTY) {
+                // the writer of the previous lap is still writing.
+                Thread.yield();
+            } else if (slots.compareAndSet(base, stamp, busy(sequence))) {
+                break;
+            }
+        }
+        slots.lazySet(base + HIGH, high);
+        slots.lazySet(base + LOW, low);
+        slots.lazySet(base + TIME, time);
+        slots.lazySet(base + TYPE, type.ordinal());
+        // a volatile write: a drain going idle either sees it or is scheduled below.
+        slots.set(base, sequence);
+        for (Subscription subscription : subscriptions) {
+            subscription.schedule();
+        }
+    }
+
+    /**
+     * @return listener publishing each address it is told of as a change of the given type.
+     */
+    AddressEngine.KeyListener publisher(final CacheChanges.Type type) {
+        return new AddressEngine.KeyListener() {
+            public void dropped(long high, long low, long time) {
+                publish(type, high, low, time);
+            }
+        };
+    }
+
+    /**
+     * Subscribes to the changes published from now on.
+     */
+    CacheChanges.Subscription subscribe(CacheChanges.Listener listener, Executor executor) {
+        Subscription subscription = new Subscription(this, listener, executor, cursor.get());
+        synchronized (this) {
+            Subscription[] current = subscriptions;
+            Subscription[] added = Arrays.copyOf(current, current.length + 1);
+            added[current.length] = subscription;
+            subscriptions = added;
+        }
+        return subscription;
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                Subscription[] removed = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, removed, 0, i);
+                System.arraycopy(current, i + 1, removed, i, current.length - i - 1);
+                subscriptions = removed;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the changes from the given sequence into the batch, until the batch is full
+     * or the next change is not published yet.
+     *
+     * @return sequence of the next change to read.
+     */
+    long read(long next, CacheChanges.Batch batch) {
+        batch.reset();
+        while (!batch.isFull()) {
+            long claimed = cursor.get();
+            if (next >= claimed) {
+                break;
+            }
+            if (claimed - next > capacity()) {
+                batch.lost(claimed - capacity() - next);
+                next = claimed - capacity();
+            }
+            int base = (int) (next & mask) << SLOT_SHIFT;
+            long stamp = slots.get(base);
+            if (stamp == next) {
+                long high = slots.get(base + HIGH);
+                long low = slots.get(base + LOW);
+                long time = slots.get(base + TIME);
+                int type = (int) slots.get(base + TYPE);
+                if (slots.get(base) == next) {
+                    batch.add(type, high, low, time);
+                    next++;
+                }
+                // otherwise overwritten meanwhile, seen as such on the next pass.
+            } else if (isAhead(stamp, next)) {
+                batch.lost(1);
+                next++;
+            } else {
+                // not published yet, its writer schedules the drain once it is.
+                break;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return true if the change of the given sequence is published or lost, i.e. a drain
+     * reading it would not stop there.
+     */
+    boolean isReadable(long next) {
+        long stamp = slots.get((int) (next & mask) << SLOT_SHIFT);
+        return stamp == next || isAhead(stamp, next);
+    }
+
+    private static boolean isAhead(long stamp, long sequence) {
+        return stamp > sequence || stamp < EMPTY && busySequence(stamp) > sequence;
+    }
+
+    private static long busy(long sequence) {
+        return -2 - sequence;
+    }
+
+    private static long busySequence(long stamp) {
+        return -2 - stamp;
+    }
+
+    private static final class Subscription implements CacheChanges.Subscription, Runnable {
+
+        private final ChangeRing ring;
+        private final CacheChanges.Listener listener;
+        private final Executor executor;
+        private final CacheChanges.Batch batch = new CacheChanges.Batch(BATCH_SIZE);
+        // true while a drain is dispatched, submitted or running.
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // run by the dispatcher, submits the drain to the executor.
+        private final Runnable submission = new Runnable() {
+            public void run() {
+                submit();
+            }
+        };
+        private volatile boolean cancelled;
+        // next sequence to read, owned by the drain running.
+        private long next;
+        private volatile long delivered;
+        private volatile long lost;
+
+        Subscription(ChangeRing ring, CacheChanges.Listener listener, Executor executor, long next) {
+            this.ring = ring;
+            this.listener = listener;
+            this.executor = executor;
+            this.next = next;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            ring.unsubscribe(this);
+        }
+
+        public long delivered() {
+            return delivered;
+        }
+
+        public long lost() {
+            return lost;
+        }
+
+        /**
+         * Dispatches a drain unless one is already dispatched, submitted or running.
+         */
+        void schedule() {
+            if (scheduled.get() || cancelled || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            ring.dispatcher.dispatch(submission);
+        }
+
+        public void run() {
+            for (int batches = 0; ; ) {
+                if (cancelled) {
+                    return;
+                }
+                next = ring.read(next, batch);
+                if (batch.size() > 0 || batch.lost() > 0) {
+                    lost += batch.lost();
+                    try {
+                        listener.onChanges(batch);
+                    } catch (RuntimeException e) {
+                        // a listener failing is cancelled, as a subscriber of the publisher.
+                        cancel();
+                        e.printStackTrace();
+                        return;
+                    }
+                    delivered += batch.size();
+                    if (++batches == BATCHES_PER_DRAIN) {
+                        // still scheduled, the drain goes on as a new task: dispatched,
+                        // an executor running it on the calling thread does not recurse.
+                        ring.dispatcher.dispatch(submission);
+                        return;
+                    }
+                    continue;
+                }
+                scheduled.set(false);
+                // a change published before the flag was cleared is seen here.
+                if (cancelled || !ring.isReadable(next) || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * A subscription whose executor rejects the drain is cancelled.
+         */
+        private void submit() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                cancel();
+                e.printStackTrace();
+            }
+        }
+    }
+}
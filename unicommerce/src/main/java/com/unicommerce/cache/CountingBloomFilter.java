@@ -0,0 +1,146 @@
+package com.unicommerce.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free counting Bloom filter of (high, low) address keys: 4-bit counters packed 16
+ * to a long, updated with CAS. A key is added by incrementing its k counters and removed
+ * by decrementing them, mightContain() is false only if one of them is 0: no false
+ * negatives as long as every key removed was added before.
+ *
+ * A counter reaching 15 sticks there, it may be shared by more keys than it can count;
+ * its keys then stay "maybe there" until the filter is rebuilt.
+ */
+final class CountingBloomFilter {
+
+    private static final int COUNTERS_PER_WORD = 16;
+    private static final long SATURATED = 15;
+    private static final double LN2 = Math.log(2);
+
+    private final AtomicLongArray words;
+    // number of counters - 1, a power of two.
+    private final int mask;
+    private final int hashes;
+    private final long expectedEntries;
+    private final LongAdder entries = new LongAdder();
+
+    /**
+     * @param expectedEntries   number of keys the false positive rate is given for.
+     * @param falsePositiveRate wanted rate at that number of keys, e.g. 0.01.
+     */
+    CountingBloomFilter(long expectedEntries, double falsePositiveRate) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("False positive rate out of ]0, 1[ : " + falsePositiveRate);
+        }
+        long entries = Math.max(expectedEntries, 1);
+        double bits = -entries * Math.log(falsePositiveRate) / (LN2 * LN2);
+        long counters = Long.highestOneBit((long) Math.ceil(bits) - 1) << 1;
+        counters = Math.min(Math.max(counters, COUNTERS_PER_WORD), 1L << 31);
+        this.words = new AtomicLongArray((int) (counters / COUNTERS_PER_WORD));
+        this.mask = (int) (counters - 1);
+        this.hashes = (int) Math.min(Math.max(Math.round(counters / (double) entries * LN2), 1), 16);
+        this.expectedEntries = entries;
+    }
+
+    void add(long high, long low) {
+        long hash = hash(high, low);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            increment((h1 + i * h2) & mask);
+        }
+        entries.increment();
+    }
+
+    /**
+     * To be called only for a key added before.
+     */
+    void remove(long high, long low) {
+        long hash = hash(high, low);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            decrement((h1 + i * h2) & mask);
+        }
+        entries.decrement();
+    }
+
+    boolean mightContain(long high, long low) {
+        long hash = hash(high, low);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            if (counter((h1 + i * h2) & mask) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return keys added minus keys removed.
+     */
+    long entries() {
+        return entries.sum();
+    }
+
+    long expectedEntries() {
+        return expectedEntries;
+    }
+
+    /**
+     * @return false positive rate expected with the current entries, (1 - e^(-kn/m))^k.
+     */
+    double expectedFalsePositiveRate() {
+        double filled = 1 - Math.exp(-hashes * (double) Math.max(entries(), 0) / (mask + 1L));
+        return Math.pow(filled, hashes);
+    }
+
+    long bytes() {
+        return words.length() * 8L;
+    }
+
+    private long counter(int index) {
+        return words.get(index >>> 4) >>> ((index & 15) << 2) & 15;
+    }
+
+    private void increment(int index) {
+        int word = index >>> 4;
+        int shift = (index & 15) << 2;
+        long current;
+        do {
+            current = words.get(word);
+            if ((current >>> shift & 15) == SATURATED) {
+                return;
+            }
+        } while (!words.compareAndSet(word, current, current + (1L << shift)));
+    }
+
+    private void decrement(int index) {
+        int word = index >>> 4;
+        int shift = (index & 15) << 2;
+        long current;
+        do {
+            current = words.get(word);
+            long count = current >>> shift & 15;
+            if (count == SATURATED || count == 0) {
+                return;
+            }
+        } while (!words.compareAndSet(word, current, current - (1L << shift)));
+    }
+
+    private static long hash(long high, long low) {
+        return mix(low + mix(high));
+    }
+
+    private static long mix(long key) {
+        // murmur3 64-bit finalizer.
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
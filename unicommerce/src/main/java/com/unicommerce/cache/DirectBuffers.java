@@ -0,0 +1,73 @@
+package com.unicommerce.cache;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Allocation and explicit release of direct (off-heap) buffers, mapped ones included.
+ *
+ * The memory of a direct buffer is normally given back only once the buffer is garbage
+ * collected, which may be long after it was dropped when the heap itself is small.
+ * {@link #free(ByteBuffer)} runs the buffer's cleaner right away: through
+ * sun.misc.Unsafe#invokeCleaner on Java 9+, through the buffer's own cleaner on Java 8.
+ * Where neither is reachable the memory is left to the garbage collector.
+ */
+final class DirectBuffers {
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Exception e) {
+            // Java 8, the buffer's cleaner is used instead.
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private DirectBuffers() {
+    }
+
+    /**
+     * @return a zeroed direct buffer in the native byte order.
+     */
+    static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Releases the memory of a direct buffer, or unmaps a mapped one, the buffer must not
+     * be used afterwards.
+     * Only the buffer returned by the allocation may be freed, never a slice or duplicate.
+     */
+    static void free(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // not reachable on this JVM, the garbage collector frees the memory.
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.unicommerce.cache;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Process-wide thread handing the drains of the change subscriptions to their executors,
+ * see ChangeRing. A thread publishing a change may hold the locks of an engine or of the
+ * replication: it only queues the submission and wakes this thread, so the executor of a
+ * subscriber, possibly running the drain on the calling thread, never runs under a lock
+ * of the cache.
+ *
+ * A single daemon thread serves all the caches, started by the first subscription.
+ */
+final class DrainDispatcher implements Runnable {
+
+    private static DrainDispatcher shared;
+
+    private final ConcurrentLinkedQueue<Runnable> submissions = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread thread;
+
+    private DrainDispatcher() {
+        this.thread = new Thread(this, "cache-changes");
+        this.thread.setDaemon(true);
+    }
+
+    static synchronized DrainDispatcher shared() {
+        if (shared == null) {
+            shared = new DrainDispatcher();
+            shared.thread.start();
+        }
+        return shared;
+    }
+
+    /**
+     * Queues the submission and wakes the dispatcher, without waiting for it.
+     */
+    void dispatch(Runnable submission) {
+        submissions.offer(submission);
+        LockSupport.unpark(thread);
+    }
+
+    public void run() {
+        for (;;) {
+            Runnable submission = submissions.poll();
+            if (submission == null) {
+                // a dispatch() after the poll leaves its permit, park returns at once.
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                submission.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.unicommerce.cache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bookkeeping of an {@link EvictionPolicy}: tracks the addresses of a bounded cache as
+ * (high, low) keys, see {@link AddressCodec#mapped(int)}, and picks the one to evict.
+ *
+ * The keys are kept in {@link LongPairIndexedStack}s used as LRU queues (most recent on
+ * top, victim at the bottom), so every operation is O(1) and allocates nothing.
+ * The tracked keys may include addresses the cache already dropped on expiry, such a
+ * victim is simply skipped by the caller.
+ *
+ * Not thread-safe, see {@link BoundedAddressEngine}.
+ */
+abstract class Eviction {
+
+    // the queues hold no deadline, their timing wheel is never used.
+    private static final long UNUSED_TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    abstract void onAdd(long high, long low);
+
+    /**
+     * A contains() hit, the key may no more be tracked.
+     */
+    abstract void onAccess(long high, long low);
+
+    abstract void onRemove(long high, long low);
+
+    /**
+     * Stops tracking the key to evict next.
+     *
+     * @param victim receives the high and low half of the key.
+     * @return false if no key is tracked.
+     */
+    abstract boolean evict(long[] victim);
+
+    /**
+     * Stops tracking the keys the filter rejects.
+     */
+    abstract void retain(KeyFilter filter);
+
+    /**
+     * @return number of keys tracked.
+     */
+    abstract int size();
+
+    abstract void clear();
+
+    abstract long estimatedBytes();
+
+    interface KeyFilter {
+
+        boolean retain(long high, long low);
+    }
+
+    // ---- LRU queues.
+
+    static LongPairIndexedStack newQueue() {
+        return new LongPairIndexedStack(UNUSED_TICK_NANOS);
+    }
+
+    static void push(LongPairIndexedStack queue, long high, long low) {
+        queue.push(high, low, IndexedStack.NEVER, 0);
+    }
+
+    static boolean remove(LongPairIndexedStack queue, long high, long low) {
+        return queue.remove(high, low, 0);
+    }
+
+    /**
+     * Moves the key on top of the queue.
+     *
+     * @return false if the queue does not hold it.
+     */
+    static boolean touch(LongPairIndexedStack queue, long high, long low) {
+        if (!queue.remove(high, low, 0)) {
+            return false;
+        }
+        push(queue, high, low);
+        return true;
+    }
+
+    /**
+     * Removes the bottom (least recent) key of the queue.
+     *
+     * @return false if the queue is empty.
+     */
+    static boolean pollBottom(LongPairIndexedStack queue, long[] into) {
+        int slot = queue.bottomSlot();
+        if (slot == PrimitiveIndexedStack.NIL) {
+            return false;
+        }
+        into[0] = queue.highAt(slot);
+        into[1] = queue.lowAt(slot);
+        queue.remove(into[0], into[1], 0);
+        return true;
+    }
+
+    static void retain(LongPairIndexedStack queue, KeyFilter filter) {
+        int slot = queue.bottomSlot();
+        while (slot != PrimitiveIndexedStack.NIL) {
+            int above = queue.aboveOf(slot);
+            long high = queue.highAt(slot);
+            long low = queue.lowAt(slot);
+            if (!filter.retain(high, low)) {
+                queue.remove(high, low, 0);
+            }
+            slot = above;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.unicommerce.cache;
+
+/**
+ * Address evicted when a bounded cache is full, see {@link Capacity}.
+ */
+public enum EvictionPolicy {
+
+    /**
+     * The oldest address, at the bottom of the stack.
+     */
+    OLDEST,
+
+    /**
+     * The least recently used address, a contains() hit counting as a use.
+     */
+    LRU,
+
+    /**
+     * W-TinyLFU: a small LRU window admits the new addresses, which then enter the main
+     * segmented LRU only if they were used more often than the address they would replace.
+     * Frequencies come from a compact count-min sketch, so a scan of one-off addresses does
+     * not flush the frequently used ones.
+     */
+    TINY_LFU;
+
+    // slot of a LongPairIndexedStack queue at half load, plus 8 bytes of sketch for TINY_LFU.
+    private static final int QUEUE_ENTRY_BYTES = 122;
+    private static final int SKETCH_ENTRY_BYTES = 8;
+
+    Eviction create(int maximumSize) {
+        switch (this) {
+            case LRU:
+                return new QueueEviction(true);
+            case TINY_LFU:
+                return new TinyLfuEviction(maximumSize);
+            default:
+                return new QueueEviction(false);
+        }
+    }
+
+    /**
+     * @return rough estimate of the memory the policy holds per address.
+     */
+    int estimatedEntryBytes() {
+        return this == TINY_LFU ? QUEUE_ENTRY_BYTES + SKETCH_ENTRY_BYTES : QUEUE_ENTRY_BYTES;
+    }
+
+    /**
+     * @return true if the policy looks at the contains() hits.
+     */
+    boolean recordsAccesses() {
+        return this != OLDEST;
+    }
+}
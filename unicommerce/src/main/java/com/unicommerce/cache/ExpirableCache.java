@@ -0,0 +1,467 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of unique elements with a max age, most recent first: add() stores an element,
+ * remove() drops it, peek() returns the most recently added element and take() removes
+ * and returns it, waiting if necessary. Elements are any type with sane equals/hashCode,
+ * e.g. session ids or hashed tokens.
+ *
+ * The max age applies to every element from its insertion time: an element older than
+ * that is no more visible to peek/take/contains and is dropped by the shared
+ * ExpiryScheduler on the next tick of the timing wheel. A cache no more needed should
+ * be closed.
+ *
+ * The storage engine is chosen at construction, see CacheEngine. Keys which are ints
+ * or longs are better served by IntExpirableCache and LongExpirableCache, which store
+ * them unboxed; AddressCache is the specialization for IP addresses.
+ *
+ * Consumers waiting on an empty cache, in take(), takeAsync() or through publisher(), are
+ * queued and each element added next is handed over to exactly one of them, in the
+ * WaiterOrder of the cache. takeAsync() and publisher() hold no thread while waiting,
+ * take() parks its thread with LockSupport, cheap for virtual threads as well.
+ *
+ * metrics() gives the counters, latencies and size of the cache, exportMetrics() makes
+ * them visible over JMX.
+ *
+ * @param <E> element type.
+ */
+public class ExpirableCache<E> implements AutoCloseable {
+
+    final long timeToLive;
+    // the engine the cache was built with, see engine().
+    final StackEngine<E> storage;
+    private final ExpiryScheduler.Registration purgeRegistration;
+    private volatile boolean closed = false;
+
+    final CacheMetrics metrics;
+    private ObjectName metricsName;
+
+    // lock of the configuration changes and close().
+    final ReentrantLock stateLock = new ReentrantLock();
+    // consumers waiting while the cache is empty, served by add().
+    private final TakerQueue<E> takers;
+
+    public ExpirableCache(long maxAge, TimeUnit unit) {
+        this(maxAge, unit, CacheEngine.LOCKING);
+    }
+
+    /**
+     * @param engine LOCKING or LOCK_FREE, OFF_HEAP only stores addresses.
+     */
+    public ExpirableCache(long maxAge, TimeUnit unit, CacheEngine engine) {
+        this(maxAge, unit, engine.<E>createStackEngine(unit.toNanos(maxAge)));
+    }
+
+    ExpirableCache(long maxAge, TimeUnit unit, StackEngine<E> engine) {
+        this.timeToLive = unit.toNanos(maxAge);
+
+        storage = engine;
+        metrics = new CacheMetrics(engine);
+        takers = new TakerQueue<E>(this, metrics);
+
+        // the shared scheduler ticks the timing wheel, no thread per cache.
+        this.purgeRegistration = ExpiryScheduler.shared().register(this,
+                purgeTask(engine, metrics), engine.getTickNanos());
+    }
+
+    /**
+     * @return the engine the operations go through, the storage unless a subclass wraps it.
+     */
+    StackEngine<E> engine() {
+        return storage;
+    }
+
+    /**
+     * @return deadline of an element added now, the max age from now unless a subclass
+     * shortens it.
+     */
+    long deadline(long now) {
+        return now + timeToLive;
+    }
+
+    /**
+     * add() method must store unique elements only (existing elements must be ignored).
+     * This will return true if the element was successfully added.
+     *
+     * @param element
+     * @return
+     */
+    public boolean add(E element) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        return added(engine().push(element, deadline(now), now), now);
+    }
+
+    /**
+     * remove() method will return true if the element was successfully removed
+     *
+     * @param element
+     * @return
+     */
+    public boolean remove(E element) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        return removed(engine().remove(element, now), now);
+    }
+
+    /**
+     * Check if the given element is available in Cache.
+     *
+     * @param element
+     * @return false as well if the element is older than the max age.
+     */
+    public boolean contains(E element) {
+        long now = System.nanoTime();
+        return looked(engine().contains(element, now), now);
+    }
+
+    /**
+     * The peek() method will return the most recently added element,
+     * null if no element exists.
+     *
+     * @return
+     */
+    public E peek() throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        E found = engine().peek(now);
+        metrics.peeked(now);
+        return found;
+    }
+
+    /**
+     * take() method retrieves and removes the most recently added element
+     * from the cache and waits if necessary until an element becomes available.
+     * The waiting thread is parked until an add() hands it an element.
+     *
+     * @return null if interrupted while waiting.
+     */
+    public E take() throws CacheExpiredException {
+        checkOpen();
+        long start = System.nanoTime();
+        if (!hasWaitingConsumers()) {
+            E found = engine().poll(start);
+            if (found != null) {
+                metrics.taken(start);
+                return found;
+            }
+        }
+        // behind the consumers already waiting.
+        try {
+            return takers.await(start, -1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * take() without waiting: the future completes with the most recently added element,
+     * at once if the cache has one, otherwise when the next add() hands one over. Futures
+     * waiting together are served in the order of the calls. The future is completed
+     * from the thread adding the element, dependent stages should be async or short.
+     *
+     * Cancelling the future gives up the wait. It fails with CacheExpiredException if the
+     * cache is closed while waiting.
+     *
+     * @return
+     */
+    public CompletableFuture<E> takeAsync() throws CacheExpiredException {
+        checkOpen();
+        long start = System.nanoTime();
+        if (!hasWaitingConsumers()) {
+            E found = engine().poll(start);
+            if (found != null) {
+                metrics.taken(start);
+                return CompletableFuture.completedFuture(found);
+            }
+        }
+        // behind the consumers already waiting.
+        return takers.take(start);
+    }
+
+    /**
+     * takeN() retrieves and removes up to n of the most recently added elements, most
+     * recent first, in one call. Waits up to the given timeout until at least one element
+     * becomes available.
+     *
+     * @param n
+     * @param timeout
+     * @param unit
+     * @return the elements taken, empty on timeout or if interrupted while waiting.
+     */
+    public List<E> takeN(int n, long timeout, TimeUnit unit) throws CacheExpiredException {
+        checkOpen();
+        List<E> taken = new ArrayList<E>(Math.min(n, 1024));
+        long start = System.nanoTime();
+        if (n <= 0 || !hasWaitingConsumers() && engine().pollN(n, taken, start) > 0) {
+            return taken;
+        }
+
+        // waits for the first element only, the others are taken along if available.
+        try {
+            E first = takers.await(start, Math.max(unit.toNanos(timeout), 0));
+            if (first == null) {
+                metrics.takeTimedOut();
+                return taken;
+            }
+            taken.add(first);
+            engine().pollN(n - 1, taken, System.nanoTime());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            e.printStackTrace();
+        }
+        return taken;
+    }
+
+    /**
+     * addAll() adds the elements in iteration order (the last one ends as the most recent),
+     * locking the storage once and waking the waiting consumers once for the whole batch.
+     * Existing elements are ignored.
+     *
+     * @param elements
+     * @return number of elements added.
+     */
+    public int addAll(Collection<E> elements) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        int added = engine().pushAll(elements, deadline(now), now);
+        metrics.addedAll(added, elements.size());
+        if (added > 0) {
+            signalWaitingConsumers();
+        }
+        return added;
+    }
+
+    /**
+     * removeAll() removes the elements locking the storage once for the whole batch.
+     *
+     * @param elements
+     * @return number of elements removed.
+     */
+    public int removeAll(Collection<E> elements) throws CacheExpiredException {
+        checkOpen();
+        int removed = engine().removeAll(elements, System.nanoTime());
+        metrics.removedAll(removed);
+        return removed;
+    }
+
+    /**
+     * @param elements
+     * @return true if every element is available in Cache.
+     */
+    public boolean containsAll(Collection<E> elements) {
+        return engine().containsAll(elements, System.nanoTime());
+    }
+
+    /**
+     * Sets which of the consumers waiting on an empty cache gets the next element, FIFO by
+     * default. Applies to the consumers starting to wait from now on.
+     *
+     * @param order
+     */
+    public void setWaiterOrder(WaiterOrder order) {
+        if (order == null) {
+            throw new NullPointerException("order");
+        }
+        takers.setOrder(order);
+    }
+
+    /**
+     * @return publisher taking the elements of this cache for its subscribers, as they
+     * request them, see CachePublisher.
+     */
+    public CachePublisher<E> publisher() {
+        return new CachePublisher<E>(takers);
+    }
+
+    /**
+     * @return the counters, latencies and size of this cache, live.
+     */
+    public CacheMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers the metrics of this cache with the platform MBean server, under
+     * com.unicommerce.cache:type=&lt;type&gt;,name=&lt;name&gt;, the type being
+     * AddressCache for the address caches and the class name otherwise.
+     * Unregistered on close().
+     *
+     * @param name
+     * @return the name the metrics are registered under.
+     * @throws JMException if the name is already taken.
+     */
+    public ObjectName exportMetrics(String name) throws CacheExpiredException, JMException {
+        stateLock.lock();
+        try {
+            checkOpen();
+            if (this.metricsName != null) {
+                throw new IllegalStateException("Metrics already exported : " + this.metricsName);
+            }
+            ObjectName objectName = new ObjectName("com.unicommerce.cache:type=" + metricsType()
+                    + ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+            this.metricsName = objectName;
+            return objectName;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Method to check if the cache is already expired.
+     *
+     * @return true once the cache is closed, elements expire one by one and the cache itself never does.
+     * @deprecated the max age applies to each element, see {@link #contains(Object)}.
+     */
+    @Deprecated
+    public boolean isExpired() {
+        return closed;
+    }
+
+    /**
+     * Closing the cache: deregisters it from the expiry scheduler, unregisters the exported
+     * metrics, drops all the elements and fails the waiting consumers (take(), takeAsync(),
+     * publisher()) with CacheExpiredException. Any later add/remove/peek/take throws
+     * CacheExpiredException. Idempotent.
+     */
+    public void close() {
+        stateLock.lock();
+        try {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.purgeRegistration.cancel();
+            closing();
+            if (this.metricsName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.metricsName);
+                } catch (JMException e) {
+                    e.printStackTrace();
+                }
+            }
+            // the storage itself: dropping the elements of a closed cache is not logged.
+            this.storage.clear();
+        } finally {
+            stateLock.unlock();
+        }
+        // outside the lock, the callbacks of the failed consumers may use the cache.
+        takers.handOver();
+    }
+
+    /**
+     * Printing the cache elements
+     */
+    public void printCache() {
+        System.out.println("Cache:::  " + engine());
+    }
+
+    /**
+     * Clearing the cache manually
+     */
+    public void clear() {
+        engine().clear();
+    }
+
+    /**
+     * Hook of close(), run under the state lock before the elements are dropped.
+     */
+    void closing() {
+    }
+
+    String metricsType() {
+        return getClass().getSimpleName();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    boolean hasWaitingConsumers() {
+        return !takers.isEmpty();
+    }
+
+    int waitingConsumers() {
+        return takers.size();
+    }
+
+    void checkOpen() throws CacheExpiredException {
+        if (this.closed) {
+            throw new CacheExpiredException("Cache already closed!");
+        }
+    }
+
+    // ---- bookkeeping of an operation, start is the System.nanoTime() read when it began.
+
+    boolean added(boolean added, long start) {
+        metrics.added(added, start);
+        if (added) {
+            signalWaitingConsumers();
+        }
+        return added;
+    }
+
+    boolean removed(boolean removed, long start) {
+        metrics.removed(removed, start);
+        return removed;
+    }
+
+    boolean looked(boolean found, long start) {
+        metrics.looked(found, start);
+        return found;
+    }
+
+    /**
+     * Hands the new elements over to the waiting consumers, if any. A consumer queues
+     * itself before its last poll, so an element pushed before this check is never missed.
+     */
+    void signalWaitingConsumers() {
+        if (hasWaitingConsumers()) {
+            takers.handOver();
+        }
+    }
+
+    /**
+     * poll() on behalf of the TakerQueue.
+     */
+    E pollForTaker(long now) {
+        return engine().poll(now);
+    }
+
+    /**
+     * Adds back an element taken for a consumer which gave up meanwhile.
+     */
+    void giveBack(E element) {
+        long now = System.nanoTime();
+        if (engine().push(element, deadline(now), now)) {
+            signalWaitingConsumers();
+        }
+    }
+
+    /**
+     * @return expiry of the storage, counting the dropped elements. Must not reference the
+     * cache so that an unclosed cache can still be garbage collected.
+     */
+    static Runnable purgeTask(final StackEngine<?> engine, final CacheMetrics metrics) {
+        return new Runnable() {
+            public void run() {
+                metrics.expired(engine.expire(System.nanoTime()));
+            }
+        };
+    }
+}
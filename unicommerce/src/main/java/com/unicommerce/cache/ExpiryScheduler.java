@@ -0,0 +1,169 @@
+package com.unicommerce.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide scheduler ticking the timing wheels of every cache instance.
+ *
+ * A single daemon thread serves all the caches, so creating a cache costs one
+ * registration and no thread. A registration only holds a weak reference to its
+ * owner: the purge task of a cache which was never closed is cancelled once the
+ * cache is garbage collected.
+ *
+ * The periodic file I/O (log flushes, checkpoints, snapshots) and the full passes over a
+ * cache (miss filter rebuilds) must not delay the ticks of the other caches: they are
+ * registered with registerIo() and only handed from the tick to a few "cache-io" daemon
+ * threads, started on the first of them and stopped when idle.
+ */
+public final class ExpiryScheduler {
+
+    private static final ExpiryScheduler SHARED = new ExpiryScheduler();
+    private static final int IO_THREADS = 4;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final ThreadPoolExecutor ioExecutor;
+    private final AtomicInteger registrations = new AtomicInteger();
+
+    private ExpiryScheduler() {
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "cache-expiry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.ioExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "cache-io");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.ioExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static ExpiryScheduler shared() {
+        return SHARED;
+    }
+
+    /**
+     * Runs the purge task every period until the registration is cancelled or the
+     * owner is garbage collected.
+     *
+     * @param owner the cache, the purge task must not reference it.
+     * @param purge task dropping the expired elements.
+     * @param periodNanos tick of the owner's timing wheel.
+     * @return handle to deregister the owner.
+     */
+    public Registration register(Object owner, Runnable purge, long periodNanos) {
+        return schedule(new Registration(owner, purge, null), periodNanos);
+    }
+
+    /**
+     * Runs the I/O task every period on the I/O threads, as register() does on the
+     * scheduler's. A run still in progress when the next one is due skips it.
+     *
+     * @param owner the cache, the task must not reference it.
+     * @param io task reading or writing files, or visiting a whole cache.
+     * @param periodNanos
+     * @return handle to deregister the owner.
+     */
+    public Registration registerIo(Object owner, Runnable io, long periodNanos) {
+        return schedule(new Registration(owner, io, ioExecutor), periodNanos);
+    }
+
+    private Registration schedule(Registration registration, long periodNanos) {
+        long period = Math.max(periodNanos, TimeUnit.MILLISECONDS.toNanos(1));
+        registration.future = executor.scheduleAtFixedRate(registration, period, period, TimeUnit.NANOSECONDS);
+        registrations.incrementAndGet();
+        return registration;
+    }
+
+    /**
+     * @return number of live registrations.
+     */
+    public int registrations() {
+        return registrations.get();
+    }
+
+    public final class Registration implements Runnable {
+
+        private final WeakReference<Object> owner;
+        private final Runnable purge;
+        // null to run the task on the scheduler's thread.
+        private final ThreadPoolExecutor io;
+        // set while a run handed to the I/O threads is queued or running.
+        private final AtomicBoolean running = new AtomicBoolean();
+        private volatile ScheduledFuture<?> future;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        private Registration(Object owner, Runnable purge, ThreadPoolExecutor io) {
+            this.owner = new WeakReference<Object>(owner);
+            this.purge = purge;
+            this.io = io;
+        }
+
+        public void run() {
+            if (cancelled.get() || owner.get() == null) {
+                cancel();
+                return;
+            }
+            if (io == null) {
+                runPurge();
+            } else if (running.compareAndSet(false, true)) {
+                try {
+                    io.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                runPurge();
+                            } finally {
+                                running.set(false);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    running.set(false);
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void runPurge() {
+            try {
+                purge.run();
+            } catch (RuntimeException e) {
+                // a failing purge must not cancel the periodic task.
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Stops ticking the owner, idempotent.
+         */
+        public void cancel() {
+            if (cancelled.compareAndSet(false, true)) {
+                registrations.decrementAndGet();
+            }
+            // may still be null when cancelled right after registering, the next run retries.
+            ScheduledFuture<?> scheduled = future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled.get();
+        }
+    }
+}
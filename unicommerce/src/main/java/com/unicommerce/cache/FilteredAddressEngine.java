@@ -0,0 +1,428 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link AddressEngine} answering the contains() of the addresses surely absent from a
+ * {@link CountingBloomFilter}, without touching the engine it wraps: no lock, no probe.
+ * The other operations go to the wrapped engine and keep the filter a superset of it.
+ *
+ * An address is counted in the filter before it is pushed and uncounted once removed or
+ * taken, so a contains() never misses an address the engine holds. Expiry and eviction
+ * happen inside the engine unseen: their addresses stay counted, which only costs false
+ * positives. refresh() rebuilds the filter from the engine once those stale entries grow
+ * past a quarter of the size, or once the engine outgrows the filter.
+ *
+ * A rebuild fills the new filter from forEach() while the writers count their additions
+ * in it as well, then swaps it in under the write side of swapLock. The mutations hold
+ * the read side, so the filter they count in or uncount from is current throughout: a
+ * removal never uncounts an address the filter did not count. A rebuild can over-count,
+ * never under-count.
+ */
+class FilteredAddressEngine implements AddressEngine {
+
+    private final AddressEngine delegate;
+    private final double falsePositiveRate;
+
+    private volatile CountingBloomFilter filter;
+    // filter being rebuilt, null if none.
+    private volatile CountingBloomFilter next;
+
+    // read & write locks must come from the same instance, otherwise readers never exclude writers.
+    private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock.WriteLock swapping = swapLock.writeLock();
+    private final ReentrantReadWriteLock.ReadLock mutating = swapLock.readLock();
+
+    private final LongAdder negatives = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    /**
+     * Builds the filter from the addresses already in the engine.
+     */
+    FilteredAddressEngine(AddressEngine delegate, long expectedEntries, double falsePositiveRate) {
+        this.delegate = delegate;
+        this.falsePositiveRate = falsePositiveRate;
+        this.filter = new CountingBloomFilter(expectedEntries, falsePositiveRate);
+        rebuild(false);
+    }
+
+    public boolean push(int ipv4, long expiresAt, long now) {
+        long low = AddressCodec.mapped(ipv4);
+        mutating.lock();
+        try {
+            CountingBloomFilter rebuilt = counting(0, low);
+            return pushed(0, low, delegate.push(ipv4, expiresAt, now), rebuilt);
+        } finally {
+            mutating.unlock();
+        }
+    }
+
+    public boolean push(byte[] address, long expiresAt, long now) {
+        long high = AddressCodec.keyHigh(address);
+        long low = AddressCodec.keyLow(address);
+        mutating.lock();
+        try {
+            CountingBloomFilter rebuilt = counting(high, low);
+            return pushed(high, low, delegate.push(address, expiresAt, now), rebuilt);
+        } finally {
+            mutating.unlock();
+        }
+    }
+
+    public boolean push(InetAddress element, long expiresAt, long now) {
+        return push(element.getAddress(), expiresAt, now);
+    }
+
+    /**
+     * Counts the whole batch first, the duplicates stay counted until the next rebuild.
+     */
+    public int pushAll(Collection<? extends InetAddress> elements, long expiresAt, long now) {
+        byte[][] addresses = PrimitiveAddressEngine.addressesOf(elements);
+        mutating.lock();
+        try {
+            CountingBloomFilter rebuilt = next;
+            for (byte[] address : addresses) {
+                counting(AddressCodec.keyHigh(address), AddressCodec.keyLow(address));
+            }
+            int pushed = delegate.pushAll(elements, expiresAt, now);
+            for (byte[] address : addresses) {
+                countInRebuildStarted(AddressCodec.keyHigh(address), AddressCodec.keyLow(address), rebuilt);
+            }
+            return pushed;
+        } finally {
+            mutating.unlock();
+        }
+    }
+
+    public boolean remove(int ipv4, long now) {
+        mutating.lock();
+        try {
+            if (!delegate.remove(ipv4, now)) {
+                return false;
+            }
+            filter.remove(0, AddressCodec.mapped(ipv4));
+            return true;
+        } finally {
+            mutating.unlock();
+        }
+    }
+
+    public boolean remove(byte[] address, long now) {
+        mutating.lock();
+        try {
+            if (!delegate.remove(address, now)) {
+                return false;
+            }
+            filter.remove(AddressCodec.keyHigh(address), AddressCodec.keyLow(address));
+            return true;
+        } finally {
+            mutating.unlock();
+        }
+    }
+
+    public boolean remove(InetAddress element, long now) {
+        return remove(element.getAddress(), now);
+    }
+
+    /**
+     * Raw pushAll(), the whole batch is counted first as well.
+     */
+    public int pushAll(AddressBatch batch, long expiresAt, long now) {
+        mutating.lock();
+        try {
+            CountingBloomFilter rebuilt = next;
+            for (int i = 0; i < batch.size(); i++) {
+                counting(batch.high(i), batch.low(i));
+            }
+            int pushed = delegate.pushAll(batch, expiresAt, now);
+            for (int i = 0; i < batch.size(); i++) {
+                countInRebuildStarted(batch.high(i), batch.low(i), rebuilt);
+            }
+            return pushed;
+        } finally {
+            mutating.unlock();
+        }
+    }
+
+    /**
+     * One remove() per address, only the addresses actually removed are uncounted.
+     */
+    public int removeAll(Collection<? extends InetAddress> elements, long now) {
+        int removed = 0;
+        for (byte[] address : PrimitiveAddressEngine.addressesOf(elements)) {
+            if (remove(address, now)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public int pollInto(byte[] address, long now) {
+        mutating.lock();
+        try {
+            int length = delegate.pollInto(address, now);
+            if (length == AddressCodec.IPV4_LENGTH) {
+                filter.remove(0, AddressCodec.mapped(AddressCodec.readIpv4(address)));
+            } else if (length != 0) {
+                filter.remove(AddressCodec.high(address), AddressCodec.low(address));
+            }
+            return length;
+        } finally {
+            mutating.unlock();
+        }
+    }
+
+    public InetAddress poll(long now) {
+        mutating.lock();
+        try {
+            InetAddress polled = delegate.poll(now);
+            if (polled != null) {
+                uncount(polled);
+            }
+            return polled;
+        } finally {
+            mutating.unlock();
+        }
+    }
+
+    public int pollN(int n, Collection<? super InetAddress> into, long now) {
+        List<InetAddress> polled = new ArrayList<InetAddress>();
+        int count;
+        mutating.lock();
+        try {
+            count = delegate.pollN(n, polled, now);
+            for (InetAddress address : polled) {
+                uncount(address);
+            }
+        } finally {
+            mutating.unlock();
+        }
+        into.addAll(polled);
+        return count;
+    }
+
+    public boolean contains(int ipv4, long now) {
+        if (!filter.mightContain(0, AddressCodec.mapped(ipv4))) {
+            negatives.increment();
+            return false;
+        }
+        return confirmed(delegate.contains(ipv4, now));
+    }
+
+    public boolean contains(byte[] address, long now) {
+        if (!filter.mightContain(AddressCodec.keyHigh(address), AddressCodec.keyLow(address))) {
+            negatives.increment();
+            return false;
+        }
+        return confirmed(delegate.contains(address, now));
+    }
+
+    public boolean contains(InetAddress element, long now) {
+        return contains(element.getAddress(), now);
+    }
+
+    public boolean containsAll(Collection<? extends InetAddress> elements, long now) {
+        for (byte[] address : PrimitiveAddressEngine.addressesOf(elements)) {
+            if (!filter.mightContain(AddressCodec.keyHigh(address), AddressCodec.keyLow(address))) {
+                negatives.increment();
+                return false;
+            }
+        }
+        return delegate.containsAll(elements, now);
+    }
+
+    /**
+     * Clears the engine and restarts from an empty filter.
+     */
+    public void clear() {
+        rebuild(true);
+    }
+
+    public int peekInto(byte[] address, long now) {
+        return delegate.peekInto(address, now);
+    }
+
+    public InetAddress peek(long now) {
+        return delegate.peek(now);
+    }
+
+    public int size() {
+        return delegate.size();
+    }
+
+    public void forEach(Visitor<? super InetAddress> visitor, long now) {
+        delegate.forEach(visitor, now);
+    }
+
+    public void forEach(AddressVisitor visitor, long now) {
+        delegate.forEach(visitor, now);
+    }
+
+    public int expire(long now) {
+        return delegate.expire(now);
+    }
+
+    /**
+     * The engine and the filter.
+     */
+    public long estimatedBytes() {
+        return delegate.estimatedBytes() + filter.bytes();
+    }
+
+    public long getTickNanos() {
+        return delegate.getTickNanos();
+    }
+
+    public void setExpiryListener(KeyListener listener) {
+        delegate.setExpiryListener(listener);
+    }
+
+    public void setAccessExpiry(AccessExpiry expiry) {
+        delegate.setAccessExpiry(expiry);
+    }
+
+    public boolean renew(byte[] address, long expiresAt, long now) {
+        return delegate.renew(address, expiresAt, now);
+    }
+
+    /**
+     * Rebuilds the filter if its stale entries (expired or evicted addresses still counted)
+     * exceed a quarter of the size, or if the engine holds more addresses than the filter
+     * was sized for. Run periodically on an I/O thread of the ExpiryScheduler, a rebuild
+     * visits the whole engine.
+     *
+     * @return true if rebuilt.
+     */
+    boolean refresh() {
+        CountingBloomFilter current = filter;
+        long size = delegate.size();
+        long stale = current.entries() - size;
+        if (stale > Math.max(size / 4, 64) || size > current.expectedEntries()) {
+            rebuild(false);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return contains() calls answered by the filter alone.
+     */
+    long negatives() {
+        return negatives.sum();
+    }
+
+    /**
+     * @return contains() calls the filter let through and the engine answered false.
+     */
+    long falsePositives() {
+        return falsePositives.sum();
+    }
+
+    /**
+     * @return share of the misses the filter let through, 0 before the first miss.
+     */
+    double falsePositiveRate() {
+        long passed = falsePositives();
+        long misses = passed + negatives();
+        return misses == 0 ? 0 : passed / (double) misses;
+    }
+
+    /**
+     * @return false positive rate the filter should have with its current entries.
+     */
+    double expectedFalsePositiveRate() {
+        return filter.expectedFalsePositiveRate();
+    }
+
+    long filterBytes() {
+        return filter.bytes();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+    /**
+     * Fills a new filter from the engine, sized for twice the current size if the engine
+     * outgrew the previous one, and swaps it in. One rebuild at a time.
+     *
+     * @param clear clears the engine first, the new filter starts empty.
+     */
+    private synchronized void rebuild(boolean clear) {
+        long expected = Math.max(filter.expectedEntries(), delegate.size() * 2L);
+        final CountingBloomFilter rebuilt = new CountingBloomFilter(expected, falsePositiveRate);
+        next = rebuilt;
+        if (clear) {
+            delegate.clear();
+        }
+        delegate.forEach(new AddressVisitor() {
+            public void visit(byte[] address, int length, long expiresAt) {
+                if (length == AddressCodec.IPV4_LENGTH) {
+                    rebuilt.add(0, AddressCodec.mapped(AddressCodec.readIpv4(address)));
+                } else {
+                    rebuilt.add(AddressCodec.high(address), AddressCodec.low(address));
+                }
+            }
+        }, System.nanoTime());
+        swapping.lock();
+        try {
+            filter = rebuilt;
+            next = null;
+        } finally {
+            swapping.unlock();
+        }
+    }
+
+    /**
+     * Counts an address about to be pushed, in the filter being rebuilt as well if any.
+     *
+     * @return the filter being rebuilt it was counted in, null if none.
+     */
+    private CountingBloomFilter counting(long high, long low) {
+        filter.add(high, low);
+        CountingBloomFilter rebuilt = next;
+        if (rebuilt != null) {
+            rebuilt.add(high, low);
+        }
+        return rebuilt;
+    }
+
+    private boolean pushed(long high, long low, boolean pushed, CountingBloomFilter rebuilt) {
+        if (!pushed) {
+            // a duplicate: the address was counted once already.
+            filter.remove(high, low);
+            return false;
+        }
+        countInRebuildStarted(high, low, rebuilt);
+        return true;
+    }
+
+    /**
+     * A rebuild started after counting() may have missed the pushed address in forEach():
+     * counts it there. A rebuild not started yet sees it.
+     */
+    private void countInRebuildStarted(long high, long low, CountingBloomFilter counted) {
+        CountingBloomFilter rebuilt = next;
+        if (rebuilt != null && rebuilt != counted) {
+            rebuilt.add(high, low);
+        }
+    }
+
+    private boolean confirmed(boolean found) {
+        if (!found) {
+            falsePositives.increment();
+        }
+        return found;
+    }
+
+    private void uncount(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        filter.remove(AddressCodec.keyHigh(bytes), AddressCodec.keyLow(bytes));
+    }
+}
@@ -0,0 +1,99 @@
+package com.unicommerce.cache;
+
+import java.util.Arrays;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often a key was seen, the frequency
+ * filter of {@link TinyLfuEviction}. Each long of the table holds 16 counters; a key
+ * maps to one counter in each of 4 longs and its frequency is the smallest of them.
+ *
+ * Once the number of increments reaches 10 times the cache size every counter is halved,
+ * so that old popularity fades away. Counters saturate at 15.
+ *
+ * Not thread-safe.
+ */
+final class FrequencySketch {
+
+    static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_TABLE_LENGTH = 1 << 24;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param maximumSize number of keys the cache holds at most.
+     */
+    FrequencySketch(int maximumSize) {
+        int length = Integer.highestOneBit(Math.max(16, Math.min(maximumSize, MAX_TABLE_LENGTH)) - 1) << 1;
+        this.table = new long[length];
+        this.tableMask = length - 1;
+        this.sampleSize = (int) Math.min(10L * Math.max(maximumSize, 1), Integer.MAX_VALUE);
+    }
+
+    void increment(long high, long low) {
+        long hash = hash(high, low);
+        int start = ((int) hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int offset = (start + i) << 2;
+            if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @return estimated number of times the key was seen, 0 to 15.
+     */
+    int frequency(long high, long low) {
+        long hash = hash(high, low);
+        int start = ((int) hash & 3) << 2;
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            int offset = (start + i) << 2;
+            frequency = Math.min(frequency, (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL));
+        }
+        return frequency;
+    }
+
+    void clear() {
+        Arrays.fill(table, 0);
+        additions = 0;
+    }
+
+    long estimatedBytes() {
+        return table.length * 8L;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(long hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    static long hash(long high, long low) {
+        long h = high * 0x9e3779b97f4a7c15L + low;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,362 @@
+package com.unicommerce.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Backing structure of the caches: a LIFO stack of unique elements, each with its own
+ * expiry deadline.
+ *
+ * Elements are kept in an intrusive doubly-linked list (top = most recently added)
+ * and indexed by a hash map from element to its list node, so that add, remove,
+ * contains, peek and poll are all O(1). Deadlines are tracked by a {@link TimingWheel},
+ * {@link #expire(long)} drops the elements whose deadline has passed at O(1) per element.
+ * Elements past their deadline but not yet dropped are already invisible to the readers.
+ *
+ * All times are {@link System#nanoTime()} values. Not thread-safe, callers hold their own lock.
+ *
+ * @param <E> element type, must have sane equals/hashCode.
+ */
+public class IndexedStack<E> {
+
+    /**
+     * Deadline of elements which never expire.
+     */
+    public static final long NEVER = Long.MAX_VALUE;
+
+    private static final long DEFAULT_TICK_NANOS = 100000000L;
+    private static final int WHEEL_SIZE = 512;
+    // node 48, HashMap node 32 + table slot, handle slot and wheel arrays 24.
+    private static final int ENTRY_BYTES = 112;
+
+    private final HashMap<E, Node<E>> index;
+    private final TimingWheel wheel;
+    private Node<E> top;
+    private Node<E> bottom;
+    private long nextSequence;
+
+    // handle -> node, handles are recycled through the free list.
+    private Node<E>[] nodes = newNodeArray(16);
+    private int[] freeHandles = new int[16];
+    private int freeCount;
+    private int nextHandle;
+    // told of the elements dropped once expired, null if none.
+    private StackEngine.Visitor<? super E> expiryListener;
+
+    private final TimingWheel.Expiry reaper = new TimingWheel.Expiry() {
+        public void expire(int handle) {
+            Node<E> node = nodes[handle];
+            index.remove(node.element);
+            unlink(node);
+            if (expiryListener != null) {
+                expiryListener.visit(node.element, node.expiresAt);
+            }
+        }
+    };
+
+    public IndexedStack() {
+        this(DEFAULT_TICK_NANOS);
+    }
+
+    /**
+     * @param tickNanos resolution of the expiry, see {@link TimingWheel#tickFor(long, int)}.
+     */
+    public IndexedStack(long tickNanos) {
+        this.index = new HashMap<E, Node<E>>();
+        this.wheel = new TimingWheel(tickNanos, WHEEL_SIZE, System.nanoTime());
+    }
+
+    /**
+     * @return a stack whose wheel is sized for elements living the given time.
+     */
+    public static <E> IndexedStack<E> forTimeToLive(long timeToLiveNanos) {
+        return new IndexedStack<E>(tickFor(timeToLiveNanos));
+    }
+
+    /**
+     * @return expiry resolution used for elements living the given time.
+     */
+    public static long tickFor(long timeToLiveNanos) {
+        return TimingWheel.tickFor(timeToLiveNanos, WHEEL_SIZE);
+    }
+
+    public long getTickNanos() {
+        return wheel.getTickNanos();
+    }
+
+    /**
+     * Pushes the element on top of the stack, it never expires.
+     */
+    public boolean push(E element) {
+        return push(element, NEVER, System.nanoTime());
+    }
+
+    /**
+     * Pushes the element on top of the stack.
+     *
+     * @param element
+     * @param expiresAt deadline after which the element is dropped, {@link #NEVER} for none.
+     * @param now current time, an element already present but expired is replaced.
+     * @return false if the element is already present (the stack is left untouched).
+     */
+    public boolean push(E element, long expiresAt, long now) {
+        return push(element, expiresAt, now, nextSequence++);
+    }
+
+    /**
+     * Pushes the element on top of the stack, stamped with a caller supplied sequence
+     * number (sequences must increase from one push to the next).
+     *
+     * @see #peekSequence(long)
+     */
+    public boolean push(E element, long expiresAt, long now, long sequence) {
+        Node<E> existing = index.get(element);
+        if (existing != null) {
+            if (!isExpired(existing, now)) {
+                return false;
+            }
+            drop(existing, now);
+        }
+        Node<E> node = new Node<E>(element, acquireHandle(), expiresAt, sequence);
+        nodes[node.handle] = node;
+        index.put(element, node);
+        node.below = top;
+        if (top != null) {
+            top.above = node;
+        } else {
+            bottom = node;
+        }
+        top = node;
+        if (expiresAt != NEVER) {
+            wheel.schedule(node.handle, expiresAt);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the given element wherever it is in the stack.
+     *
+     * @param element
+     * @return true if the element was present.
+     */
+    public boolean remove(E element) {
+        Node<E> node = index.remove(element);
+        if (node == null) {
+            return false;
+        }
+        unlink(node);
+        return true;
+    }
+
+    /**
+     * Removes the given element wherever it is in the stack.
+     *
+     * @return true if the element was present and not expired.
+     */
+    public boolean remove(E element, long now) {
+        Node<E> node = index.get(element);
+        return node != null && drop(node, now);
+    }
+
+    public boolean contains(E element, long now) {
+        Node<E> node = index.get(element);
+        return node != null && !isExpired(node, now);
+    }
+
+    /**
+     * @return the most recently pushed element not expired at the given time, null if none.
+     */
+    public E peek(long now) {
+        Node<E> node = top;
+        while (node != null && isExpired(node, now)) {
+            node = node.below;
+        }
+        return node == null ? null : node.element;
+    }
+
+    /**
+     * @return sequence number of the element {@link #peek(long)} would return, -1 if none.
+     */
+    public long peekSequence(long now) {
+        Node<E> node = top;
+        while (node != null && isExpired(node, now)) {
+            node = node.below;
+        }
+        return node == null ? -1 : node.sequence;
+    }
+
+    /**
+     * Removes and returns the most recently pushed element not expired at the given
+     * time, expired elements met on the way are dropped.
+     *
+     * @return null if none.
+     */
+    public E poll(long now) {
+        Node<E> node = top;
+        while (node != null) {
+            if (drop(node, now)) {
+                return node.element;
+            }
+            node = top;
+        }
+        return null;
+    }
+
+    /**
+     * Drops the elements whose deadline has passed.
+     *
+     * @return number of dropped elements.
+     */
+    public int expire(long now) {
+        return wheel.advance(now, reaper);
+    }
+
+    /**
+     * @return number of elements, including expired ones not dropped yet.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return rough estimate of the memory held, the elements themselves not included.
+     */
+    public long estimatedBytes() {
+        return (long) index.size() * ENTRY_BYTES;
+    }
+
+    public boolean isEmpty() {
+        return top == null;
+    }
+
+    /**
+     * Sets the listener told of the elements dropped once expired, by expire() or by
+     * another operation meeting them.
+     *
+     * @param listener null for none.
+     */
+    public void setExpiryListener(StackEngine.Visitor<? super E> listener) {
+        this.expiryListener = listener;
+    }
+
+    public void clear() {
+        index.clear();
+        wheel.clear();
+        Arrays.fill(nodes, 0, nextHandle, null);
+        top = null;
+        bottom = null;
+        freeCount = 0;
+        nextHandle = 0;
+    }
+
+    /**
+     * @return the elements from the oldest (bottom) to the most recent (top).
+     */
+    public List<E> toList() {
+        List<E> out = new ArrayList<E>(index.size());
+        for (Node<E> node = bottom; node != null; node = node.above) {
+            out.add(node.element);
+        }
+        return out;
+    }
+
+    /**
+     * Visits the elements not expired from the oldest (bottom) to the most recent (top).
+     */
+    void forEach(EntryVisitor<? super E> visitor, long now) {
+        for (Node<E> node = bottom; node != null; node = node.above) {
+            if (!isExpired(node, now)) {
+                visitor.visit(node.element, node.expiresAt, node.sequence);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+
+    private static boolean isExpired(Node<?> node, long now) {
+        return node.expiresAt != NEVER && node.expiresAt - now <= 0;
+    }
+
+    /**
+     * Drops the node, telling the expiry listener if it had expired.
+     *
+     * @return true if the node was not expired.
+     */
+    private boolean drop(Node<E> node, long now) {
+        index.remove(node.element);
+        unlink(node);
+        if (!isExpired(node, now)) {
+            return true;
+        }
+        if (expiryListener != null) {
+            expiryListener.visit(node.element, node.expiresAt);
+        }
+        return false;
+    }
+
+    private void unlink(Node<E> node) {
+        if (node.above != null) {
+            node.above.below = node.below;
+        } else {
+            top = node.below;
+        }
+        if (node.below != null) {
+            node.below.above = node.above;
+        } else {
+            bottom = node.above;
+        }
+        node.above = null;
+        node.below = null;
+        wheel.cancel(node.handle);
+        releaseHandle(node.handle);
+    }
+
+    private int acquireHandle() {
+        if (freeCount > 0) {
+            return freeHandles[--freeCount];
+        }
+        if (nextHandle == nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+        }
+        return nextHandle++;
+    }
+
+    private void releaseHandle(int handle) {
+        nodes[handle] = null;
+        if (freeCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, freeHandles.length * 2);
+        }
+        freeHandles[freeCount++] = handle;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <E> Node<E>[] newNodeArray(int length) {
+        return (Node<E>[]) new Node[length];
+    }
+
+    interface EntryVisitor<E> {
+
+        void visit(E element, long expiresAt, long sequence);
+    }
+
+    private static final class Node<E> {
+        final E element;
+        final int handle;
+        final long expiresAt;
+        final long sequence;
+        Node<E> above;
+        Node<E> below;
+
+        Node(E element, int handle, long expiresAt, long sequence) {
+            this.element = element;
+            this.handle = handle;
+            this.expiresAt = expiresAt;
+            this.sequence = sequence;
+        }
+    }
+}
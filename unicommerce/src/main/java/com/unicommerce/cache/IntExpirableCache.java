@@ -0,0 +1,46 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExpirableCache of int keys, stored unboxed: add/remove/contains of an int neither box
+ * nor allocate. peek() and take() return the key boxed.
+ */
+public class IntExpirableCache extends ExpirableCache<Integer> {
+
+    private final IntStackEngine ints;
+
+    public IntExpirableCache(long maxAge, TimeUnit unit) {
+        this(maxAge, unit, new IntStackEngine(unit.toNanos(maxAge)));
+    }
+
+    private IntExpirableCache(long maxAge, TimeUnit unit, IntStackEngine engine) {
+        super(maxAge, unit, engine);
+        this.ints = engine;
+    }
+
+    /**
+     * Primitive add(), the elements are stored unboxed.
+     *
+     * @param key
+     * @return true if the element was successfully added.
+     */
+    public boolean add(int key) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        return added(ints.push(key, deadline(now), now), now);
+    }
+
+    public boolean remove(int key) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        return removed(ints.remove(key, now), now);
+    }
+
+    public boolean contains(int key) {
+        long now = System.nanoTime();
+        return looked(ints.contains(key, now), now);
+    }
+}
@@ -0,0 +1,135 @@
+package com.unicommerce.cache;
+
+/**
+ * {@link IndexedStack} specialized for int elements (IPv4 addresses, Integer caches):
+ * keys are stored in a plain int array, nothing is boxed nor allocated per element.
+ *
+ * Not thread-safe, callers hold their own lock.
+ */
+public class IntIndexedStack extends PrimitiveIndexedStack {
+
+    private int[] keys;
+
+    public IntIndexedStack(long tickNanos) {
+        this(0, tickNanos);
+    }
+
+    public IntIndexedStack(int expectedSize, long tickNanos) {
+        super(expectedSize, tickNanos);
+        this.keys = new int[mask + 1];
+    }
+
+    /**
+     * @return a stack whose wheel is sized for elements living the given time.
+     */
+    public static IntIndexedStack forTimeToLive(long timeToLiveNanos) {
+        return new IntIndexedStack(IndexedStack.tickFor(timeToLiveNanos));
+    }
+
+    public boolean push(int key, long expiresAt, long now) {
+        return push(key, expiresAt, now, -1);
+    }
+
+    /**
+     * @param sequence caller supplied sequence number, -1 to number the pushes locally.
+     * @return false if the key is already present and not expired.
+     */
+    public boolean push(int key, long expiresAt, long now, long sequence) {
+        int slot = indexOf(key);
+        if (slot != NIL) {
+            if (!isExpired(slot, now)) {
+                return false;
+            }
+            drop(slot, now);
+        }
+        ensureRoomForOne();
+        slot = insertionSlot(key);
+        keys[slot] = key;
+        if (sequence < 0) {
+            occupy(slot, expiresAt);
+        } else {
+            occupy(slot, expiresAt, sequence);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the key was present and not expired.
+     */
+    public boolean remove(int key, long now) {
+        int slot = indexOf(key);
+        if (slot == NIL) {
+            return false;
+        }
+        return drop(slot, now);
+    }
+
+    public boolean contains(int key, long now) {
+        return slotOf(key, now) != NIL;
+    }
+
+    /**
+     * @return slot of the key if present and not expired, NIL otherwise.
+     */
+    public int slotOf(int key, long now) {
+        int slot = indexOf(key);
+        return slot != NIL && !isExpired(slot, now) ? slot : NIL;
+    }
+
+    /**
+     * @return key stored in the slot returned by {@link #peekSlot(long)} or {@link #pollSlot(long)}.
+     */
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    Object replaceKeys(int capacity) {
+        int[] previous = keys;
+        keys = new int[capacity];
+        return previous;
+    }
+
+    int reinsert(Object previousKeys, int previousSlot) {
+        int key = ((int[]) previousKeys)[previousSlot];
+        int slot = mix(key) & mask;
+        while (!isFree(slot)) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        return slot;
+    }
+
+    int keyBytes() {
+        return 4;
+    }
+
+    private int indexOf(int key) {
+        int mask = this.mask;
+        for (int slot = mix(key) & mask, probes = mask; probes >= 0 && !isFree(slot); slot = (slot + 1) & mask, probes--) {
+            if (isFull(slot) && keys[slot] == key) {
+                return slot;
+            }
+        }
+        return NIL;
+    }
+
+    private int insertionSlot(int key) {
+        int slot = mix(key) & mask;
+        while (isFull(slot)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("[");
+        for (int slot : slotsBottomToTop()) {
+            if (out.length() > 1) {
+                out.append(", ");
+            }
+            out.append(keys[slot]);
+        }
+        return out.append(']').toString();
+    }
+}
@@ -0,0 +1,73 @@
+package com.unicommerce.cache;
+
+/**
+ * Engine of the int caches: keys stored in an {@link IntIndexedStack}, the int
+ * operations neither box nor allocate.
+ */
+final class IntStackEngine extends PrimitiveStackEngine<Integer> {
+
+    private final IntIndexedStack stack;
+
+    IntStackEngine(long timeToLiveNanos) {
+        this(IntIndexedStack.forTimeToLive(timeToLiveNanos));
+    }
+
+    private IntStackEngine(IntIndexedStack stack) {
+        super(stack);
+        this.stack = stack;
+    }
+
+    boolean push(int key, long expiresAt, long now) {
+        writeLock.lock();
+        try {
+            return stack.push(key, expiresAt, now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    boolean remove(int key, long now) {
+        writeLock.lock();
+        try {
+            return stack.remove(key, now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    boolean contains(int key, long now) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                boolean found = stack.contains(key, now);
+                if (lock.validate(stamp)) {
+                    return found;
+                }
+            } catch (RuntimeException e) {
+                // raced a writer, read again under the lock.
+            }
+        }
+        readLock.lock();
+        try {
+            return stack.contains(key, now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    boolean pushLocked(Integer element, long expiresAt, long now) {
+        return stack.push(element.intValue(), expiresAt, now);
+    }
+
+    boolean removeLocked(Integer element, long now) {
+        return stack.remove(element.intValue(), now);
+    }
+
+    boolean containsLocked(Integer element, long now) {
+        return stack.contains(element.intValue(), now);
+    }
+
+    Integer elementAt(int slot) {
+        return stack.keyAt(slot);
+    }
+}
@@ -0,0 +1,153 @@
+package com.unicommerce.cache;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent latency histogram in the manner of HdrHistogram: log-linear buckets, each
+ * power of two split into 16 linear sub-buckets, so a recorded value is known within
+ * 1/16 (6.25%) whatever its magnitude. Values from 0 to 2^36 ns (about 68 seconds) are
+ * tracked, larger ones count as the largest.
+ *
+ * The counts live in a fixed array striped by thread, so that {@link #record(long)}
+ * neither allocates nor makes every core fight over the most frequent bucket.
+ * Readers sum the stripes, see {@link #snapshot()}.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final long HIGHEST_VALUE = (1L << 36) - 1;
+    // values below 2 * SUB_BUCKETS have a bucket of their own.
+    private static final int BUCKETS = indexOf(HIGHEST_VALUE) + 1;
+    private static final int STRIPES = 4;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS * STRIPES);
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * @param nanos latency of one operation, negative values count as 0.
+     */
+    public void record(long nanos) {
+        long value = nanos < 0 ? 0 : Math.min(nanos, HIGHEST_VALUE);
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + indexOf(value));
+        total.add(value);
+    }
+
+    /**
+     * @return count, mean and percentiles of the values recorded so far. Values recorded
+     * meanwhile may or may not be counted.
+     */
+    public Snapshot snapshot() {
+        long[] merged = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long bucketCount = counts.get(i);
+            merged[i % BUCKETS] += bucketCount;
+            count += bucketCount;
+        }
+        if (count == 0) {
+            return new Snapshot(0, 0, 0, 0, 0, 0, 0);
+        }
+        return new Snapshot(count, total.sum() / count,
+                percentile(merged, count, 0.5), percentile(merged, count, 0.9),
+                percentile(merged, count, 0.99), percentile(merged, count, 0.999),
+                percentile(merged, count, 1.0));
+    }
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return largest value counted in the given bucket.
+     */
+    static long highestValueAt(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    private static long percentile(long[] merged, long count, double quantile) {
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < merged.length; i++) {
+            seen += merged[i];
+            if (seen >= rank) {
+                return highestValueAt(i);
+            }
+        }
+        return HIGHEST_VALUE;
+    }
+
+    /**
+     * Read-only view of a histogram, in nanoseconds. Exported over JMX as composite data.
+     */
+    public static final class Snapshot {
+
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "p999", "max"})
+        public Snapshot(long count, long mean, long p50, long p90, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        /**
+         * @return upper bound of the bucket of the largest value.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + mean + "ns p50=" + p50 + "ns p90=" + p90
+                    + "ns p99=" + p99 + "ns p999=" + p999 + "ns max=" + max + "ns";
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.unicommerce.cache;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Lifetime given to the addresses of an AddressCache: the max age, shortened by a random
+ * jitter of up to half of it, so that addresses added together do not all expire, and
+ * get resolved again, together. The max age stays an upper bound. Immutable.
+ */
+final class Lifetime {
+
+    final long timeToLive;
+    final long jitter;
+
+    /**
+     * @param timeToLive max age, in nanoseconds.
+     * @param jitter     longest shortening of the max age, 0 to half of it.
+     */
+    Lifetime(long timeToLive, long jitter) {
+        if (jitter < 0 || jitter > timeToLive / 2) {
+            throw new IllegalArgumentException("Jitter must be between 0 and half of the max age : " + jitter);
+        }
+        this.timeToLive = timeToLive;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @return deadline of an address added now.
+     */
+    long deadline(long now) {
+        if (jitter == 0) {
+            return now + timeToLive;
+        }
+        return now + timeToLive - ThreadLocalRandom.current().nextLong(jitter + 1);
+    }
+
+    /**
+     * @return true if the address of the given deadline lived an eighth of the max age
+     * since it was given, whatever its jitter: a new deadline would extend it.
+     */
+    boolean isStale(long deadline, long now) {
+        return deadline != IndexedStack.NEVER && deadline - now < timeToLive - jitter - timeToLive / 8;
+    }
+}
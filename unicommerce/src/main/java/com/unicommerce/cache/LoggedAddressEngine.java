@@ -0,0 +1,319 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AddressEngine} logging every successful mutation of the engine it wraps to a
+ * {@link WriteAheadLog}. A mutation and its record are made under the append lock of the
+ * log, so the log order is the order the engine saw; the caller then waits for the group
+ * commit out of that lock. Reads go straight to the wrapped engine.
+ *
+ * Expiry is not logged: the records carry the wall clock deadline of the additions and
+ * the replay skips the ones which passed.
+ */
+class LoggedAddressEngine implements AddressEngine {
+
+    private final AddressEngine delegate;
+    private final WriteAheadLog log;
+
+    LoggedAddressEngine(AddressEngine delegate, WriteAheadLog log) {
+        this.delegate = delegate;
+        this.log = log;
+    }
+
+    public boolean push(int ipv4, long expiresAt, long now) {
+        long position;
+        log.appendLock.lock();
+        try {
+            if (!delegate.push(ipv4, expiresAt, now)) {
+                return false;
+            }
+            position = log.appendAdd(ipv4, toMillis(expiresAt, now));
+        } finally {
+            log.appendLock.unlock();
+        }
+        log.commit(position);
+        return true;
+    }
+
+    public boolean push(byte[] address, long expiresAt, long now) {
+        if (AddressCodec.isIpv4(address)) {
+            return push(AddressCodec.ipv4(address), expiresAt, now);
+        }
+        long position;
+        log.appendLock.lock();
+        try {
+            if (!delegate.push(address, expiresAt, now)) {
+                return false;
+            }
+            position = log.appendAdd(address, address.length, toMillis(expiresAt, now));
+        } finally {
+            log.appendLock.unlock();
+        }
+        log.commit(position);
+        return true;
+    }
+
+    public boolean push(InetAddress element, long expiresAt, long now) {
+        return push(element.getAddress(), expiresAt, now);
+    }
+
+    public boolean remove(int ipv4, long now) {
+        long position;
+        log.appendLock.lock();
+        try {
+            if (!delegate.remove(ipv4, now)) {
+                return false;
+            }
+            position = log.appendRemove(ipv4);
+        } finally {
+            log.appendLock.unlock();
+        }
+        log.commit(position);
+        return true;
+    }
+
+    public boolean remove(byte[] address, long now) {
+        if (AddressCodec.isIpv4(address)) {
+            return remove(AddressCodec.ipv4(address), now);
+        }
+        long position;
+        log.appendLock.lock();
+        try {
+            if (!delegate.remove(address, now)) {
+                return false;
+            }
+            position = log.appendRemove(address, address.length);
+        } finally {
+            log.appendLock.unlock();
+        }
+        log.commit(position);
+        return true;
+    }
+
+    public boolean remove(InetAddress element, long now) {
+        return remove(element.getAddress(), now);
+    }
+
+    public int pollInto(byte[] address, long now) {
+        int length;
+        long position;
+        log.appendLock.lock();
+        try {
+            length = delegate.pollInto(address, now);
+            if (length == 0) {
+                return 0;
+            }
+            position = log.appendRemove(address, length);
+        } finally {
+            log.appendLock.unlock();
+        }
+        log.commit(position);
+        return length;
+    }
+
+    public InetAddress poll(long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        int length = pollInto(address, now);
+        if (length == 0) {
+            return null;
+        }
+        return AddressCodec.toInetAddress(Arrays.copyOf(address, length));
+    }
+
+    /**
+     * Logs the batch under one append lock and waits for a single commit.
+     */
+    public int pushAll(Collection<? extends InetAddress> elements, long expiresAt, long now) {
+        byte[][] addresses = PrimitiveAddressEngine.addressesOf(elements);
+        long expiresAtMillis = toMillis(expiresAt, now);
+        int pushed = 0;
+        long position = 0;
+        log.appendLock.lock();
+        try {
+            for (byte[] address : addresses) {
+                if (delegate.push(address, expiresAt, now)) {
+                    position = append(address, expiresAtMillis);
+                    pushed++;
+                }
+            }
+        } finally {
+            log.appendLock.unlock();
+        }
+        if (pushed > 0) {
+            log.commit(position);
+        }
+        return pushed;
+    }
+
+    public int pushAll(AddressBatch batch, long expiresAt, long now) {
+        long expiresAtMillis = toMillis(expiresAt, now);
+        int pushed = 0;
+        long position = 0;
+        log.appendLock.lock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                if (i < batch.ipv4Count()) {
+                    if (delegate.push(batch.ipv4(i), expiresAt, now)) {
+                        position = log.appendAdd(batch.ipv4(i), expiresAtMillis);
+                        pushed++;
+                    }
+                } else {
+                    byte[] address = batch.address(i);
+                    if (delegate.push(address, expiresAt, now)) {
+                        position = log.appendAdd(address, address.length, expiresAtMillis);
+                        pushed++;
+                    }
+                }
+            }
+        } finally {
+            log.appendLock.unlock();
+        }
+        if (pushed > 0) {
+            log.commit(position);
+        }
+        return pushed;
+    }
+
+    public int removeAll(Collection<? extends InetAddress> elements, long now) {
+        byte[][] addresses = PrimitiveAddressEngine.addressesOf(elements);
+        int removed = 0;
+        long position = 0;
+        log.appendLock.lock();
+        try {
+            for (byte[] address : addresses) {
+                if (delegate.remove(address, now)) {
+                    position = log.appendRemove(address, address.length);
+                    removed++;
+                }
+            }
+        } finally {
+            log.appendLock.unlock();
+        }
+        if (removed > 0) {
+            log.commit(position);
+        }
+        return removed;
+    }
+
+    public int pollN(int n, Collection<? super InetAddress> into, long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        int polled = 0;
+        long position = 0;
+        log.appendLock.lock();
+        try {
+            int length;
+            while (polled < n && (length = delegate.pollInto(address, now)) != 0) {
+                position = log.appendRemove(address, length);
+                into.add(AddressCodec.toInetAddress(Arrays.copyOf(address, length)));
+                polled++;
+            }
+        } finally {
+            log.appendLock.unlock();
+        }
+        if (polled > 0) {
+            log.commit(position);
+        }
+        return polled;
+    }
+
+    public boolean containsAll(Collection<? extends InetAddress> elements, long now) {
+        return delegate.containsAll(elements, now);
+    }
+
+    public void clear() {
+        long position;
+        log.appendLock.lock();
+        try {
+            delegate.clear();
+            position = log.appendClear();
+        } finally {
+            log.appendLock.unlock();
+        }
+        log.commit(position);
+    }
+
+    public boolean contains(int ipv4, long now) {
+        return delegate.contains(ipv4, now);
+    }
+
+    public boolean contains(byte[] address, long now) {
+        return delegate.contains(address, now);
+    }
+
+    public boolean contains(InetAddress element, long now) {
+        return delegate.contains(element, now);
+    }
+
+    public int peekInto(byte[] address, long now) {
+        return delegate.peekInto(address, now);
+    }
+
+    public InetAddress peek(long now) {
+        return delegate.peek(now);
+    }
+
+    public int size() {
+        return delegate.size();
+    }
+
+    public void forEach(Visitor<? super InetAddress> visitor, long now) {
+        delegate.forEach(visitor, now);
+    }
+
+    public void forEach(AddressVisitor visitor, long now) {
+        delegate.forEach(visitor, now);
+    }
+
+    public int expire(long now) {
+        return delegate.expire(now);
+    }
+
+    public long estimatedBytes() {
+        return delegate.estimatedBytes();
+    }
+
+    public long getTickNanos() {
+        return delegate.getTickNanos();
+    }
+
+    public void setExpiryListener(KeyListener listener) {
+        delegate.setExpiryListener(listener);
+    }
+
+    public void setAccessExpiry(AccessExpiry expiry) {
+        delegate.setAccessExpiry(expiry);
+    }
+
+    /**
+     * Not logged: a recovered address gets back the deadline of its add.
+     */
+    public boolean renew(byte[] address, long expiresAt, long now) {
+        return delegate.renew(address, expiresAt, now);
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+    private long append(byte[] address, long expiresAtMillis) {
+        if (AddressCodec.isIpv4(address)) {
+            return log.appendAdd(AddressCodec.ipv4(address), expiresAtMillis);
+        }
+        return log.appendAdd(address, address.length, expiresAtMillis);
+    }
+
+    /**
+     * @return the deadline as a wall clock time, Long.MAX_VALUE for NEVER.
+     */
+    private static long toMillis(long expiresAt, long now) {
+        if (expiresAt == IndexedStack.NEVER) {
+            return Long.MAX_VALUE;
+        }
+        return System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(expiresAt - now);
+    }
+}
@@ -0,0 +1,47 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExpirableCache of long keys (session ids, hashed tokens...), stored unboxed:
+ * add/remove/contains of a long neither box nor allocate. peek() and take() return the
+ * key boxed.
+ */
+public class LongExpirableCache extends ExpirableCache<Long> {
+
+    private final LongStackEngine longs;
+
+    public LongExpirableCache(long maxAge, TimeUnit unit) {
+        this(maxAge, unit, new LongStackEngine(unit.toNanos(maxAge)));
+    }
+
+    private LongExpirableCache(long maxAge, TimeUnit unit, LongStackEngine engine) {
+        super(maxAge, unit, engine);
+        this.longs = engine;
+    }
+
+    /**
+     * Primitive add(), the elements are stored unboxed.
+     *
+     * @param key
+     * @return true if the element was successfully added.
+     */
+    public boolean add(long key) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        return added(longs.push(key, deadline(now), now), now);
+    }
+
+    public boolean remove(long key) throws CacheExpiredException {
+        checkOpen();
+        long now = System.nanoTime();
+        return removed(longs.remove(key, now), now);
+    }
+
+    public boolean contains(long key) {
+        long now = System.nanoTime();
+        return looked(longs.contains(key, now), now);
+    }
+}
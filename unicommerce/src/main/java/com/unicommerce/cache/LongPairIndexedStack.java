@@ -0,0 +1,147 @@
+package com.unicommerce.cache;
+
+/**
+ * {@link IndexedStack} specialized for 128-bit elements (IPv6 addresses) stored as two
+ * longs: keys live in two plain long arrays, nothing is allocated per element.
+ *
+ * Not thread-safe, callers hold their own lock.
+ */
+public class LongPairIndexedStack extends PrimitiveIndexedStack {
+
+    private long[] highs;
+    private long[] lows;
+
+    public LongPairIndexedStack(long tickNanos) {
+        this(0, tickNanos);
+    }
+
+    public LongPairIndexedStack(int expectedSize, long tickNanos) {
+        super(expectedSize, tickNanos);
+        this.highs = new long[mask + 1];
+        this.lows = new long[mask + 1];
+    }
+
+    /**
+     * @return a stack whose wheel is sized for elements living the given time.
+     */
+    public static LongPairIndexedStack forTimeToLive(long timeToLiveNanos) {
+        return new LongPairIndexedStack(IndexedStack.tickFor(timeToLiveNanos));
+    }
+
+    public boolean push(long high, long low, long expiresAt, long now) {
+        return push(high, low, expiresAt, now, -1);
+    }
+
+    /**
+     * @param sequence caller supplied sequence number, -1 to number the pushes locally.
+     * @return false if the key is already present and not expired.
+     */
+    public boolean push(long high, long low, long expiresAt, long now, long sequence) {
+        int slot = indexOf(high, low);
+        if (slot != NIL) {
+            if (!isExpired(slot, now)) {
+                return false;
+            }
+            drop(slot, now);
+        }
+        ensureRoomForOne();
+        slot = insertionSlot(high, low);
+        highs[slot] = high;
+        lows[slot] = low;
+        if (sequence < 0) {
+            occupy(slot, expiresAt);
+        } else {
+            occupy(slot, expiresAt, sequence);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the key was present and not expired.
+     */
+    public boolean remove(long high, long low, long now) {
+        int slot = indexOf(high, low);
+        if (slot == NIL) {
+            return false;
+        }
+        return drop(slot, now);
+    }
+
+    public boolean contains(long high, long low, long now) {
+        return slotOf(high, low, now) != NIL;
+    }
+
+    /**
+     * @return slot of the key if present and not expired, NIL otherwise.
+     */
+    public int slotOf(long high, long low, long now) {
+        int slot = indexOf(high, low);
+        return slot != NIL && !isExpired(slot, now) ? slot : NIL;
+    }
+
+    public long highAt(int slot) {
+        return highs[slot];
+    }
+
+    public long lowAt(int slot) {
+        return lows[slot];
+    }
+
+    Object replaceKeys(int capacity) {
+        long[][] previous = {highs, lows};
+        highs = new long[capacity];
+        lows = new long[capacity];
+        return previous;
+    }
+
+    int reinsert(Object previousKeys, int previousSlot) {
+        long[][] previous = (long[][]) previousKeys;
+        long high = previous[0][previousSlot];
+        long low = previous[1][previousSlot];
+        int slot = hash(high, low) & mask;
+        while (!isFree(slot)) {
+            slot = (slot + 1) & mask;
+        }
+        highs[slot] = high;
+        lows[slot] = low;
+        return slot;
+    }
+
+    int keyBytes() {
+        return 16;
+    }
+
+    private int indexOf(long high, long low) {
+        int mask = this.mask;
+        for (int slot = hash(high, low) & mask, probes = mask; probes >= 0 && !isFree(slot); slot = (slot + 1) & mask, probes--) {
+            if (isFull(slot) && highs[slot] == high && lows[slot] == low) {
+                return slot;
+            }
+        }
+        return NIL;
+    }
+
+    private int insertionSlot(long high, long low) {
+        int slot = hash(high, low) & mask;
+        while (isFull(slot)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long high, long low) {
+        return mix(high * 31 + low);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("[");
+        for (int slot : slotsBottomToTop()) {
+            if (out.length() > 1) {
+                out.append(", ");
+            }
+            out.append(Long.toHexString(highs[slot])).append(':').append(Long.toHexString(lows[slot]));
+        }
+        return out.append(']').toString();
+    }
+}
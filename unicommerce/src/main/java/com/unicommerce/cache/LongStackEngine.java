@@ -0,0 +1,73 @@
+package com.unicommerce.cache;
+
+/**
+ * Engine of the long caches: keys stored in a {@link LongPairIndexedStack} with a zero
+ * high half, the long operations neither box nor allocate.
+ */
+final class LongStackEngine extends PrimitiveStackEngine<Long> {
+
+    private final LongPairIndexedStack stack;
+
+    LongStackEngine(long timeToLiveNanos) {
+        this(LongPairIndexedStack.forTimeToLive(timeToLiveNanos));
+    }
+
+    private LongStackEngine(LongPairIndexedStack stack) {
+        super(stack);
+        this.stack = stack;
+    }
+
+    boolean push(long key, long expiresAt, long now) {
+        writeLock.lock();
+        try {
+            return stack.push(0, key, expiresAt, now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    boolean remove(long key, long now) {
+        writeLock.lock();
+        try {
+            return stack.remove(0, key, now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    boolean contains(long key, long now) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                boolean found = stack.contains(0, key, now);
+                if (lock.validate(stamp)) {
+                    return found;
+                }
+            } catch (RuntimeException e) {
+                // raced a writer, read again under the lock.
+            }
+        }
+        readLock.lock();
+        try {
+            return stack.contains(0, key, now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    boolean pushLocked(Long element, long expiresAt, long now) {
+        return stack.push(0, element.longValue(), expiresAt, now);
+    }
+
+    boolean removeLocked(Long element, long now) {
+        return stack.remove(0, element.longValue(), now);
+    }
+
+    boolean containsLocked(Long element, long now) {
+        return stack.contains(0, element.longValue(), now);
+    }
+
+    Long elementAt(int slot) {
+        return stack.lowAt(slot);
+    }
+}
@@ -0,0 +1,127 @@
+package com.unicommerce.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link ReplicationTransport} between the caches of one process, for the tests and the
+ * benchmarks. The messages are copied and delivered in order by one daemon thread, like
+ * over a socket. Faults can be injected: a share of the messages dropped at random, or
+ * nodes cut off from the others until reconnected.
+ */
+public final class LoopbackTransport implements ReplicationTransport, AutoCloseable {
+
+    private final ConcurrentHashMap<Integer, Receiver> receivers = new ConcurrentHashMap<Integer, Receiver>();
+    private final Set<Integer> isolated = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ExecutorService delivery;
+    private volatile double dropRate;
+
+    public LoopbackTransport() {
+        this.delivery = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "loopback-transport");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void join(int node, Receiver receiver) {
+        if (receivers.putIfAbsent(node, receiver) != null) {
+            throw new IllegalStateException("Node already joined : " + node);
+        }
+    }
+
+    public void leave(int node) {
+        receivers.remove(node);
+    }
+
+    public int[] peers(int node) {
+        Set<Integer> peers = new TreeSet<Integer>(receivers.keySet());
+        peers.remove(node);
+        int[] nodes = new int[peers.size()];
+        int i = 0;
+        for (int peer : peers) {
+            nodes[i++] = peer;
+        }
+        return nodes;
+    }
+
+    public void send(final int from, final int to, ByteBuffer message) {
+        if (isolated.contains(from) || isolated.contains(to)
+                || (dropRate > 0 && ThreadLocalRandom.current().nextDouble() < dropRate)) {
+            return;
+        }
+        final byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        inFlight.incrementAndGet();
+        try {
+            delivery.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Receiver receiver = receivers.get(to);
+                        if (receiver != null) {
+                            receiver.receive(from, ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+                        }
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed.
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param dropRate share of the messages lost from now on, 0 for none.
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    /**
+     * Drops every message from or to the node until reconnect().
+     */
+    public void isolate(int node) {
+        isolated.add(node);
+    }
+
+    public void reconnect(int node) {
+        isolated.remove(node);
+    }
+
+    /**
+     * Waits until the messages sent so far were delivered, the ones they triggered included.
+     *
+     * @return false if some were still in flight after the timeout.
+     */
+    public boolean awaitDelivery(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (inFlight.get() > 0) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    public void close() {
+        delivery.shutdownNow();
+        receivers.clear();
+    }
+}
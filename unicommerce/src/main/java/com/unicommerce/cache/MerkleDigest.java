@@ -0,0 +1,67 @@
+package com.unicommerce.cache;
+
+/**
+ * Merkle tree over the entries of an {@link AddWinsSet}, for the anti-entropy between
+ * replicas: two nodes compare their roots, then the children of the nodes which differ,
+ * down to the leaves, and only exchange the entries of the leaves which differ.
+ *
+ * The addresses are spread over {@link #LEAVES} leaves by hash. A leaf is the sum of the
+ * hashes of its entries, so it is updated in O(1) as an entry changes and does not depend
+ * on the order the entries were added in. An inner node hashes its FANOUT children, it
+ * is computed when asked for: the digests are exchanged far less often than updated.
+ */
+final class MerkleDigest {
+
+    static final int FANOUT = 16;
+    // levels below the root, the leaves are at DEPTH.
+    static final int DEPTH = 3;
+    static final int LEAVES = 1 << (4 * DEPTH);
+
+    private final long[] leaves = new long[LEAVES];
+
+    /**
+     * @return leaf of an address key.
+     */
+    static int leafOf(long high, long low) {
+        return (int) (mix(low + mix(high)) >>> 32) & (LEAVES - 1);
+    }
+
+    /**
+     * @return number of nodes at the level, 1 at the root (level 0).
+     */
+    static int width(int level) {
+        return 1 << (4 * level);
+    }
+
+    void update(int leaf, long delta) {
+        leaves[leaf] += delta;
+    }
+
+    /**
+     * @return hash of the node at the given level and index.
+     */
+    long hash(int level, int index) {
+        if (level == DEPTH) {
+            return leaves[index];
+        }
+        long hash = level;
+        for (int child = index * FANOUT, end = child + FANOUT; child < end; child++) {
+            hash = mix(hash ^ hash(level + 1, child));
+        }
+        return hash;
+    }
+
+    long root() {
+        return hash(0, 0);
+    }
+
+    static long mix(long key) {
+        // murmur3 64-bit finalizer.
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
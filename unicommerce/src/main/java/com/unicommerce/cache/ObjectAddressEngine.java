@@ -0,0 +1,179 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link AddressEngine} over an engine storing {@link InetAddress} objects: raw
+ * addresses are converted on the way in and out, which allocates.
+ */
+class ObjectAddressEngine implements AddressEngine {
+
+    // Inet4Address 16 + its InetAddressHolder 32.
+    private static final int INET4_ADDRESS_BYTES = 48;
+
+    private final StackEngine<InetAddress> delegate;
+
+    ObjectAddressEngine(StackEngine<InetAddress> delegate) {
+        this.delegate = delegate;
+    }
+
+    public boolean push(int ipv4, long expiresAt, long now) {
+        return delegate.push(AddressCodec.toInetAddress(ipv4), expiresAt, now);
+    }
+
+    public boolean push(byte[] address, long expiresAt, long now) {
+        return delegate.push(AddressCodec.toInetAddress(address), expiresAt, now);
+    }
+
+    public boolean remove(int ipv4, long now) {
+        return delegate.remove(AddressCodec.toInetAddress(ipv4), now);
+    }
+
+    public boolean remove(byte[] address, long now) {
+        return delegate.remove(AddressCodec.toInetAddress(address), now);
+    }
+
+    public boolean contains(int ipv4, long now) {
+        return delegate.contains(AddressCodec.toInetAddress(ipv4), now);
+    }
+
+    public boolean contains(byte[] address, long now) {
+        return delegate.contains(AddressCodec.toInetAddress(address), now);
+    }
+
+    public int peekInto(byte[] address, long now) {
+        return copy(delegate.peek(now), address);
+    }
+
+    public int pollInto(byte[] address, long now) {
+        return copy(delegate.poll(now), address);
+    }
+
+    public boolean push(InetAddress element, long expiresAt, long now) {
+        return delegate.push(element, expiresAt, now);
+    }
+
+    public boolean remove(InetAddress element, long now) {
+        return delegate.remove(element, now);
+    }
+
+    public boolean contains(InetAddress element, long now) {
+        return delegate.contains(element, now);
+    }
+
+    public InetAddress peek(long now) {
+        return delegate.peek(now);
+    }
+
+    public InetAddress poll(long now) {
+        return delegate.poll(now);
+    }
+
+    public int pushAll(Collection<? extends InetAddress> elements, long expiresAt, long now) {
+        return delegate.pushAll(elements, expiresAt, now);
+    }
+
+    public int pushAll(AddressBatch batch, long expiresAt, long now) {
+        List<InetAddress> elements = new ArrayList<InetAddress>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            elements.add(AddressCodec.toInetAddress(batch.address(i)));
+        }
+        return delegate.pushAll(elements, expiresAt, now);
+    }
+
+    public int removeAll(Collection<? extends InetAddress> elements, long now) {
+        return delegate.removeAll(elements, now);
+    }
+
+    public boolean containsAll(Collection<? extends InetAddress> elements, long now) {
+        return delegate.containsAll(elements, now);
+    }
+
+    public int pollN(int n, Collection<? super InetAddress> into, long now) {
+        return delegate.pollN(n, into, now);
+    }
+
+    public int size() {
+        return delegate.size();
+    }
+
+    public void clear() {
+        delegate.clear();
+    }
+
+    public void forEach(Visitor<? super InetAddress> visitor, long now) {
+        delegate.forEach(visitor, now);
+    }
+
+    public void forEach(final AddressVisitor visitor, long now) {
+        delegate.forEach(new Visitor<InetAddress>() {
+            public void visit(InetAddress element, long expiresAt) {
+                byte[] address = element.getAddress();
+                visitor.visit(address, address.length, expiresAt);
+            }
+        }, now);
+    }
+
+    public int expire(long now) {
+        return delegate.expire(now);
+    }
+
+    /**
+     * @return the estimate of the wrapped engine plus the InetAddress objects, counted
+     * as IPv4 ones.
+     */
+    public long estimatedBytes() {
+        return delegate.estimatedBytes() + (long) delegate.size() * INET4_ADDRESS_BYTES;
+    }
+
+    public long getTickNanos() {
+        return delegate.getTickNanos();
+    }
+
+    /**
+     * @throws UnsupportedOperationException if the wrapped engine does not tell its expiries.
+     */
+    @SuppressWarnings("unchecked")
+    public void setExpiryListener(final KeyListener listener) {
+        if (!(delegate instanceof ExpiryNotifier)) {
+            throw new UnsupportedOperationException("No expiry listener on " + delegate.getClass().getSimpleName());
+        }
+        ((ExpiryNotifier<InetAddress>) delegate).setExpiryListener(listener == null ? null : new Visitor<InetAddress>() {
+            public void visit(InetAddress element, long expiresAt) {
+                byte[] address = element.getAddress();
+                listener.dropped(AddressCodec.keyHigh(address), AddressCodec.keyLow(address), expiresAt);
+            }
+        });
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, the object engines do not move deadlines.
+     */
+    public void setAccessExpiry(AccessExpiry expiry) {
+        throw new UnsupportedOperationException("No access expiry on " + delegate.getClass().getSimpleName());
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, as setAccessExpiry().
+     */
+    public boolean renew(byte[] address, long expiresAt, long now) {
+        throw new UnsupportedOperationException("No renewal on " + delegate.getClass().getSimpleName());
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+    private static int copy(InetAddress found, byte[] into) {
+        if (found == null) {
+            return 0;
+        }
+        byte[] bytes = found.getAddress();
+        System.arraycopy(bytes, 0, into, 0, bytes.length);
+        return bytes.length;
+    }
+}
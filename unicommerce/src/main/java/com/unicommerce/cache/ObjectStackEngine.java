@@ -0,0 +1,194 @@
+package com.unicommerce.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LOCKING {@link StackEngine} of the generic caches: an {@link IndexedStack} guarded by a
+ * read/write lock.
+ */
+final class ObjectStackEngine<E> implements StackEngine<E> {
+
+    private final IndexedStack<E> stack;
+
+    // read & write locks must come from the same instance, otherwise readers never exclude writers.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock.WriteLock writeLock = lock.writeLock();
+    private final ReentrantReadWriteLock.ReadLock readLock = lock.readLock();
+
+    ObjectStackEngine(long timeToLiveNanos) {
+        this.stack = IndexedStack.forTimeToLive(timeToLiveNanos);
+    }
+
+    public boolean push(E element, long expiresAt, long now) {
+        writeLock.lock();
+        try {
+            return stack.push(element, expiresAt, now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean remove(E element, long now) {
+        writeLock.lock();
+        try {
+            return stack.remove(element, now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean contains(E element, long now) {
+        readLock.lock();
+        try {
+            return stack.contains(element, now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public E peek(long now) {
+        readLock.lock();
+        try {
+            return stack.peek(now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public E poll(long now) {
+        writeLock.lock();
+        try {
+            return stack.poll(now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int pushAll(Collection<? extends E> elements, long expiresAt, long now) {
+        List<E> batch = new ArrayList<E>(elements);
+        int pushed = 0;
+        writeLock.lock();
+        try {
+            for (E element : batch) {
+                if (stack.push(element, expiresAt, now)) {
+                    pushed++;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return pushed;
+    }
+
+    public int removeAll(Collection<? extends E> elements, long now) {
+        List<E> batch = new ArrayList<E>(elements);
+        int removed = 0;
+        writeLock.lock();
+        try {
+            for (E element : batch) {
+                if (stack.remove(element, now)) {
+                    removed++;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return removed;
+    }
+
+    public boolean containsAll(Collection<? extends E> elements, long now) {
+        List<E> batch = new ArrayList<E>(elements);
+        readLock.lock();
+        try {
+            for (E element : batch) {
+                if (!stack.contains(element, now)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int pollN(int n, Collection<? super E> into, long now) {
+        int polled = 0;
+        writeLock.lock();
+        try {
+            E element;
+            while (polled < n && (element = stack.poll(now)) != null) {
+                into.add(element);
+                polled++;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return polled;
+    }
+
+    public int size() {
+        readLock.lock();
+        try {
+            return stack.size();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public void clear() {
+        writeLock.lock();
+        try {
+            stack.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void forEach(final Visitor<? super E> visitor, long now) {
+        readLock.lock();
+        try {
+            stack.forEach(new IndexedStack.EntryVisitor<E>() {
+                public void visit(E element, long expiresAt, long sequence) {
+                    visitor.visit(element, expiresAt);
+                }
+            }, now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int expire(long now) {
+        writeLock.lock();
+        try {
+            return stack.expire(now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public long estimatedBytes() {
+        readLock.lock();
+        try {
+            return stack.estimatedBytes();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public long getTickNanos() {
+        return stack.getTickNanos();
+    }
+
+    @Override
+    public String toString() {
+        readLock.lock();
+        try {
+            return stack.toString();
+        } finally {
+            readLock.unlock();
+        }
+    }
+}
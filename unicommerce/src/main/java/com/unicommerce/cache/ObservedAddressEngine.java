@@ -0,0 +1,200 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link AddressEngine} publishing the changes made through it to a {@link ChangeRing}:
+ * the addresses added, removed and taken, and the clears. Evictions and expiries happen
+ * below it, in the storage, which publishes them itself.
+ *
+ * A change is published once the wrapped engine made it, outside of its locks, so two
+ * changes of the same address by two threads may be published in either order.
+ * The batch additions and removals go one address at a time, to tell which ones changed.
+ */
+class ObservedAddressEngine implements AddressEngine {
+
+    private final AddressEngine delegate;
+    private final ChangeRing changes;
+
+    ObservedAddressEngine(AddressEngine delegate, ChangeRing changes) {
+        this.delegate = delegate;
+        this.changes = changes;
+    }
+
+    public boolean push(int ipv4, long expiresAt, long now) {
+        if (!delegate.push(ipv4, expiresAt, now)) {
+            return false;
+        }
+        changes.publish(CacheChanges.Type.ADDED, 0, AddressCodec.mapped(ipv4), now);
+        return true;
+    }
+
+    public boolean push(byte[] address, long expiresAt, long now) {
+        if (!delegate.push(address, expiresAt, now)) {
+            return false;
+        }
+        changes.publish(CacheChanges.Type.ADDED, AddressCodec.keyHigh(address), AddressCodec.keyLow(address), now);
+        return true;
+    }
+
+    public boolean push(InetAddress element, long expiresAt, long now) {
+        return push(element.getAddress(), expiresAt, now);
+    }
+
+    public boolean remove(int ipv4, long now) {
+        if (!delegate.remove(ipv4, now)) {
+            return false;
+        }
+        changes.publish(CacheChanges.Type.REMOVED, 0, AddressCodec.mapped(ipv4), now);
+        return true;
+    }
+
+    public boolean remove(byte[] address, long now) {
+        if (!delegate.remove(address, now)) {
+            return false;
+        }
+        changes.publish(CacheChanges.Type.REMOVED, AddressCodec.keyHigh(address), AddressCodec.keyLow(address), now);
+        return true;
+    }
+
+    public boolean remove(InetAddress element, long now) {
+        return remove(element.getAddress(), now);
+    }
+
+    public int pollInto(byte[] address, long now) {
+        int length = delegate.pollInto(address, now);
+        if (length == AddressCodec.IPV4_LENGTH) {
+            changes.publish(CacheChanges.Type.TAKEN, 0, AddressCodec.mapped(AddressCodec.readIpv4(address)), now);
+        } else if (length != 0) {
+            changes.publish(CacheChanges.Type.TAKEN, AddressCodec.high(address), AddressCodec.low(address), now);
+        }
+        return length;
+    }
+
+    public InetAddress poll(long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        int length = pollInto(address, now);
+        if (length == 0) {
+            return null;
+        }
+        return AddressCodec.toInetAddress(Arrays.copyOf(address, length));
+    }
+
+    public int pushAll(Collection<? extends InetAddress> elements, long expiresAt, long now) {
+        int pushed = 0;
+        for (InetAddress element : elements) {
+            if (push(element, expiresAt, now)) {
+                pushed++;
+            }
+        }
+        return pushed;
+    }
+
+    public int pushAll(AddressBatch batch, long expiresAt, long now) {
+        int pushed = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (i < batch.ipv4Count() ? push(batch.ipv4(i), expiresAt, now) : push(batch.address(i), expiresAt, now)) {
+                pushed++;
+            }
+        }
+        return pushed;
+    }
+
+    public int removeAll(Collection<? extends InetAddress> elements, long now) {
+        int removed = 0;
+        for (InetAddress element : elements) {
+            if (remove(element, now)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Polls the batch in one go from the wrapped engine, then publishes it.
+     */
+    public int pollN(int n, Collection<? super InetAddress> into, long now) {
+        List<InetAddress> polled = new ArrayList<InetAddress>(Math.min(Math.max(n, 0), 1024));
+        int count = delegate.pollN(n, polled, now);
+        for (InetAddress element : polled) {
+            byte[] address = element.getAddress();
+            changes.publish(CacheChanges.Type.TAKEN, AddressCodec.keyHigh(address), AddressCodec.keyLow(address), now);
+        }
+        into.addAll(polled);
+        return count;
+    }
+
+    public void clear() {
+        delegate.clear();
+        changes.publish(CacheChanges.Type.CLEARED, 0, 0, System.nanoTime());
+    }
+
+    public boolean contains(int ipv4, long now) {
+        return delegate.contains(ipv4, now);
+    }
+
+    public boolean contains(byte[] address, long now) {
+        return delegate.contains(address, now);
+    }
+
+    public boolean contains(InetAddress element, long now) {
+        return delegate.contains(element, now);
+    }
+
+    public boolean containsAll(Collection<? extends InetAddress> elements, long now) {
+        return delegate.containsAll(elements, now);
+    }
+
+    public int peekInto(byte[] address, long now) {
+        return delegate.peekInto(address, now);
+    }
+
+    public InetAddress peek(long now) {
+        return delegate.peek(now);
+    }
+
+    public int size() {
+        return delegate.size();
+    }
+
+    public void forEach(Visitor<? super InetAddress> visitor, long now) {
+        delegate.forEach(visitor, now);
+    }
+
+    public void forEach(AddressVisitor visitor, long now) {
+        delegate.forEach(visitor, now);
+    }
+
+    public int expire(long now) {
+        return delegate.expire(now);
+    }
+
+    public long estimatedBytes() {
+        return delegate.estimatedBytes();
+    }
+
+    public long getTickNanos() {
+        return delegate.getTickNanos();
+    }
+
+    public void setExpiryListener(KeyListener listener) {
+        delegate.setExpiryListener(listener);
+    }
+
+    public void setAccessExpiry(AccessExpiry expiry) {
+        delegate.setAccessExpiry(expiry);
+    }
+
+    public boolean renew(byte[] address, long expiresAt, long now) {
+        return delegate.renew(address, expiresAt, now);
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
@@ -0,0 +1,354 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link AddressEngine} keeping the addresses out of the java heap in an
+ * {@link OffHeapIndexedStack} guarded by a read/write lock. IPv4 addresses are stored
+ * IPv4-mapped (::ffff:a.b.c.d) and come out as IPv4 again.
+ *
+ * The raw operations neither box nor allocate; {@link #clear()} frees the slabs.
+ */
+class OffHeapAddressEngine implements AddressEngine {
+
+    private final OffHeapIndexedStack stack;
+    private final long tickNanos;
+
+    // read & write locks must come from the same instance, otherwise readers never exclude writers.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock.WriteLock writeLock = lock.writeLock();
+    private final ReentrantReadWriteLock.ReadLock readLock = lock.readLock();
+
+    OffHeapAddressEngine(long timeToLiveNanos) {
+        this(timeToLiveNanos, 0);
+    }
+
+    /**
+     * @param expectedSize number of addresses to size the slabs for, saves the rehashing
+     *                     of a large feed.
+     */
+    OffHeapAddressEngine(long timeToLiveNanos, int expectedSize) {
+        this.stack = new OffHeapIndexedStack(expectedSize);
+        this.tickNanos = IndexedStack.tickFor(timeToLiveNanos);
+    }
+
+    public boolean push(int ipv4, long expiresAt, long now) {
+        return push(0, AddressCodec.mapped(ipv4), expiresAt, now);
+    }
+
+    public boolean push(byte[] address, long expiresAt, long now) {
+        if (AddressCodec.isIpv4(address)) {
+            return push(AddressCodec.ipv4(address), expiresAt, now);
+        }
+        return push(AddressCodec.high(address), AddressCodec.low(address), expiresAt, now);
+    }
+
+    public boolean push(InetAddress element, long expiresAt, long now) {
+        return push(element.getAddress(), expiresAt, now);
+    }
+
+    public boolean remove(int ipv4, long now) {
+        return remove(0, AddressCodec.mapped(ipv4), now);
+    }
+
+    public boolean remove(byte[] address, long now) {
+        if (AddressCodec.isIpv4(address)) {
+            return remove(AddressCodec.ipv4(address), now);
+        }
+        return remove(AddressCodec.high(address), AddressCodec.low(address), now);
+    }
+
+    public boolean remove(InetAddress element, long now) {
+        return remove(element.getAddress(), now);
+    }
+
+    public boolean contains(int ipv4, long now) {
+        return contains(0, AddressCodec.mapped(ipv4), now);
+    }
+
+    public boolean contains(byte[] address, long now) {
+        if (AddressCodec.isIpv4(address)) {
+            return contains(AddressCodec.ipv4(address), now);
+        }
+        return contains(AddressCodec.high(address), AddressCodec.low(address), now);
+    }
+
+    public boolean contains(InetAddress element, long now) {
+        return contains(element.getAddress(), now);
+    }
+
+    public int peekInto(byte[] address, long now) {
+        readLock.lock();
+        try {
+            int slot = stack.peekSlot(now);
+            return slot == OffHeapIndexedStack.NIL ? 0 : write(slot, address);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int pollInto(byte[] address, long now) {
+        writeLock.lock();
+        try {
+            int slot = stack.pollSlot(now);
+            return slot == OffHeapIndexedStack.NIL ? 0 : write(slot, address);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public InetAddress peek(long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        return toInetAddress(address, peekInto(address, now));
+    }
+
+    public InetAddress poll(long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        return toInetAddress(address, pollInto(address, now));
+    }
+
+    public int pushAll(Collection<? extends InetAddress> elements, long expiresAt, long now) {
+        long[] keys = keysOf(elements);
+        int pushed = 0;
+        writeLock.lock();
+        try {
+            for (int i = 0; i < keys.length; i += 2) {
+                if (stack.push(keys[i], keys[i + 1], expiresAt, now)) {
+                    pushed++;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return pushed;
+    }
+
+    public int pushAll(AddressBatch batch, long expiresAt, long now) {
+        int pushed = 0;
+        writeLock.lock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                if (stack.push(batch.high(i), batch.low(i), expiresAt, now)) {
+                    pushed++;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return pushed;
+    }
+
+    public int removeAll(Collection<? extends InetAddress> elements, long now) {
+        long[] keys = keysOf(elements);
+        int removed = 0;
+        writeLock.lock();
+        try {
+            for (int i = 0; i < keys.length; i += 2) {
+                if (stack.remove(keys[i], keys[i + 1], now)) {
+                    removed++;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return removed;
+    }
+
+    public boolean containsAll(Collection<? extends InetAddress> elements, long now) {
+        long[] keys = keysOf(elements);
+        readLock.lock();
+        try {
+            for (int i = 0; i < keys.length; i += 2) {
+                if (!stack.contains(keys[i], keys[i + 1], now)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int pollN(int n, Collection<? super InetAddress> into, long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        int polled = 0;
+        writeLock.lock();
+        try {
+            int slot;
+            while (polled < n && (slot = stack.pollSlot(now)) != OffHeapIndexedStack.NIL) {
+                into.add(toInetAddress(address, write(slot, address)));
+                polled++;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return polled;
+    }
+
+    public int size() {
+        readLock.lock();
+        try {
+            return stack.size();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Drops every address and gives the slabs back to the OS.
+     */
+    public void clear() {
+        writeLock.lock();
+        try {
+            stack.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void forEach(final Visitor<? super InetAddress> visitor, long now) {
+        forEach(new AddressVisitor() {
+            public void visit(byte[] address, int length, long expiresAt) {
+                visitor.visit(AddressCodec.toInetAddress(Arrays.copyOf(address, length)), expiresAt);
+            }
+        }, now);
+    }
+
+    public void forEach(AddressVisitor visitor, long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        readLock.lock();
+        try {
+            for (int slot = stack.bottomSlot(); slot != OffHeapIndexedStack.NIL; slot = stack.aboveOf(slot)) {
+                if (!stack.isExpired(slot, now)) {
+                    visitor.visit(address, write(slot, address), stack.deadlineAt(slot));
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int expire(long now) {
+        writeLock.lock();
+        try {
+            return stack.expire(now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void setExpiryListener(KeyListener listener) {
+        writeLock.lock();
+        try {
+            stack.setExpiryListener(listener);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, the slabs drop in insertion order.
+     */
+    public void setAccessExpiry(AccessExpiry expiry) {
+        throw new UnsupportedOperationException("No access expiry off heap");
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, as setAccessExpiry().
+     */
+    public boolean renew(byte[] address, long expiresAt, long now) {
+        throw new UnsupportedOperationException("No renewal off heap");
+    }
+
+    /**
+     * @return the slabs, the heap side is negligible.
+     */
+    public long estimatedBytes() {
+        return offHeapBytes();
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * @return bytes held out of the heap.
+     */
+    long offHeapBytes() {
+        readLock.lock();
+        try {
+            return stack.offHeapBytes();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        readLock.lock();
+        try {
+            return stack.toString();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private boolean push(long high, long low, long expiresAt, long now) {
+        writeLock.lock();
+        try {
+            return stack.push(high, low, expiresAt, now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private boolean remove(long high, long low, long now) {
+        writeLock.lock();
+        try {
+            return stack.remove(high, low, now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private boolean contains(long high, long low, long now) {
+        readLock.lock();
+        try {
+            return stack.contains(high, low, now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private int write(int slot, byte[] address) {
+        return AddressCodec.write(stack.highAt(slot), stack.lowAt(slot), address);
+    }
+
+    /**
+     * @return the (high, low) keys of the elements one after the other, taken out of the lock.
+     */
+    private static long[] keysOf(Collection<? extends InetAddress> elements) {
+        byte[][] addresses = PrimitiveAddressEngine.addressesOf(elements);
+        long[] keys = new long[addresses.length * 2];
+        for (int i = 0; i < addresses.length; i++) {
+            byte[] address = addresses[i];
+            if (AddressCodec.isIpv4(address)) {
+                keys[2 * i + 1] = AddressCodec.mapped(AddressCodec.ipv4(address));
+            } else {
+                keys[2 * i] = AddressCodec.high(address);
+                keys[2 * i + 1] = AddressCodec.low(address);
+            }
+        }
+        return keys;
+    }
+
+    private static InetAddress toInetAddress(byte[] address, int length) {
+        if (length == 0) {
+            return null;
+        }
+        return AddressCodec.toInetAddress(length == address.length ? address : Arrays.copyOf(address, length));
+    }
+}
@@ -0,0 +1,395 @@
+package com.unicommerce.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link LongPairIndexedStack} kept out of the java heap: the open-addressing index, the
+ * LIFO links and the deadlines live in direct buffer slabs, so tens of millions of
+ * addresses cost neither heap nor GC time. IPv4 addresses are stored IPv4-mapped.
+ *
+ * Each slot is one record of the slabs:
+ * <pre>
+ *   high(8) low(8) expiresAt(8) above(4) below(4) state(4) padding(4)
+ * </pre>
+ * The slabs are at most {@link #SLAB_RECORDS} records, a table of 2^30 slots is 16K slabs.
+ *
+ * Every element of a cache gets the same max age, so the bottom of the stack is also the
+ * element with the closest deadline: expiry drops elements from the bottom and needs no
+ * timing wheel (which would sit on the heap).
+ *
+ * {@link #clear()} and {@link #free()} give the memory back to the OS right away.
+ * Not thread-safe, callers hold their own lock.
+ */
+class OffHeapIndexedStack {
+
+    static final int NIL = -1;
+
+    static final int SLAB_SHIFT = 16;
+    static final int SLAB_RECORDS = 1 << SLAB_SHIFT;
+    static final int RECORD_BYTES = 40;
+
+    private static final int HIGH = 0;
+    private static final int LOW = 8;
+    private static final int EXPIRES_AT = 16;
+    private static final int ABOVE = 24;
+    private static final int BELOW = 28;
+    private static final int STATE = 32;
+
+    private static final int FREE = 0;
+    private static final int FULL = 1;
+    private static final int DELETED = 2;
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private ByteBuffer[] slabs;
+    private int mask;
+    private int top = NIL;
+    private int bottom = NIL;
+    private int size;
+    private int tombstones;
+    // told of the elements dropped once expired, null if none.
+    private AddressEngine.KeyListener expiryListener;
+
+    OffHeapIndexedStack(int expectedSize) {
+        this.slabs = allocate(capacityFor(expectedSize));
+        this.mask = capacityOf(slabs) - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return top == NIL;
+    }
+
+    /**
+     * @return bytes held out of the heap.
+     */
+    long offHeapBytes() {
+        return (long) (mask + 1) * RECORD_BYTES;
+    }
+
+    /**
+     * @return false if the key is already present and not expired.
+     */
+    boolean push(long high, long low, long expiresAt, long now) {
+        int slot = indexOf(high, low);
+        if (slot != NIL) {
+            if (!isExpired(slot, now)) {
+                return false;
+            }
+            drop(slot, now);
+        }
+        ensureRoomForOne();
+        slot = insertionSlot(slabs, mask, high, low);
+        insert(slot, high, low, expiresAt);
+        return true;
+    }
+
+    /**
+     * @return true if the key was present and not expired.
+     */
+    boolean remove(long high, long low, long now) {
+        int slot = indexOf(high, low);
+        if (slot == NIL) {
+            return false;
+        }
+        return drop(slot, now);
+    }
+
+    boolean contains(long high, long low, long now) {
+        int slot = indexOf(high, low);
+        return slot != NIL && !isExpired(slot, now);
+    }
+
+    long highAt(int slot) {
+        return getLong(slabs, slot, HIGH);
+    }
+
+    long lowAt(int slot) {
+        return getLong(slabs, slot, LOW);
+    }
+
+    long deadlineAt(int slot) {
+        return getLong(slabs, slot, EXPIRES_AT);
+    }
+
+    /**
+     * @return slot of the oldest element, NIL if none. With {@link #aboveOf(int)}, walks
+     * the stack from the bottom without allocating.
+     */
+    int bottomSlot() {
+        return bottom;
+    }
+
+    int aboveOf(int slot) {
+        return getInt(slabs, slot, ABOVE);
+    }
+
+    /**
+     * @return slot of the most recently pushed element not expired, NIL if none.
+     */
+    int peekSlot(long now) {
+        int slot = top;
+        while (slot != NIL && isExpired(slot, now)) {
+            slot = getInt(slabs, slot, BELOW);
+        }
+        return slot;
+    }
+
+    /**
+     * Removes the most recently pushed element not expired, expired elements met on
+     * the way are dropped. The key stays readable in the returned slot until the next push.
+     *
+     * @return the slot of the removed element, NIL if none.
+     */
+    int pollSlot(long now) {
+        while (top != NIL) {
+            int slot = top;
+            if (drop(slot, now)) {
+                return slot;
+            }
+        }
+        return NIL;
+    }
+
+    /**
+     * Drops the expired elements from the bottom of the stack, stops at the first one alive.
+     *
+     * @return number of dropped elements.
+     */
+    int expire(long now) {
+        int expired = 0;
+        while (bottom != NIL && isExpired(bottom, now)) {
+            drop(bottom, now);
+            expired++;
+        }
+        return expired;
+    }
+
+    /**
+     * Sets the listener told of the elements dropped once expired, by expire() or by
+     * another operation meeting them.
+     *
+     * @param listener null for none.
+     */
+    void setExpiryListener(AddressEngine.KeyListener listener) {
+        this.expiryListener = listener;
+    }
+
+    /**
+     * Drops every element and frees the slabs, keeping only a minimal table.
+     */
+    void clear() {
+        free();
+        slabs = allocate(MIN_CAPACITY);
+        mask = MIN_CAPACITY - 1;
+    }
+
+    /**
+     * Frees the slabs, the stack must not be used afterwards.
+     */
+    void free() {
+        ByteBuffer[] previous = slabs;
+        slabs = new ByteBuffer[0];
+        mask = -1;
+        top = NIL;
+        bottom = NIL;
+        size = 0;
+        tombstones = 0;
+        free(previous);
+    }
+
+    /**
+     * @return the occupied slots from the oldest (bottom) to the most recent (top).
+     */
+    int[] slotsBottomToTop() {
+        int[] out = new int[size];
+        int i = 0;
+        for (int slot = bottom; slot != NIL; slot = getInt(slabs, slot, ABOVE)) {
+            out[i++] = slot;
+        }
+        return out;
+    }
+
+    boolean isExpired(int slot, long now) {
+        long deadline = getLong(slabs, slot, EXPIRES_AT);
+        return deadline != IndexedStack.NEVER && deadline - now <= 0;
+    }
+
+    private int indexOf(long high, long low) {
+        for (int slot = hash(high, low) & mask; ; slot = (slot + 1) & mask) {
+            int state = getInt(slabs, slot, STATE);
+            if (state == FREE) {
+                return NIL;
+            }
+            if (state == FULL && getLong(slabs, slot, HIGH) == high && getLong(slabs, slot, LOW) == low) {
+                return slot;
+            }
+        }
+    }
+
+    private void ensureRoomForOne() {
+        int capacity = mask + 1;
+        if ((size + tombstones + 1) * 4L > capacity * 3L) {
+            // mostly tombstones: rehash at the same capacity to purge them.
+            int grown = size + 1 > capacity / 2 ? capacity * 2 : capacity;
+            if (grown > MAX_CAPACITY) {
+                throw new IllegalStateException("Off-heap stack full : " + size + " elements");
+            }
+            resize(grown);
+        }
+    }
+
+    private void insert(int slot, long high, long low, long expiresAt) {
+        if (getInt(slabs, slot, STATE) == DELETED) {
+            tombstones--;
+        }
+        putLong(slabs, slot, HIGH, high);
+        putLong(slabs, slot, LOW, low);
+        putLong(slabs, slot, EXPIRES_AT, expiresAt);
+        putInt(slabs, slot, STATE, FULL);
+        putInt(slabs, slot, ABOVE, NIL);
+        putInt(slabs, slot, BELOW, top);
+        if (top != NIL) {
+            putInt(slabs, top, ABOVE, slot);
+        } else {
+            bottom = slot;
+        }
+        top = slot;
+        size++;
+    }
+
+    /**
+     * Vacates the slot, telling the expiry listener if its element had expired.
+     *
+     * @return true if the element was not expired.
+     */
+    private boolean drop(int slot, long now) {
+        vacate(slot);
+        if (!isExpired(slot, now)) {
+            return true;
+        }
+        if (expiryListener != null) {
+            expiryListener.dropped(highAt(slot), lowAt(slot), deadlineAt(slot));
+        }
+        return false;
+    }
+
+    /**
+     * Unlinks the slot and leaves a tombstone, its key stays readable.
+     */
+    private void vacate(int slot) {
+        int above = getInt(slabs, slot, ABOVE);
+        int below = getInt(slabs, slot, BELOW);
+        if (above != NIL) {
+            putInt(slabs, above, BELOW, below);
+        } else {
+            top = below;
+        }
+        if (below != NIL) {
+            putInt(slabs, below, ABOVE, above);
+        } else {
+            bottom = above;
+        }
+        putInt(slabs, slot, STATE, DELETED);
+        tombstones++;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        ByteBuffer[] previous = slabs;
+        int[] order = slotsBottomToTop();
+        slabs = allocate(capacity);
+        mask = capacity - 1;
+        top = NIL;
+        bottom = NIL;
+        size = 0;
+        tombstones = 0;
+        for (int old : order) {
+            long high = getLong(previous, old, HIGH);
+            long low = getLong(previous, old, LOW);
+            insert(insertionSlot(slabs, mask, high, low), high, low, getLong(previous, old, EXPIRES_AT));
+        }
+        free(previous);
+    }
+
+    private static int insertionSlot(ByteBuffer[] slabs, int mask, long high, long low) {
+        int slot = hash(high, low) & mask;
+        while (getInt(slabs, slot, STATE) == FULL) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long high, long low) {
+        return PrimitiveIndexedStack.mix(high * 31 + low);
+    }
+
+    // ---- slab access, a slot is a record of slab slot >>> SLAB_SHIFT.
+
+    private static long getLong(ByteBuffer[] slabs, int slot, int field) {
+        return slabs[slot >>> SLAB_SHIFT].getLong(offset(slot, field));
+    }
+
+    private static void putLong(ByteBuffer[] slabs, int slot, int field, long value) {
+        slabs[slot >>> SLAB_SHIFT].putLong(offset(slot, field), value);
+    }
+
+    private static int getInt(ByteBuffer[] slabs, int slot, int field) {
+        return slabs[slot >>> SLAB_SHIFT].getInt(offset(slot, field));
+    }
+
+    private static void putInt(ByteBuffer[] slabs, int slot, int field, int value) {
+        slabs[slot >>> SLAB_SHIFT].putInt(offset(slot, field), value);
+    }
+
+    private static int offset(int slot, int field) {
+        return (slot & (SLAB_RECORDS - 1)) * RECORD_BYTES + field;
+    }
+
+    /**
+     * @return zeroed slabs (every slot FREE) holding the given number of records.
+     */
+    private static ByteBuffer[] allocate(int capacity) {
+        int records = Math.min(capacity, SLAB_RECORDS);
+        ByteBuffer[] slabs = new ByteBuffer[capacity / records];
+        try {
+            for (int i = 0; i < slabs.length; i++) {
+                slabs[i] = DirectBuffers.allocate(records * RECORD_BYTES);
+            }
+        } catch (OutOfMemoryError e) {
+            free(slabs);
+            throw e;
+        }
+        return slabs;
+    }
+
+    private static void free(ByteBuffer[] slabs) {
+        for (ByteBuffer slab : slabs) {
+            DirectBuffers.free(slab);
+        }
+    }
+
+    private static int capacityOf(ByteBuffer[] slabs) {
+        return slabs.length == 0 ? 0 : slabs.length * (slabs[0].capacity() / RECORD_BYTES);
+    }
+
+    static int capacityFor(int expectedSize) {
+        return PrimitiveIndexedStack.capacityFor(expectedSize);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("[");
+        for (int slot : slotsBottomToTop()) {
+            if (out.length() > 1) {
+                out.append(", ");
+            }
+            out.append(Long.toHexString(highAt(slot))).append(':').append(Long.toHexString(lowAt(slot)));
+        }
+        return out.append(']').toString();
+    }
+}
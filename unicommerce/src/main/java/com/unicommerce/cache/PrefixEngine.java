@@ -0,0 +1,235 @@
+package com.unicommerce.cache;
+
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link StackEngine} of the address prefixes of an AddressCache, a {@link PrefixIndexedStack}
+ * guarded by one read/write lock. Besides the exact operations on a prefix, answers the
+ * longest-prefix match of an address without allocating.
+ *
+ * Prefixes are given as 128-bit keys and lengths, IPv4 ones in the IPv4-mapped space, see
+ * {@link AddressPrefix#mappedLength(byte[], int)}.
+ */
+final class PrefixEngine implements StackEngine<AddressPrefix> {
+
+    private final PrefixIndexedStack stack;
+    // read without the lock: the address lookups skip the trie while there is no prefix.
+    private volatile int size;
+
+    // read & write locks must come from the same instance, otherwise readers never exclude writers.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock.WriteLock writeLock = lock.writeLock();
+    private final ReentrantReadWriteLock.ReadLock readLock = lock.readLock();
+
+    PrefixEngine(long timeToLiveNanos) {
+        this.stack = PrefixIndexedStack.forTimeToLive(timeToLiveNanos);
+    }
+
+    boolean push(long high, long low, int length, long expiresAt, long now) {
+        writeLock.lock();
+        try {
+            return stack.push(high, low, length, expiresAt, now);
+        } finally {
+            size = stack.size();
+            writeLock.unlock();
+        }
+    }
+
+    boolean remove(long high, long low, int length, long now) {
+        writeLock.lock();
+        try {
+            return stack.remove(high, low, length, now);
+        } finally {
+            size = stack.size();
+            writeLock.unlock();
+        }
+    }
+
+    boolean contains(long high, long low, int length, long now) {
+        readLock.lock();
+        try {
+            return stack.contains(high, low, length, now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if a prefix not expired covers the address.
+     */
+    boolean matches(long high, long low, long now) {
+        if (size == 0) {
+            return false;
+        }
+        readLock.lock();
+        try {
+            return stack.matches(high, low, now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * @return length (on 128 bits) of the longest prefix not expired covering the address, -1 if none.
+     */
+    int longestMatch(long high, long low, long now) {
+        if (size == 0) {
+            return -1;
+        }
+        readLock.lock();
+        try {
+            return stack.longestMatch(high, low, now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public boolean push(AddressPrefix element, long expiresAt, long now) {
+        byte[] network = element.getNetwork().getAddress();
+        int length = AddressPrefix.mappedLength(network, element.getLength());
+        return push(AddressCodec.keyHigh(network), AddressCodec.keyLow(network), length, expiresAt, now);
+    }
+
+    public boolean remove(AddressPrefix element, long now) {
+        byte[] network = element.getNetwork().getAddress();
+        int length = AddressPrefix.mappedLength(network, element.getLength());
+        return remove(AddressCodec.keyHigh(network), AddressCodec.keyLow(network), length, now);
+    }
+
+    public boolean contains(AddressPrefix element, long now) {
+        byte[] network = element.getNetwork().getAddress();
+        int length = AddressPrefix.mappedLength(network, element.getLength());
+        return contains(AddressCodec.keyHigh(network), AddressCodec.keyLow(network), length, now);
+    }
+
+    public AddressPrefix peek(long now) {
+        readLock.lock();
+        try {
+            int slot = stack.peekSlot(now);
+            return slot == PrimitiveIndexedStack.NIL ? null : prefixAt(slot);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public AddressPrefix poll(long now) {
+        writeLock.lock();
+        try {
+            int slot = stack.pollSlot(now);
+            return slot == PrimitiveIndexedStack.NIL ? null : prefixAt(slot);
+        } finally {
+            size = stack.size();
+            writeLock.unlock();
+        }
+    }
+
+    public int pushAll(Collection<? extends AddressPrefix> elements, long expiresAt, long now) {
+        int pushed = 0;
+        for (AddressPrefix element : elements) {
+            if (push(element, expiresAt, now)) {
+                pushed++;
+            }
+        }
+        return pushed;
+    }
+
+    public int removeAll(Collection<? extends AddressPrefix> elements, long now) {
+        int removed = 0;
+        for (AddressPrefix element : elements) {
+            if (remove(element, now)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public boolean containsAll(Collection<? extends AddressPrefix> elements, long now) {
+        for (AddressPrefix element : elements) {
+            if (!contains(element, now)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int pollN(int n, Collection<? super AddressPrefix> into, long now) {
+        int polled = 0;
+        writeLock.lock();
+        try {
+            int slot;
+            while (polled < n && (slot = stack.pollSlot(now)) != PrimitiveIndexedStack.NIL) {
+                into.add(prefixAt(slot));
+                polled++;
+            }
+        } finally {
+            size = stack.size();
+            writeLock.unlock();
+        }
+        return polled;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        writeLock.lock();
+        try {
+            stack.clear();
+        } finally {
+            size = 0;
+            writeLock.unlock();
+        }
+    }
+
+    public void forEach(Visitor<? super AddressPrefix> visitor, long now) {
+        readLock.lock();
+        try {
+            for (int slot = stack.bottomSlot(); slot != PrimitiveIndexedStack.NIL; slot = stack.aboveOf(slot)) {
+                if (!stack.isExpired(slot, now)) {
+                    visitor.visit(prefixAt(slot), stack.deadlineAt(slot));
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int expire(long now) {
+        writeLock.lock();
+        try {
+            return stack.expire(now);
+        } finally {
+            size = stack.size();
+            writeLock.unlock();
+        }
+    }
+
+    public long estimatedBytes() {
+        readLock.lock();
+        try {
+            return stack.estimatedBytes();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public long getTickNanos() {
+        return stack.getTickNanos();
+    }
+
+    @Override
+    public String toString() {
+        readLock.lock();
+        try {
+            return stack.toString();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private AddressPrefix prefixAt(int slot) {
+        return AddressPrefix.of(stack.highAt(slot), stack.lowAt(slot), stack.lengthAt(slot));
+    }
+}
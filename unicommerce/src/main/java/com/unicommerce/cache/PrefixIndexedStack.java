@@ -0,0 +1,194 @@
+package com.unicommerce.cache;
+
+/**
+ * {@link IndexedStack} of address prefixes (CIDR ranges) of 128-bit keys, IPv4 ranges being
+ * stored in the IPv4-mapped space: 10.0.0.0/8 is ::ffff:10.0.0.0/104. The hash table gives
+ * the exact push/remove/contains of a prefix, the {@link PrefixTrie} indexes the slots by
+ * prefix for the longest-prefix matches of an address.
+ *
+ * The trie follows the slots: a slot vacated (removed, polled or expired) leaves it, a
+ * slot moved by a resize is updated in it. Lookups skip the prefixes expired but not
+ * dropped yet. Nothing is allocated per prefix nor per lookup.
+ *
+ * Not thread-safe, callers hold their own lock.
+ */
+class PrefixIndexedStack extends PrimitiveIndexedStack {
+
+    private long[] highs;
+    private long[] lows;
+    private byte[] lengths;
+    private final PrefixTrie trie = new PrefixTrie();
+
+    PrefixIndexedStack(long tickNanos) {
+        super(0, tickNanos);
+        this.highs = new long[mask + 1];
+        this.lows = new long[mask + 1];
+        this.lengths = new byte[mask + 1];
+    }
+
+    /**
+     * @return a stack whose wheel is sized for prefixes living the given time.
+     */
+    static PrefixIndexedStack forTimeToLive(long timeToLiveNanos) {
+        return new PrefixIndexedStack(IndexedStack.tickFor(timeToLiveNanos));
+    }
+
+    /**
+     * @param length prefix length, 0 to 128. The bits past it are ignored.
+     * @return false if the prefix is already present and not expired.
+     */
+    boolean push(long high, long low, int length, long expiresAt, long now) {
+        high &= PrefixTrie.highMask(length);
+        low &= PrefixTrie.lowMask(length);
+        int slot = indexOf(high, low, length);
+        if (slot != NIL) {
+            if (!isExpired(slot, now)) {
+                return false;
+            }
+            vacate(slot);
+        }
+        ensureRoomForOne();
+        slot = insertionSlot(high, low, length);
+        highs[slot] = high;
+        lows[slot] = low;
+        lengths[slot] = (byte) length;
+        occupy(slot, expiresAt);
+        trie.put(high, low, length, slot);
+        return true;
+    }
+
+    /**
+     * @return true if the prefix was present and not expired.
+     */
+    boolean remove(long high, long low, int length, long now) {
+        int slot = indexOf(high & PrefixTrie.highMask(length), low & PrefixTrie.lowMask(length), length);
+        if (slot == NIL) {
+            return false;
+        }
+        vacate(slot);
+        return !isExpired(slot, now);
+    }
+
+    /**
+     * @return true if this very prefix is present and not expired.
+     */
+    boolean contains(long high, long low, int length, long now) {
+        int slot = indexOf(high & PrefixTrie.highMask(length), low & PrefixTrie.lowMask(length), length);
+        return slot != NIL && !isExpired(slot, now);
+    }
+
+    /**
+     * @return true if a prefix not expired covers the address.
+     */
+    boolean matches(long high, long low, long now) {
+        for (int node = trie.nextMatch(high, low, PrefixTrie.NIL); node != PrefixTrie.NIL;
+             node = trie.nextMatch(high, low, node)) {
+            if (!isExpired(trie.valueAt(node), now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return length of the longest prefix not expired covering the address, -1 if none.
+     */
+    int longestMatch(long high, long low, long now) {
+        int longest = -1;
+        for (int node = trie.nextMatch(high, low, PrefixTrie.NIL); node != PrefixTrie.NIL;
+             node = trie.nextMatch(high, low, node)) {
+            if (!isExpired(trie.valueAt(node), now)) {
+                longest = trie.lengthAt(node);
+            }
+        }
+        return longest;
+    }
+
+    long highAt(int slot) {
+        return highs[slot];
+    }
+
+    long lowAt(int slot) {
+        return lows[slot];
+    }
+
+    int lengthAt(int slot) {
+        return lengths[slot] & 0xff;
+    }
+
+    @Override
+    void vacate(int slot) {
+        super.vacate(slot);
+        trie.remove(highs[slot], lows[slot], lengths[slot] & 0xff);
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        trie.clear();
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return super.estimatedBytes() + trie.estimatedBytes();
+    }
+
+    Object replaceKeys(int capacity) {
+        Object[] previous = {highs, lows, lengths};
+        highs = new long[capacity];
+        lows = new long[capacity];
+        lengths = new byte[capacity];
+        return previous;
+    }
+
+    int reinsert(Object previousKeys, int previousSlot) {
+        Object[] previous = (Object[]) previousKeys;
+        long high = ((long[]) previous[0])[previousSlot];
+        long low = ((long[]) previous[1])[previousSlot];
+        byte length = ((byte[]) previous[2])[previousSlot];
+        int slot = insertionSlot(high, low, length & 0xff);
+        highs[slot] = high;
+        lows[slot] = low;
+        lengths[slot] = length;
+        trie.put(high, low, length & 0xff, slot);
+        return slot;
+    }
+
+    int keyBytes() {
+        return 17;
+    }
+
+    private int indexOf(long high, long low, int length) {
+        for (int slot = hash(high, low, length) & mask; !isFree(slot); slot = (slot + 1) & mask) {
+            if (isFull(slot) && highs[slot] == high && lows[slot] == low && (lengths[slot] & 0xff) == length) {
+                return slot;
+            }
+        }
+        return NIL;
+    }
+
+    private int insertionSlot(long high, long low, int length) {
+        int slot = hash(high, low, length) & mask;
+        while (isFull(slot)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long high, long low, int length) {
+        return mix((high * 31 + low) * 31 + length);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("[");
+        for (int slot : slotsBottomToTop()) {
+            if (out.length() > 1) {
+                out.append(", ");
+            }
+            out.append(Long.toHexString(highs[slot])).append(':').append(Long.toHexString(lows[slot]))
+                    .append('/').append(lengths[slot] & 0xff);
+        }
+        return out.append(']').toString();
+    }
+}
@@ -0,0 +1,306 @@
+package com.unicommerce.cache;
+
+import java.util.Arrays;
+
+/**
+ * Path-compressed binary radix trie of 128-bit prefixes, the index of the longest-prefix
+ * matches. A node only exists where a prefix is stored or where two branches part, so a
+ * lookup visits at most one node per stored prefix length on the path of the address,
+ * whatever the number of prefixes.
+ *
+ * Nodes live in parallel arrays (key, length, children, value) and are recycled through
+ * a free list: neither the lookups nor the updates allocate, except to grow the arrays.
+ * The root is the empty prefix ::/0 and is never freed.
+ *
+ * Prefixes are (high, low, length) with the bits past the length cleared. Values are ints,
+ * the slots of the {@link PrefixIndexedStack} holding the prefixes.
+ *
+ * Not thread-safe, callers hold their own lock.
+ */
+final class PrefixTrie {
+
+    static final int NIL = -1;
+    static final int MAX_LENGTH = 128;
+
+    private static final int ROOT = 0;
+    private static final int MIN_NODES = 16;
+    // key 16, children 8, value 4, length 1.
+    private static final int NODE_BYTES = 29;
+
+    private long[] highs;
+    private long[] lows;
+    private byte[] lengths;
+    private int[] zeros;
+    private int[] ones;
+    private int[] values;
+    // nodes ever used, the freed ones are chained through zeros[] from freeNode.
+    private int used;
+    private int freeNode = NIL;
+    private int size;
+
+    PrefixTrie() {
+        allocate(MIN_NODES);
+        clear();
+    }
+
+    /**
+     * @return number of prefixes stored.
+     */
+    int size() {
+        return size;
+    }
+
+    long estimatedBytes() {
+        return (long) values.length * NODE_BYTES;
+    }
+
+    /**
+     * Stores the value of the prefix, replacing the previous one if any.
+     */
+    void put(long high, long low, int length, int value) {
+        int node = ROOT;
+        while (true) {
+            int nodeLength = lengthAt(node);
+            if (nodeLength == length) {
+                if (values[node] == NIL) {
+                    size++;
+                }
+                values[node] = value;
+                return;
+            }
+            int bit = bit(high, low, nodeLength);
+            int child = childOf(node, bit);
+            if (child == NIL) {
+                setChild(node, bit, newNode(high, low, length, value));
+                size++;
+                return;
+            }
+            int childLength = lengthAt(child);
+            int common = Math.min(commonLength(high, low, highs[child], lows[child]), Math.min(length, childLength));
+            if (common == childLength) {
+                node = child;
+                continue;
+            }
+            int inserted;
+            if (common == length) {
+                // the new prefix covers the child.
+                inserted = newNode(high, low, length, value);
+            } else {
+                // the branches part at common, below a node holding no prefix.
+                inserted = newNode(high & highMask(common), low & lowMask(common), common, NIL);
+                setChild(inserted, bit(high, low, common), newNode(high, low, length, value));
+            }
+            setChild(inserted, bit(highs[child], lows[child], common), child);
+            setChild(node, bit, inserted);
+            size++;
+            return;
+        }
+    }
+
+    /**
+     * Removes the prefix, and the nodes no more needed with it.
+     *
+     * @return false if the prefix was not stored.
+     */
+    boolean remove(long high, long low, int length) {
+        int grandParent = NIL;
+        int parent = NIL;
+        int node = ROOT;
+        while (lengthAt(node) != length) {
+            int nodeLength = lengthAt(node);
+            if (nodeLength > length) {
+                return false;
+            }
+            int child = childOf(node, bit(high, low, nodeLength));
+            if (child == NIL || !covers(child, high, low) || lengthAt(child) > length) {
+                return false;
+            }
+            grandParent = parent;
+            parent = node;
+            node = child;
+        }
+        if (values[node] == NIL) {
+            return false;
+        }
+        values[node] = NIL;
+        size--;
+        if (node == ROOT) {
+            return true;
+        }
+        if (zeros[node] != NIL && ones[node] != NIL) {
+            // still parts two branches.
+            return true;
+        }
+        int only = zeros[node] != NIL ? zeros[node] : ones[node];
+        replaceChild(parent, node, only);
+        freeNode(node);
+        if (only == NIL && parent != ROOT && values[parent] == NIL) {
+            // the parent was parting two branches, now it leads to the other one only.
+            int other = zeros[parent] != NIL ? zeros[parent] : ones[parent];
+            replaceChild(grandParent, parent, other);
+            freeNode(parent);
+        }
+        return true;
+    }
+
+    /**
+     * Walks the prefixes covering the address from the shortest to the longest, without
+     * allocating:
+     * <pre>
+     *   for (int node = trie.nextMatch(high, low, NIL); node != NIL; node = trie.nextMatch(high, low, node))
+     * </pre>
+     *
+     * @param after node returned by the previous call, NIL to start from the root.
+     * @return the next node holding a prefix covering the address, NIL if none.
+     */
+    int nextMatch(long high, long low, int after) {
+        int node;
+        if (after == NIL) {
+            node = ROOT;
+        } else {
+            int afterLength = lengthAt(after);
+            if (afterLength == MAX_LENGTH) {
+                return NIL;
+            }
+            node = childOf(after, bit(high, low, afterLength));
+        }
+        while (node != NIL) {
+            if (!covers(node, high, low)) {
+                return NIL;
+            }
+            if (values[node] != NIL) {
+                return node;
+            }
+            int nodeLength = lengthAt(node);
+            if (nodeLength == MAX_LENGTH) {
+                return NIL;
+            }
+            node = childOf(node, bit(high, low, nodeLength));
+        }
+        return NIL;
+    }
+
+    int valueAt(int node) {
+        return values[node];
+    }
+
+    int lengthAt(int node) {
+        return lengths[node] & 0xff;
+    }
+
+    void clear() {
+        Arrays.fill(values, NIL);
+        used = 1;
+        freeNode = NIL;
+        size = 0;
+        highs[ROOT] = 0;
+        lows[ROOT] = 0;
+        lengths[ROOT] = 0;
+        zeros[ROOT] = NIL;
+        ones[ROOT] = NIL;
+    }
+
+    /**
+     * @return mask of the first length bits of the high half of a 128-bit key.
+     */
+    static long highMask(int length) {
+        if (length == 0) {
+            return 0;
+        }
+        return length >= 64 ? -1L : -1L << (64 - length);
+    }
+
+    /**
+     * @return mask of the first length bits of the low half of a 128-bit key.
+     */
+    static long lowMask(int length) {
+        if (length <= 64) {
+            return 0;
+        }
+        return length == MAX_LENGTH ? -1L : -1L << (MAX_LENGTH - length);
+    }
+
+    private boolean covers(int node, long high, long low) {
+        int length = lengthAt(node);
+        return ((high ^ highs[node]) & highMask(length)) == 0 && ((low ^ lows[node]) & lowMask(length)) == 0;
+    }
+
+    private int childOf(int node, int bit) {
+        return bit == 0 ? zeros[node] : ones[node];
+    }
+
+    private void setChild(int node, int bit, int child) {
+        if (bit == 0) {
+            zeros[node] = child;
+        } else {
+            ones[node] = child;
+        }
+    }
+
+    private void replaceChild(int node, int child, int by) {
+        if (zeros[node] == child) {
+            zeros[node] = by;
+        } else {
+            ones[node] = by;
+        }
+    }
+
+    private int newNode(long high, long low, int length, int value) {
+        int node;
+        if (freeNode != NIL) {
+            node = freeNode;
+            freeNode = zeros[node];
+        } else {
+            if (used == values.length) {
+                allocate(values.length * 2);
+            }
+            node = used++;
+        }
+        highs[node] = high;
+        lows[node] = low;
+        lengths[node] = (byte) length;
+        zeros[node] = NIL;
+        ones[node] = NIL;
+        values[node] = value;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        values[node] = NIL;
+        ones[node] = NIL;
+        zeros[node] = freeNode;
+        freeNode = node;
+    }
+
+    private void allocate(int capacity) {
+        int previous = values == null ? 0 : values.length;
+        highs = highs == null ? new long[capacity] : Arrays.copyOf(highs, capacity);
+        lows = lows == null ? new long[capacity] : Arrays.copyOf(lows, capacity);
+        lengths = lengths == null ? new byte[capacity] : Arrays.copyOf(lengths, capacity);
+        zeros = zeros == null ? new int[capacity] : Arrays.copyOf(zeros, capacity);
+        ones = ones == null ? new int[capacity] : Arrays.copyOf(ones, capacity);
+        values = values == null ? new int[capacity] : Arrays.copyOf(values, capacity);
+        Arrays.fill(values, previous, capacity, NIL);
+    }
+
+    /**
+     * @return bit at the given index of the 128-bit key, 0 being the most significant.
+     */
+    private static int bit(long high, long low, int index) {
+        if (index < 64) {
+            return (int) (high >>> (63 - index)) & 1;
+        }
+        return (int) (low >>> (127 - index)) & 1;
+    }
+
+    /**
+     * @return number of leading bits the two keys have in common.
+     */
+    private static int commonLength(long high, long low, long otherHigh, long otherLow) {
+        long difference = high ^ otherHigh;
+        if (difference != 0) {
+            return Long.numberOfLeadingZeros(difference);
+        }
+        return 64 + Long.numberOfLeadingZeros(low ^ otherLow);
+    }
+}
@@ -0,0 +1,613 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * {@link AddressEngine} storing IPv4 addresses as ints and IPv6 addresses as two longs
+ * in two primitive indexed stacks guarded by one {@link StampedLock}. Pushes are numbered
+ * from a single sequence, peek and poll take the newer of the two tops.
+ *
+ * contains and peek are optimistic reads: they run without taking the lock, so without
+ * writing to its cache line, then validate the stamp; only when a writer got in meanwhile
+ * do they run again under the read lock. The other reads take the read lock.
+ *
+ * With an {@link AccessExpiry}, a hit of contains or peek looks the deadline of the
+ * address up again, optimistically too: the write lock is only taken to extend a stale
+ * deadline, once per eighth of the lifetime of a hot address, not on every hit.
+ *
+ * The raw operations neither box nor allocate; the {@link InetAddress} operations are
+ * adapters, peek/poll building a new InetAddress (without host name) on the way out.
+ */
+class PrimitiveAddressEngine implements AddressEngine {
+
+    // deadline of an address not there, no nanoTime() comes close to it.
+    private static final long ABSENT = Long.MIN_VALUE;
+    // expired addresses the buffer keeps room for once told, a larger expire() grows it.
+    private static final int EXPIRED_KEPT = 64;
+
+    private final IntIndexedStack ipv4Stack;
+    private final LongPairIndexedStack ipv6Stack;
+    private long sequence;
+    // null unless the hits extend or refresh the addresses.
+    private volatile AccessExpiry accessExpiry;
+    // told of the addresses expired, and the (high, low, deadline) of the ones dropped
+    // under the write lock not told yet, see unlockWrite(). Guarded by the write lock.
+    private KeyListener expiryListener;
+    private long[] expired = new long[3 * EXPIRED_KEPT];
+    private int expiredLength;
+
+    // the views must come from the same lock as the optimistic stamps, otherwise readers never exclude writers.
+    private final StampedLock lock = new StampedLock();
+    private final Lock writeLock = lock.asWriteLock();
+    private final Lock readLock = lock.asReadLock();
+
+    PrimitiveAddressEngine(long timeToLiveNanos) {
+        this.ipv4Stack = IntIndexedStack.forTimeToLive(timeToLiveNanos);
+        this.ipv6Stack = LongPairIndexedStack.forTimeToLive(timeToLiveNanos);
+    }
+
+    public boolean push(int ipv4, long expiresAt, long now) {
+        writeLock.lock();
+        try {
+            return ipv4Stack.push(ipv4, expiresAt, now, sequence++);
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    public boolean push(byte[] address, long expiresAt, long now) {
+        boolean ipv4 = AddressCodec.isIpv4(address);
+        writeLock.lock();
+        try {
+            return pushLocked(address, ipv4, expiresAt, now);
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    public boolean push(InetAddress element, long expiresAt, long now) {
+        return push(element.getAddress(), expiresAt, now);
+    }
+
+    public boolean remove(int ipv4, long now) {
+        writeLock.lock();
+        try {
+            return ipv4Stack.remove(ipv4, now);
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    public boolean remove(byte[] address, long now) {
+        boolean ipv4 = AddressCodec.isIpv4(address);
+        writeLock.lock();
+        try {
+            return removeLocked(address, ipv4, now);
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    public boolean remove(InetAddress element, long now) {
+        return remove(element.getAddress(), now);
+    }
+
+    public boolean contains(int ipv4, long now) {
+        boolean found = containsIpv4(ipv4, now);
+        AccessExpiry expiry = this.accessExpiry;
+        if (found && expiry != null) {
+            touch(expiry, 0, AddressCodec.mapped(ipv4), now);
+        }
+        return found;
+    }
+
+    public boolean contains(byte[] address, long now) {
+        boolean found = containsAddress(address, now);
+        AccessExpiry expiry = this.accessExpiry;
+        if (found && expiry != null) {
+            touch(expiry, AddressCodec.keyHigh(address), AddressCodec.keyLow(address), now);
+        }
+        return found;
+    }
+
+    public boolean contains(InetAddress element, long now) {
+        return contains(element.getAddress(), now);
+    }
+
+    /**
+     * A failed optimistic read may have written the address bytes already, they are
+     * overwritten by the locked one.
+     */
+    public int peekInto(byte[] address, long now) {
+        int length = peekAddress(address, now);
+        AccessExpiry expiry = this.accessExpiry;
+        if (length == AddressCodec.IPV4_LENGTH && expiry != null) {
+            touch(expiry, 0, AddressCodec.mapped(AddressCodec.readIpv4(address)), now);
+        } else if (length != 0 && expiry != null) {
+            touch(expiry, AddressCodec.high(address), AddressCodec.low(address), now);
+        }
+        return length;
+    }
+
+    private int peekAddress(byte[] address, long now) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int length = peekIntoLocked(address, now);
+                if (lock.validate(stamp)) {
+                    return length;
+                }
+            } catch (RuntimeException e) {
+                // raced a writer, read again under the lock.
+            }
+        }
+        readLock.lock();
+        try {
+            return peekIntoLocked(address, now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int pollInto(byte[] address, long now) {
+        writeLock.lock();
+        try {
+            return pollIntoLocked(address, now);
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    public InetAddress peek(long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        return toInetAddress(address, peekInto(address, now));
+    }
+
+    public InetAddress poll(long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        return toInetAddress(address, pollInto(address, now));
+    }
+
+    public int pushAll(Collection<? extends InetAddress> elements, long expiresAt, long now) {
+        byte[][] addresses = addressesOf(elements);
+        int pushed = 0;
+        writeLock.lock();
+        try {
+            for (byte[] address : addresses) {
+                if (pushLocked(address, AddressCodec.isIpv4(address), expiresAt, now)) {
+                    pushed++;
+                }
+            }
+        } finally {
+            unlockWrite();
+        }
+        return pushed;
+    }
+
+    public int pushAll(AddressBatch batch, long expiresAt, long now) {
+        int pushed = 0;
+        writeLock.lock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                if (i < batch.ipv4Count() ? ipv4Stack.push(batch.ipv4(i), expiresAt, now, sequence++)
+                        : ipv6Stack.push(batch.high(i), batch.low(i), expiresAt, now, sequence++)) {
+                    pushed++;
+                }
+            }
+        } finally {
+            unlockWrite();
+        }
+        return pushed;
+    }
+
+    public int removeAll(Collection<? extends InetAddress> elements, long now) {
+        byte[][] addresses = addressesOf(elements);
+        int removed = 0;
+        writeLock.lock();
+        try {
+            for (byte[] address : addresses) {
+                if (removeLocked(address, AddressCodec.isIpv4(address), now)) {
+                    removed++;
+                }
+            }
+        } finally {
+            unlockWrite();
+        }
+        return removed;
+    }
+
+    public boolean containsAll(Collection<? extends InetAddress> elements, long now) {
+        byte[][] addresses = addressesOf(elements);
+        readLock.lock();
+        try {
+            for (byte[] address : addresses) {
+                if (!containsLocked(address, AddressCodec.isIpv4(address), now)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int pollN(int n, Collection<? super InetAddress> into, long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        int polled = 0;
+        writeLock.lock();
+        try {
+            int length;
+            while (polled < n && (length = pollIntoLocked(address, now)) != 0) {
+                into.add(toInetAddress(address, length));
+                polled++;
+            }
+        } finally {
+            unlockWrite();
+        }
+        return polled;
+    }
+
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int size = ipv4Stack.size() + ipv6Stack.size();
+        if (stamp != 0 && lock.validate(stamp)) {
+            return size;
+        }
+        readLock.lock();
+        try {
+            return ipv4Stack.size() + ipv6Stack.size();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public void clear() {
+        writeLock.lock();
+        try {
+            ipv4Stack.clear();
+            ipv6Stack.clear();
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    public void forEach(final Visitor<? super InetAddress> visitor, long now) {
+        forEach(new AddressVisitor() {
+            public void visit(byte[] address, int length, long expiresAt) {
+                visitor.visit(AddressCodec.toInetAddress(Arrays.copyOf(address, length)), expiresAt);
+            }
+        }, now);
+    }
+
+    /**
+     * Walks both stacks from the bottom, merging them by sequence number.
+     */
+    public void forEach(AddressVisitor visitor, long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        readLock.lock();
+        try {
+            int slot4 = ipv4Stack.bottomSlot();
+            int slot6 = ipv6Stack.bottomSlot();
+            while (slot4 != PrimitiveIndexedStack.NIL || slot6 != PrimitiveIndexedStack.NIL) {
+                if (slot6 == PrimitiveIndexedStack.NIL || (slot4 != PrimitiveIndexedStack.NIL
+                        && ipv4Stack.sequenceAt(slot4) < ipv6Stack.sequenceAt(slot6))) {
+                    if (!ipv4Stack.isExpired(slot4, now)) {
+                        int length = AddressCodec.writeIpv4(ipv4Stack.keyAt(slot4), address);
+                        visitor.visit(address, length, ipv4Stack.deadlineAt(slot4));
+                    }
+                    slot4 = ipv4Stack.aboveOf(slot4);
+                } else {
+                    if (!ipv6Stack.isExpired(slot6, now)) {
+                        int length = AddressCodec.writeIpv6(ipv6Stack.highAt(slot6), ipv6Stack.lowAt(slot6), address);
+                        visitor.visit(address, length, ipv6Stack.deadlineAt(slot6));
+                    }
+                    slot6 = ipv6Stack.aboveOf(slot6);
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int expire(long now) {
+        writeLock.lock();
+        try {
+            return ipv4Stack.expire(now) + ipv6Stack.expire(now);
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    /**
+     * The addresses dropped under the write lock are recorded, then told to the listener
+     * once the lock is released: the listener may call the engine back.
+     */
+    public void setExpiryListener(KeyListener listener) {
+        writeLock.lock();
+        try {
+            this.expiryListener = listener;
+            if (listener == null) {
+                ipv4Stack.setExpiryListener(null);
+                ipv6Stack.setExpiryListener(null);
+                return;
+            }
+            ipv4Stack.setExpiryListener(new PrimitiveIndexedStack.SlotListener() {
+                public void expired(int slot) {
+                    recordExpired(0, AddressCodec.mapped(ipv4Stack.keyAt(slot)), ipv4Stack.deadlineAt(slot));
+                }
+            });
+            ipv6Stack.setExpiryListener(new PrimitiveIndexedStack.SlotListener() {
+                public void expired(int slot) {
+                    recordExpired(ipv6Stack.highAt(slot), ipv6Stack.lowAt(slot), ipv6Stack.deadlineAt(slot));
+                }
+            });
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    public void setAccessExpiry(AccessExpiry expiry) {
+        this.accessExpiry = expiry;
+    }
+
+    public boolean renew(byte[] address, long expiresAt, long now) {
+        long high = AddressCodec.keyHigh(address);
+        long low = AddressCodec.keyLow(address);
+        writeLock.lock();
+        try {
+            PrimitiveIndexedStack stack = stackOf(high, low);
+            int slot = slotOf(high, low, now);
+            if (slot == PrimitiveIndexedStack.NIL) {
+                return false;
+            }
+            if (expiresAt - stack.deadlineAt(slot) > 0) {
+                stack.extend(slot, expiresAt);
+            }
+            return true;
+        } finally {
+            unlockWrite();
+        }
+    }
+
+    public long estimatedBytes() {
+        readLock.lock();
+        try {
+            return ipv4Stack.estimatedBytes() + ipv6Stack.estimatedBytes();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public long getTickNanos() {
+        return ipv4Stack.getTickNanos();
+    }
+
+    @Override
+    public String toString() {
+        readLock.lock();
+        try {
+            return "ipv4=" + ipv4Stack + " ipv6=" + ipv6Stack;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private void recordExpired(long high, long low, long deadline) {
+        if (expiredLength == expired.length) {
+            expired = Arrays.copyOf(expired, expired.length * 2);
+        }
+        expired[expiredLength++] = high;
+        expired[expiredLength++] = low;
+        expired[expiredLength++] = deadline;
+    }
+
+    /**
+     * Releases the write lock, then tells the expiry listener of the addresses dropped
+     * under it: the listener never runs under the lock.
+     */
+    private void unlockWrite() {
+        if (expiredLength == 0) {
+            writeLock.unlock();
+            return;
+        }
+        long[] dropped = Arrays.copyOf(expired, expiredLength);
+        KeyListener listener = expiryListener;
+        expiredLength = 0;
+        if (expired.length > 3 * EXPIRED_KEPT) {
+            expired = new long[3 * EXPIRED_KEPT];
+        }
+        writeLock.unlock();
+        for (int i = 0; i < dropped.length; i += 3) {
+            listener.dropped(dropped[i], dropped[i + 1], dropped[i + 2]);
+        }
+    }
+
+    private boolean containsIpv4(int ipv4, long now) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                boolean found = ipv4Stack.contains(ipv4, now);
+                if (lock.validate(stamp)) {
+                    return found;
+                }
+            } catch (RuntimeException e) {
+                // raced a writer, read again under the lock.
+            }
+        }
+        readLock.lock();
+        try {
+            return ipv4Stack.contains(ipv4, now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private boolean containsAddress(byte[] address, long now) {
+        boolean ipv4 = AddressCodec.isIpv4(address);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                boolean found = containsLocked(address, ipv4, now);
+                if (lock.validate(stamp)) {
+                    return found;
+                }
+            } catch (RuntimeException e) {
+                // raced a writer, read again under the lock.
+            }
+        }
+        readLock.lock();
+        try {
+            return containsLocked(address, ipv4, now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Applies the access expiry to the address just hit: extends its deadline if stale,
+     * then asks for its refresh if the deadline is close. Does nothing if the address went
+     * meanwhile.
+     */
+    private void touch(AccessExpiry expiry, long high, long low, long now) {
+        long deadline = deadlineOf(high, low, now);
+        if (deadline == ABSENT || !expiry.isDue(deadline, now)) {
+            return;
+        }
+        if (expiry.isStale(deadline, now)) {
+            writeLock.lock();
+            try {
+                PrimitiveIndexedStack stack = stackOf(high, low);
+                int slot = slotOf(high, low, now);
+                if (slot == PrimitiveIndexedStack.NIL) {
+                    return;
+                }
+                deadline = stack.deadlineAt(slot);
+                if (expiry.isStale(deadline, now)) {
+                    deadline = expiry.extended(now);
+                    stack.extend(slot, deadline);
+                }
+            } finally {
+                unlockWrite();
+            }
+        }
+        if (expiry.isRefreshDue(deadline, now)) {
+            expiry.refresh(high, low, deadline);
+        }
+    }
+
+    /**
+     * @return deadline of the address of the given key, ABSENT if not there, read like contains.
+     */
+    private long deadlineOf(long high, long low, long now) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                long deadline = deadlineLocked(high, low, now);
+                if (lock.validate(stamp)) {
+                    return deadline;
+                }
+            } catch (RuntimeException e) {
+                // raced a writer, read again under the lock.
+            }
+        }
+        readLock.lock();
+        try {
+            return deadlineLocked(high, low, now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private long deadlineLocked(long high, long low, long now) {
+        int slot = slotOf(high, low, now);
+        return slot == PrimitiveIndexedStack.NIL ? ABSENT : stackOf(high, low).deadlineAt(slot);
+    }
+
+    private int slotOf(long high, long low, long now) {
+        if (AddressCodec.isMapped(high, low)) {
+            return ipv4Stack.slotOf((int) low, now);
+        }
+        return ipv6Stack.slotOf(high, low, now);
+    }
+
+    private PrimitiveIndexedStack stackOf(long high, long low) {
+        return AddressCodec.isMapped(high, low) ? ipv4Stack : ipv6Stack;
+    }
+
+    private boolean pushLocked(byte[] address, boolean ipv4, long expiresAt, long now) {
+        if (ipv4) {
+            return ipv4Stack.push(AddressCodec.ipv4(address), expiresAt, now, sequence++);
+        }
+        return ipv6Stack.push(AddressCodec.high(address), AddressCodec.low(address), expiresAt, now, sequence++);
+    }
+
+    private boolean removeLocked(byte[] address, boolean ipv4, long now) {
+        if (ipv4) {
+            return ipv4Stack.remove(AddressCodec.ipv4(address), now);
+        }
+        return ipv6Stack.remove(AddressCodec.high(address), AddressCodec.low(address), now);
+    }
+
+    private boolean containsLocked(byte[] address, boolean ipv4, long now) {
+        if (ipv4) {
+            return ipv4Stack.contains(AddressCodec.ipv4(address), now);
+        }
+        return ipv6Stack.contains(AddressCodec.high(address), AddressCodec.low(address), now);
+    }
+
+    private int peekIntoLocked(byte[] address, long now) {
+        int slot4 = ipv4Stack.peekSlot(now);
+        int slot6 = ipv6Stack.peekSlot(now);
+        if (isIpv4Newer(slot4, slot6)) {
+            return AddressCodec.writeIpv4(ipv4Stack.keyAt(slot4), address);
+        }
+        if (slot6 != PrimitiveIndexedStack.NIL) {
+            return AddressCodec.writeIpv6(ipv6Stack.highAt(slot6), ipv6Stack.lowAt(slot6), address);
+        }
+        return 0;
+    }
+
+    private int pollIntoLocked(byte[] address, long now) {
+        int slot4 = ipv4Stack.peekSlot(now);
+        int slot6 = ipv6Stack.peekSlot(now);
+        if (isIpv4Newer(slot4, slot6)) {
+            slot4 = ipv4Stack.pollSlot(now);
+            return AddressCodec.writeIpv4(ipv4Stack.keyAt(slot4), address);
+        }
+        if (slot6 != PrimitiveIndexedStack.NIL) {
+            slot6 = ipv6Stack.pollSlot(now);
+            return AddressCodec.writeIpv6(ipv6Stack.highAt(slot6), ipv6Stack.lowAt(slot6), address);
+        }
+        return 0;
+    }
+
+    /**
+     * @return the address bytes of the elements, taken out of the lock.
+     */
+    static byte[][] addressesOf(Collection<? extends InetAddress> elements) {
+        InetAddress[] array = elements.toArray(new InetAddress[0]);
+        byte[][] addresses = new byte[array.length][];
+        for (int i = 0; i < array.length; i++) {
+            addresses[i] = array[i].getAddress();
+        }
+        return addresses;
+    }
+
+    private boolean isIpv4Newer(int slot4, int slot6) {
+        if (slot4 == PrimitiveIndexedStack.NIL) {
+            return false;
+        }
+        return slot6 == PrimitiveIndexedStack.NIL || ipv4Stack.sequenceAt(slot4) > ipv6Stack.sequenceAt(slot6);
+    }
+
+    private static InetAddress toInetAddress(byte[] address, int length) {
+        if (length == 0) {
+            return null;
+        }
+        return AddressCodec.toInetAddress(length == address.length ? address : Arrays.copyOf(address, length));
+    }
+}
@@ -0,0 +1,358 @@
+package com.unicommerce.cache;
+
+import java.util.Arrays;
+
+/**
+ * Base of the primitive-keyed counterparts of {@link IndexedStack}: an open-addressing
+ * hash table (linear probing, tombstones) whose slots are also the nodes of the LIFO
+ * list and the handles of the {@link TimingWheel}. Links, deadlines and sequence numbers
+ * live in parallel arrays, so nothing is allocated per element and nothing is boxed;
+ * the subclasses only own the key arrays and the probing.
+ *
+ * All times are {@link System#nanoTime()} values. Not thread-safe, callers hold their own lock.
+ * The lookups (contains, peekSlot) may also run as optimistic reads racing a writer: their
+ * loops are bounded by the capacity so they end, and the caller validates their result or
+ * discards it, exceptions included.
+ */
+abstract class PrimitiveIndexedStack {
+
+    static final int NIL = -1;
+
+    private static final byte FREE = 0;
+    private static final byte FULL = 1;
+    private static final byte DELETED = 2;
+
+    private static final int WHEEL_SIZE = 512;
+    private static final int MIN_CAPACITY = 16;
+    // state 1, links 8, deadline 8, sequence 8, timing wheel 20, the keys apart.
+    private static final int SLOT_BYTES = 45;
+
+    byte[] states;
+    int mask;
+
+    private int[] above;
+    private int[] below;
+    private long[] expiresAt;
+    private long[] sequences;
+    private int top = NIL;
+    private int bottom = NIL;
+    private int size;
+    private int tombstones;
+    private long nextSequence;
+    private final TimingWheel wheel;
+    // told of the slots dropped once expired, null if none.
+    private SlotListener expiryListener;
+
+    private final TimingWheel.Expiry reaper = new TimingWheel.Expiry() {
+        public void expire(int slot) {
+            vacate(slot);
+            if (expiryListener != null) {
+                expiryListener.expired(slot);
+            }
+        }
+    };
+
+    PrimitiveIndexedStack(int expectedSize, long tickNanos) {
+        allocate(capacityFor(expectedSize));
+        this.wheel = new TimingWheel(tickNanos, WHEEL_SIZE, System.nanoTime());
+    }
+
+    // ---- key storage, implemented per key type.
+
+    /**
+     * Replaces the key arrays by empty ones of the given capacity.
+     *
+     * @return the previous key arrays, handed back to {@link #reinsert(Object, int)}.
+     */
+    abstract Object replaceKeys(int capacity);
+
+    /**
+     * Stores the key found at the given slot of the previous key arrays in a free slot
+     * of the current ones.
+     *
+     * @return the new slot.
+     */
+    abstract int reinsert(Object previousKeys, int previousSlot);
+
+    /**
+     * @return bytes of the key of one slot.
+     */
+    abstract int keyBytes();
+
+    // ---- shared slot management.
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return top == NIL;
+    }
+
+    /**
+     * @return bytes of the slot arrays, keys included.
+     */
+    public long estimatedBytes() {
+        return (long) states.length * (SLOT_BYTES + keyBytes());
+    }
+
+    public long getTickNanos() {
+        return wheel.getTickNanos();
+    }
+
+    /**
+     * @return sequence number of the element in the given slot.
+     */
+    public long sequenceAt(int slot) {
+        return sequences[slot];
+    }
+
+    /**
+     * @return deadline of the element in the given slot.
+     */
+    public long deadlineAt(int slot) {
+        return expiresAt[slot];
+    }
+
+    /**
+     * Moves the deadline of the element in the given slot, its place in the stack is kept.
+     */
+    public void extend(int slot, long deadline) {
+        wheel.cancel(slot);
+        expiresAt[slot] = deadline;
+        if (deadline != IndexedStack.NEVER) {
+            wheel.schedule(slot, deadline);
+        }
+    }
+
+    /**
+     * @return slot of the oldest element, NIL if none. With {@link #aboveOf(int)}, walks
+     * the stack from the bottom without allocating.
+     */
+    int bottomSlot() {
+        return bottom;
+    }
+
+    int aboveOf(int slot) {
+        return above[slot];
+    }
+
+    /**
+     * @return slot of the most recently pushed element not expired, NIL if none.
+     */
+    public int peekSlot(long now) {
+        int slot = top;
+        for (int steps = states.length; slot != NIL && isExpired(slot, now) && steps > 0; steps--) {
+            slot = below[slot];
+        }
+        return slot;
+    }
+
+    /**
+     * Removes the most recently pushed element not expired, expired elements met on
+     * the way are dropped. The key stays readable in the returned slot until the next push.
+     *
+     * @return the slot of the removed element, NIL if none.
+     */
+    public int pollSlot(long now) {
+        while (top != NIL) {
+            int slot = top;
+            if (drop(slot, now)) {
+                return slot;
+            }
+        }
+        return NIL;
+    }
+
+    /**
+     * Drops the elements whose deadline has passed.
+     *
+     * @return number of dropped elements.
+     */
+    public int expire(long now) {
+        return wheel.advance(now, reaper);
+    }
+
+    /**
+     * Sets the listener told of the slots dropped once expired, by expire() or by another
+     * operation meeting them. Their key and deadline are still readable during the call.
+     *
+     * @param listener null for none.
+     */
+    public void setExpiryListener(SlotListener listener) {
+        this.expiryListener = listener;
+    }
+
+    public void clear() {
+        Arrays.fill(states, FREE);
+        wheel.clear();
+        top = NIL;
+        bottom = NIL;
+        size = 0;
+        tombstones = 0;
+    }
+
+    /**
+     * @return the occupied slots from the oldest (bottom) to the most recent (top).
+     */
+    int[] slotsBottomToTop() {
+        int[] out = new int[size];
+        int i = 0;
+        for (int slot = bottom; slot != NIL; slot = above[slot]) {
+            out[i++] = slot;
+        }
+        return out;
+    }
+
+    boolean isFree(int slot) {
+        return states[slot] == FREE;
+    }
+
+    boolean isFull(int slot) {
+        return states[slot] == FULL;
+    }
+
+    boolean isExpired(int slot, long now) {
+        long deadline = expiresAt[slot];
+        return deadline != IndexedStack.NEVER && deadline - now <= 0;
+    }
+
+    /**
+     * Makes room for one more element, called before probing for an insertion slot.
+     */
+    void ensureRoomForOne() {
+        int capacity = mask + 1;
+        if ((size + tombstones + 1) * 4L > capacity * 3L) {
+            // mostly tombstones: rehash at the same capacity to purge them.
+            resize(size + 1 > capacity / 2 ? capacity * 2 : capacity);
+        }
+    }
+
+    /**
+     * Links the slot, whose key was just written, on top of the stack.
+     */
+    void occupy(int slot, long deadline, long sequence) {
+        if (states[slot] == DELETED) {
+            tombstones--;
+        }
+        states[slot] = FULL;
+        size++;
+        link(slot, deadline, sequence);
+    }
+
+    void occupy(int slot, long deadline) {
+        occupy(slot, deadline, nextSequence++);
+    }
+
+    /**
+     * Unlinks the slot and leaves a tombstone, its key stays readable.
+     */
+    void vacate(int slot) {
+        if (above[slot] != NIL) {
+            below[above[slot]] = below[slot];
+        } else {
+            top = below[slot];
+        }
+        if (below[slot] != NIL) {
+            above[below[slot]] = above[slot];
+        } else {
+            bottom = above[slot];
+        }
+        wheel.cancel(slot);
+        states[slot] = DELETED;
+        tombstones++;
+        size--;
+    }
+
+    /**
+     * Vacates the slot, telling the expiry listener if its element had expired.
+     *
+     * @return true if the element was not expired.
+     */
+    boolean drop(int slot, long now) {
+        vacate(slot);
+        if (!isExpired(slot, now)) {
+            return true;
+        }
+        if (expiryListener != null) {
+            expiryListener.expired(slot);
+        }
+        return false;
+    }
+
+    static int mix(int key) {
+        // murmur3 finalizer, spreads sequential addresses over the table.
+        key ^= key >>> 16;
+        key *= 0x85ebca6b;
+        key ^= key >>> 13;
+        key *= 0xc2b2ae35;
+        key ^= key >>> 16;
+        return key;
+    }
+
+    static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private void link(int slot, long deadline, long sequence) {
+        expiresAt[slot] = deadline;
+        sequences[slot] = sequence;
+        above[slot] = NIL;
+        below[slot] = top;
+        if (top != NIL) {
+            above[top] = slot;
+        } else {
+            bottom = slot;
+        }
+        top = slot;
+        if (deadline != IndexedStack.NEVER) {
+            wheel.schedule(slot, deadline);
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] order = slotsBottomToTop();
+        long[] previousDeadlines = expiresAt;
+        long[] previousSequences = sequences;
+        Object previousKeys = replaceKeys(capacity);
+        allocate(capacity);
+        wheel.clear();
+        for (int previous : order) {
+            int slot = reinsert(previousKeys, previous);
+            states[slot] = FULL;
+            size++;
+            link(slot, previousDeadlines[previous], previousSequences[previous]);
+        }
+    }
+
+    private void allocate(int capacity) {
+        states = new byte[capacity];
+        above = new int[capacity];
+        below = new int[capacity];
+        expiresAt = new long[capacity];
+        sequences = new long[capacity];
+        mask = capacity - 1;
+        top = NIL;
+        bottom = NIL;
+        size = 0;
+        tombstones = 0;
+    }
+
+    static int capacityFor(int expectedSize) {
+        int needed = (int) Math.min((expectedSize * 4L) / 3 + 1, 1 << 30);
+        return Math.max(Integer.highestOneBit(needed - 1) << 1, MIN_CAPACITY);
+    }
+
+    public interface SlotListener {
+
+        /**
+         * @param slot slot of the element just dropped, see e.g. keyAt() and deadlineAt().
+         */
+        void expired(int slot);
+    }
+}
@@ -0,0 +1,243 @@
+package com.unicommerce.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * {@link StackEngine} over one primitive indexed stack guarded by a {@link StampedLock}, the
+ * base of the engines of the int and long caches. The subclasses add the unboxed
+ * push/remove/contains and convert their key on the boxed paths; peek and poll box the
+ * key they return.
+ *
+ * contains and peek are optimistic reads, validated against the stamp and run again under
+ * the read lock when a writer got in meanwhile; the other reads take the read lock.
+ *
+ * @param <E> the boxed key type.
+ */
+abstract class PrimitiveStackEngine<E> implements StackEngine<E> {
+
+    private final PrimitiveIndexedStack stack;
+
+    // the views must come from the same lock as the optimistic stamps, otherwise readers never exclude writers.
+    final StampedLock lock = new StampedLock();
+    final Lock writeLock = lock.asWriteLock();
+    final Lock readLock = lock.asReadLock();
+
+    PrimitiveStackEngine(PrimitiveIndexedStack stack) {
+        this.stack = stack;
+    }
+
+    abstract boolean pushLocked(E element, long expiresAt, long now);
+
+    abstract boolean removeLocked(E element, long now);
+
+    abstract boolean containsLocked(E element, long now);
+
+    /**
+     * @return the key in the given slot, boxed.
+     */
+    abstract E elementAt(int slot);
+
+    public boolean push(E element, long expiresAt, long now) {
+        writeLock.lock();
+        try {
+            return pushLocked(element, expiresAt, now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean remove(E element, long now) {
+        writeLock.lock();
+        try {
+            return removeLocked(element, now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public boolean contains(E element, long now) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                boolean found = containsLocked(element, now);
+                if (lock.validate(stamp)) {
+                    return found;
+                }
+            } catch (RuntimeException e) {
+                // raced a writer, read again under the lock.
+            }
+        }
+        readLock.lock();
+        try {
+            return containsLocked(element, now);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public E peek(long now) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int slot = stack.peekSlot(now);
+                E element = slot == PrimitiveIndexedStack.NIL ? null : elementAt(slot);
+                if (lock.validate(stamp)) {
+                    return element;
+                }
+            } catch (RuntimeException e) {
+                // raced a writer, read again under the lock.
+            }
+        }
+        readLock.lock();
+        try {
+            int slot = stack.peekSlot(now);
+            return slot == PrimitiveIndexedStack.NIL ? null : elementAt(slot);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public E poll(long now) {
+        writeLock.lock();
+        try {
+            int slot = stack.pollSlot(now);
+            return slot == PrimitiveIndexedStack.NIL ? null : elementAt(slot);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public int pushAll(Collection<? extends E> elements, long expiresAt, long now) {
+        List<E> batch = new ArrayList<E>(elements);
+        int pushed = 0;
+        writeLock.lock();
+        try {
+            for (E element : batch) {
+                if (pushLocked(element, expiresAt, now)) {
+                    pushed++;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return pushed;
+    }
+
+    public int removeAll(Collection<? extends E> elements, long now) {
+        List<E> batch = new ArrayList<E>(elements);
+        int removed = 0;
+        writeLock.lock();
+        try {
+            for (E element : batch) {
+                if (removeLocked(element, now)) {
+                    removed++;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return removed;
+    }
+
+    public boolean containsAll(Collection<? extends E> elements, long now) {
+        List<E> batch = new ArrayList<E>(elements);
+        readLock.lock();
+        try {
+            for (E element : batch) {
+                if (!containsLocked(element, now)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int pollN(int n, Collection<? super E> into, long now) {
+        int polled = 0;
+        writeLock.lock();
+        try {
+            int slot;
+            while (polled < n && (slot = stack.pollSlot(now)) != PrimitiveIndexedStack.NIL) {
+                into.add(elementAt(slot));
+                polled++;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return polled;
+    }
+
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int size = stack.size();
+        if (stamp != 0 && lock.validate(stamp)) {
+            return size;
+        }
+        readLock.lock();
+        try {
+            return stack.size();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public void clear() {
+        writeLock.lock();
+        try {
+            stack.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void forEach(Visitor<? super E> visitor, long now) {
+        readLock.lock();
+        try {
+            for (int slot = stack.bottomSlot(); slot != PrimitiveIndexedStack.NIL; slot = stack.aboveOf(slot)) {
+                if (!stack.isExpired(slot, now)) {
+                    visitor.visit(elementAt(slot), stack.deadlineAt(slot));
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public int expire(long now) {
+        writeLock.lock();
+        try {
+            return stack.expire(now);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public long estimatedBytes() {
+        readLock.lock();
+        try {
+            return stack.estimatedBytes();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public long getTickNanos() {
+        return stack.getTickNanos();
+    }
+
+    @Override
+    public String toString() {
+        readLock.lock();
+        try {
+            return stack.toString();
+        } finally {
+            readLock.unlock();
+        }
+    }
+}
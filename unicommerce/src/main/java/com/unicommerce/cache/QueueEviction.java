@@ -0,0 +1,51 @@
+package com.unicommerce.cache;
+
+/**
+ * OLDEST and LRU policies: a single queue of the keys, evicted from the bottom. With LRU
+ * a contains() hit moves the key back on top.
+ */
+final class QueueEviction extends Eviction {
+
+    private final LongPairIndexedStack queue = newQueue();
+    private final boolean moveOnAccess;
+
+    QueueEviction(boolean moveOnAccess) {
+        this.moveOnAccess = moveOnAccess;
+    }
+
+    void onAdd(long high, long low) {
+        // an expired address added again starts over.
+        remove(queue, high, low);
+        push(queue, high, low);
+    }
+
+    void onAccess(long high, long low) {
+        if (moveOnAccess) {
+            touch(queue, high, low);
+        }
+    }
+
+    void onRemove(long high, long low) {
+        remove(queue, high, low);
+    }
+
+    boolean evict(long[] victim) {
+        return pollBottom(queue, victim);
+    }
+
+    void retain(KeyFilter filter) {
+        retain(queue, filter);
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    void clear() {
+        queue.clear();
+    }
+
+    long estimatedBytes() {
+        return queue.estimatedBytes();
+    }
+}
@@ -0,0 +1,253 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * {@link AddressEngine} recording every successful mutation of the engine it wraps in an
+ * {@link AddressReplicator}, which gossips them to the peers. A mutation and its record
+ * are made under the lock of the replicator, as its merges of the remote changes, so the
+ * engine and the replicated set never disagree. Reads go straight to the wrapped engine.
+ *
+ * take() removes the address on every node, clear() every address the node knows of.
+ * Expiry is not recorded, the replicated adds carry their deadline.
+ */
+class ReplicatedAddressEngine implements AddressEngine {
+
+    private final AddressEngine delegate;
+    private final AddressReplicator replicator;
+
+    ReplicatedAddressEngine(AddressEngine delegate, AddressReplicator replicator) {
+        this.delegate = delegate;
+        this.replicator = replicator;
+    }
+
+    public boolean push(int ipv4, long expiresAt, long now) {
+        replicator.lock.lock();
+        try {
+            if (!delegate.push(ipv4, expiresAt, now)) {
+                return false;
+            }
+            replicator.added(0, AddressCodec.mapped(ipv4), expiresAt, now);
+            return true;
+        } finally {
+            replicator.lock.unlock();
+        }
+    }
+
+    public boolean push(byte[] address, long expiresAt, long now) {
+        replicator.lock.lock();
+        try {
+            if (!delegate.push(address, expiresAt, now)) {
+                return false;
+            }
+            replicator.added(AddressCodec.keyHigh(address), AddressCodec.keyLow(address), expiresAt, now);
+            return true;
+        } finally {
+            replicator.lock.unlock();
+        }
+    }
+
+    public boolean push(InetAddress element, long expiresAt, long now) {
+        return push(element.getAddress(), expiresAt, now);
+    }
+
+    public boolean remove(int ipv4, long now) {
+        replicator.lock.lock();
+        try {
+            if (!delegate.remove(ipv4, now)) {
+                return false;
+            }
+            replicator.removed(0, AddressCodec.mapped(ipv4));
+            return true;
+        } finally {
+            replicator.lock.unlock();
+        }
+    }
+
+    public boolean remove(byte[] address, long now) {
+        replicator.lock.lock();
+        try {
+            if (!delegate.remove(address, now)) {
+                return false;
+            }
+            replicator.removed(AddressCodec.keyHigh(address), AddressCodec.keyLow(address));
+            return true;
+        } finally {
+            replicator.lock.unlock();
+        }
+    }
+
+    public boolean remove(InetAddress element, long now) {
+        return remove(element.getAddress(), now);
+    }
+
+    public int pollInto(byte[] address, long now) {
+        replicator.lock.lock();
+        try {
+            int length = delegate.pollInto(address, now);
+            if (length == AddressCodec.IPV4_LENGTH) {
+                replicator.removed(0, AddressCodec.mapped(AddressCodec.readIpv4(address)));
+            } else if (length != 0) {
+                replicator.removed(AddressCodec.high(address), AddressCodec.low(address));
+            }
+            return length;
+        } finally {
+            replicator.lock.unlock();
+        }
+    }
+
+    public InetAddress poll(long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        int length = pollInto(address, now);
+        if (length == 0) {
+            return null;
+        }
+        return AddressCodec.toInetAddress(Arrays.copyOf(address, length));
+    }
+
+    /**
+     * Records the batch under one lock.
+     */
+    public int pushAll(Collection<? extends InetAddress> elements, long expiresAt, long now) {
+        byte[][] addresses = PrimitiveAddressEngine.addressesOf(elements);
+        int pushed = 0;
+        replicator.lock.lock();
+        try {
+            for (byte[] address : addresses) {
+                if (push(address, expiresAt, now)) {
+                    pushed++;
+                }
+            }
+        } finally {
+            replicator.lock.unlock();
+        }
+        return pushed;
+    }
+
+    public int pushAll(AddressBatch batch, long expiresAt, long now) {
+        int pushed = 0;
+        replicator.lock.lock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                if (i < batch.ipv4Count() ? push(batch.ipv4(i), expiresAt, now) : push(batch.address(i), expiresAt, now)) {
+                    pushed++;
+                }
+            }
+        } finally {
+            replicator.lock.unlock();
+        }
+        return pushed;
+    }
+
+    public int removeAll(Collection<? extends InetAddress> elements, long now) {
+        byte[][] addresses = PrimitiveAddressEngine.addressesOf(elements);
+        int removed = 0;
+        replicator.lock.lock();
+        try {
+            for (byte[] address : addresses) {
+                if (remove(address, now)) {
+                    removed++;
+                }
+            }
+        } finally {
+            replicator.lock.unlock();
+        }
+        return removed;
+    }
+
+    public int pollN(int n, Collection<? super InetAddress> into, long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        int polled = 0;
+        replicator.lock.lock();
+        try {
+            int length;
+            while (polled < n && (length = pollInto(address, now)) != 0) {
+                into.add(AddressCodec.toInetAddress(Arrays.copyOf(address, length)));
+                polled++;
+            }
+        } finally {
+            replicator.lock.unlock();
+        }
+        return polled;
+    }
+
+    public boolean containsAll(Collection<? extends InetAddress> elements, long now) {
+        return delegate.containsAll(elements, now);
+    }
+
+    public void clear() {
+        replicator.lock.lock();
+        try {
+            delegate.clear();
+            replicator.removedAll();
+        } finally {
+            replicator.lock.unlock();
+        }
+    }
+
+    public boolean contains(int ipv4, long now) {
+        return delegate.contains(ipv4, now);
+    }
+
+    public boolean contains(byte[] address, long now) {
+        return delegate.contains(address, now);
+    }
+
+    public boolean contains(InetAddress element, long now) {
+        return delegate.contains(element, now);
+    }
+
+    public int peekInto(byte[] address, long now) {
+        return delegate.peekInto(address, now);
+    }
+
+    public InetAddress peek(long now) {
+        return delegate.peek(now);
+    }
+
+    public int size() {
+        return delegate.size();
+    }
+
+    public void forEach(Visitor<? super InetAddress> visitor, long now) {
+        delegate.forEach(visitor, now);
+    }
+
+    public void forEach(AddressVisitor visitor, long now) {
+        delegate.forEach(visitor, now);
+    }
+
+    public int expire(long now) {
+        return delegate.expire(now);
+    }
+
+    public long estimatedBytes() {
+        return delegate.estimatedBytes();
+    }
+
+    public long getTickNanos() {
+        return delegate.getTickNanos();
+    }
+
+    public void setExpiryListener(KeyListener listener) {
+        delegate.setExpiryListener(listener);
+    }
+
+    public void setAccessExpiry(AccessExpiry expiry) {
+        delegate.setAccessExpiry(expiry);
+    }
+
+    /**
+     * Not replicated: the peers keep the deadline of the add.
+     */
+    public boolean renew(byte[] address, long expiresAt, long now) {
+        return delegate.renew(address, expiresAt, now);
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
@@ -0,0 +1,160 @@
+package com.unicommerce.cache;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Wire format of the messages between the replicas of an AddressCache, see
+ * {@link AddressReplicator}. Big endian, each message starts with its format version and
+ * type:
+ *
+ * DELTA:   sequence (long), sent at (long, wall clock ms), entries
+ * DIGEST:  level (byte), count (int), count x (index (int), hash (long))
+ * ENTRIES: reply (byte), leaves count (int), leaves (int...), entries
+ *
+ * entries: count (int), then per entry the address key high & low (longs), components
+ * count (int), per component node (int), added version, expiry (wall clock ms) and removed
+ * version (longs).
+ */
+final class ReplicationMessage {
+
+    static final byte FORMAT = 1;
+
+    static final byte DELTA = 1;
+    static final byte DIGEST = 2;
+    static final byte ENTRIES = 3;
+
+    private static final int HEADER_BYTES = 2;
+    private static final int KEY_BYTES = 20;
+    private static final int COMPONENT_BYTES = 28;
+
+    final byte type;
+
+    // DELTA
+    long sequence;
+    long sentAtMillis;
+
+    // DIGEST
+    int level;
+    int[] indices;
+    long[] hashes;
+
+    // ENTRIES
+    boolean reply;
+    int[] leaves;
+
+    // DELTA & ENTRIES
+    AddWinsSet.Key[] keys;
+    AddWinsSet.Entry[] entries;
+
+    private ReplicationMessage(byte type) {
+        this.type = type;
+    }
+
+    static ByteBuffer delta(long sequence, long sentAtMillis, List<AddWinsSet.Key> keys, List<AddWinsSet.Entry> entries) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 16 + entriesBytes(entries));
+        buffer.put(FORMAT).put(DELTA);
+        buffer.putLong(sequence).putLong(sentAtMillis);
+        putEntries(buffer, keys, entries);
+        buffer.flip();
+        return buffer;
+    }
+
+    static ByteBuffer digest(int level, int[] indices, long[] hashes, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 5 + count * 12);
+        buffer.put(FORMAT).put(DIGEST);
+        buffer.put((byte) level).putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(indices[i]).putLong(hashes[i]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static ByteBuffer entries(boolean reply, List<Integer> leaves, List<AddWinsSet.Key> keys,
+                              List<AddWinsSet.Entry> entries) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 5 + leaves.size() * 4 + entriesBytes(entries));
+        buffer.put(FORMAT).put(ENTRIES);
+        buffer.put((byte) (reply ? 1 : 0)).putInt(leaves.size());
+        for (int leaf : leaves) {
+            buffer.putInt(leaf);
+        }
+        putEntries(buffer, keys, entries);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the format or the type is unknown.
+     */
+    static ReplicationMessage decode(ByteBuffer buffer) {
+        byte format = buffer.get();
+        if (format != FORMAT) {
+            throw new IllegalArgumentException("Unknown replication format : " + format);
+        }
+        ReplicationMessage message = new ReplicationMessage(buffer.get());
+        switch (message.type) {
+            case DELTA:
+                message.sequence = buffer.getLong();
+                message.sentAtMillis = buffer.getLong();
+                message.getEntries(buffer);
+                break;
+            case DIGEST:
+                message.level = buffer.get();
+                int count = buffer.getInt();
+                message.indices = new int[count];
+                message.hashes = new long[count];
+                for (int i = 0; i < count; i++) {
+                    message.indices[i] = buffer.getInt();
+                    message.hashes[i] = buffer.getLong();
+                }
+                break;
+            case ENTRIES:
+                message.reply = buffer.get() != 0;
+                message.leaves = new int[buffer.getInt()];
+                for (int i = 0; i < message.leaves.length; i++) {
+                    message.leaves[i] = buffer.getInt();
+                }
+                message.getEntries(buffer);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown replication message : " + message.type);
+        }
+        return message;
+    }
+
+    private static int entriesBytes(List<AddWinsSet.Entry> entries) {
+        int bytes = 4;
+        for (AddWinsSet.Entry entry : entries) {
+            bytes += KEY_BYTES + entry.components() * COMPONENT_BYTES;
+        }
+        return bytes;
+    }
+
+    private static void putEntries(ByteBuffer buffer, List<AddWinsSet.Key> keys, List<AddWinsSet.Entry> entries) {
+        buffer.putInt(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            AddWinsSet.Key key = keys.get(i);
+            AddWinsSet.Entry entry = entries.get(i);
+            buffer.putLong(key.high).putLong(key.low).putInt(entry.components());
+            for (int c = 0; c < entry.components(); c++) {
+                buffer.putInt(entry.nodes[c]).putLong(entry.added[c]).putLong(entry.expiresAt[c]).putLong(entry.removed[c]);
+            }
+        }
+    }
+
+    private void getEntries(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        keys = new AddWinsSet.Key[count];
+        entries = new AddWinsSet.Entry[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = new AddWinsSet.Key(buffer.getLong(), buffer.getLong());
+            AddWinsSet.Entry entry = new AddWinsSet.Entry();
+            int components = buffer.getInt();
+            for (int c = 0; c < components; c++) {
+                entry.put(buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+            }
+            entries[i] = entry;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.unicommerce.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Carries the replication messages between the nodes of a cluster of AddressCache, see
+ * AddressCache#replicate. The nodes are numbered by the application, e.g. by their index
+ * in the cluster configuration; the messages are opaque bytes.
+ *
+ * Delivery may be late, out of order, duplicated or lost: the deltas merge in any order
+ * and the anti-entropy repairs what was lost. send() must not block on the receiver, the
+ * caller may hold the cache busy. {@link LoopbackTransport} connects caches of one process.
+ */
+public interface ReplicationTransport {
+
+    /**
+     * Receives the messages sent to a node, called by the transport one message at a time.
+     */
+    interface Receiver {
+
+        /**
+         * @param from    node which sent the message.
+         * @param message its bytes, readable until the call returns.
+         */
+        void receive(int from, ByteBuffer message);
+    }
+
+    /**
+     * Starts delivering the messages sent to the node to the given receiver.
+     */
+    void join(int node, Receiver receiver);
+
+    /**
+     * Stops delivering to the node, it no longer is a peer of the others.
+     */
+    void leave(int node);
+
+    /**
+     * @return the nodes the given one replicates to, itself excluded.
+     */
+    int[] peers(int node);
+
+    /**
+     * Sends a message, the buffer is not used by the caller afterwards.
+     */
+    void send(int from, int to, ByteBuffer message);
+}
@@ -0,0 +1,275 @@
+package com.unicommerce.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link WindowCounting#EXACT} counter: each key seen in the longest window owns a ring
+ * of BUCKETS int counters and the epoch of its last sighting. A sighting clears the
+ * buckets its key skipped since then, at most the whole ring, and counts in its bucket.
+ *
+ * The keys are spread over 16 segments by hash, each an open-addressing table in parallel
+ * primitive arrays (linear probing, backward shift deletion) behind its own lock. Every
+ * tick sweeps a sixteenth of each table, deleting the keys not seen for the whole window,
+ * so a silent key goes within two windows.
+ */
+final class RingWindowCounter extends WindowCounter {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    RingWindowCounter(long windowNanos, int expectedAddresses) {
+        super(windowNanos);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(expectedAddresses, 0) / SEGMENTS + 1);
+        }
+    }
+
+    void record(long high, long low, long now) {
+        Segment segment = segments[hash(high, low) & (SEGMENTS - 1)];
+        long epoch = epochOf(now);
+        segment.lock.lock();
+        try {
+            segment.record(high, low, epoch);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    int frequency(long high, long low, int buckets, long now) {
+        Segment segment = segments[hash(high, low) & (SEGMENTS - 1)];
+        long epoch = epochOf(now);
+        segment.lock.lock();
+        try {
+            return segment.frequency(high, low, buckets, epoch);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    void tick(long now) {
+        long epoch = epochOf(now);
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.sweep(epoch);
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    void clear() {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.clear();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    long estimatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                bytes += segment.estimatedBytes();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return number of keys tracked.
+     */
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    private static int hash(long high, long low) {
+        return PrimitiveIndexedStack.mix(high * 31 + low);
+    }
+
+    /**
+     * Table of a share of the keys, not thread-safe, the callers hold its lock.
+     */
+    private static final class Segment {
+
+        private static final long FREE = Long.MIN_VALUE;
+        private static final int MIN_CAPACITY = 16;
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        private long[] highs;
+        private long[] lows;
+        // epoch of the last sighting of each slot's key, FREE if the slot is free.
+        private long[] epochs;
+        // BUCKETS counters per slot.
+        private int[] counts;
+        private int mask;
+        int size;
+        // next slot the sweep looks at.
+        private int cursor;
+
+        Segment(int expectedSize) {
+            int needed = (int) Math.min(expectedSize * 2L, 1 << 26);
+            allocate(Math.max(Integer.highestOneBit(Math.max(needed - 1, 1)) << 1, MIN_CAPACITY));
+        }
+
+        void record(long high, long low, long epoch) {
+            int slot = indexOf(high, low);
+            if (slot < 0) {
+                if ((size + 1) * 2L > epochs.length) {
+                    resize(epochs.length * 2);
+                }
+                slot = insertionSlot(high, low);
+                highs[slot] = high;
+                lows[slot] = low;
+                epochs[slot] = epoch;
+                size++;
+            } else if (epoch > epochs[slot]) {
+                long last = epochs[slot];
+                for (long skipped = last + 1, end = Math.min(epoch, last + BUCKETS); skipped <= end; skipped++) {
+                    counts[slot * BUCKETS + ringIndex(skipped, BUCKETS)] = 0;
+                }
+                epochs[slot] = epoch;
+            } else if (epochs[slot] - epoch >= BUCKETS) {
+                // clock read long before the lock, its bucket was reused meanwhile.
+                return;
+            }
+            int index = slot * BUCKETS + ringIndex(epoch, BUCKETS);
+            if (counts[index] != Integer.MAX_VALUE) {
+                counts[index]++;
+            }
+        }
+
+        int frequency(long high, long low, int buckets, long epoch) {
+            int slot = indexOf(high, low);
+            if (slot < 0) {
+                return 0;
+            }
+            long last = epochs[slot];
+            long sum = 0;
+            for (int i = 0; i < buckets; i++) {
+                long bucket = epoch - i;
+                if (bucket <= last && last - bucket < BUCKETS) {
+                    sum += counts[slot * BUCKETS + ringIndex(bucket, BUCKETS)];
+                }
+            }
+            return (int) Math.min(sum, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Deletes the keys not seen for the whole window among the next sixteenth of the
+         * slots. A deletion shifts keys back no further than the cursor, whose slot is looked
+         * at again.
+         */
+        void sweep(long epoch) {
+            for (int steps = epochs.length / BUCKETS; steps > 0; ) {
+                long last = epochs[cursor];
+                if (last != FREE && epoch - last >= BUCKETS) {
+                    delete(cursor);
+                } else {
+                    cursor = (cursor + 1) & mask;
+                    steps--;
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(epochs, FREE);
+            Arrays.fill(counts, 0);
+            size = 0;
+            cursor = 0;
+        }
+
+        long estimatedBytes() {
+            return epochs.length * (24L + 4L * BUCKETS);
+        }
+
+        private int indexOf(long high, long low) {
+            for (int slot = home(high, low), probes = mask; probes >= 0 && epochs[slot] != FREE;
+                 slot = (slot + 1) & mask, probes--) {
+                if (highs[slot] == high && lows[slot] == low) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private int insertionSlot(long high, long low) {
+            int slot = home(high, low);
+            while (epochs[slot] != FREE) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private int home(long high, long low) {
+            // the low bits of the hash picked the segment.
+            return (hash(high, low) >>> 4) & mask;
+        }
+
+        /**
+         * Backward shift: the keys probed past the slot move back into the hole when their
+         * home allows it, so the lookups need no tombstone.
+         */
+        private void delete(int slot) {
+            int hole = slot;
+            for (int next = (hole + 1) & mask; epochs[next] != FREE; next = (next + 1) & mask) {
+                int home = home(highs[next], lows[next]);
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    highs[hole] = highs[next];
+                    lows[hole] = lows[next];
+                    epochs[hole] = epochs[next];
+                    System.arraycopy(counts, next * BUCKETS, counts, hole * BUCKETS, BUCKETS);
+                    hole = next;
+                }
+            }
+            epochs[hole] = FREE;
+            Arrays.fill(counts, hole * BUCKETS, (hole + 1) * BUCKETS, 0);
+            size--;
+        }
+
+        private void resize(int capacity) {
+            long[] oldHighs = highs;
+            long[] oldLows = lows;
+            long[] oldEpochs = epochs;
+            int[] oldCounts = counts;
+            allocate(capacity);
+            for (int old = 0; old < oldEpochs.length; old++) {
+                if (oldEpochs[old] != FREE) {
+                    int slot = insertionSlot(oldHighs[old], oldLows[old]);
+                    highs[slot] = oldHighs[old];
+                    lows[slot] = oldLows[old];
+                    epochs[slot] = oldEpochs[old];
+                    System.arraycopy(oldCounts, old * BUCKETS, counts, slot * BUCKETS, BUCKETS);
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            highs = new long[capacity];
+            lows = new long[capacity];
+            epochs = new long[capacity];
+            Arrays.fill(epochs, FREE);
+            counts = new int[capacity * BUCKETS];
+            mask = capacity - 1;
+            cursor = 0;
+        }
+    }
+}
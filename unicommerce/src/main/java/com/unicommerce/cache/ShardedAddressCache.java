@@ -0,0 +1,37 @@
+package com.unicommerce.cache;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AddressCache whose elements are split across stripes keyed by the address hash,
+ * each stripe having its own lock and stack. add/remove/contains of different
+ * addresses mostly lock different stripes and scale with the cores; peek/take still
+ * return the most recently added element across all stripes, at the cost of looking
+ * at the top of each stripe.
+ */
+public class ShardedAddressCache extends AddressCache {
+
+    // indexed stack entry plus the InetAddress, see CacheEngine#estimatedEntryBytes().
+    private static final int ENTRY_BYTES = 160;
+
+    public ShardedAddressCache(long maxAge, TimeUnit unit) {
+        this(maxAge, unit, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param stripes number of stripes, rounded up to a power of two.
+     */
+    public ShardedAddressCache(long maxAge, TimeUnit unit, int stripes) {
+        super(maxAge, unit, new ObjectAddressEngine(new ShardedStackEngine<InetAddress>(unit.toNanos(maxAge), stripes)));
+    }
+
+    /**
+     * Bounded cache, see AddressCache. The policy serializes the mutations, the stripes
+     * still spread the reads.
+     */
+    public ShardedAddressCache(long maxAge, TimeUnit unit, int stripes, Capacity capacity) {
+        super(maxAge, unit, capacity.bound(new ObjectAddressEngine(
+                new ShardedStackEngine<InetAddress>(unit.toNanos(maxAge), stripes)), ENTRY_BYTES));
+    }
+}
@@ -0,0 +1,425 @@
+package com.unicommerce.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link StackEngine} splitting the elements across stripes keyed by their hash, each
+ * stripe with its own lock, indexed stack and timing wheel. add, remove and contains
+ * lock a single stripe. Every push is stamped from one global sequence, peek and poll
+ * compare the tops of the stripes to find the most recently added element.
+ */
+class ShardedStackEngine<E> implements StackEngine<E>, StackEngine.ExpiryNotifier<E> {
+
+    private final Stripe<E>[] stripes;
+    private final int mask;
+    private final AtomicLong sequence = new AtomicLong();
+    private final long tickNanos;
+
+    ShardedStackEngine(long timeToLiveNanos, int stripeCount) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("stripeCount must be positive : " + stripeCount);
+        }
+        int size = Integer.highestOneBit(stripeCount - 1) << 1;
+        size = Math.max(size, 1);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Stripe<E>[] created = (Stripe<E>[]) new Stripe[size];
+        this.stripes = created;
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe<E>(timeToLiveNanos);
+        }
+        this.mask = size - 1;
+        this.tickNanos = IndexedStack.tickFor(timeToLiveNanos);
+    }
+
+    int stripeCount() {
+        return stripes.length;
+    }
+
+    public boolean push(E element, long expiresAt, long now) {
+        Stripe<E> stripe = stripeFor(element);
+        stripe.writeLock.lock();
+        try {
+            // stamped under the stripe lock so that sequences increase within each stripe.
+            return stripe.stack.push(element, expiresAt, now, sequence.incrementAndGet());
+        } finally {
+            stripe.writeLock.unlock();
+        }
+    }
+
+    public boolean remove(E element, long now) {
+        Stripe<E> stripe = stripeFor(element);
+        stripe.writeLock.lock();
+        try {
+            return stripe.stack.remove(element, now);
+        } finally {
+            stripe.writeLock.unlock();
+        }
+    }
+
+    public boolean contains(E element, long now) {
+        Stripe<E> stripe = stripeFor(element);
+        stripe.readLock.lock();
+        try {
+            return stripe.stack.contains(element, now);
+        } finally {
+            stripe.readLock.unlock();
+        }
+    }
+
+    public E peek(long now) {
+        E found = null;
+        long foundSequence = -1;
+        for (Stripe<E> stripe : stripes) {
+            stripe.readLock.lock();
+            try {
+                long top = stripe.stack.peekSequence(now);
+                if (top > foundSequence) {
+                    foundSequence = top;
+                    found = stripe.stack.peek(now);
+                }
+            } finally {
+                stripe.readLock.unlock();
+            }
+        }
+        return found;
+    }
+
+    public E poll(long now) {
+        for (;;) {
+            Stripe<E> newest = null;
+            long newestSequence = -1;
+            for (Stripe<E> stripe : stripes) {
+                long top = topSequence(stripe, now);
+                if (top > newestSequence) {
+                    newestSequence = top;
+                    newest = stripe;
+                }
+            }
+            if (newest == null) {
+                return null;
+            }
+            newest.writeLock.lock();
+            try {
+                // a newer element pushed meanwhile on the same stripe is as good a pick.
+                if (newest.stack.peekSequence(now) >= newestSequence) {
+                    return newest.stack.poll(now);
+                }
+            } finally {
+                newest.writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write locks the stripes of the batch, in stripe order, then pushes the elements in
+     * iteration order so that their sequences follow it.
+     */
+    public int pushAll(Collection<? extends E> elements, long expiresAt, long now) {
+        List<E> batch = new ArrayList<E>(elements);
+        int[] stripeOf = new int[batch.size()];
+        boolean[] involved = new boolean[stripes.length];
+        for (int i = 0; i < stripeOf.length; i++) {
+            stripeOf[i] = stripeIndex(batch.get(i));
+            involved[stripeOf[i]] = true;
+        }
+        int pushed = 0;
+        lockAll(involved);
+        try {
+            for (int i = 0; i < stripeOf.length; i++) {
+                if (stripes[stripeOf[i]].stack.push(batch.get(i), expiresAt, now, sequence.incrementAndGet())) {
+                    pushed++;
+                }
+            }
+        } finally {
+            unlockAll(involved);
+        }
+        return pushed;
+    }
+
+    /**
+     * Locks each stripe of the batch once.
+     */
+    public int removeAll(Collection<? extends E> elements, long now) {
+        List<E>[] buckets = bucket(elements);
+        int removed = 0;
+        for (int s = 0; s < stripes.length; s++) {
+            if (buckets[s] == null) {
+                continue;
+            }
+            Stripe<E> stripe = stripes[s];
+            stripe.writeLock.lock();
+            try {
+                for (E element : buckets[s]) {
+                    if (stripe.stack.remove(element, now)) {
+                        removed++;
+                    }
+                }
+            } finally {
+                stripe.writeLock.unlock();
+            }
+        }
+        return removed;
+    }
+
+    public boolean containsAll(Collection<? extends E> elements, long now) {
+        List<E>[] buckets = bucket(elements);
+        for (int s = 0; s < stripes.length; s++) {
+            if (buckets[s] == null) {
+                continue;
+            }
+            Stripe<E> stripe = stripes[s];
+            stripe.readLock.lock();
+            try {
+                for (E element : buckets[s]) {
+                    if (!stripe.stack.contains(element, now)) {
+                        return false;
+                    }
+                }
+            } finally {
+                stripe.readLock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write locks every stripe, in stripe order, and takes the newest top n times.
+     */
+    public int pollN(int n, Collection<? super E> into, long now) {
+        boolean[] all = new boolean[stripes.length];
+        Arrays.fill(all, true);
+        int polled = 0;
+        lockAll(all);
+        try {
+            while (polled < n) {
+                Stripe<E> newest = null;
+                long newestSequence = -1;
+                for (Stripe<E> stripe : stripes) {
+                    long top = stripe.stack.peekSequence(now);
+                    if (top > newestSequence) {
+                        newestSequence = top;
+                        newest = stripe;
+                    }
+                }
+                if (newest == null) {
+                    break;
+                }
+                into.add(newest.stack.poll(now));
+                polled++;
+            }
+        } finally {
+            unlockAll(all);
+        }
+        return polled;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe<E> stripe : stripes) {
+            stripe.readLock.lock();
+            try {
+                size += stripe.stack.size();
+            } finally {
+                stripe.readLock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The listener is called under the lock of the stripe of the element.
+     */
+    public void setExpiryListener(Visitor<? super E> listener) {
+        for (Stripe<E> stripe : stripes) {
+            stripe.writeLock.lock();
+            try {
+                stripe.stack.setExpiryListener(listener);
+            } finally {
+                stripe.writeLock.unlock();
+            }
+        }
+    }
+
+    public void clear() {
+        for (Stripe<E> stripe : stripes) {
+            stripe.writeLock.lock();
+            try {
+                stripe.stack.clear();
+            } finally {
+                stripe.writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Visits the stripes one after the other, each under its read lock, and merges them
+     * by sequence number.
+     */
+    public void forEach(Visitor<? super E> visitor, long now) {
+        PriorityQueue<Run<E>> runs = new PriorityQueue<Run<E>>(stripes.length);
+        for (Stripe<E> stripe : stripes) {
+            Run<E> run = new Run<E>();
+            stripe.readLock.lock();
+            try {
+                stripe.stack.forEach(run, now);
+            } finally {
+                stripe.readLock.unlock();
+            }
+            if (run.size > 0) {
+                runs.add(run);
+            }
+        }
+        Run<E> run;
+        while ((run = runs.poll()) != null) {
+            visitor.visit(run.elements.get(run.next), run.deadlines[run.next]);
+            if (++run.next < run.size) {
+                runs.add(run);
+            }
+        }
+    }
+
+    /**
+     * Expires one stripe after the other, never holding two stripe locks.
+     */
+    public int expire(long now) {
+        int expired = 0;
+        for (Stripe<E> stripe : stripes) {
+            stripe.writeLock.lock();
+            try {
+                expired += stripe.stack.expire(now);
+            } finally {
+                stripe.writeLock.unlock();
+            }
+        }
+        return expired;
+    }
+
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (Stripe<E> stripe : stripes) {
+            stripe.readLock.lock();
+            try {
+                bytes += stripe.stack.estimatedBytes();
+            } finally {
+                stripe.readLock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (Stripe<E> stripe : stripes) {
+            stripe.readLock.lock();
+            try {
+                if (!stripe.stack.isEmpty()) {
+                    out.append(stripe.stack);
+                }
+            } finally {
+                stripe.readLock.unlock();
+            }
+        }
+        return out.toString();
+    }
+
+    private Stripe<E> stripeFor(E element) {
+        return stripes[stripeIndex(element)];
+    }
+
+    private int stripeIndex(E element) {
+        int hash = element.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private List<E>[] bucket(Collection<? extends E> elements) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<E>[] buckets = (List<E>[]) new List[stripes.length];
+        for (E element : elements) {
+            int s = stripeIndex(element);
+            if (buckets[s] == null) {
+                buckets[s] = new ArrayList<E>();
+            }
+            buckets[s].add(element);
+        }
+        return buckets;
+    }
+
+    /**
+     * Locks the given stripes in stripe order, two batches never deadlock.
+     */
+    private void lockAll(boolean[] involved) {
+        for (int s = 0; s < stripes.length; s++) {
+            if (involved[s]) {
+                stripes[s].writeLock.lock();
+            }
+        }
+    }
+
+    private void unlockAll(boolean[] involved) {
+        for (int s = stripes.length - 1; s >= 0; s--) {
+            if (involved[s]) {
+                stripes[s].writeLock.unlock();
+            }
+        }
+    }
+
+    private static long topSequence(Stripe<?> stripe, long now) {
+        stripe.readLock.lock();
+        try {
+            return stripe.stack.peekSequence(now);
+        } finally {
+            stripe.readLock.unlock();
+        }
+    }
+
+    /**
+     * Elements of one stripe in sequence order, with a cursor for the merge.
+     */
+    private static final class Run<E> implements IndexedStack.EntryVisitor<E>, Comparable<Run<E>> {
+        final List<E> elements = new ArrayList<E>();
+        long[] deadlines = new long[16];
+        long[] sequences = new long[16];
+        int size;
+        int next;
+
+        public void visit(E element, long expiresAt, long sequence) {
+            if (size == deadlines.length) {
+                deadlines = Arrays.copyOf(deadlines, size * 2);
+                sequences = Arrays.copyOf(sequences, size * 2);
+            }
+            elements.add(element);
+            deadlines[size] = expiresAt;
+            sequences[size++] = sequence;
+        }
+
+        public int compareTo(Run<E> other) {
+            long mine = sequences[next];
+            long theirs = other.sequences[other.next];
+            return mine < theirs ? -1 : (mine == theirs ? 0 : 1);
+        }
+    }
+
+    private static final class Stripe<E> {
+        final IndexedStack<E> stack;
+        final ReentrantReadWriteLock.WriteLock writeLock;
+        final ReentrantReadWriteLock.ReadLock readLock;
+
+        Stripe(long timeToLiveNanos) {
+            ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+            this.stack = IndexedStack.forTimeToLive(timeToLiveNanos);
+            this.writeLock = lock.writeLock();
+            this.readLock = lock.readLock();
+        }
+    }
+}
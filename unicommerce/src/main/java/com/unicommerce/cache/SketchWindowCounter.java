@@ -0,0 +1,125 @@
+package com.unicommerce.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link WindowCounting#SKETCH} counter: a ring of BUCKETS + 1 count-min sketches, one per
+ * bucket, each of 4 rows of 16-bit counters packed 4 to a long. A sighting increments one
+ * counter per row in the sketch of its bucket, lock-free; the frequency over a window is
+ * the smallest of the row sums over its buckets. Counters saturate at 65535.
+ *
+ * Each sketch is stamped with the epoch it counts, a sketch of another epoch reads as
+ * empty. tick() clears and stamps the sketch of the next bucket ahead of the writers,
+ * the spare sketch of the ring being the one just out of the longest window. A writer
+ * finding its sketch not stamped yet (tick running late) does it under the monitor.
+ */
+final class SketchWindowCounter extends WindowCounter {
+
+    private static final int DEPTH = 4;
+    private static final int RING = BUCKETS + 1;
+    private static final int MIN_WIDTH = 64;
+    private static final int MAX_WIDTH = 1 << 26;
+    private static final long COUNTER_MASK = 0xffffL;
+
+    // [ring slot][row][width / 4] longs.
+    private final AtomicLongArray counters;
+    private final AtomicLongArray stamps = new AtomicLongArray(RING);
+    private final int width;
+    private final int rowLongs;
+
+    SketchWindowCounter(long windowNanos, int expectedAddresses) {
+        super(windowNanos);
+        int needed = Math.max(MIN_WIDTH, Math.min(expectedAddresses / 2, MAX_WIDTH));
+        this.width = Integer.highestOneBit(needed - 1) << 1;
+        this.rowLongs = width / 4;
+        this.counters = new AtomicLongArray(RING * DEPTH * rowLongs);
+        for (int slot = 0; slot < RING; slot++) {
+            stamps.set(slot, Long.MIN_VALUE);
+        }
+    }
+
+    void record(long high, long low, long now) {
+        long epoch = epochOf(now);
+        int slot = ringIndex(epoch, RING);
+        long stamp = stamps.get(slot);
+        if (stamp != epoch) {
+            if (stamp > epoch) {
+                // clock read long before, its sketch was reused meanwhile.
+                return;
+            }
+            stamp(epoch);
+        }
+        long hash = FrequencySketch.hash(high, low);
+        for (int row = 0; row < DEPTH; row++) {
+            int column = column(hash, row);
+            int index = (slot * DEPTH + row) * rowLongs + (column >>> 2);
+            int shift = (column & 3) << 4;
+            long current;
+            do {
+                current = counters.get(index);
+                if (((current >>> shift) & COUNTER_MASK) == COUNTER_MASK) {
+                    break;
+                }
+            } while (!counters.compareAndSet(index, current, current + (1L << shift)));
+        }
+    }
+
+    int frequency(long high, long low, int buckets, long now) {
+        long epoch = epochOf(now);
+        long hash = FrequencySketch.hash(high, low);
+        long frequency = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int column = column(hash, row);
+            int shift = (column & 3) << 4;
+            long sum = 0;
+            for (int i = 0; i < buckets; i++) {
+                int slot = ringIndex(epoch - i, RING);
+                if (stamps.get(slot) == epoch - i) {
+                    sum += (counters.get((slot * DEPTH + row) * rowLongs + (column >>> 2)) >>> shift) & COUNTER_MASK;
+                }
+            }
+            frequency = Math.min(frequency, sum);
+        }
+        return (int) frequency;
+    }
+
+    void tick(long now) {
+        long epoch = epochOf(now);
+        stamp(epoch);
+        stamp(epoch + 1);
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        for (int slot = 0; slot < RING; slot++) {
+            stamps.set(slot, Long.MIN_VALUE);
+        }
+    }
+
+    long estimatedBytes() {
+        return counters.length() * 8L + RING * 8L;
+    }
+
+    /**
+     * Clears the sketch of the epoch, then stamps it: a writer seeing the stamp counts
+     * into the cleared counters.
+     */
+    private synchronized void stamp(long epoch) {
+        int slot = ringIndex(epoch, RING);
+        if (stamps.get(slot) >= epoch) {
+            return;
+        }
+        for (int i = slot * DEPTH * rowLongs, end = i + DEPTH * rowLongs; i < end; i++) {
+            counters.set(i, 0);
+        }
+        stamps.set(slot, epoch);
+    }
+
+    private int column(long hash, int row) {
+        long h = (hash + FrequencySketch.SEEDS[row]) * FrequencySketch.SEEDS[row];
+        h += h >>> 32;
+        return (int) h & (width - 1);
+    }
+}
@@ -0,0 +1,109 @@
+package com.unicommerce.cache;
+
+import java.util.Collection;
+
+/**
+ * Storage engine behind a cache: a thread-safe LIFO stack of unique elements,
+ * each element expiring at its own deadline.
+ *
+ * All times are {@link System#nanoTime()} values.
+ *
+ * @param <E> element type, must have sane equals/hashCode.
+ */
+interface StackEngine<E> {
+
+    /**
+     * @return false if the element is already present and not expired.
+     */
+    boolean push(E element, long expiresAt, long now);
+
+    /**
+     * @return true if the element was present and not expired.
+     */
+    boolean remove(E element, long now);
+
+    boolean contains(E element, long now);
+
+    /**
+     * @return the most recently pushed element not expired, null if none.
+     */
+    E peek(long now);
+
+    /**
+     * Removes and returns the most recently pushed element not expired, never blocks.
+     *
+     * @return null if none.
+     */
+    E poll(long now);
+
+    /**
+     * Pushes the elements in iteration order (the last one ends on top), locking once
+     * for the whole batch. Elements already present are ignored.
+     *
+     * @return number of elements pushed.
+     */
+    int pushAll(Collection<? extends E> elements, long expiresAt, long now);
+
+    /**
+     * @return number of elements which were present and not expired.
+     */
+    int removeAll(Collection<? extends E> elements, long now);
+
+    boolean containsAll(Collection<? extends E> elements, long now);
+
+    /**
+     * Removes up to n of the most recently pushed elements not expired, most recent
+     * first, locking once for the whole batch. Never blocks.
+     *
+     * @return number of elements added to the given collection.
+     */
+    int pollN(int n, Collection<? super E> into, long now);
+
+    /**
+     * @return number of elements, may include expired ones not dropped yet.
+     */
+    int size();
+
+    void clear();
+
+    /**
+     * Visits the elements not expired from the oldest (bottom) to the most recent (top),
+     * e.g. to take a snapshot. Elements pushed or removed meanwhile may or may not be seen.
+     */
+    void forEach(Visitor<? super E> visitor, long now);
+
+    /**
+     * Drops the elements whose deadline has passed, taking the locks it needs. Run every
+     * {@link #getTickNanos()} by the {@link ExpiryScheduler}, one call at a time.
+     *
+     * @return number of dropped elements.
+     */
+    int expire(long now);
+
+    /**
+     * @return rough estimate of the memory held by the engine, for monitoring.
+     */
+    long estimatedBytes();
+
+    long getTickNanos();
+
+    /**
+     * Engine telling which elements it drops once expired, see
+     * {@link AddressEngine#setExpiryListener(AddressEngine.KeyListener)}.
+     */
+    interface ExpiryNotifier<E> {
+
+        /**
+         * @param listener visits each element dropped once expired, null for none.
+         */
+        void setExpiryListener(Visitor<? super E> listener);
+    }
+
+    interface Visitor<E> {
+
+        /**
+         * @param expiresAt deadline of the element, {@link IndexedStack#NEVER} if none.
+         */
+        void visit(E element, long expiresAt);
+    }
+}
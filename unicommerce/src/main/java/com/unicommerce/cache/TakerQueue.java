@@ -0,0 +1,402 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Consumers of an ExpirableCache waiting for an element: the threads blocked in take(),
+ * the futures of takeAsync() and the subscriptions of the CachePublisher. They queue
+ * up here, in the {@link WaiterOrder} of the cache, and whichever thread adds an element
+ * (or registers a consumer) hands the available elements over to them, each element to
+ * exactly one consumer. A blocked thread is parked with LockSupport and unparked only
+ * once it has its element, so an add() wakes one thread and never a herd.
+ *
+ * Only one thread hands over at a time, the others just tell it to loop once more, so
+ * the callbacks of a subscriber are never concurrent nor reentrant, even when it adds
+ * to the cache from onNext(). The futures are completed and onNext() is called from
+ * the handing thread, usually the one calling add().
+ */
+final class TakerQueue<E> {
+
+    // fewest cancelled takers purged at once.
+    private static final int MIN_PURGE = 64;
+
+    private final ExpirableCache<E> cache;
+    private final CacheMetrics metrics;
+    private final ConcurrentLinkedDeque<Taker<E>> queue = new ConcurrentLinkedDeque<Taker<E>>();
+    // number of handOver() calls pending, the first one loops until it drops back to 0.
+    private final AtomicInteger handing = new AtomicInteger();
+    // takers cancelled since the last purge, and how many of them start the next one.
+    private final AtomicInteger cancelled = new AtomicInteger();
+    private volatile int purgeAfter = MIN_PURGE;
+    private volatile WaiterOrder order = WaiterOrder.FIFO;
+
+    TakerQueue(ExpirableCache<E> cache, CacheMetrics metrics) {
+        this.cache = cache;
+        this.metrics = metrics;
+    }
+
+    void setOrder(WaiterOrder order) {
+        this.order = order;
+    }
+
+    /**
+     * Blocks until an element is handed over to the calling thread.
+     *
+     * @param timeoutNanos negative to wait without timeout.
+     * @return null on timeout.
+     * @throws InterruptedException if interrupted before an element was handed over.
+     */
+    E await(long start, long timeoutNanos) throws CacheExpiredException, InterruptedException {
+        ThreadTaker taker = new ThreadTaker(start);
+        enqueue(taker);
+        handOver();
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (taker.wants()) {
+            if (Thread.interrupted()) {
+                if (taker.cancel()) {
+                    throw new InterruptedException();
+                }
+                // handed over meanwhile, the element is not lost.
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (timeoutNanos < 0) {
+                LockSupport.park(this);
+            } else {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    if (taker.cancel()) {
+                        return null;
+                    }
+                    break;
+                }
+                LockSupport.parkNanos(this, left);
+            }
+        }
+        return taker.result();
+    }
+
+    CompletableFuture<E> take(long start) {
+        FutureTaker<E> taker = new FutureTaker<E>(start);
+        enqueue(taker);
+        handOver();
+        return taker.future;
+    }
+
+    void subscribe(CachePublisher.Subscriber<? super E> subscriber) {
+        SubscriptionTaker taker = new SubscriptionTaker(subscriber);
+        subscriber.onSubscribe(taker);
+        if (cache.isClosed()) {
+            taker.end(new CacheExpiredException("Cache already closed!"));
+        }
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * Hands the available elements over to the takers in queue order, until either runs out.
+     * Once the cache is closed, fails the takers instead.
+     */
+    void handOver() {
+        if (handing.getAndIncrement() != 0) {
+            return;
+        }
+        int pending = 1;
+        do {
+            Taker<E> taker;
+            while ((taker = queue.peekFirst()) != null) {
+                if (!taker.wants()) {
+                    unlink(taker);
+                    requeue(taker);
+                    continue;
+                }
+                Throwable error = taker.pendingError();
+                if (error == null && cache.isClosed()) {
+                    error = new CacheExpiredException("Cache closed while waiting!");
+                }
+                if (error != null) {
+                    unlink(taker);
+                    taker.fail(error);
+                    continue;
+                }
+                long now = System.nanoTime();
+                E found = cache.pollForTaker(now);
+                if (found == null) {
+                    break;
+                }
+                unlink(taker);
+                if (!taker.deliver(found)) {
+                    // gave up since wants(): the element goes back, with a new max age.
+                    cache.giveBack(found);
+                    continue;
+                }
+                metrics.taken(taker.since);
+                taker.since = now;
+                requeue(taker);
+            }
+            pending = handing.addAndGet(-pending);
+        } while (pending != 0);
+    }
+
+    /**
+     * Queues a taker, registered before the next poll so that an element added meanwhile
+     * is handed over either way. A taker already queued, or being handed an element, is
+     * not queued twice.
+     */
+    private void enqueue(Taker<E> taker) {
+        if (!taker.queued.compareAndSet(false, true)) {
+            return;
+        }
+        if (order == WaiterOrder.LIFO) {
+            queue.offerFirst(taker);
+        } else {
+            queue.offerLast(taker);
+        }
+    }
+
+    /**
+     * Queues the taker handed over to the end of the queue if it still wants, the others
+     * are served in turn. Its request() meanwhile did not queue it, it is checked again here.
+     */
+    private void requeue(Taker<E> taker) {
+        taker.queued.set(false);
+        if (taker.wants() && taker.queued.compareAndSet(false, true)) {
+            queue.offerLast(taker);
+        }
+    }
+
+    /**
+     * Counts a taker cancelled, left in the queue for handOver() to skip. A LIFO queue may
+     * not reach it for long: once as many as the takers left by the last purge (at least
+     * MIN_PURGE) are cancelled, one scan removes them all, so each costs O(1) amortized.
+     */
+    private void cancelled() {
+        if (cancelled.incrementAndGet() < purgeAfter || cancelled.getAndSet(0) < purgeAfter) {
+            return;
+        }
+        int left = 0;
+        for (Iterator<Taker<E>> it = queue.iterator(); it.hasNext(); ) {
+            Taker<E> taker = it.next();
+            if (taker.wants()) {
+                left++;
+            } else {
+                it.remove();
+                requeue(taker);
+            }
+        }
+        purgeAfter = Math.max(MIN_PURGE, left);
+    }
+
+    /**
+     * Removes the taker peeked at the head, usually still there: a LIFO enqueue may have
+     * pushed another one first meanwhile.
+     */
+    private void unlink(Taker<E> taker) {
+        if (queue.peekFirst() == taker) {
+            queue.pollFirst();
+        } else {
+            queue.removeFirstOccurrence(taker);
+        }
+    }
+
+    abstract static class Taker<E> {
+
+        // true from enqueue() until handOver() takes it out of the queue for good.
+        final AtomicBoolean queued = new AtomicBoolean();
+        // start of the wait, for the take latency.
+        long since;
+
+        Taker(long since) {
+            this.since = since;
+        }
+
+        abstract boolean wants();
+
+        /**
+         * @return false if the taker gave up meanwhile, the element was not taken.
+         */
+        abstract boolean deliver(E element);
+
+        abstract void fail(Throwable error);
+
+        /**
+         * @return the error to fail the taker with from handOver(), null for none.
+         */
+        Throwable pendingError() {
+            return null;
+        }
+    }
+
+    private final class ThreadTaker extends Taker<E> {
+
+        private static final int WAITING = 0;
+        private static final int DELIVERED = 1;
+        private static final int GAVE_UP = 2;
+        private static final int FAILED = 3;
+
+        private final Thread thread = Thread.currentThread();
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // written before the state, read once it is set.
+        private E element;
+        private Throwable error;
+
+        ThreadTaker(long since) {
+            super(since);
+        }
+
+        boolean wants() {
+            return state.get() == WAITING;
+        }
+
+        boolean deliver(E element) {
+            this.element = element;
+            if (!state.compareAndSet(WAITING, DELIVERED)) {
+                return false;
+            }
+            LockSupport.unpark(thread);
+            return true;
+        }
+
+        void fail(Throwable error) {
+            this.error = error;
+            if (state.compareAndSet(WAITING, FAILED)) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * @return false if an element was handed over first.
+         */
+        boolean cancel() {
+            if (!state.compareAndSet(WAITING, GAVE_UP)) {
+                return false;
+            }
+            cancelled();
+            return true;
+        }
+
+        E result() throws CacheExpiredException {
+            if (state.get() == FAILED) {
+                throw (CacheExpiredException) error;
+            }
+            return element;
+        }
+    }
+
+    private static final class FutureTaker<E> extends Taker<E> {
+
+        final CompletableFuture<E> future = new CompletableFuture<E>();
+
+        FutureTaker(long since) {
+            super(since);
+        }
+
+        boolean wants() {
+            return !future.isDone();
+        }
+
+        boolean deliver(E element) {
+            return future.complete(element);
+        }
+
+        void fail(Throwable error) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    private final class SubscriptionTaker extends Taker<E> implements CachePublisher.Subscription {
+
+        private final CachePublisher.Subscriber<? super E> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        SubscriptionTaker(CachePublisher.Subscriber<? super E> subscriber) {
+            super(System.nanoTime());
+            this.subscriber = subscriber;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                end(new IllegalArgumentException("request(" + n + "), must be positive"));
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = demand.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!demand.compareAndSet(current, next));
+            if (done.get()) {
+                return;
+            }
+            if (current == 0) {
+                since = System.nanoTime();
+            }
+            // once the cache is closed, handOver() fails it.
+            enqueue(this);
+            handOver();
+        }
+
+        /**
+         * Ends the subscription with the error, signalled by handOver() so that it is
+         * never concurrent with onNext().
+         */
+        void end(Throwable failure) {
+            if (!done.get() && error.compareAndSet(null, failure)) {
+                enqueue(this);
+                handOver();
+            }
+        }
+
+        public void cancel() {
+            done.set(true);
+        }
+
+        boolean wants() {
+            return !done.get() && (demand.get() > 0 || error.get() != null);
+        }
+
+        Throwable pendingError() {
+            return error.get();
+        }
+
+        boolean deliver(E element) {
+            if (done.get()) {
+                return false;
+            }
+            if (demand.get() != Long.MAX_VALUE) {
+                demand.decrementAndGet();
+            }
+            try {
+                subscriber.onNext(element);
+            } catch (RuntimeException e) {
+                // a subscriber failing is cancelled, the element is gone with it.
+                done.set(true);
+                e.printStackTrace();
+            }
+            return true;
+        }
+
+        void fail(Throwable error) {
+            if (done.compareAndSet(false, true)) {
+                subscriber.onError(error);
+            }
+        }
+    }
+}
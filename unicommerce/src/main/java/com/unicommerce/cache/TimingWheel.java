@@ -0,0 +1,184 @@
+package com.unicommerce.cache;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timing wheel tracking the deadlines of cache entries.
+ *
+ * Entries are identified by int handles chosen by the owner. Each handle is linked
+ * into the bucket of its deadline tick (tick = deadline / tickNanos, modulo the wheel
+ * size), links are kept in plain int arrays so scheduling, cancelling and expiring an
+ * entry is O(1) and allocates nothing. Deadlines further away than one revolution
+ * simply stay in their bucket until the round they belong to comes by.
+ *
+ * Not thread-safe, the owner holds its lock around every call.
+ */
+public class TimingWheel {
+
+    public static final int NIL = -1;
+
+    /**
+     * Callback receiving each handle whose deadline has passed, the handle is already
+     * unscheduled when it is called.
+     */
+    public interface Expiry {
+        void expire(int handle);
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final int[] heads;
+
+    private int[] next = new int[0];
+    private int[] prev = new int[0];
+    private int[] bucketOf = new int[0];
+    private long[] deadlines = new long[0];
+
+    // first tick that has not been processed yet.
+    private long currentTick;
+    private int scheduled;
+
+    /**
+     * @param tickNanos resolution of the wheel.
+     * @param wheelSize number of buckets, rounded up to a power of two.
+     * @param startNanos current time, ticks before it are considered processed.
+     */
+    public TimingWheel(long tickNanos, int wheelSize, long startNanos) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tickNanos must be positive : " + tickNanos);
+        }
+        int size = Integer.highestOneBit(Math.max(wheelSize, 1) - 1) << 1;
+        this.tickNanos = tickNanos;
+        this.mask = Math.max(size, 1) - 1;
+        this.heads = new int[mask + 1];
+        Arrays.fill(heads, NIL);
+        this.currentTick = Math.floorDiv(startNanos, tickNanos);
+    }
+
+    /**
+     * Picks a tick so that a wheel of the given size spans at least the given time to live.
+     */
+    public static long tickFor(long timeToLiveNanos, int wheelSize) {
+        return Math.max(timeToLiveNanos / Math.max(wheelSize / 2, 1), 1000000L);
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    public int size() {
+        return scheduled;
+    }
+
+    public boolean isScheduled(int handle) {
+        return handle < bucketOf.length && bucketOf[handle] != NIL;
+    }
+
+    public long deadline(int handle) {
+        return deadlines[handle];
+    }
+
+    /**
+     * Schedules (or re-schedules) the handle to expire at the given deadline.
+     */
+    public void schedule(int handle, long deadlineNanos) {
+        ensureCapacity(handle + 1);
+        if (bucketOf[handle] != NIL) {
+            unlink(handle);
+        }
+        long tick = Math.max(Math.floorDiv(deadlineNanos, tickNanos), currentTick);
+        int bucket = (int) (tick & mask);
+        deadlines[handle] = deadlineNanos;
+        bucketOf[handle] = bucket;
+        prev[handle] = NIL;
+        next[handle] = heads[bucket];
+        if (heads[bucket] != NIL) {
+            prev[heads[bucket]] = handle;
+        }
+        heads[bucket] = handle;
+        scheduled++;
+    }
+
+    /**
+     * Unschedules the handle, no-op if it is not scheduled.
+     */
+    public void cancel(int handle) {
+        if (isScheduled(handle)) {
+            unlink(handle);
+        }
+    }
+
+    /**
+     * Processes every tick that has fully elapsed at the given time and hands the
+     * handles whose deadline fell in one of them to the callback.
+     *
+     * @return number of expired handles.
+     */
+    public int advance(long nowNanos, Expiry expiry) {
+        long nowTick = Math.floorDiv(nowNanos, tickNanos);
+        if (nowTick <= currentTick) {
+            return 0;
+        }
+        int expired = 0;
+        if (nowTick - currentTick > mask) {
+            // idle for more than a revolution, one pass over every bucket is enough.
+            for (int bucket = 0; bucket <= mask; bucket++) {
+                expired += expireBucket(bucket, nowTick - 1, expiry);
+            }
+        } else {
+            for (long tick = currentTick; tick < nowTick; tick++) {
+                expired += expireBucket((int) (tick & mask), tick, expiry);
+            }
+        }
+        currentTick = nowTick;
+        return expired;
+    }
+
+    public void clear() {
+        Arrays.fill(heads, NIL);
+        Arrays.fill(bucketOf, NIL);
+        scheduled = 0;
+    }
+
+    private int expireBucket(int bucket, long upToTick, Expiry expiry) {
+        int expired = 0;
+        int handle = heads[bucket];
+        while (handle != NIL) {
+            int following = next[handle];
+            if (Math.floorDiv(deadlines[handle], tickNanos) <= upToTick) {
+                unlink(handle);
+                expiry.expire(handle);
+                expired++;
+            }
+            handle = following;
+        }
+        return expired;
+    }
+
+    private void unlink(int handle) {
+        int bucket = bucketOf[handle];
+        if (prev[handle] != NIL) {
+            next[prev[handle]] = next[handle];
+        } else {
+            heads[bucket] = next[handle];
+        }
+        if (next[handle] != NIL) {
+            prev[next[handle]] = prev[handle];
+        }
+        bucketOf[handle] = NIL;
+        scheduled--;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= bucketOf.length) {
+            return;
+        }
+        int newLength = Math.max(capacity, Math.max(16, bucketOf.length * 2));
+        int oldLength = bucketOf.length;
+        next = Arrays.copyOf(next, newLength);
+        prev = Arrays.copyOf(prev, newLength);
+        deadlines = Arrays.copyOf(deadlines, newLength);
+        bucketOf = Arrays.copyOf(bucketOf, newLength);
+        Arrays.fill(bucketOf, oldLength, newLength, NIL);
+    }
+}
@@ -0,0 +1,127 @@
+package com.unicommerce.cache;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * W-TinyLFU policy. New keys enter an LRU window of 1% of the capacity; the keys leaving
+ * the window go to the main space, a segmented LRU split into probation (20%) and
+ * protected (80%). A probation key which is used again is promoted to protected, the
+ * least recent protected key being demoted back to probation.
+ *
+ * Once the cache is full, the key leaving the window is a candidate competing with the
+ * bottom of probation: the one the {@link FrequencySketch} saw more often stays. A scan
+ * of addresses seen once then only churns the window and the probation segment.
+ */
+final class TinyLfuEviction extends Eviction {
+
+    // a candidate this popular is admitted now and then even when it loses, so that an
+    // attacker cannot pin the victims by raising their frequency with hash collisions.
+    private static final int WARM_CANDIDATE = 5;
+
+    private final int windowMaximum;
+    private final int mainMaximum;
+    private final int protectedMaximum;
+
+    private final LongPairIndexedStack window = newQueue();
+    private final LongPairIndexedStack probation = newQueue();
+    private final LongPairIndexedStack protectedQueue = newQueue();
+    private final FrequencySketch sketch;
+    private final long[] moved = new long[2];
+
+    TinyLfuEviction(int maximumSize) {
+        this.windowMaximum = Math.max(1, maximumSize / 100);
+        this.mainMaximum = Math.max(1, maximumSize - windowMaximum);
+        this.protectedMaximum = (int) (mainMaximum * 8L / 10);
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    void onAdd(long high, long low) {
+        sketch.increment(high, low);
+        onRemove(high, low);
+        push(window, high, low);
+        // while the cache fills up, the keys leaving the window go straight to probation.
+        while (window.size() > windowMaximum && mainSize() < mainMaximum) {
+            pollBottom(window, moved);
+            push(probation, moved[0], moved[1]);
+        }
+    }
+
+    void onAccess(long high, long low) {
+        if (touch(window, high, low) || touch(protectedQueue, high, low)) {
+            sketch.increment(high, low);
+        } else if (remove(probation, high, low)) {
+            sketch.increment(high, low);
+            push(protectedQueue, high, low);
+            if (protectedQueue.size() > protectedMaximum) {
+                pollBottom(protectedQueue, moved);
+                push(probation, moved[0], moved[1]);
+            }
+        }
+    }
+
+    void onRemove(long high, long low) {
+        if (!remove(window, high, low) && !remove(probation, high, low)) {
+            remove(protectedQueue, high, low);
+        }
+    }
+
+    boolean evict(long[] victim) {
+        if (window.size() > windowMaximum) {
+            pollBottom(window, moved);
+            LongPairIndexedStack main = probation.isEmpty() ? protectedQueue : probation;
+            int slot = main.bottomSlot();
+            if (slot == PrimitiveIndexedStack.NIL) {
+                victim[0] = moved[0];
+                victim[1] = moved[1];
+                return true;
+            }
+            long high = main.highAt(slot);
+            long low = main.lowAt(slot);
+            if (admit(moved[0], moved[1], high, low)) {
+                remove(main, high, low);
+                push(probation, moved[0], moved[1]);
+                victim[0] = high;
+                victim[1] = low;
+            } else {
+                victim[0] = moved[0];
+                victim[1] = moved[1];
+            }
+            return true;
+        }
+        return pollBottom(probation, victim) || pollBottom(protectedQueue, victim) || pollBottom(window, victim);
+    }
+
+    void retain(KeyFilter filter) {
+        retain(window, filter);
+        retain(probation, filter);
+        retain(protectedQueue, filter);
+    }
+
+    int size() {
+        return window.size() + mainSize();
+    }
+
+    void clear() {
+        window.clear();
+        probation.clear();
+        protectedQueue.clear();
+        sketch.clear();
+    }
+
+    long estimatedBytes() {
+        return window.estimatedBytes() + probation.estimatedBytes() + protectedQueue.estimatedBytes()
+                + sketch.estimatedBytes();
+    }
+
+    private int mainSize() {
+        return probation.size() + protectedQueue.size();
+    }
+
+    private boolean admit(long candidateHigh, long candidateLow, long victimHigh, long victimLow) {
+        int candidateFrequency = sketch.frequency(candidateHigh, candidateLow);
+        if (candidateFrequency > sketch.frequency(victimHigh, victimLow)) {
+            return true;
+        }
+        return candidateFrequency > WARM_CANDIDATE && (ThreadLocalRandom.current().nextInt() & 127) == 0;
+    }
+}
@@ -0,0 +1,520 @@
+package com.unicommerce.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free {@link StackEngine}: a Treiber stack (CAS on the top pointer) with an
+ * elimination array where a push and a pop meeting under contention exchange the
+ * node without touching the top at all.
+ *
+ * Uniqueness and contains go through a concurrent index from element to node. Remove,
+ * take and expiry all retire a node by a single CAS on its state, so exactly one of
+ * them wins; retired nodes are skipped by the readers and unlinked lazily, by poll
+ * when they reach the top and by a compaction pass of the expiry task once they
+ * outnumber the live ones. Every cache shares one max age, so the insertion order is
+ * the deadline order: expiry consumes a FIFO of nodes from its head, O(1) per node.
+ * The nodes taken or removed before their deadline stay in that FIFO, the expiry task
+ * purges them too once they outnumber the live ones.
+ */
+class TreiberStackEngine<E> implements StackEngine<E>, StackEngine.ExpiryNotifier<E> {
+
+    private static final int ELIMINATION_SPINS = 128;
+    private static final int COMPACTION_SLACK = 1024;
+    // node 32, ConcurrentHashMap node 32 + table slot, ConcurrentLinkedQueue node 24.
+    private static final int ENTRY_BYTES = 96;
+    // node 32, ConcurrentLinkedQueue node 24.
+    private static final int DEAD_ENTRY_BYTES = 56;
+
+    private final AtomicReference<Node<E>> top = new AtomicReference<Node<E>>();
+    private final ConcurrentHashMap<E, Node<E>> index = new ConcurrentHashMap<E, Node<E>>();
+    private final ConcurrentLinkedQueue<Node<E>> byDeadline = new ConcurrentLinkedQueue<Node<E>>();
+    private final AtomicReferenceArray<Node<E>> elimination;
+    // retired nodes which may still be linked below the top.
+    private final AtomicInteger retiredLinked = new AtomicInteger();
+    // claimed nodes still queued by deadline.
+    private final AtomicInteger retiredQueued = new AtomicInteger();
+    private final long tickNanos;
+    private volatile Visitor<? super E> expiryListener;
+
+    TreiberStackEngine(long timeToLiveNanos) {
+        int slots = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors(), 2));
+        this.elimination = new AtomicReferenceArray<Node<E>>(slots);
+        this.tickNanos = IndexedStack.tickFor(timeToLiveNanos);
+    }
+
+    public boolean push(E element, long expiresAt, long now) {
+        Node<E> node = new Node<E>(element, expiresAt);
+        if (!index(node, now)) {
+            return false;
+        }
+        pushNode(node);
+        return true;
+    }
+
+    /**
+     * Indexes the new nodes one by one, then links them all with a single CAS on the top.
+     */
+    public int pushAll(Collection<? extends E> elements, long expiresAt, long now) {
+        Node<E> first = null;
+        Node<E> last = null;
+        int pushed = 0;
+        for (E element : elements) {
+            Node<E> node = new Node<E>(element, expiresAt);
+            if (index(node, now)) {
+                node.next = last;
+                last = node;
+                if (first == null) {
+                    first = node;
+                }
+                pushed++;
+            }
+        }
+        if (first == null) {
+            return 0;
+        }
+        for (;;) {
+            Node<E> head = top.get();
+            first.next = head;
+            if (top.compareAndSet(head, last)) {
+                return pushed;
+            }
+        }
+    }
+
+    public int removeAll(Collection<? extends E> elements, long now) {
+        int removed = 0;
+        for (E element : elements) {
+            if (remove(element, now)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public boolean containsAll(Collection<? extends E> elements, long now) {
+        for (E element : elements) {
+            if (!contains(element, now)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cuts the top n live nodes off the stack with a single CAS, then claims them; nodes
+     * removed concurrently meanwhile are skipped and the cut retried for the missing ones.
+     */
+    public int pollN(int n, Collection<? super E> into, long now) {
+        int polled = 0;
+        List<Node<E>> cut = new ArrayList<Node<E>>(Math.min(n, 1024));
+        while (polled < n) {
+            Node<E> head = top.get();
+            if (head == null) {
+                break;
+            }
+            cut.clear();
+            Node<E> rest = head;
+            int live = 0;
+            // the nodes are collected on the way: a compaction may rewrite their links after the cut.
+            while (rest != null && live < n - polled) {
+                if (!rest.isRetired() && !isExpired(rest, now)) {
+                    live++;
+                }
+                cut.add(rest);
+                rest = rest.next;
+            }
+            if (!top.compareAndSet(head, rest)) {
+                continue;
+            }
+            for (Node<E> node : cut) {
+                if (take(node)) {
+                    index.remove(node.element, node);
+                    if (!isExpired(node, now)) {
+                        into.add(node.element);
+                        polled++;
+                    } else {
+                        expired(node);
+                    }
+                } else {
+                    unlinked(node);
+                }
+            }
+        }
+        return polled;
+    }
+
+    public boolean remove(E element, long now) {
+        Node<E> node = index.get(element);
+        if (node == null) {
+            return false;
+        }
+        boolean removed = retire(node);
+        index.remove(element, node);
+        if (removed && isExpired(node, now)) {
+            expired(node);
+            return false;
+        }
+        return removed;
+    }
+
+    public boolean contains(E element, long now) {
+        Node<E> node = index.get(element);
+        return node != null && !node.isRetired() && !isExpired(node, now);
+    }
+
+    public E peek(long now) {
+        Node<E> node = top.get();
+        while (node != null && (node.isRetired() || isExpired(node, now))) {
+            node = node.next;
+        }
+        return node == null ? null : node.element;
+    }
+
+    public E poll(long now) {
+        for (;;) {
+            Node<E> head = top.get();
+            if (head == null) {
+                return null;
+            }
+            if (head.isRetired() || isExpired(head, now)) {
+                if (take(head)) {
+                    index.remove(head.element, head);
+                    expired(head);
+                }
+                if (top.compareAndSet(head, head.next)) {
+                    unlinked(head);
+                }
+                continue;
+            }
+            if (top.compareAndSet(head, head.next)) {
+                if (take(head)) {
+                    index.remove(head.element, head);
+                    return head.element;
+                }
+                // removed concurrently, it was unlinked on its behalf.
+                unlinked(head);
+                continue;
+            }
+            Node<E> exchanged = eliminatePop();
+            if (exchanged == null) {
+                continue;
+            }
+            if (!take(exchanged)) {
+                // removed while offered, it was never linked.
+                unlinked(exchanged);
+                continue;
+            }
+            index.remove(exchanged.element, exchanged);
+            if (!isExpired(exchanged, now)) {
+                return exchanged.element;
+            }
+            expired(exchanged);
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Detaches the whole stack with a single swap of the top, then claims exactly the nodes
+     * detached: a push linked meanwhile is kept, indexed. The claimed nodes left in the
+     * deadline FIFO are dropped by the expiry task.
+     */
+    public void clear() {
+        for (Node<E> node = top.getAndSet(null); node != null; node = node.next) {
+            if (take(node)) {
+                index.remove(node.element, node);
+            } else {
+                unlinked(node);
+            }
+        }
+    }
+
+    public void forEach(Visitor<? super E> visitor, long now) {
+        List<Node<E>> live = new ArrayList<Node<E>>();
+        for (Node<E> node = top.get(); node != null; node = node.next) {
+            if (!node.isRetired() && !isExpired(node, now)) {
+                live.add(node);
+            }
+        }
+        for (int i = live.size() - 1; i >= 0; i--) {
+            visitor.visit(live.get(i).element, live.get(i).expiresAt);
+        }
+    }
+
+    /**
+     * @return the nodes with their index entry & deadline queue entry, and the claimed nodes
+     * still queued by deadline, the elements not included.
+     */
+    public long estimatedBytes() {
+        return (long) index.size() * ENTRY_BYTES + (long) Math.max(retiredQueued.get(), 0) * DEAD_ENTRY_BYTES;
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    public void setExpiryListener(Visitor<? super E> listener) {
+        this.expiryListener = listener;
+    }
+
+    /**
+     * Retires the nodes whose deadline has passed, compacts the stack when the retired
+     * nodes still linked outnumber the live ones, and the deadline FIFO when the claimed
+     * nodes it holds do. Called by a single thread at a time.
+     *
+     * @return number of expired nodes.
+     */
+    public int expire(long now) {
+        int expired = 0;
+        Node<E> node;
+        while ((node = byDeadline.peek()) != null && (node.isRetired() || isExpired(node, now))) {
+            byDeadline.poll();
+            if (retire(node)) {
+                index.remove(node.element, node);
+                expired(node);
+                expired++;
+            }
+            retiredQueued.decrementAndGet();
+        }
+        if (retiredLinked.get() > index.size() + COMPACTION_SLACK) {
+            compact();
+        }
+        if (retiredQueued.get() > index.size() + COMPACTION_SLACK) {
+            purgeDeadlines();
+        }
+        return expired;
+    }
+
+    /**
+     * Unlinks the retired nodes below the top. Only pushes modify the stack above an
+     * existing node and a retired node stays retired, so a single cleaner may rewrite
+     * the links concurrently with push and poll: they see either chain, both valid.
+     */
+    private void compact() {
+        Node<E> pred = top.get();
+        while (pred != null) {
+            Node<E> next = pred.next;
+            Node<E> live = next;
+            while (live != null && live.isRetired()) {
+                unlinked(live);
+                live = live.next;
+            }
+            if (live != next) {
+                pred.next = live;
+            }
+            pred = live;
+        }
+    }
+
+    /**
+     * Drops the claimed nodes from the deadline FIFO, by the expiry thread only: it is the
+     * only one removing from it.
+     */
+    private void purgeDeadlines() {
+        int purged = 0;
+        for (Iterator<Node<E>> it = byDeadline.iterator(); it.hasNext(); ) {
+            if (it.next().isRetired()) {
+                it.remove();
+                purged++;
+            }
+        }
+        retiredQueued.addAndGet(-purged);
+    }
+
+    /**
+     * Makes the node the indexed one of its element, unless a live node already is.
+     *
+     * @return false if the element is already present and not expired.
+     */
+    private boolean index(Node<E> node, long now) {
+        for (;;) {
+            Node<E> existing = index.putIfAbsent(node.element, node);
+            if (existing == null) {
+                break;
+            }
+            if (!existing.isRetired() && !isExpired(existing, now)) {
+                return false;
+            }
+            // a dead node is still indexed, retire it and take its place.
+            if (retire(existing)) {
+                expired(existing);
+            }
+            if (index.replace(node.element, existing, node)) {
+                break;
+            }
+        }
+        if (node.expiresAt != IndexedStack.NEVER) {
+            byDeadline.offer(node);
+        }
+        return true;
+    }
+
+    private void pushNode(Node<E> node) {
+        for (;;) {
+            Node<E> head = top.get();
+            node.next = head;
+            if (top.compareAndSet(head, node)) {
+                return;
+            }
+            if (eliminatePush(node)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Offers the node in a random slot of the elimination array for a while.
+     *
+     * @return true if a concurrent pop took it.
+     */
+    private boolean eliminatePush(Node<E> node) {
+        int slot = ThreadLocalRandom.current().nextInt(elimination.length());
+        if (!elimination.compareAndSet(slot, null, node)) {
+            return false;
+        }
+        for (int spin = 0; spin < ELIMINATION_SPINS; spin++) {
+            if (elimination.get(slot) != node) {
+                return true;
+            }
+        }
+        // withdrawing fails only if a pop took the node meanwhile.
+        return !elimination.compareAndSet(slot, node, null);
+    }
+
+    /**
+     * @return a node offered by a concurrent push, null if none was found.
+     */
+    private Node<E> eliminatePop() {
+        int slot = ThreadLocalRandom.current().nextInt(elimination.length());
+        Node<E> node = elimination.get(slot);
+        if (node != null && elimination.compareAndSet(slot, node, null)) {
+            return node;
+        }
+        return null;
+    }
+
+    /**
+     * Tells the expiry listener of an expired node, claimed by the caller.
+     */
+    private void expired(Node<E> node) {
+        Visitor<? super E> listener = this.expiryListener;
+        if (listener != null) {
+            listener.visit(node.element, node.expiresAt);
+        }
+    }
+
+    /**
+     * Claims a node the caller unlinks, or unlinked already.
+     */
+    private boolean take(Node<E> node) {
+        if (!node.claim()) {
+            return false;
+        }
+        claimed(node);
+        return true;
+    }
+
+    /**
+     * Claims a node which may stay linked, counted until unlinked.
+     */
+    private boolean retire(Node<E> node) {
+        if (!node.retire()) {
+            return false;
+        }
+        retiredLinked.incrementAndGet();
+        claimed(node);
+        return true;
+    }
+
+    private void claimed(Node<E> node) {
+        if (node.expiresAt != IndexedStack.NEVER) {
+            retiredQueued.incrementAndGet();
+        }
+    }
+
+    /**
+     * Uncounts a retired node once unlinked, by whichever thread unlinks it first.
+     */
+    private void unlinked(Node<E> node) {
+        if (node.unlink()) {
+            retiredLinked.decrementAndGet();
+        }
+    }
+
+    private static boolean isExpired(Node<?> node, long now) {
+        return node.expiresAt != IndexedStack.NEVER && node.expiresAt - now <= 0;
+    }
+
+    /**
+     * @return the live elements from the oldest (bottom) to the most recent (top).
+     */
+    List<E> toList() {
+        long now = System.nanoTime();
+        List<E> out = new ArrayList<E>();
+        for (Node<E> node = top.get(); node != null; node = node.next) {
+            if (!node.isRetired() && !isExpired(node, now)) {
+                out.add(node.element);
+            }
+        }
+        Collections.reverse(out);
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+
+    private static final class Node<E> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Node> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Node.class, "state");
+
+        private static final int LIVE = 0;
+        private static final int TAKEN = 1;
+        private static final int RETIRED = 2;
+        private static final int UNLINKED = 3;
+
+        final E element;
+        final long expiresAt;
+        volatile Node<E> next;
+        // LIVE, then TAKEN once taken off the stack, or RETIRED once removed or expired in
+        // place: counted in retiredLinked until UNLINKED.
+        volatile int state;
+
+        Node(E element, long expiresAt) {
+            this.element = element;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean claim() {
+            return STATE.compareAndSet(this, LIVE, TAKEN);
+        }
+
+        boolean retire() {
+            return STATE.compareAndSet(this, LIVE, RETIRED);
+        }
+
+        boolean unlink() {
+            return STATE.compareAndSet(this, RETIRED, UNLINKED);
+        }
+
+        boolean isRetired() {
+            return state != LIVE;
+        }
+    }
+}
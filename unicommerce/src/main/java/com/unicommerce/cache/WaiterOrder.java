@@ -0,0 +1,19 @@
+package com.unicommerce.cache;
+
+/**
+ * Order in which the consumers waiting on an empty AddressCache (take(), takeAsync(),
+ * publisher subscriptions) get the addresses added next, see AddressCache#setWaiterOrder.
+ */
+public enum WaiterOrder {
+
+    /**
+     * The consumer waiting the longest first, no consumer starves. The default.
+     */
+    FIFO,
+
+    /**
+     * The consumer which started waiting last first: under a steady load the same few
+     * consumers stay busy, with warm caches, while the others keep waiting.
+     */
+    LIFO
+}
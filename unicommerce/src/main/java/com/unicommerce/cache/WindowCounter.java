@@ -0,0 +1,69 @@
+package com.unicommerce.cache;
+
+/**
+ * Sliding-window count of the sightings of (high, low) keys, see {@link WindowCounting}.
+ *
+ * Time is cut into BUCKETS buckets of a sixteenth of the longest window each, a bucket
+ * being identified by its epoch: nanoTime / bucket width. A sighting counts in the bucket
+ * of its epoch, and the frequency over a window sums the buckets it spans, the current
+ * one included. Windows are so measured to the bucket, the current bucket counts whole.
+ *
+ * Buckets are reused round-robin once out of the longest window: tick(), run by the
+ * expiry scheduler once per bucket width, does it ahead of the writers. Both operations
+ * are O(1), and allocation-free once the tables are sized. Thread-safe.
+ */
+abstract class WindowCounter {
+
+    static final int BUCKETS = 16;
+
+    private final long windowNanos;
+    private final long bucketNanos;
+
+    WindowCounter(long windowNanos) {
+        if (windowNanos <= 0) {
+            throw new IllegalArgumentException("Window must be positive : " + windowNanos + "ns");
+        }
+        this.windowNanos = windowNanos;
+        this.bucketNanos = Math.max(1, (windowNanos + BUCKETS - 1) / BUCKETS);
+    }
+
+    abstract void record(long high, long low, long now);
+
+    /**
+     * @param buckets number of buckets of the window, see bucketsOf().
+     * @return sightings of the key in the buckets, the current one included.
+     */
+    abstract int frequency(long high, long low, int buckets, long now);
+
+    /**
+     * Readies the next bucket and drops what is out of the longest window.
+     */
+    abstract void tick(long now);
+
+    abstract void clear();
+
+    abstract long estimatedBytes();
+
+    /**
+     * @return number of buckets spanned by a window, 1 to BUCKETS.
+     * @throws IllegalArgumentException if the window is not in (0, longest window].
+     */
+    final int bucketsOf(long windowNanos) {
+        if (windowNanos <= 0 || windowNanos > this.windowNanos) {
+            throw new IllegalArgumentException("Window out of (0, " + this.windowNanos + "ns] : " + windowNanos + "ns");
+        }
+        return (int) Math.min(BUCKETS, (windowNanos + bucketNanos - 1) / bucketNanos);
+    }
+
+    final long epochOf(long now) {
+        return Math.floorDiv(now, bucketNanos);
+    }
+
+    final long getTickNanos() {
+        return bucketNanos;
+    }
+
+    static int ringIndex(long epoch, int ring) {
+        return (int) Math.floorMod(epoch, (long) ring);
+    }
+}
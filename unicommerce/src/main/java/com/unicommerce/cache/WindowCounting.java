@@ -0,0 +1,30 @@
+package com.unicommerce.cache;
+
+/**
+ * How an AddressCache counts the sightings of its addresses, see
+ * {@link AddressCache#trackFrequency(long, java.util.concurrent.TimeUnit, WindowCounting, int)}.
+ */
+public enum WindowCounting {
+
+    /**
+     * A ring of bucket counters per address seen in the window, exact to the bucket.
+     * Memory grows with the number of distinct addresses seen in the window.
+     */
+    EXACT,
+
+    /**
+     * A count-min sketch per bucket, memory fixed by the expected number of addresses. An
+     * estimate is never below the true count and may exceed it by a small share of all the
+     * sightings of the window, when the sketch is much fuller than expected.
+     */
+    SKETCH;
+
+    WindowCounter create(long windowNanos, int expectedAddresses) {
+        switch (this) {
+            case SKETCH:
+                return new SketchWindowCounter(windowNanos, expectedAddresses);
+            default:
+                return new RingWindowCounter(windowNanos, expectedAddresses);
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package com.unicommerce.cache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the mutations of an AddressCache (add, remove, take, clear), kept
+ * in a directory next to the snapshots covering it:
+ * <pre>
+ *   snapshot-N.bin : the cache as of the start of segment N (see {@link AddressSnapshot})
+ *   wal-N.log      : the mutations logged from there on, segment after segment
+ * </pre>
+ * Recovery loads the latest snapshot and replays the segments from its number on. A
+ * checkpoint rolls to a new segment, saves a snapshot numbered after it and deletes the
+ * snapshots and segments it covers.
+ *
+ * Records, big-endian, each followed by the CRC32 of its bytes so that a torn tail is
+ * detected and dropped on replay:
+ * <pre>
+ *   ADD    : op(1) length(1) address(4 or 16) expiresAtMillis(8) crc(4)
+ *   REMOVE : op(1) length(1) address(4 or 16) crc(4)
+ *   CLEAR  : op(1) crc(4)
+ * </pre>
+ * Group commit: records are appended to a memory buffer under the append lock, the first
+ * caller needing them on disk becomes the leader, swaps the buffer and writes every
+ * record buffered so far with one write (and one force), the callers queued behind it
+ * find their records already written. No thread is started, the {@link Durability#ASYNC}
+ * flushes and the checkpoints are run on the I/O threads of the {@link ExpiryScheduler}.
+ */
+public final class WriteAheadLog {
+
+    /**
+     * When add/remove/take return with respect to their log record.
+     */
+    public enum Durability {
+
+        /**
+         * Records are written and forced every {@link #ASYNC_FLUSH_MILLIS} ms by an I/O thread
+         * of the expiry scheduler, callers never wait. A crash loses the last few ms of mutations.
+         */
+        ASYNC,
+
+        /**
+         * Callers wait until their record is written to the file: survives a crash of the
+         * process, not of the OS.
+         */
+        WRITE,
+
+        /**
+         * Callers wait until their record is written and forced to the disk.
+         */
+        FSYNC
+    }
+
+    static final long ASYNC_FLUSH_MILLIS = 10;
+    static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 3;
+    private static final int MAX_RECORD_BYTES = 2 + AddressCodec.IPV6_LENGTH + 8 + 4;
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+
+    private final Path directory;
+    private final Durability durability;
+    private final long segmentBytes;
+
+    // appends and the swap of the buffers, held across apply + append by LoggedAddressEngine.
+    final ReentrantLock appendLock = new ReentrantLock();
+    private ByteBuffer filling = ByteBuffer.allocate(64 << 10);
+    private long appended;
+    private final CRC32 crc = new CRC32();
+
+    // one leader writes at a time, the file state below is only touched under this lock.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private ByteBuffer draining = ByteBuffer.allocate(64 << 10);
+    private volatile long written;
+    private volatile long forced;
+    private long segment;
+    private FileChannel channel;
+    private boolean closed;
+
+    // a periodic checkpoint running late must not snapshot the storage close() is clearing.
+    private final Object checkpointLock = new Object();
+
+    WriteAheadLog(Path directory, Durability durability, long segmentBytes) {
+        this.directory = directory;
+        this.durability = durability;
+        this.segmentBytes = segmentBytes;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Loads the latest snapshot into the engine, replays the segments on top of it and
+     * opens a new segment for the mutations to come.
+     *
+     * @return number of records replayed, snapshot entries included.
+     */
+    int recover(AddressEngine engine, long maxTimeToLive) throws IOException {
+        Files.createDirectories(directory);
+        long snapshot = latest(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        int recovered = 0;
+        if (snapshot >= 0) {
+            recovered += AddressSnapshot.read(snapshotFile(snapshot), engine, maxTimeToLive, System.nanoTime());
+        }
+        long last = Math.max(snapshot, 0);
+        for (long number : numbers(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (number >= last) {
+                recovered += replay(segmentFile(number), engine, maxTimeToLive);
+            }
+            last = Math.max(last, number + 1);
+        }
+        writeLock.lock();
+        try {
+            openSegment(last);
+        } finally {
+            writeLock.unlock();
+        }
+        return recovered;
+    }
+
+    // ---- appending, the caller holds the append lock.
+
+    /**
+     * @return position to wait for, see {@link #commit(long)}.
+     */
+    long appendAdd(byte[] address, int length, long expiresAtMillis) {
+        ByteBuffer buffer = room();
+        int start = buffer.position();
+        buffer.put(ADD).put((byte) length).put(address, 0, length).putLong(expiresAtMillis);
+        return seal(buffer, start);
+    }
+
+    long appendAdd(int ipv4, long expiresAtMillis) {
+        ByteBuffer buffer = room();
+        int start = buffer.position();
+        buffer.put(ADD).put((byte) AddressCodec.IPV4_LENGTH).putInt(ipv4).putLong(expiresAtMillis);
+        return seal(buffer, start);
+    }
+
+    long appendRemove(byte[] address, int length) {
+        ByteBuffer buffer = room();
+        int start = buffer.position();
+        buffer.put(REMOVE).put((byte) length).put(address, 0, length);
+        return seal(buffer, start);
+    }
+
+    long appendRemove(int ipv4) {
+        ByteBuffer buffer = room();
+        int start = buffer.position();
+        buffer.put(REMOVE).put((byte) AddressCodec.IPV4_LENGTH).putInt(ipv4);
+        return seal(buffer, start);
+    }
+
+    long appendClear() {
+        ByteBuffer buffer = room();
+        int start = buffer.position();
+        buffer.put(CLEAR);
+        return seal(buffer, start);
+    }
+
+    // ---- group commit.
+
+    /**
+     * Returns once the records appended up to the given position are as durable as the
+     * durability mode requires, writing them as the leader of a group if needed.
+     *
+     * @throws UncheckedIOException if the log could not be written.
+     */
+    void commit(long position) {
+        if (durability == Durability.ASYNC) {
+            return;
+        }
+        boolean force = durability == Durability.FSYNC;
+        if ((force ? forced : written) >= position) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            // the previous leader may have written this record meanwhile.
+            if ((force ? forced : written) < position) {
+                flush(force);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes and forces every record appended so far.
+     */
+    void flush() throws IOException {
+        writeLock.lock();
+        try {
+            flush(true);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Rolls to a new segment, saves a snapshot of the engine numbered after it and deletes
+     * the snapshots and segments it covers.
+     *
+     * @return number of addresses in the snapshot.
+     */
+    int checkpoint(AddressEngine engine) throws IOException {
+        synchronized (checkpointLock) {
+            return checkpointLocked(engine);
+        }
+    }
+
+    private int checkpointLocked(AddressEngine engine) throws IOException {
+        long covered;
+        writeLock.lock();
+        try {
+            if (closed) {
+                return 0;
+            }
+            // every mutation logged before the roll is applied, so the snapshot taken
+            // after it holds them all.
+            flush(true);
+            openSegment(segment + 1);
+            covered = segment;
+        } finally {
+            writeLock.unlock();
+        }
+        int saved = AddressSnapshot.write(engine, snapshotFile(covered), System.nanoTime());
+        for (long number : numbers(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (number < covered) {
+                Files.deleteIfExists(snapshotFile(number));
+            }
+        }
+        for (long number : numbers(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (number < covered) {
+                Files.deleteIfExists(segmentFile(number));
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * Flushes the pending records and closes the current segment, idempotent.
+     */
+    void close() throws IOException {
+        synchronized (checkpointLock) {
+            closeLocked();
+        }
+    }
+
+    private void closeLocked() throws IOException {
+        writeLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            flush(true);
+            closed = true;
+            channel.close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return task flushing the log, for the ASYNC mode.
+     */
+    Runnable flushTask() {
+        return new Runnable() {
+            public void run() {
+                writeLock.lock();
+                try {
+                    if (!closed) {
+                        flush(true);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return number of the segment records are currently written to.
+     */
+    long currentSegment() {
+        writeLock.lock();
+        try {
+            return segment;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Swaps the buffers and writes the drained records in one go, caller holds the write lock.
+     */
+    private void flush(boolean force) throws IOException {
+        if (closed) {
+            throw new IOException("Log already closed : " + directory);
+        }
+        long upTo;
+        appendLock.lock();
+        try {
+            ByteBuffer full = filling;
+            filling = draining;
+            draining = full;
+            upTo = appended;
+        } finally {
+            appendLock.unlock();
+        }
+        draining.flip();
+        while (draining.hasRemaining()) {
+            channel.write(draining);
+        }
+        draining.clear();
+        written = upTo;
+        if (force) {
+            channel.force(false);
+            forced = upTo;
+        }
+        if (channel.size() >= segmentBytes) {
+            openSegment(segment + 1);
+        }
+    }
+
+    private void openSegment(long number) throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+        segment = number;
+        channel = FileChannel.open(segmentFile(number), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private ByteBuffer room() {
+        if (filling.remaining() < MAX_RECORD_BYTES) {
+            ByteBuffer larger = ByteBuffer.allocate(filling.capacity() * 2);
+            filling.flip();
+            larger.put(filling);
+            filling = larger;
+        }
+        return filling;
+    }
+
+    private long seal(ByteBuffer buffer, int start) {
+        crc.reset();
+        crc.update(buffer.array(), start, buffer.position() - start);
+        buffer.putInt((int) crc.getValue());
+        appended += buffer.position() - start;
+        return appended;
+    }
+
+    /**
+     * Applies the records of a segment, stops at the first torn or corrupted one.
+     *
+     * @return number of records replayed.
+     */
+    private static int replay(Path file, AddressEngine engine, long maxTimeToLive) throws IOException {
+        ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(file));
+        CRC32 crc = new CRC32();
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        long now = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        int replayed = 0;
+        while (records.remaining() >= 5) {
+            int start = records.position();
+            byte op = records.get();
+            int length = 0;
+            if (op == ADD || op == REMOVE) {
+                length = records.get();
+                if ((length != AddressCodec.IPV4_LENGTH && length != AddressCodec.IPV6_LENGTH)
+                        || records.remaining() < length + (op == ADD ? 8 : 0) + 4) {
+                    break;
+                }
+                records.get(address, 0, length);
+            } else if (op != CLEAR) {
+                break;
+            }
+            long expiresAtMillis = op == ADD ? records.getLong() : 0;
+            crc.reset();
+            crc.update(records.array(), start, records.position() - start);
+            if (records.remaining() < 4 || records.getInt() != (int) crc.getValue()) {
+                break;
+            }
+            byte[] key = length == AddressCodec.IPV6_LENGTH ? address : copyIpv4(address);
+            if (op == ADD) {
+                long expiresAt = IndexedStack.NEVER;
+                if (expiresAtMillis != Long.MAX_VALUE) {
+                    long remaining = TimeUnit.MILLISECONDS.toNanos(expiresAtMillis - nowMillis);
+                    if (remaining <= 0) {
+                        // aged out while the node was down, an older copy may still be there.
+                        engine.remove(key, now);
+                        replayed++;
+                        continue;
+                    }
+                    expiresAt = now + Math.min(remaining, maxTimeToLive);
+                }
+                engine.remove(key, now);
+                engine.push(key, expiresAt, now);
+            } else if (op == REMOVE) {
+                engine.remove(key, now);
+            } else {
+                engine.clear();
+            }
+            replayed++;
+        }
+        return replayed;
+    }
+
+    private static byte[] copyIpv4(byte[] address) {
+        return new byte[]{address[0], address[1], address[2], address[3]};
+    }
+
+    private Path segmentFile(long number) {
+        return directory.resolve(SEGMENT_PREFIX + String.format("%020d", number) + SEGMENT_SUFFIX);
+    }
+
+    private Path snapshotFile(long number) {
+        return directory.resolve(SNAPSHOT_PREFIX + String.format("%020d", number) + SNAPSHOT_SUFFIX);
+    }
+
+    private long latest(String prefix, String suffix) throws IOException {
+        List<Long> numbers = numbers(prefix, suffix);
+        return numbers.isEmpty() ? -1 : numbers.get(numbers.size() - 1);
+    }
+
+    /**
+     * @return the numbers of the files with the given prefix & suffix, in order.
+     */
+    private List<Long> numbers(String prefix, String suffix) throws IOException {
+        List<Long> numbers = new ArrayList<Long>();
+        DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix);
+        try {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours, e.g. a snapshot-N.bin.tmp left by a crash.
+                }
+            }
+        } finally {
+            files.close();
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+}
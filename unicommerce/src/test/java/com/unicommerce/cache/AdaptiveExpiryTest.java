@@ -0,0 +1,341 @@
+package com.unicommerce.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCs of the adaptive expiry of AddressCache: jittered deadlines, sliding expiry and
+ * refresh-ahead, on the engine with times of their own and on the cache in real time.
+ * TC`s names are self-explanatory.
+ */
+public class AdaptiveExpiryTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long TTL = 8 * SECOND;
+    private static final byte[] IPV4 = {10, 0, 0, 1};
+    private static final byte[] IPV6 = {0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
+
+    @Test
+    public void jitteredDeadlinesStayWithinTheMaxAge() {
+        Lifetime lifetime = new Lifetime(TTL, 2 * SECOND);
+        Set<Long> deadlines = new HashSet<Long>();
+        for (int i = 0; i < 1000; i++) {
+            long deadline = lifetime.deadline(100);
+            Assert.assertTrue(deadline >= 100 + TTL - 2 * SECOND && deadline <= 100 + TTL);
+            deadlines.add(deadline);
+        }
+        Assert.assertTrue(deadlines.size() > 900);
+        Assert.assertEquals(100 + TTL, new Lifetime(TTL, 0).deadline(100));
+        try {
+            new Lifetime(TTL, TTL / 2 + 1);
+            Assert.fail("jitter past half of the max age");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void jitteredCacheSpreadsTheDeadlinesOfABulkAdd() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            cache.jitterExpiry(10, TimeUnit.MINUTES);
+            long before = System.nanoTime();
+            for (int i = 0; i < 200; i++) {
+                cache.add(0x0a000000 + i);
+            }
+            long after = System.nanoTime();
+            final List<Long> deadlines = new ArrayList<Long>();
+            cache.engine().forEach(new AddressEngine.AddressVisitor() {
+                public void visit(byte[] address, int length, long expiresAt) {
+                    deadlines.add(expiresAt);
+                }
+            }, after);
+            Assert.assertEquals(200, deadlines.size());
+            for (long deadline : deadlines) {
+                Assert.assertTrue(deadline - before >= TimeUnit.MINUTES.toNanos(50));
+                Assert.assertTrue(deadline - after <= TimeUnit.HOURS.toNanos(1));
+            }
+            Assert.assertTrue(new HashSet<Long>(deadlines).size() > 190);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void hitsExtendStaleDeadlinesOnly() {
+        PrimitiveAddressEngine engine = new PrimitiveAddressEngine(TTL);
+        engine.setAccessExpiry(new AccessExpiry(new Lifetime(TTL, 0), 0, null));
+        long start = System.nanoTime();
+        Assert.assertTrue(engine.push(1, start + TTL, start));
+        Assert.assertTrue(engine.push(IPV6, start + TTL, start));
+
+        // less than an eighth of the lifetime went by.
+        Assert.assertTrue(engine.contains(1, start + SECOND / 2));
+        Assert.assertEquals(start + TTL, deadlineOf(engine, ipv4(1), start));
+
+        Assert.assertTrue(engine.contains(1, start + 2 * SECOND));
+        Assert.assertEquals(start + 2 * SECOND + TTL, deadlineOf(engine, ipv4(1), start));
+        Assert.assertEquals(start + TTL, deadlineOf(engine, IPV6, start));
+
+        byte[] address = new byte[16];
+        Assert.assertEquals(16, engine.peekInto(address, start + 3 * SECOND));
+        Assert.assertEquals(start + 3 * SECOND + TTL, deadlineOf(engine, IPV6, start));
+
+        // past the max age of the add, kept alive by the hits.
+        Assert.assertEquals(0, engine.expire(start + 9 * SECOND));
+        Assert.assertTrue(engine.contains(1, start + 9 * SECOND));
+        Assert.assertTrue(engine.contains(IPV6, start + 9 * SECOND));
+        Assert.assertEquals(2, engine.expire(start + 9 * SECOND + TTL + SECOND));
+        Assert.assertEquals(0, engine.size());
+    }
+
+    @Test
+    public void slidingDeadlinesAreJittered() {
+        PrimitiveAddressEngine engine = new PrimitiveAddressEngine(TTL);
+        engine.setAccessExpiry(new AccessExpiry(new Lifetime(TTL, 2 * SECOND), 0, null));
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            engine.push(i, start + TTL, start);
+            engine.contains(i, start + 4 * SECOND);
+        }
+        Set<Long> deadlines = new HashSet<Long>();
+        for (int i = 0; i < 100; i++) {
+            long deadline = deadlineOf(engine, ipv4(i), start);
+            Assert.assertTrue(deadline >= start + 4 * SECOND + TTL - 2 * SECOND);
+            Assert.assertTrue(deadline <= start + 4 * SECOND + TTL);
+            deadlines.add(deadline);
+        }
+        Assert.assertTrue(deadlines.size() > 90);
+    }
+
+    @Test
+    public void hitsDoNotMoveDeadlinesWithoutAccessExpiry() {
+        PrimitiveAddressEngine engine = new PrimitiveAddressEngine(TTL);
+        long start = System.nanoTime();
+        engine.push(1, start + TTL, start);
+        Assert.assertTrue(engine.contains(1, start + 4 * SECOND));
+        Assert.assertEquals(start + TTL, deadlineOf(engine, ipv4(1), start));
+        Assert.assertFalse(engine.contains(1, start + TTL));
+    }
+
+    @Test
+    public void renewOnlyMovesDeadlinesLater() {
+        PrimitiveAddressEngine engine = new PrimitiveAddressEngine(TTL);
+        long start = System.nanoTime();
+        engine.push(IPV4, start + TTL, start);
+        Assert.assertTrue(engine.renew(IPV4, start + TTL - SECOND, start));
+        Assert.assertEquals(start + TTL, deadlineOf(engine, IPV4, start));
+        Assert.assertTrue(engine.renew(IPV4, start + 2 * TTL, start));
+        Assert.assertEquals(start + 2 * TTL, deadlineOf(engine, IPV4, start));
+        Assert.assertFalse(engine.renew(IPV6, start + 2 * TTL, start));
+        Assert.assertFalse(engine.renew(IPV4, start + 3 * TTL, start + 2 * TTL));
+    }
+
+    @Test
+    public void hitsCloseToTheDeadlineAskForARefresh() {
+        PrimitiveAddressEngine engine = new PrimitiveAddressEngine(TTL);
+        final List<long[]> refreshes = new ArrayList<long[]>();
+        engine.setAccessExpiry(new AccessExpiry(null, 2 * SECOND, new AccessExpiry.Refresher() {
+            public void refresh(long high, long low, long deadline) {
+                refreshes.add(new long[]{high, low, deadline});
+            }
+        }));
+        long start = System.nanoTime();
+        engine.push(1, start + TTL, start);
+        engine.push(IPV6, start + TTL, start);
+
+        Assert.assertTrue(engine.contains(1, start + SECOND));
+        Assert.assertTrue(engine.contains(IPV6, start + 5 * SECOND));
+        Assert.assertFalse(engine.contains(2, start + 7 * SECOND));
+        Assert.assertTrue(refreshes.isEmpty());
+
+        Assert.assertTrue(engine.contains(1, start + 7 * SECOND));
+        Assert.assertEquals(16, engine.peekInto(new byte[16], start + 7 * SECOND));
+        Assert.assertEquals(2, refreshes.size());
+        Assert.assertArrayEquals(new long[]{0, AddressCodec.mapped(1), start + TTL}, refreshes.get(0));
+        Assert.assertArrayEquals(new long[]{AddressCodec.high(IPV6), AddressCodec.low(IPV6), start + TTL},
+                refreshes.get(1));
+        // a refresh does not extend by itself.
+        Assert.assertEquals(start + TTL, deadlineOf(engine, ipv4(1), start));
+    }
+
+    @Test
+    public void slidingCacheKeepsHotAddressesAndExpiresColdOnes() throws Exception {
+        AddressCache cache = new AddressCache(400, TimeUnit.MILLISECONDS);
+        try {
+            cache.slideExpiry();
+            cache.add(1);
+            cache.add(2);
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1000);
+            while (System.nanoTime() < end) {
+                Assert.assertTrue(cache.contains(1));
+                Thread.sleep(20);
+            }
+            Assert.assertTrue(cache.contains(1));
+            Assert.assertFalse(cache.contains(2));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void refreshAheadRenewsOrRemovesThroughTheReloader() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.SECONDS);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        final InetAddress kept = InetAddress.getByName("10.0.0.1");
+        final InetAddress gone = InetAddress.getByName("10.0.0.2");
+        final CountDownLatch reloaded = new CountDownLatch(2);
+        try {
+            cache.refreshAhead(500, TimeUnit.MILLISECONDS, new AddressReloader() {
+                public boolean reload(InetAddress address) {
+                    reloaded.countDown();
+                    return address.equals(kept);
+                }
+            }, executor);
+            long start = System.nanoTime();
+            cache.add(kept);
+            cache.add(gone);
+            Assert.assertTrue(cache.contains(kept));
+            Thread.sleep(600);
+            Assert.assertTrue(cache.contains(kept));
+            Assert.assertTrue(cache.contains(gone));
+            Assert.assertTrue(reloaded.await(5, TimeUnit.SECONDS));
+            // the reloader returned, the removal follows.
+            for (int i = 0; i < 100 && cache.contains(gone); i++) {
+                Thread.sleep(5);
+            }
+            Assert.assertFalse(cache.contains(gone));
+
+            // past the max age of the add, renewed.
+            long past = start + TimeUnit.MILLISECONDS.toNanos(1100) - System.nanoTime();
+            Thread.sleep(Math.max(0, TimeUnit.NANOSECONDS.toMillis(past)));
+            Assert.assertTrue(cache.contains(kept));
+        } finally {
+            cache.close();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentRefreshesOfAnAddressAreCoalesced() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger reloads = new AtomicInteger();
+        try {
+            cache.add(7);
+            final AddressRefresher refresher = new AddressRefresher(cache, new AddressReloader() {
+                public boolean reload(InetAddress address) throws Exception {
+                    reloads.incrementAndGet();
+                    release.await();
+                    return true;
+                }
+            }, executor);
+            Thread[] hitters = new Thread[8];
+            for (int t = 0; t < hitters.length; t++) {
+                hitters[t] = new Thread() {
+                    public void run() {
+                        for (int i = 0; i < 1000; i++) {
+                            refresher.refresh(0, AddressCodec.mapped(7), 0);
+                        }
+                    }
+                };
+                hitters[t].start();
+            }
+            for (Thread hitter : hitters) {
+                hitter.join();
+            }
+            Assert.assertEquals(1, refresher.inFlight());
+            release.countDown();
+            long deadline = System.nanoTime() + 5 * SECOND;
+            while (refresher.inFlight() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(0, refresher.inFlight());
+            Assert.assertEquals(1, reloads.get());
+
+            refresher.refresh(0, AddressCodec.mapped(7), 0);
+            while (reloads.get() < 2 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(2, reloads.get());
+        } finally {
+            cache.close();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void adaptiveExpiryNeedsTheLockingEngine() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AddressCache[] caches = {new AddressCache(1, TimeUnit.HOURS, CacheEngine.LOCK_FREE),
+                new AddressCache(1, TimeUnit.HOURS, CacheEngine.OFF_HEAP), new ShardedAddressCache(1, TimeUnit.HOURS)};
+        for (AddressCache cache : caches) {
+            try {
+                cache.jitterExpiry(1, TimeUnit.MINUTES);
+                try {
+                    cache.slideExpiry();
+                    Assert.fail("sliding on " + cache.engine());
+                } catch (UnsupportedOperationException expected) {
+                }
+                try {
+                    cache.refreshAhead(1, TimeUnit.MINUTES, new AddressReloader() {
+                        public boolean reload(InetAddress address) {
+                            return true;
+                        }
+                    }, executor);
+                    Assert.fail("refresh ahead on " + cache.engine());
+                } catch (UnsupportedOperationException expected) {
+                }
+                Assert.assertTrue(cache.add(1));
+                Assert.assertTrue(cache.contains(1));
+            } finally {
+                cache.close();
+            }
+        }
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            cache.slideExpiry();
+            try {
+                cache.slideExpiry();
+                Assert.fail("sliding twice");
+            } catch (IllegalStateException expected) {
+            }
+        } finally {
+            cache.close();
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] ipv4(int ipv4) {
+        byte[] address = new byte[4];
+        AddressCodec.writeIpv4(ipv4, address);
+        return address;
+    }
+
+    /**
+     * @return deadline of the given address, -1 if not there.
+     */
+    private static long deadlineOf(AddressEngine engine, final byte[] address, long now) {
+        final long[] found = {-1};
+        engine.forEach(new AddressEngine.AddressVisitor() {
+            public void visit(byte[] visited, int length, long expiresAt) {
+                if (Arrays.equals(address, Arrays.copyOf(visited, length))) {
+                    found[0] = expiresAt;
+                }
+            }
+        }, now);
+        return found[0];
+    }
+}
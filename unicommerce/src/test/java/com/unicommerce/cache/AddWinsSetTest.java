@@ -0,0 +1,143 @@
+package com.unicommerce.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * TCs of AddWinsSet, MerkleDigest & ReplicationMessage, the state of the replication.
+ * TC`s names are self-explanatory.
+ */
+public class AddWinsSetTest {
+
+    private static final AddWinsSet.Key KEY = new AddWinsSet.Key(0, AddressCodec.mapped(0x0a000001));
+    private static final long HOUR = 3600 * 1000;
+
+    @Test
+    public void removeCancelsTheObservedAdds() throws Exception {
+        long now = System.currentTimeMillis();
+        AddWinsSet set = new AddWinsSet(0);
+        Assert.assertTrue(set.add(KEY, now + HOUR).isPresent(now));
+        Assert.assertFalse(set.remove(KEY).isPresent(now));
+        Assert.assertTrue(set.add(KEY, now + HOUR).isPresent(now));
+        Assert.assertNull(set.remove(new AddWinsSet.Key(0, 42)));
+    }
+
+    @Test
+    public void concurrentAddWinsOverRemove() throws Exception {
+        long now = System.currentTimeMillis();
+        AddWinsSet a = new AddWinsSet(0);
+        AddWinsSet b = new AddWinsSet(1);
+        b.merge(KEY, a.add(KEY, now + HOUR), now);
+        // a removes what it saw, b adds again meanwhile.
+        AddWinsSet.Entry removed = a.remove(KEY);
+        AddWinsSet.Entry added = b.add(KEY, now + HOUR);
+        Assert.assertTrue(a.merge(KEY, added, now).isPresent(now));
+        Assert.assertTrue(b.merge(KEY, removed, now).isPresent(now));
+    }
+
+    @Test
+    public void mergeIsCommutativeAndIdempotent() throws Exception {
+        long now = System.currentTimeMillis();
+        AddWinsSet a = new AddWinsSet(0);
+        AddWinsSet b = new AddWinsSet(1);
+        AddWinsSet c = new AddWinsSet(2);
+        AddWinsSet.Entry fromA = a.add(KEY, now + HOUR);
+        AddWinsSet.Entry fromB = b.add(KEY, now + 2 * HOUR);
+        b.remove(KEY);
+        fromB = b.get(KEY);
+        AddWinsSet ab = new AddWinsSet(3);
+        ab.merge(KEY, copy(fromA), now);
+        ab.merge(KEY, copy(fromB), now);
+        c.merge(KEY, copy(fromB), now);
+        c.merge(KEY, copy(fromA), now);
+        Assert.assertNull(c.merge(KEY, copy(fromA), now));
+        Assert.assertEquals(ab.digest().root(), c.digest().root());
+        Assert.assertTrue(c.get(KEY).isPresent(now));
+        Assert.assertEquals(now + HOUR, c.get(KEY).expiresAt(now));
+    }
+
+    @Test
+    public void expiredAddsAreSweptAndNotMerged() throws Exception {
+        long now = System.currentTimeMillis();
+        AddWinsSet set = new AddWinsSet(0);
+        AddWinsSet.Entry entry = set.add(KEY, now + 10);
+        set.remove(new AddWinsSet.Key(0, 0));
+        Assert.assertFalse(entry.isPresent(now + 10));
+        Assert.assertEquals(1, set.sweep(0, MerkleDigest.LEAVES, now + 10));
+        Assert.assertEquals(0, set.size());
+        Assert.assertEquals(new AddWinsSet(1).digest().root(), set.digest().root());
+        Assert.assertNull(set.merge(KEY, entry, now + 10));
+    }
+
+    @Test
+    public void versionsOfARestartedNodeGoPastTheOnesSeen() throws Exception {
+        long now = System.currentTimeMillis();
+        AddWinsSet before = new AddWinsSet(0);
+        before.add(KEY, now + HOUR);
+        AddWinsSet.Entry seen = before.add(KEY, now + HOUR);
+        AddWinsSet restarted = new AddWinsSet(0);
+        restarted.merge(KEY, copy(seen), now);
+        Assert.assertTrue(restarted.add(KEY, now + HOUR).addedBy(0) > seen.addedBy(0));
+    }
+
+    @Test
+    public void digestsDifferOnlyUnderTheChangedLeaf() throws Exception {
+        long now = System.currentTimeMillis();
+        AddWinsSet a = new AddWinsSet(0);
+        AddWinsSet b = new AddWinsSet(0);
+        for (int i = 0; i < 1000; i++) {
+            AddWinsSet.Key key = new AddWinsSet.Key(0, AddressCodec.mapped(i));
+            b.merge(key, copy(a.add(key, now + HOUR)), now);
+        }
+        Assert.assertEquals(a.digest().root(), b.digest().root());
+        AddWinsSet.Key removed = new AddWinsSet.Key(0, AddressCodec.mapped(5));
+        a.remove(removed);
+        int leaf = MerkleDigest.leafOf(removed.high, removed.low);
+        Assert.assertNotEquals(a.digest().root(), b.digest().root());
+        Assert.assertNotEquals(a.digest().hash(MerkleDigest.DEPTH, leaf), b.digest().hash(MerkleDigest.DEPTH, leaf));
+        Assert.assertEquals(a.digest().hash(MerkleDigest.DEPTH, leaf ^ 1), b.digest().hash(MerkleDigest.DEPTH, leaf ^ 1));
+        Assert.assertEquals(a.digest().hash(1, (leaf / 256) ^ 1), b.digest().hash(1, (leaf / 256) ^ 1));
+    }
+
+    @Test
+    public void messagesRoundTrip() throws Exception {
+        long now = System.currentTimeMillis();
+        AddWinsSet set = new AddWinsSet(7);
+        AddWinsSet.Key ipv6 = new AddWinsSet.Key(0x20010db800000000L, 1);
+        AddWinsSet.Entry entry = set.add(ipv6, now + HOUR);
+        ReplicationMessage delta = ReplicationMessage.decode(ReplicationMessage.delta(3, now,
+                Collections.singletonList(ipv6), Collections.singletonList(entry)));
+        Assert.assertEquals(ReplicationMessage.DELTA, delta.type);
+        Assert.assertEquals(3, delta.sequence);
+        Assert.assertEquals(now, delta.sentAtMillis);
+        Assert.assertEquals(ipv6, delta.keys[0]);
+        Assert.assertEquals(entry.hash(ipv6), delta.entries[0].hash(ipv6));
+
+        ReplicationMessage digest = ReplicationMessage.decode(ReplicationMessage.digest(2,
+                new int[]{5, 6, 0}, new long[]{-1, 42, 0}, 2));
+        Assert.assertEquals(2, digest.level);
+        Assert.assertArrayEquals(new int[]{5, 6}, digest.indices);
+        Assert.assertArrayEquals(new long[]{-1, 42}, digest.hashes);
+
+        ReplicationMessage entries = ReplicationMessage.decode(ReplicationMessage.entries(true, Arrays.asList(9, 10),
+                Collections.<AddWinsSet.Key>emptyList(), Collections.<AddWinsSet.Entry>emptyList()));
+        Assert.assertTrue(entries.reply);
+        Assert.assertArrayEquals(new int[]{9, 10}, entries.leaves);
+        Assert.assertEquals(0, entries.entries.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFormatIsRejected() throws Exception {
+        ReplicationMessage.decode(ByteBuffer.wrap(new byte[]{9, ReplicationMessage.DELTA}));
+    }
+
+    private static AddWinsSet.Entry copy(AddWinsSet.Entry entry) {
+        AddWinsSet.Entry copy = new AddWinsSet.Entry();
+        copy.merge(entry);
+        return copy;
+    }
+}
@@ -0,0 +1,263 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCs of AddressCacheServer & AddressCacheClient over loopback.
+ * TC`s names are self-explanatory.
+ */
+public class AddressCacheServerTest {
+
+    private AddressCache cache;
+    private AddressCacheServer server;
+    private AddressCacheClient client;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new AddressCache(1, TimeUnit.HOURS);
+        server = new AddressCacheServer(cache, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+        client = new AddressCacheClient(server.getLocalAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        client.close();
+        server.close();
+        cache.close();
+    }
+
+    @Test
+    public void singleCallsReachTheCache() throws Exception {
+        InetAddress ipv6 = InetAddress.getByName("2001:db8::1");
+        Assert.assertTrue(client.add(0x0a000001));
+        Assert.assertFalse(client.add(InetAddress.getByName("10.0.0.1")));
+        Assert.assertTrue(client.add(ipv6));
+        Assert.assertTrue(cache.contains(0x0a000001));
+        Assert.assertTrue(client.contains(ipv6));
+        Assert.assertFalse(client.contains(0x0a000002));
+        Assert.assertEquals(ipv6, client.peek());
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        Assert.assertEquals(AddressCodec.IPV6_LENGTH, client.peekInto(address));
+        Assert.assertEquals(ipv6, client.take(0, TimeUnit.SECONDS));
+        Assert.assertTrue(client.remove(0x0a000001));
+        Assert.assertFalse(client.remove(ipv6));
+        Assert.assertNull(client.peek());
+        Assert.assertEquals(0, client.peekInto(address));
+        Assert.assertNull(client.take(0, TimeUnit.SECONDS));
+        Assert.assertEquals(0, cache.metrics().getSize());
+        Assert.assertEquals(13, server.getRequests());
+    }
+
+    @Test
+    public void pipelinedBatchesAreAnsweredInOrder() throws Exception {
+        AddressCacheClient.Batch adds = new AddressCacheClient.Batch();
+        AddressCacheClient.Batch checks = new AddressCacheClient.Batch();
+        for (int i = 0; i < 10000; i++) {
+            adds.add(i);
+            checks.contains(i * 2);
+        }
+        AddressCacheClient.Batch peek = new AddressCacheClient.Batch().peek().take(0, TimeUnit.SECONDS).peek();
+        client.send(adds);
+        client.send(checks);
+        client.send(peek);
+        AddressCacheClient.Results results = new AddressCacheClient.Results();
+        client.receive(results);
+        Assert.assertEquals(10000, results.size());
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(results.isTrue(i));
+        }
+        client.receive(results);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(i * 2 < 10000, results.isTrue(i));
+        }
+        client.receive(results);
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals(InetAddress.getByName("0.0.39.15"), results.address(0));
+        Assert.assertEquals(InetAddress.getByName("0.0.39.15"), results.address(1));
+        Assert.assertEquals(InetAddress.getByName("0.0.39.14"), results.address(2));
+    }
+
+    @Test
+    public void fullBatchFitsInAFrame() throws Exception {
+        AddressCacheClient.Batch batch = new AddressCacheClient.Batch();
+        byte[] ipv6 = InetAddress.getByName("2001:db8::").getAddress();
+        int count = 0;
+        while (batch.hasRoom()) {
+            ipv6[15] = (byte) count;
+            ipv6[14] = (byte) (count >> 8);
+            batch.add(ipv6);
+            count++;
+        }
+        AddressCacheClient.Results results = client.execute(batch, new AddressCacheClient.Results());
+        Assert.assertEquals(count, results.size());
+        Assert.assertEquals(count, cache.metrics().getSize());
+    }
+
+    @Test
+    public void waitingTakeGetsTheNextAdd() throws Exception {
+        Future<InetAddress> taken = executor.submit(new Callable<InetAddress>() {
+            public InetAddress call() throws Exception {
+                AddressCacheClient taker = new AddressCacheClient(server.getLocalAddress());
+                try {
+                    return taker.take(-1, TimeUnit.SECONDS);
+                } finally {
+                    taker.close();
+                }
+            }
+        });
+        awaitWaitingConsumer();
+        // the waiting take() does not hold up the other connections.
+        Assert.assertFalse(client.contains(0x0a000001));
+        client.add(0x0a000001);
+        Assert.assertEquals(InetAddress.getByName("10.0.0.1"), taken.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, cache.metrics().getSize());
+    }
+
+    @Test
+    public void requestsBehindATimedOutTakeAreAnsweredAfterIt() throws Exception {
+        cache.add(0x0a000001);
+        AddressCacheClient.Batch batch = new AddressCacheClient.Batch()
+                .take(0, TimeUnit.SECONDS).take(50, TimeUnit.MILLISECONDS).add(0x0a000002).peek();
+        long start = System.nanoTime();
+        AddressCacheClient.Results results = client.execute(batch, new AddressCacheClient.Results());
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertEquals(InetAddress.getByName("10.0.0.1"), results.address(0));
+        Assert.assertNull(results.address(1));
+        Assert.assertTrue(results.isTrue(2));
+        Assert.assertEquals(InetAddress.getByName("10.0.0.2"), results.address(3));
+    }
+
+    @Test
+    public void addressTakenForAGoneClientIsAddedBack() throws Exception {
+        AddressCacheClient.Batch take = new AddressCacheClient.Batch().take(-1, TimeUnit.SECONDS);
+        AddressCacheClient gone = new AddressCacheClient(server.getLocalAddress());
+        gone.send(take);
+        awaitWaitingConsumer();
+        gone.close();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (server.getConnections() > 1) {
+            Assert.assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+        client.add(0x0a000001);
+        Assert.assertTrue(client.contains(0x0a000001));
+    }
+
+    @Test(expected = CacheExpiredException.class)
+    public void closedCacheIsReportedToTheClient() throws Exception {
+        cache.close();
+        client.add(0x0a000001);
+    }
+
+    @Test
+    public void waitingTakeFailsWhenTheCacheCloses() throws Exception {
+        AddressCacheClient.Batch batch = new AddressCacheClient.Batch().take(-1, TimeUnit.SECONDS);
+        client.send(batch);
+        awaitWaitingConsumer();
+        cache.close();
+        try {
+            client.receive(new AddressCacheClient.Results());
+            Assert.fail("cache closed");
+        } catch (CacheExpiredException e) {
+            // the connection stays usable.
+        }
+        try {
+            client.add(0x0a000001);
+            Assert.fail("cache closed");
+        } catch (CacheExpiredException e) {
+            Assert.assertEquals(1, server.getConnections());
+        }
+    }
+
+    @Test
+    public void malformedFrameClosesTheConnection() throws Exception {
+        SocketChannel raw = SocketChannel.open(server.getLocalAddress());
+        try {
+            ByteBuffer frame = ByteBuffer.allocate(12);
+            frame.putInt(8).putShort((short) 1).put(CacheProtocol.ADD).put((byte) 5).putInt(0);
+            frame.flip();
+            raw.write(frame);
+            ByteBuffer response = ByteBuffer.allocate(16);
+            int read;
+            while ((read = raw.read(response)) > 0) {
+                // the response header of the frame may come first.
+            }
+            Assert.assertEquals(-1, read);
+        } finally {
+            raw.close();
+        }
+        Assert.assertTrue(client.add(0x0a000001));
+    }
+
+    @Test
+    public void clientFailsOnceTheServerCloses() throws Exception {
+        client.add(0x0a000001);
+        server.close();
+        try {
+            client.contains(0x0a000001);
+            Assert.fail("server closed");
+        } catch (IOException e) {
+            // closed by the server.
+        }
+    }
+
+    @Test
+    public void clientsOfManyThreadsShareTheCache() throws Exception {
+        Future<?>[] futures = new Future<?>[8];
+        for (int t = 0; t < futures.length; t++) {
+            final int thread = t;
+            futures[t] = executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    AddressCacheClient own = new AddressCacheClient(server.getLocalAddress());
+                    try {
+                        AddressCacheClient.Batch batch = new AddressCacheClient.Batch();
+                        AddressCacheClient.Results results = new AddressCacheClient.Results();
+                        for (int round = 0; round < 10; round++) {
+                            batch.clear();
+                            for (int i = 0; i < 1000; i++) {
+                                batch.add(thread << 24 | round << 12 | i);
+                            }
+                            own.send(batch);
+                        }
+                        for (int round = 0; round < 10; round++) {
+                            own.receive(results);
+                            Assert.assertTrue(results.isTrue(999));
+                        }
+                    } finally {
+                        own.close();
+                    }
+                    return null;
+                }
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(80000, cache.metrics().getSize());
+    }
+
+    private void awaitWaitingConsumer() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!cache.hasWaitingConsumers()) {
+            Assert.assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
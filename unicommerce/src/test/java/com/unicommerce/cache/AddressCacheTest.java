@@ -1,5 +1,6 @@
 package com.unicommerce.cache;
 
+import com.unicommerce.cache.exception.CacheExpiredException;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -7,8 +8,19 @@ import org.junit.Test;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Test class which contains various TCs around the functionality of AddressCache.
@@ -24,13 +36,21 @@ public class AddressCacheTest {
 
     @Before
     public void setUp() throws Exception {
-        expirableCacheStack = new AddressCache(age, unit);
+        expirableCacheStack = newCache(age, unit);
+    }
+
+    /**
+     * Engine under test, overridden by the tests of the other engines.
+     */
+    protected AddressCache newCache(long maxAge, TimeUnit unit) {
+        return new AddressCache(maxAge, unit);
     }
 
     @After
     public void tearDown() throws Exception {
         expirableCacheStack.printCache();
         expirableCacheStack.clear();
+        expirableCacheStack.close();
     }
 
     @Test
@@ -45,6 +65,15 @@ public class AddressCacheTest {
         Assert.assertTrue(result);
     }
 
+    @Test
+    public void addDuplicateElementIsIgnored() throws Exception {
+        final InetAddress address = getInetAddress();
+        Assert.assertTrue(expirableCacheStack.add(address));
+        Assert.assertFalse(expirableCacheStack.add(address));
+        expirableCacheStack.take();
+        Assert.assertFalse(expirableCacheStack.contains(address));
+    }
+
     @Test
     public void removeElementFromCache() throws Exception {
         final InetAddress address = getInetAddress();
@@ -108,11 +137,235 @@ public class AddressCacheTest {
     }
 
     @Test
-    public void checkCacheIsExpiredAfterAgeElapsed() throws Exception {
-        // adding delay in execution to let cache expire.
-        _delayer(15000);
-        boolean isExpired = expirableCacheStack.isExpired();
-        Assert.assertTrue(isExpired);
+    public void elementExpiresAfterAgeElapsed() throws Exception {
+        AddressCache shortLived = newCache(1, TimeUnit.SECONDS);
+        final InetAddress address = getInetAddress();
+        shortLived.add(address);
+        // adding delay in execution to let the element expire.
+        _delayer(1500);
+        Assert.assertFalse(shortLived.contains(address));
+        Assert.assertNull(shortLived.peek());
+        // the cache itself stays usable.
+        Assert.assertFalse(shortLived.isExpired());
+        Assert.assertTrue(shortLived.add(address));
+        Assert.assertEquals(address, shortLived.peek());
+        shortLived.close();
+    }
+
+    @Test
+    public void ageIsCountedFromInsertionOfEachElement() throws Exception {
+        AddressCache shortLived = newCache(1, TimeUnit.SECONDS);
+        final InetAddress older = InetAddress.getByName("10.0.0.1");
+        final InetAddress newer = InetAddress.getByName("10.0.0.2");
+        shortLived.add(older);
+        _delayer(600);
+        shortLived.add(newer);
+        _delayer(600);
+        Assert.assertFalse(shortLived.contains(older));
+        Assert.assertTrue(shortLived.contains(newer));
+        shortLived.add(older);
+        Assert.assertEquals(older, shortLived.take());
+        Assert.assertEquals(newer, shortLived.take());
+        shortLived.close();
+    }
+
+    @Test(expected = CacheExpiredException.class)
+    public void closedCacheRejectsOperations() throws Exception {
+        expirableCacheStack.add(getInetAddress());
+        expirableCacheStack.close();
+        Assert.assertTrue(expirableCacheStack.isExpired());
+        expirableCacheStack.peek();
+    }
+
+    @Test
+    public void closeWakesUpWaitingTake() throws Exception {
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread consumer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    expirableCacheStack.take();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        consumer.start();
+        _delayer(100);
+        expirableCacheStack.close();
+        consumer.join(1000);
+        Assert.assertFalse(consumer.isAlive());
+        Assert.assertTrue(failure.get() instanceof CacheExpiredException);
+    }
+
+    @Test
+    public void creatingCachesStartsNoThread() throws Exception {
+        newCache(age, unit).close();
+        Set<Long> threadsBefore = liveThreadIds();
+        List<AddressCache> caches = new ArrayList<AddressCache>();
+        for (int i = 0; i < 1000; i++) {
+            caches.add(newCache(age, unit));
+        }
+        // threads of other TCs may end meanwhile, only the ones started count.
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (!threadsBefore.contains(thread.getId())) {
+                Assert.assertEquals("thread started : " + thread, "cache-expiry", thread.getName());
+            }
+        }
+        int registrations = ExpiryScheduler.shared().registrations();
+        for (AddressCache cache : caches) {
+            cache.close();
+        }
+        // caches of other TCs may be collected meanwhile, deregistering as well.
+        Assert.assertTrue(registrations - ExpiryScheduler.shared().registrations() >= 1000);
+    }
+
+    @Test
+    public void rawIpv4AndInetAddressAreTheSameElement() throws Exception {
+        Assert.assertTrue(expirableCacheStack.add(0x0a000001));
+        Assert.assertFalse(expirableCacheStack.add(InetAddress.getByName("10.0.0.1")));
+        Assert.assertTrue(expirableCacheStack.contains(new byte[]{10, 0, 0, 1}));
+        Assert.assertTrue(expirableCacheStack.contains(InetAddress.getByName("::ffff:10.0.0.1")));
+        Assert.assertEquals(InetAddress.getByName("10.0.0.1"), expirableCacheStack.peek());
+        Assert.assertTrue(expirableCacheStack.remove(InetAddress.getByName("10.0.0.1")));
+        Assert.assertFalse(expirableCacheStack.contains(0x0a000001));
+    }
+
+    @Test
+    public void rawIpv6RoundTrip() throws Exception {
+        final InetAddress ipv6 = InetAddress.getByName("2001:db8::1");
+        expirableCacheStack.add(0x0a000001);
+        expirableCacheStack.add(ipv6.getAddress());
+        Assert.assertTrue(expirableCacheStack.contains(ipv6));
+        byte[] address = new byte[16];
+        Assert.assertEquals(16, expirableCacheStack.peekInto(address));
+        Assert.assertArrayEquals(ipv6.getAddress(), address);
+        Assert.assertEquals(16, expirableCacheStack.takeInto(address));
+        Assert.assertEquals(4, expirableCacheStack.takeInto(address));
+        Assert.assertEquals(0x0a000001, AddressCodec.ipv4(Arrays.copyOf(address, 4)));
+        Assert.assertEquals(0, expirableCacheStack.peekInto(address));
+    }
+
+    @Test
+    public void addAllKeepsIterationOrderAndSkipsDuplicates() throws Exception {
+        List<InetAddress> batch = new ArrayList<InetAddress>();
+        for (int i = 1; i <= 100; i++) {
+            batch.add(AddressCodec.toInetAddress(i));
+        }
+        expirableCacheStack.add(AddressCodec.toInetAddress(50));
+        Assert.assertEquals(99, expirableCacheStack.addAll(batch));
+        Assert.assertTrue(expirableCacheStack.containsAll(batch));
+        Assert.assertEquals(AddressCodec.toInetAddress(100), expirableCacheStack.peek());
+    }
+
+    @Test
+    public void removeAllAndContainsAll() throws Exception {
+        List<InetAddress> batch = Arrays.asList(AddressCodec.toInetAddress(1),
+                AddressCodec.toInetAddress(2), InetAddress.getByName("2001:db8::1"));
+        expirableCacheStack.addAll(batch);
+        expirableCacheStack.add(AddressCodec.toInetAddress(3));
+        Assert.assertEquals(3, expirableCacheStack.removeAll(batch));
+        Assert.assertEquals(0, expirableCacheStack.removeAll(batch));
+        Assert.assertFalse(expirableCacheStack.containsAll(batch));
+        Assert.assertTrue(expirableCacheStack.containsAll(Collections.singletonList(AddressCodec.toInetAddress(3))));
+    }
+
+    @Test
+    public void takeNDrainsMostRecentFirst() throws Exception {
+        for (int i = 1; i <= 10; i++) {
+            expirableCacheStack.add(i);
+        }
+        List<InetAddress> taken = expirableCacheStack.takeN(4, 0, TimeUnit.SECONDS);
+        Assert.assertEquals(Arrays.asList(AddressCodec.toInetAddress(10), AddressCodec.toInetAddress(9),
+                AddressCodec.toInetAddress(8), AddressCodec.toInetAddress(7)), taken);
+        Assert.assertEquals(6, expirableCacheStack.takeN(100, 0, TimeUnit.SECONDS).size());
+        Assert.assertNull(expirableCacheStack.peek());
+    }
+
+    @Test
+    public void takeNTimesOutWhenEmpty() throws Exception {
+        long start = System.nanoTime();
+        Assert.assertTrue(expirableCacheStack.takeN(10, 50, TimeUnit.MILLISECONDS).isEmpty());
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void takeNWakesUpOnAddAll() throws Exception {
+        final AtomicReference<List<InetAddress>> taken = new AtomicReference<List<InetAddress>>();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    taken.set(expirableCacheStack.takeN(10, 10, TimeUnit.SECONDS));
+                } catch (CacheExpiredException e) {
+                    e.printStackTrace();
+                }
+                done.countDown();
+            }
+        }).start();
+        _delayer(50);
+        expirableCacheStack.addAll(Arrays.asList(AddressCodec.toInetAddress(1), AddressCodec.toInetAddress(2)));
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(AddressCodec.toInetAddress(2), AddressCodec.toInetAddress(1)), taken.get());
+    }
+
+    @Test
+    public void snapshotRestoresAddressesInOrder() throws Exception {
+        final InetAddress ipv6 = InetAddress.getByName("2001:db8::1");
+        expirableCacheStack.add(0x0a000001);
+        expirableCacheStack.add(ipv6);
+        expirableCacheStack.add(0x0a000002);
+        Path file = Files.createTempFile("address-cache", ".snapshot");
+        AddressCache restored = newCache(age, unit);
+        try {
+            Assert.assertEquals(3, expirableCacheStack.saveSnapshot(file));
+            Assert.assertEquals(3, restored.loadSnapshot(file));
+            Assert.assertEquals(AddressCodec.toInetAddress(0x0a000002), restored.take());
+            Assert.assertEquals(ipv6, restored.take());
+            Assert.assertEquals(AddressCodec.toInetAddress(0x0a000001), restored.take());
+            Assert.assertNull(restored.peek());
+        } finally {
+            restored.close();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void concurrentAddAndTakeLoseNothing() throws Exception {
+        final int producers = 4;
+        final int perProducer = 5000;
+        final Set<InetAddress> taken = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+        final CountDownLatch done = new CountDownLatch(2 * producers);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < perProducer; i++) {
+                            expirableCacheStack.add(InetAddress.getByAddress(new byte[]{10, (byte) producer,
+                                    (byte) (i >> 8), (byte) i}));
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            }).start();
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < perProducer; i++) {
+                            Assert.assertTrue(taken.add(expirableCacheStack.take()));
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(producers * perProducer, taken.size());
+        Assert.assertNull(expirableCacheStack.peek());
     }
 
     /**
@@ -147,4 +400,11 @@ public class AddressCacheTest {
         return inetAddress;
     }
 
-}
\ No newline at end of file
+    private static Set<Long> liveThreadIds() {
+        Set<Long> ids = new HashSet<Long>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            ids.add(thread.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,54 @@
+package com.unicommerce.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+/**
+ * Test class for the AddressCodec conversions.
+ * TC`s names are self-explanatory.
+ */
+public class AddressCodecTest {
+
+    @Test
+    public void ipv4PacksIntoAnInt() throws Exception {
+        byte[] address = InetAddress.getByName("192.168.1.254").getAddress();
+        Assert.assertTrue(AddressCodec.isIpv4(address));
+        int packed = AddressCodec.ipv4(address);
+        Assert.assertEquals(0xc0a801fe, packed);
+        byte[] out = new byte[16];
+        Assert.assertEquals(4, AddressCodec.writeIpv4(packed, out));
+        Assert.assertEquals(packed, AddressCodec.readIpv4(out));
+        Assert.assertEquals(InetAddress.getByName("192.168.1.254"), AddressCodec.toInetAddress(packed));
+    }
+
+    @Test
+    public void ipv4MappedIsIpv4() throws Exception {
+        byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xff;
+        mapped[11] = (byte) 0xff;
+        mapped[12] = 10;
+        mapped[15] = 1;
+        Assert.assertTrue(AddressCodec.isIpv4(mapped));
+        Assert.assertEquals(0x0a000001, AddressCodec.ipv4(mapped));
+    }
+
+    @Test
+    public void ipv6PacksIntoTwoLongs() throws Exception {
+        byte[] address = InetAddress.getByName("2001:db8::ff00:42:8329").getAddress();
+        Assert.assertFalse(AddressCodec.isIpv4(address));
+        long high = AddressCodec.high(address);
+        long low = AddressCodec.low(address);
+        Assert.assertEquals(0x20010db800000000L, high);
+        Assert.assertEquals(0x0000ff0000428329L, low);
+        byte[] out = new byte[16];
+        AddressCodec.writeIpv6(high, low, out);
+        Assert.assertArrayEquals(address, out);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherLengths() throws Exception {
+        AddressCodec.isIpv4(new byte[5]);
+    }
+}
@@ -0,0 +1,272 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * TCs of AddressLoader, AddressParser & AddressBatch.
+ * TC`s names are self-explanatory.
+ */
+public class AddressLoaderTest {
+
+    @Test
+    public void parserReadsAddressesLikeInetAddress() throws Exception {
+        String[] addresses = {"0.0.0.0", "10.0.0.1", "255.255.255.255", "::", "::1", "1::", "2001:db8::ff00:42:8329",
+                "2001:0db8:0000:0000:0000:ff00:0042:8329", "fe80::1:2", "1:2:3:4:5:6:7:8", "::ffff:10.1.2.3",
+                "64:ff9b::192.0.2.33", "::ffff:0:1", "ABCD:ef01::"};
+        for (String address : addresses) {
+            Assert.assertEquals(address, InetAddress.getByName(address), parse(address));
+        }
+    }
+
+    @Test
+    public void parserRejectsWhatIsNotAnAddress() throws Exception {
+        String[] lines = {"10.0.0", "10.0.0.256", "10.0.0.1.2", "10..0.1", "a.b.c.d", "1:2:3:4:5:6:7:8:9", "1:::2",
+                "1::2::3", ":1::", "1:2", "12345::", "::10.0.0.1.5", "1:2:3:4:5:6:7:10.0.0.1", "10.0.0.0/33",
+                "::/129", "10.0.0.1/", "fe80::1%eth0", "host.example.com"};
+        for (String line : lines) {
+            Assert.assertEquals(line, AddressParser.INVALID, parseLine(line, new AddressBatch(1)));
+        }
+    }
+
+    @Test
+    public void parserSkipsCommentsAndExtraColumns() throws Exception {
+        AddressBatch batch = new AddressBatch(1);
+        Assert.assertEquals(AddressParser.SKIPPED, parseLine("# feed of 2026-10-18", batch));
+        Assert.assertEquals(AddressParser.SKIPPED, parseLine(" \t\r", batch));
+        Assert.assertEquals(AddressParser.SKIPPED, parseLine("; comment", batch));
+        Assert.assertEquals(AddressParser.PARSED, parseLine("  10.0.0.1 # scanner", batch));
+        Assert.assertEquals(AddressParser.PARSED, parseLine("10.0.0.2,botnet,2026-10-18", batch));
+        Assert.assertEquals(AddressParser.PARSED, parseLine("10.0.0.3/32\r", batch));
+        Assert.assertEquals(AddressParser.PARSED, parseLine("10.0.0.0/8 ; spamhaus", batch));
+        Assert.assertEquals(AddressParser.PARSED, parseLine("2001:db8::/32", batch));
+        Assert.assertEquals(3, batch.size());
+        Assert.assertEquals(0x0a000003, batch.ipv4(2));
+        Assert.assertEquals(new AddressPrefix(InetAddress.getByName("10.0.0.0"), 8), batch.ranges().get(0));
+        Assert.assertEquals(new AddressPrefix(InetAddress.getByName("2001:db8::"), 32), batch.ranges().get(1));
+    }
+
+    @Test
+    public void batchIsSortedWithoutDuplicates() throws Exception {
+        AddressBatch batch = new AddressBatch(1);
+        int[] ipv4 = {0xc0000001, 5, 0x0a000001, 5, 0xffffffff, 0};
+        for (int address : ipv4) {
+            batch.add(address);
+        }
+        long[][] ipv6 = {{-1, 0}, {1, 2}, {1, 1}, {1, 2}, {0x20010db800000000L, 7}};
+        for (long[] address : ipv6) {
+            batch.add(address[0], address[1]);
+        }
+        batch.sortDistinct();
+        Assert.assertEquals(5, batch.ipv4Count());
+        Assert.assertEquals(9, batch.size());
+        int[] sorted = new int[batch.ipv4Count()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = batch.ipv4(i);
+        }
+        Assert.assertArrayEquals(new int[]{0, 5, 0x0a000001, 0xc0000001, 0xffffffff}, sorted);
+        long[] highs = new long[4];
+        long[] lows = new long[4];
+        for (int i = 0; i < 4; i++) {
+            highs[i] = batch.high(5 + i);
+            lows[i] = batch.low(5 + i);
+        }
+        Assert.assertArrayEquals(new long[]{1, 1, 0x20010db800000000L, -1}, highs);
+        Assert.assertArrayEquals(new long[]{1, 2, 7, 0}, lows);
+    }
+
+    @Test
+    public void mappedFileIsLoadedAcrossSegments() throws Exception {
+        int count = 1200000;
+        Path file = Files.createTempFile("addresses", ".txt");
+        Writer writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII);
+        try {
+            for (int i = 0; i < count; i++) {
+                writer.write(text(i) + "\n");
+            }
+            // no line break after the last line.
+            writer.write("2001:db8::1");
+        } finally {
+            writer.close();
+        }
+        // more than one segment.
+        Assert.assertTrue(Files.size(file) > 8 << 20);
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            AddressLoader.Report report = cache.loadAddresses(file);
+            Assert.assertEquals(count + 1, report.getLines());
+            Assert.assertEquals(count + 1, report.getAdded());
+            Assert.assertEquals(0, report.getInvalid());
+            Assert.assertEquals(Files.size(file), report.getBytes());
+            Assert.assertEquals(count + 1, cache.metrics().getSize());
+            for (int i = 0; i < count; i += 997) {
+                Assert.assertTrue(text(i), cache.contains(address(i)));
+            }
+            Assert.assertTrue(cache.contains(address(count - 1)));
+            Assert.assertTrue(cache.contains(InetAddress.getByName("2001:db8::1")));
+        } finally {
+            cache.close();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void gzipFileIsStreamedWithProgress() throws Exception {
+        Path file = Files.createTempFile("addresses", ".txt.gz");
+        OutputStream output = new GZIPOutputStream(Files.newOutputStream(file));
+        try {
+            for (int i = 0; i < 300000; i++) {
+                output.write((text(i % 100000) + "\n").getBytes(StandardCharsets.US_ASCII));
+            }
+            output.write("not an address\n192.168.0.0/16\n".getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            output.close();
+        }
+        final List<AddressLoader.Report> reports = new ArrayList<AddressLoader.Report>();
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            AddressLoader.Report report = new AddressLoader(cache, ForkJoinPool.commonPool(), new AddressLoader.Progress() {
+                public void progress(AddressLoader.Report report) {
+                    reports.add(report);
+                }
+            }, 1, TimeUnit.MILLISECONDS).load(file);
+            Assert.assertEquals(300002, report.getLines());
+            Assert.assertEquals(300000, report.getAddresses());
+            Assert.assertEquals(1, report.getRanges());
+            Assert.assertEquals(100001, report.getAdded());
+            Assert.assertEquals(1, report.getInvalid());
+            Assert.assertEquals(Files.size(file), report.getBytes());
+            Assert.assertEquals(Files.size(file), report.getTotalBytes());
+            Assert.assertEquals(report.getLines(), reports.get(reports.size() - 1).getLines());
+            Assert.assertTrue(cache.contains(address(99999)));
+            Assert.assertTrue(cache.contains(InetAddress.getByName("192.168.3.4")));
+        } finally {
+            cache.close();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void lineLongerThanABlockIsSkipped() throws Exception {
+        byte[] junk = new byte[5 << 20];
+        Arrays.fill(junk, (byte) 'x');
+        ByteBuffer input = ByteBuffer.allocate(junk.length + 64);
+        input.put("10.0.0.1\n".getBytes(StandardCharsets.US_ASCII)).put(junk)
+                .put("\n10.0.0.2\n10.0.0.3".getBytes(StandardCharsets.US_ASCII));
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            AddressLoader.Report report = new AddressLoader(cache).load(
+                    new ByteArrayInputStream(input.array(), 0, input.position()));
+            Assert.assertEquals(4, report.getLines());
+            Assert.assertEquals(1, report.getInvalid());
+            Assert.assertEquals(3, report.getAdded());
+            Assert.assertEquals(-1, report.getTotalBytes());
+            Assert.assertTrue(cache.contains(0x0a000002));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void everyEngineLoadsTheBatches() throws Exception {
+        Path file = Files.createTempFile("addresses", ".txt");
+        Files.write(file, "10.0.0.1\n10.0.0.2\n2001:db8::1\n10.0.0.1\n".getBytes(StandardCharsets.US_ASCII));
+        List<AddressCache> caches = new ArrayList<AddressCache>();
+        for (CacheEngine engine : CacheEngine.values()) {
+            caches.add(new AddressCache(1, TimeUnit.HOURS, engine));
+        }
+        caches.add(new ShardedAddressCache(1, TimeUnit.HOURS, 4));
+        AddressCache bounded = new AddressCache(1, TimeUnit.HOURS, CacheEngine.LOCKING, Capacity.entries(2, EvictionPolicy.LRU));
+        caches.add(bounded);
+        AddressCache durable = new AddressCache(1, TimeUnit.HOURS);
+        Path log = Files.createTempDirectory("loader");
+        durable.openLog(log, WriteAheadLog.Durability.ASYNC, 1, TimeUnit.MINUTES);
+        durable.filterMisses(100, 0.01);
+        caches.add(durable);
+        try {
+            for (AddressCache cache : caches) {
+                AddressLoader.Report report = cache.loadAddresses(file);
+                Assert.assertEquals(4, report.getAddresses());
+                Assert.assertEquals(3, report.getAdded());
+                Assert.assertEquals(cache == bounded ? 2 : 3, cache.metrics().getSize());
+            }
+            Assert.assertEquals(3, durable.metrics().getSize());
+            Assert.assertFalse(durable.contains(0x0a000003));
+            durable.close();
+            AddressCache recovered = new AddressCache(1, TimeUnit.HOURS);
+            try {
+                Assert.assertEquals(3, recovered.openLog(log, WriteAheadLog.Durability.ASYNC, 1, TimeUnit.MINUTES));
+                Assert.assertTrue(recovered.contains(0x0a000002));
+            } finally {
+                recovered.close();
+            }
+        } finally {
+            for (AddressCache cache : caches) {
+                cache.close();
+            }
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void zstdFileIsRejected() throws Exception {
+        Path file = Files.createTempFile("addresses", ".txt.zst");
+        Files.write(file, new byte[]{0x28, (byte) 0xb5, 0x2f, (byte) 0xfd, 0, 0});
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            cache.loadAddresses(file);
+        } finally {
+            cache.close();
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = CacheExpiredException.class)
+    public void closedCacheCannotLoad() throws Exception {
+        Path file = Files.createTempFile("addresses", ".txt");
+        Files.write(file, "10.0.0.1\n".getBytes(StandardCharsets.US_ASCII));
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        cache.close();
+        try {
+            cache.loadAddresses(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static InetAddress parse(String line) {
+        AddressBatch batch = new AddressBatch(1);
+        Assert.assertEquals(line, AddressParser.PARSED, parseLine(line, batch));
+        return AddressCodec.toInetAddress(batch.address(0));
+    }
+
+    private static int parseLine(String line, AddressBatch batch) {
+        byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+        return new AddressParser().parseLine(ByteBuffer.wrap(bytes), 0, bytes.length, batch);
+    }
+
+    private static String text(int i) {
+        return "10." + (i >>> 16 & 0xff) + "." + (i >>> 8 & 0xff) + "." + (i & 0xff);
+    }
+
+    private static int address(int i) {
+        return 0x0a000000 | (i & 0xffffff);
+    }
+}
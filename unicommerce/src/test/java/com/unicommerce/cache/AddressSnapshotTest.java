@@ -0,0 +1,116 @@
+package com.unicommerce.cache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test class for AddressSnapshot & the snapshots of AddressCache.
+ * TC`s names are self-explanatory.
+ */
+public class AddressSnapshotTest {
+
+    private static final long TTL = TimeUnit.SECONDS.toNanos(10);
+
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("address-cache", ".snapshot");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void agedAddressesAreSkipped() throws Exception {
+        PrimitiveAddressEngine engine = new PrimitiveAddressEngine(TTL);
+        long now = System.nanoTime();
+        engine.push(1, now + TimeUnit.MILLISECONDS.toNanos(20), now);
+        engine.push(2, now + TTL, now);
+        engine.push(3, IndexedStack.NEVER, now);
+        Assert.assertEquals(3, AddressSnapshot.write(engine, file, now));
+        Thread.sleep(100);
+        PrimitiveAddressEngine restored = new PrimitiveAddressEngine(TTL);
+        long later = System.nanoTime();
+        Assert.assertEquals(2, AddressSnapshot.read(file, restored, TTL, later));
+        Assert.assertFalse(restored.contains(1, later));
+        Assert.assertTrue(restored.contains(2, later));
+        Assert.assertTrue(restored.contains(3, later + TTL * 100));
+    }
+
+    @Test
+    public void restoredAgeIsCappedByMaxAge() throws Exception {
+        PrimitiveAddressEngine engine = new PrimitiveAddressEngine(TTL);
+        long now = System.nanoTime();
+        engine.push(1, now + TTL, now);
+        AddressSnapshot.write(engine, file, now);
+        PrimitiveAddressEngine restored = new PrimitiveAddressEngine(TTL);
+        long later = System.nanoTime();
+        long shorter = TimeUnit.MILLISECONDS.toNanos(50);
+        Assert.assertEquals(1, AddressSnapshot.read(file, restored, shorter, later));
+        Assert.assertTrue(restored.contains(1, later));
+        Assert.assertFalse(restored.contains(1, later + shorter));
+    }
+
+    @Test
+    public void largeSnapshotSpansSeveralWindows() throws Exception {
+        OffHeapAddressEngine engine = new OffHeapAddressEngine(TTL, 1000000);
+        long now = System.nanoTime();
+        // 25 bytes per IPv6 entry, well over one 16MB window.
+        for (int i = 0; i < 1000000; i++) {
+            engine.push(new byte[]{0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0,
+                    (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i}, now + TTL, now);
+        }
+        Assert.assertEquals(1000000, AddressSnapshot.write(engine, file, now));
+        Assert.assertEquals(AddressSnapshot.HEADER_BYTES + 25L * 1000000, Files.size(file));
+        engine.clear();
+
+        OffHeapAddressEngine restored = new OffHeapAddressEngine(TTL, 1000000);
+        long later = System.nanoTime();
+        Assert.assertEquals(1000000, AddressSnapshot.read(file, restored, TTL, later));
+        byte[] address = new byte[16];
+        for (int i = 999999; i >= 0; i--) {
+            Assert.assertEquals(16, restored.pollInto(address, later));
+            Assert.assertEquals(i, AddressCodec.ipv4(address));
+        }
+        restored.clear();
+    }
+
+    @Test
+    public void closeSavesALastSnapshot() throws Exception {
+        AddressCache cache = new AddressCache(10, TimeUnit.SECONDS);
+        cache.snapshotTo(file, 1, TimeUnit.HOURS);
+        cache.add(0x0a000001);
+        cache.add(0x0a000002);
+        cache.close();
+
+        AddressCache restarted = new AddressCache(10, TimeUnit.SECONDS);
+        try {
+            Assert.assertEquals(2, restarted.loadSnapshot(file));
+            Assert.assertEquals(AddressCodec.toInetAddress(0x0a000002), restarted.take());
+        } finally {
+            restarted.close();
+        }
+    }
+
+    @Test
+    public void missingSnapshotLoadsNothing() throws Exception {
+        Files.delete(file);
+        Assert.assertEquals(0, AddressSnapshot.read(file, new PrimitiveAddressEngine(TTL), TTL, System.nanoTime()));
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws Exception {
+        Files.write(file, "not a snapshot at all".getBytes("UTF-8"));
+        AddressSnapshot.read(file, new PrimitiveAddressEngine(TTL), TTL, System.nanoTime());
+    }
+}
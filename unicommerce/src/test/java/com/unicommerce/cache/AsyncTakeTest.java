@@ -0,0 +1,349 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCs of AddressCache.takeAsync() and AddressCache.publisher().
+ * TC`s names are self-explanatory.
+ */
+public class AsyncTakeTest {
+
+    @Test
+    public void takeAsyncCompletesAtOnceWhenNotEmpty() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            cache.add(1);
+            cache.add(2);
+            CompletableFuture<InetAddress> future = cache.takeAsync();
+            Assert.assertTrue(future.isDone());
+            Assert.assertEquals(AddressCodec.toInetAddress(2), future.get());
+            Assert.assertEquals(1, cache.metrics().getSize());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void takeAsyncIsCompletedByTheNextAdd() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            CompletableFuture<InetAddress> future = cache.takeAsync();
+            Assert.assertFalse(future.isDone());
+            cache.add(7);
+            Assert.assertTrue(future.isDone());
+            Assert.assertEquals(AddressCodec.toInetAddress(7), future.get());
+            Assert.assertNull(cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void takeAsyncFuturesAreServedInOrder() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            CompletableFuture<InetAddress> first = cache.takeAsync();
+            CompletableFuture<InetAddress> second = cache.takeAsync();
+            cache.add(1);
+            Assert.assertEquals(AddressCodec.toInetAddress(1), first.get());
+            Assert.assertFalse(second.isDone());
+            // an address added while futures wait goes to them, not to a later takeAsync().
+            CompletableFuture<InetAddress> third = cache.takeAsync();
+            cache.add(2);
+            cache.add(3);
+            Assert.assertEquals(AddressCodec.toInetAddress(2), second.get());
+            Assert.assertEquals(AddressCodec.toInetAddress(3), third.get());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void cancelledTakeAsyncLeavesTheAddress() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            CompletableFuture<InetAddress> cancelled = cache.takeAsync();
+            CompletableFuture<InetAddress> waiting = cache.takeAsync();
+            Assert.assertTrue(cancelled.cancel(false));
+            cache.add(1);
+            cache.add(2);
+            Assert.assertEquals(AddressCodec.toInetAddress(1), waiting.get());
+            Assert.assertEquals(AddressCodec.toInetAddress(2), cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void takeAsyncFailsOnClose() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        CompletableFuture<InetAddress> future = cache.takeAsync();
+        cache.close();
+        try {
+            future.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof CacheExpiredException);
+        }
+    }
+
+    @Test(expected = CacheExpiredException.class)
+    public void takeAsyncOnClosedCacheThrows() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        cache.close();
+        cache.takeAsync();
+    }
+
+    @Test
+    public void concurrentAddsCompleteEveryFuture() throws Exception {
+        final AddressCache cache = new ShardedAddressCache(1, TimeUnit.HOURS, 4);
+        try {
+            List<CompletableFuture<InetAddress>> futures = new ArrayList<CompletableFuture<InetAddress>>();
+            for (int i = 0; i < 4000; i++) {
+                futures.add(cache.takeAsync());
+            }
+            final CountDownLatch done = new CountDownLatch(4);
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 1000; i++) {
+                                cache.add(thread << 16 | i);
+                            }
+                        } catch (CacheExpiredException e) {
+                            e.printStackTrace();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+            Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+            Set<InetAddress> taken = new HashSet<InetAddress>();
+            for (CompletableFuture<InetAddress> future : futures) {
+                taken.add(future.get(10, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(4000, taken.size());
+            Assert.assertEquals(0, cache.metrics().getSize());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void publisherDeliversAsRequested() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            RecordingSubscriber subscriber = new RecordingSubscriber();
+            cache.publisher().subscribe(subscriber);
+            cache.add(1);
+            Assert.assertTrue(subscriber.received.isEmpty());
+            subscriber.subscription.request(2);
+            cache.add(2);
+            cache.add(3);
+            Assert.assertEquals(2, subscriber.received.size());
+            Assert.assertEquals(AddressCodec.toInetAddress(1), subscriber.received.get(0));
+            Assert.assertEquals(AddressCodec.toInetAddress(2), subscriber.received.get(1));
+            Assert.assertEquals(AddressCodec.toInetAddress(3), cache.peek());
+            subscriber.subscription.request(1);
+            Assert.assertEquals(AddressCodec.toInetAddress(3), subscriber.received.get(2));
+            Assert.assertNull(cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void subscribersAndFuturesTakeTurns() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            RecordingSubscriber subscriber = new RecordingSubscriber();
+            cache.publisher().subscribe(subscriber);
+            subscriber.subscription.request(Long.MAX_VALUE);
+            CompletableFuture<InetAddress> future = cache.takeAsync();
+            cache.add(1);
+            cache.add(2);
+            cache.add(3);
+            Assert.assertEquals(AddressCodec.toInetAddress(2), future.get());
+            Assert.assertEquals(2, subscriber.received.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void subscriberMayAddFromOnNext() throws Exception {
+        final AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        final AtomicInteger depth = new AtomicInteger();
+        final AtomicInteger maxDepth = new AtomicInteger();
+        try {
+            RecordingSubscriber subscriber = new RecordingSubscriber() {
+                @Override
+                public void onNext(InetAddress address) {
+                    maxDepth.set(Math.max(maxDepth.get(), depth.incrementAndGet()));
+                    super.onNext(address);
+                    if (received.size() < 10) {
+                        try {
+                            cache.add(100 + received.size());
+                        } catch (CacheExpiredException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                    depth.decrementAndGet();
+                }
+            };
+            cache.publisher().subscribe(subscriber);
+            subscriber.subscription.request(Long.MAX_VALUE);
+            cache.add(1);
+            Assert.assertEquals(10, subscriber.received.size());
+            Assert.assertEquals(1, maxDepth.get());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void subscriberRequestingFromOnNextIsQueuedOnce() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            RecordingSubscriber subscriber = new RecordingSubscriber() {
+                @Override
+                public void onNext(InetAddress address) {
+                    super.onNext(address);
+                    subscription.request(1);
+                }
+            };
+            cache.publisher().subscribe(subscriber);
+            subscriber.subscription.request(1);
+            for (int i = 0; i < 10000; i++) {
+                cache.add(i + 1);
+                Assert.assertTrue(cache.waitingConsumers() <= 1);
+            }
+            Assert.assertEquals(10000, subscriber.received.size());
+            Assert.assertEquals(1, cache.waitingConsumers());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void nonPositiveRequestFromOnNextIsSignalledAfterIt() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            final AtomicInteger inOnNext = new AtomicInteger();
+            final AtomicInteger errorsInOnNext = new AtomicInteger();
+            RecordingSubscriber subscriber = new RecordingSubscriber() {
+                @Override
+                public void onNext(InetAddress address) {
+                    inOnNext.incrementAndGet();
+                    super.onNext(address);
+                    subscription.request(-1);
+                    inOnNext.decrementAndGet();
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    errorsInOnNext.addAndGet(inOnNext.get());
+                    super.onError(error);
+                }
+            };
+            cache.publisher().subscribe(subscriber);
+            subscriber.subscription.request(10);
+            cache.add(1);
+            cache.add(2);
+            Assert.assertEquals(1, subscriber.received.size());
+            Assert.assertTrue(subscriber.error instanceof IllegalArgumentException);
+            Assert.assertEquals(0, errorsInOnNext.get());
+            Assert.assertEquals(0, cache.waitingConsumers());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void cancelledSubscriptionStopsTaking() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            RecordingSubscriber subscriber = new RecordingSubscriber();
+            cache.publisher().subscribe(subscriber);
+            subscriber.subscription.request(10);
+            cache.add(1);
+            subscriber.subscription.cancel();
+            cache.add(2);
+            Assert.assertEquals(1, subscriber.received.size());
+            Assert.assertEquals(AddressCodec.toInetAddress(2), cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void nonPositiveRequestEndsTheSubscription() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            RecordingSubscriber subscriber = new RecordingSubscriber();
+            cache.publisher().subscribe(subscriber);
+            subscriber.subscription.request(0);
+            Assert.assertTrue(subscriber.error instanceof IllegalArgumentException);
+            subscriber.subscription.request(1);
+            cache.add(1);
+            Assert.assertTrue(subscriber.received.isEmpty());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void closeEndsTheSubscriptions() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        RecordingSubscriber waiting = new RecordingSubscriber();
+        RecordingSubscriber idle = new RecordingSubscriber();
+        cache.publisher().subscribe(waiting);
+        cache.publisher().subscribe(idle);
+        waiting.subscription.request(1);
+        cache.close();
+        Assert.assertTrue(waiting.error instanceof CacheExpiredException);
+        idle.subscription.request(1);
+        Assert.assertTrue(idle.error instanceof CacheExpiredException);
+
+        RecordingSubscriber late = new RecordingSubscriber();
+        cache.publisher().subscribe(late);
+        Assert.assertTrue(late.error instanceof CacheExpiredException);
+    }
+
+    private static class RecordingSubscriber implements CachePublisher.Subscriber<InetAddress> {
+
+        final List<InetAddress> received = new ArrayList<InetAddress>();
+        CachePublisher.Subscription subscription;
+        Throwable error;
+
+        public void onSubscribe(CachePublisher.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        public void onNext(InetAddress address) {
+            received.add(address);
+        }
+
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        public void onComplete() {
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.unicommerce.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every AddressCache TC against a bounded cache large enough never to evict, plus
+ * the eviction TCs of each policy.
+ * TC`s names are self-explanatory.
+ */
+public class BoundedAddressCacheTest extends AddressCacheTest {
+
+    @Override
+    protected AddressCache newCache(long maxAge, TimeUnit unit) {
+        return new AddressCache(maxAge, unit, CacheEngine.LOCKING, Capacity.entries(100000, EvictionPolicy.TINY_LFU));
+    }
+
+    @Test
+    public void oldestEvictsTheBottomOfTheStack() throws Exception {
+        for (CacheEngine engine : CacheEngine.values()) {
+            AddressCache cache = new AddressCache(1, TimeUnit.HOURS, engine, Capacity.entries(3, EvictionPolicy.OLDEST));
+            try {
+                for (int i = 1; i <= 5; i++) {
+                    cache.add(i);
+                }
+                Assert.assertFalse(engine.name(), cache.contains(1));
+                Assert.assertFalse(engine.name(), cache.contains(2));
+                Assert.assertTrue(engine.name(), cache.contains(3) && cache.contains(4) && cache.contains(5));
+                Assert.assertEquals(engine.name(), AddressCodec.toInetAddress(5), cache.peek());
+                Assert.assertEquals(engine.name(), 2, cache.metrics().getEvictions());
+            } finally {
+                cache.close();
+            }
+        }
+    }
+
+    @Test
+    public void lruKeepsTheAddressesRead() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS, CacheEngine.LOCKING, Capacity.entries(3, EvictionPolicy.LRU));
+        try {
+            cache.add(1);
+            cache.add(2);
+            cache.add(3);
+            Assert.assertTrue(cache.contains(1));
+            cache.add(4);
+            Assert.assertTrue(cache.contains(1));
+            Assert.assertFalse(cache.contains(2));
+            Assert.assertTrue(cache.contains(3) && cache.contains(4));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void tinyLfuResistsAScan() throws Exception {
+        int hot = 50;
+        AddressCache lfu = new AddressCache(1, TimeUnit.HOURS, CacheEngine.LOCKING, Capacity.entries(100, EvictionPolicy.TINY_LFU));
+        AddressCache lru = new AddressCache(1, TimeUnit.HOURS, CacheEngine.LOCKING, Capacity.entries(100, EvictionPolicy.LRU));
+        try {
+            for (AddressCache cache : new AddressCache[]{lfu, lru}) {
+                for (int i = 0; i < hot; i++) {
+                    cache.add(i);
+                }
+                for (int round = 0; round < 5; round++) {
+                    for (int i = 0; i < hot; i++) {
+                        cache.contains(i);
+                    }
+                    // one write per round, so the reads are drained.
+                    cache.add(0x0a000000 + round);
+                }
+                for (int i = 0; i < 5000; i++) {
+                    cache.add(0x0b000000 + i);
+                }
+            }
+            Assert.assertTrue(countHot(lfu, hot) >= hot * 9 / 10);
+            Assert.assertEquals(0, countHot(lru, hot));
+            Assert.assertEquals(100, lfu.metrics().getSize());
+        } finally {
+            lfu.close();
+            lru.close();
+        }
+    }
+
+    @Test
+    public void takeAndRemoveAreNotEvictedAgain() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS, CacheEngine.LOCKING, Capacity.entries(3, EvictionPolicy.OLDEST));
+        try {
+            cache.add(1);
+            cache.add(2);
+            cache.add(3);
+            Assert.assertEquals(AddressCodec.toInetAddress(3), cache.take());
+            cache.remove(1);
+            cache.add(4);
+            cache.add(5);
+            Assert.assertEquals(0, cache.metrics().getEvictions());
+            cache.add(6);
+            Assert.assertEquals(1, cache.metrics().getEvictions());
+            Assert.assertFalse(cache.contains(2));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void expiredAddressesAreSkippedAsVictims() throws Exception {
+        AddressCache cache = new AddressCache(50, TimeUnit.MILLISECONDS, CacheEngine.LOCKING, Capacity.entries(2, EvictionPolicy.OLDEST));
+        try {
+            cache.add(1);
+            cache.add(2);
+            Thread.sleep(120);
+            cache.add(3);
+            cache.add(4);
+            Assert.assertTrue(cache.contains(3) && cache.contains(4));
+            cache.add(5);
+            Assert.assertFalse(cache.contains(3));
+            Assert.assertTrue(cache.contains(4) && cache.contains(5));
+            Assert.assertEquals(1, cache.metrics().getEvictions());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void byteBudgetBoundsTheSize() throws Exception {
+        Capacity capacity = Capacity.bytes(1 << 20, EvictionPolicy.OLDEST);
+        int maximumSize = capacity.maximumSize(CacheEngine.OFF_HEAP.estimatedEntryBytes());
+        Assert.assertTrue(maximumSize > 1000 && maximumSize < (1 << 20) / 100);
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS, CacheEngine.OFF_HEAP, capacity);
+        try {
+            for (int i = 0; i < maximumSize * 2; i++) {
+                cache.add(i);
+            }
+            Assert.assertEquals(maximumSize, cache.metrics().getSize());
+            Assert.assertEquals(maximumSize, cache.metrics().getEvictions());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void concurrentWritersStayWithinCapacity() throws Exception {
+        final AddressCache cache = new ShardedAddressCache(1, TimeUnit.HOURS, 8, Capacity.entries(500, EvictionPolicy.TINY_LFU));
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        try {
+            for (int t = 0; t < 4; t++) {
+                new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            ThreadLocalRandom random = ThreadLocalRandom.current();
+                            for (int i = 0; i < 20000; i++) {
+                                int address = random.nextInt(5000);
+                                cache.add(address);
+                                cache.contains(random.nextInt(5000));
+                                if (i % 7 == 0) {
+                                    cache.remove(address);
+                                }
+                            }
+                        } catch (Throwable e) {
+                            synchronized (failures) {
+                                failures.add(e);
+                            }
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+            Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+            Assert.assertTrue(failures.toString(), failures.isEmpty());
+            // the size of the stripes is only summed once the writers are done.
+            Assert.assertTrue(cache.metrics().getSize() <= 500);
+            Assert.assertTrue(cache.metrics().getEvictions() > 0);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void ipv6AddressesAreEvictedToo() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS, CacheEngine.LOCKING, Capacity.entries(2, EvictionPolicy.OLDEST));
+        try {
+            InetAddress first = InetAddress.getByName("2001:db8::1");
+            cache.add(first);
+            cache.add(InetAddress.getByName("2001:db8::2"));
+            cache.add(0x0a000001);
+            Assert.assertFalse(cache.contains(first));
+            Assert.assertEquals(2, cache.metrics().getSize());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBePositive() {
+        Capacity.entries(0, EvictionPolicy.LRU);
+    }
+
+    private static int countHot(AddressCache cache, int hot) {
+        int kept = 0;
+        for (int i = 0; i < hot; i++) {
+            if (cache.contains(i)) {
+                kept++;
+            }
+        }
+        return kept;
+    }
+}
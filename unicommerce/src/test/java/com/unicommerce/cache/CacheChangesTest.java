@@ -0,0 +1,373 @@
+package com.unicommerce.cache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCs of the change stream of AddressCache, see subscribe(), of its ring buffer and of
+ * the expiry listeners of the engines.
+ * TC`s names are self-explanatory.
+ */
+public class CacheChangesTest {
+
+    private ExecutorService executor;
+    private AddressCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+        cache = new AddressCache(1, TimeUnit.HOURS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void addRemoveTakeAndClearAreDeliveredInOrder() throws Exception {
+        Recorder recorder = new Recorder();
+        cache.subscribe(recorder, executor);
+        cache.add(0x0a000001);
+        cache.add(InetAddress.getByName("2001:db8::1"));
+        Assert.assertFalse(cache.add(0x0a000001));
+        cache.remove(0x0a000001);
+        cache.remove(0x0a000002);
+        cache.addAll(Arrays.asList(InetAddress.getByName("10.0.0.3"), InetAddress.getByName("10.0.0.4")));
+        Assert.assertEquals(InetAddress.getByName("10.0.0.4"), cache.take());
+        cache.clear();
+        recorder.await(7);
+        Assert.assertEquals(Arrays.asList("ADDED /10.0.0.1", "ADDED /2001:db8:0:0:0:0:0:1", "REMOVED /10.0.0.1",
+                "ADDED /10.0.0.3", "ADDED /10.0.0.4", "TAKEN /10.0.0.4", "CLEARED null"), recorder.changes());
+    }
+
+    @Test
+    public void listenerRunOnTheCallingThreadMayUseTheCache() throws Exception {
+        final AddressCache expiring = new AddressCache(50, TimeUnit.MILLISECONDS);
+        try {
+            final CountDownLatch expired = new CountDownLatch(1);
+            final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+            expiring.subscribe(new CacheChanges.Listener() {
+                public void onChanges(CacheChanges.Batch changes) {
+                    for (int i = 0; i < changes.size(); i++) {
+                        if (changes.type(i) == CacheChanges.Type.EXPIRED) {
+                            seen.add(Thread.currentThread().getName() + " " + expiring.contains(changes.address(i)));
+                            expired.countDown();
+                        }
+                    }
+                }
+            }, new Executor() {
+                public void execute(Runnable drain) {
+                    drain.run();
+                }
+            });
+            expiring.add(0x0a000001);
+            Assert.assertTrue(expired.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals(Arrays.asList("cache-changes false"), seen);
+            // the expiry did not stay stuck under the lock of the engine.
+            Assert.assertTrue(expiring.add(0x0a000002));
+            Assert.assertTrue(expiring.contains(0x0a000002));
+        } finally {
+            expiring.close();
+        }
+    }
+
+    @Test
+    public void expiredAddressesAreDeliveredWithTheirDeadline() throws Exception {
+        for (CacheEngine engine : CacheEngine.values()) {
+            AddressCache expiring = new AddressCache(50, TimeUnit.MILLISECONDS, engine);
+            try {
+                Recorder recorder = new Recorder();
+                expiring.subscribe(recorder, executor);
+                long before = System.nanoTime();
+                expiring.add(0x0a000001);
+                expiring.add(InetAddress.getByName("2001:db8::1"));
+                // dropped by the expiry scheduler.
+                recorder.await(4);
+                Assert.assertEquals(engine.name(), Arrays.asList("ADDED /10.0.0.1", "ADDED /2001:db8:0:0:0:0:0:1",
+                        "EXPIRED /10.0.0.1", "EXPIRED /2001:db8:0:0:0:0:0:1"), recorder.changes());
+                long deadline = recorder.times.get(2);
+                Assert.assertTrue(engine.name(), deadline - before >= TimeUnit.MILLISECONDS.toNanos(50));
+            } finally {
+                expiring.close();
+            }
+        }
+    }
+
+    @Test
+    public void evictedAddressesAreDelivered() throws Exception {
+        AddressCache bounded = new AddressCache(1, TimeUnit.HOURS, CacheEngine.LOCKING,
+                Capacity.entries(2, EvictionPolicy.OLDEST));
+        try {
+            Recorder recorder = new Recorder();
+            bounded.subscribe(recorder, executor);
+            bounded.add(0x0a000001);
+            bounded.add(0x0a000002);
+            bounded.add(0x0a000003);
+            recorder.await(4);
+            Assert.assertTrue(recorder.changes().contains("EVICTED /10.0.0.1"));
+            Assert.assertEquals(3, recorder.count("ADDED"));
+        } finally {
+            bounded.close();
+        }
+    }
+
+    @Test
+    public void shardedCacheDeliversItsChanges() throws Exception {
+        AddressCache sharded = new ShardedAddressCache(50, TimeUnit.MILLISECONDS, 4);
+        try {
+            Recorder recorder = new Recorder();
+            sharded.subscribe(recorder, executor);
+            sharded.add(0x0a000001);
+            recorder.await(2);
+            Assert.assertEquals(Arrays.asList("ADDED /10.0.0.1", "EXPIRED /10.0.0.1"), recorder.changes());
+        } finally {
+            sharded.close();
+        }
+    }
+
+    @Test
+    public void everySubscriberGetsEveryChange() throws Exception {
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            Recorder first = new Recorder();
+            Recorder second = new Recorder();
+            cache.subscribe(first, executor);
+            cache.subscribe(second, other);
+            for (int i = 0; i < 1000; i++) {
+                cache.add(0x0a000000 | i);
+            }
+            first.await(1000);
+            second.await(1000);
+            Assert.assertEquals(first.changes(), second.changes());
+        } finally {
+            other.shutdownNow();
+        }
+    }
+
+    @Test
+    public void changesBeforeTheSubscriptionAreNotDelivered() throws Exception {
+        cache.add(0x0a000001);
+        Recorder recorder = new Recorder();
+        cache.subscribe(recorder, executor);
+        cache.add(0x0a000002);
+        recorder.await(1);
+        Assert.assertEquals(Arrays.asList("ADDED /10.0.0.2"), recorder.changes());
+    }
+
+    @Test
+    public void slowSubscriberLosesChangesWithoutBlockingTheWriters() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Recorder recorder = new Recorder() {
+            @Override
+            public void onChanges(CacheChanges.Batch changes) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.onChanges(changes);
+            }
+        };
+        CacheChanges.Subscription subscription = cache.subscribe(recorder, executor);
+        int changes = ChangeRing.DEFAULT_CAPACITY * 3;
+        for (int i = 0; i < changes; i++) {
+            cache.add(0x0a000000 | i);
+        }
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (subscription.delivered() + subscription.lost() < changes) {
+            Assert.assertTrue("not delivered", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(changes, subscription.delivered() + subscription.lost());
+        Assert.assertTrue(subscription.lost() >= changes - ChangeRing.DEFAULT_CAPACITY - ChangeRing.BATCH_SIZE);
+        // the newest changes were kept.
+        Assert.assertEquals("ADDED /10." + ((changes - 1) >> 16 & 0xff) + "." + ((changes - 1) >> 8 & 0xff) + "."
+                + ((changes - 1) & 0xff), recorder.last());
+    }
+
+    @Test
+    public void cancelledSubscriptionGetsNothingMore() throws Exception {
+        Recorder recorder = new Recorder();
+        CacheChanges.Subscription subscription = cache.subscribe(recorder, executor);
+        cache.add(0x0a000001);
+        recorder.await(1);
+        subscription.cancel();
+        cache.add(0x0a000002);
+        Thread.sleep(50);
+        Assert.assertEquals(1, recorder.changes().size());
+        Assert.assertEquals(1, subscription.delivered());
+    }
+
+    @Test
+    public void failingListenerIsCancelled() throws Exception {
+        final int[] calls = new int[1];
+        CacheChanges.Subscription subscription = cache.subscribe(new CacheChanges.Listener() {
+            public void onChanges(CacheChanges.Batch changes) {
+                calls[0]++;
+                throw new IllegalStateException("failing on purpose");
+            }
+        }, executor);
+        cache.add(0x0a000001);
+        Thread.sleep(50);
+        cache.add(0x0a000002);
+        Thread.sleep(50);
+        Assert.assertEquals(1, calls[0]);
+        Assert.assertEquals(0, subscription.delivered());
+    }
+
+    @Test
+    public void concurrentWritersArePublishedInTheirOrder() throws Exception {
+        final ChangeRing ring = new ChangeRing(1 << 17);
+        final int perWriter = 20000;
+        final List<long[]> read = new ArrayList<long[]>();
+        CacheChanges.Subscription subscription = ring.subscribe(new CacheChanges.Listener() {
+            public void onChanges(CacheChanges.Batch changes) {
+                for (int i = 0; i < changes.size(); i++) {
+                    read.add(new long[]{changes.high(i), changes.low(i)});
+                }
+            }
+        }, executor);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int writer = t;
+            writers[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perWriter; i++) {
+                        ring.publish(CacheChanges.Type.ADDED, writer, i, System.nanoTime());
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (subscription.delivered() < perWriter * writers.length) {
+            Assert.assertTrue("not delivered", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(0, subscription.lost());
+        long[] next = new long[writers.length];
+        for (long[] change : read) {
+            Assert.assertEquals(next[(int) change[0]]++, change[1]);
+        }
+    }
+
+    @Test
+    public void enginesTellTheExpiredAddressesTheyDrop() {
+        long ttl = TimeUnit.SECONDS.toNanos(10);
+        AddressEngine[] engines = {new PrimitiveAddressEngine(ttl), new OffHeapAddressEngine(ttl),
+                new ObjectAddressEngine(new TreiberStackEngine<InetAddress>(ttl)),
+                new ObjectAddressEngine(new ShardedStackEngine<InetAddress>(ttl, 4))};
+        for (AddressEngine engine : engines) {
+            final List<Long> dropped = new ArrayList<Long>();
+            final long now = System.nanoTime();
+            final long soon = now + TimeUnit.SECONDS.toNanos(1);
+            final String name = engine.getClass().getSimpleName();
+            engine.setExpiryListener(new AddressEngine.KeyListener() {
+                public void dropped(long high, long low, long time) {
+                    Assert.assertEquals(name, soon, time);
+                    dropped.add(low);
+                }
+            });
+            long later = now + TimeUnit.SECONDS.toNanos(5);
+            for (int ipv4 = 1; ipv4 <= 5; ipv4++) {
+                engine.push(ipv4, ipv4 == 4 ? later : soon, now);
+            }
+            long expired = now + TimeUnit.SECONDS.toNanos(2);
+            // a poll, a push and a remove meeting expired addresses, then the expiry.
+            Assert.assertEquals(4, AddressCodec.readIpv4(pollInto(engine, expired)));
+            Assert.assertTrue(engine.push(1, later, expired));
+            Assert.assertFalse(engine.remove(2, expired));
+            engine.expire(expired);
+            Collections.sort(dropped);
+            Assert.assertEquals(name, Arrays.asList(AddressCodec.mapped(1), AddressCodec.mapped(2),
+                    AddressCodec.mapped(3), AddressCodec.mapped(5)), dropped);
+            engine.clear();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void logOpenedAfterSubscribeIsRejected() throws Exception {
+        cache.subscribe(new Recorder(), executor);
+        cache.openLog(Files.createTempDirectory("changes"), WriteAheadLog.Durability.ASYNC, 1, TimeUnit.MINUTES);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void firstSubscribeAfterReplicateIsRejected() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        try {
+            cache.replicate(0, transport, 1, TimeUnit.SECONDS);
+            cache.subscribe(new Recorder(), executor);
+        } finally {
+            transport.close();
+        }
+    }
+
+    private static byte[] pollInto(AddressEngine engine, long now) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        Assert.assertEquals(AddressCodec.IPV4_LENGTH, engine.pollInto(address, now));
+        return address;
+    }
+
+    private static class Recorder implements CacheChanges.Listener {
+
+        private final List<String> changes = new ArrayList<String>();
+        final List<Long> times = new ArrayList<Long>();
+
+        public void onChanges(CacheChanges.Batch batch) {
+            synchronized (this) {
+                for (int i = 0; i < batch.size(); i++) {
+                    changes.add(batch.type(i) + " " + batch.address(i));
+                    times.add(batch.time(i));
+                }
+                notifyAll();
+            }
+        }
+
+        synchronized List<String> changes() {
+            return new ArrayList<String>(changes);
+        }
+
+        synchronized String last() {
+            return changes.get(changes.size() - 1);
+        }
+
+        synchronized int count(String type) {
+            int count = 0;
+            for (String change : changes) {
+                if (change.startsWith(type + " ")) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        synchronized void await(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (changes.size() < count) {
+                long left = deadline - System.nanoTime();
+                Assert.assertTrue("changes : " + changes, left > 0);
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.unicommerce.cache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test class for CacheMetrics & LatencyHistogram.
+ * TC`s names are self-explanatory.
+ */
+public class CacheMetricsTest {
+
+    private AddressCache addressCache;
+
+    @Before
+    public void setUp() {
+        addressCache = new AddressCache(1, TimeUnit.HOURS);
+    }
+
+    @After
+    public void tearDown() {
+        addressCache.close();
+    }
+
+    @Test
+    public void countsAddsDuplicatesAndRemoves() throws Exception {
+        InetAddress first = InetAddress.getByName("10.0.0.1");
+        addressCache.add(first);
+        addressCache.add(first);
+        addressCache.add(0x0a000002);
+        addressCache.addAll(Arrays.asList(first, InetAddress.getByName("10.0.0.3")));
+        addressCache.remove(first);
+        addressCache.remove(first);
+
+        CacheMetrics metrics = addressCache.metrics();
+        Assert.assertEquals(3, metrics.getAdds());
+        Assert.assertEquals(2, metrics.getDuplicates());
+        Assert.assertEquals(1, metrics.getRemoves());
+        Assert.assertEquals(2, metrics.getSize());
+        Assert.assertTrue(metrics.getEstimatedBytes() > 0);
+    }
+
+    @Test
+    public void countsHitsAndMisses() throws Exception {
+        addressCache.add(0x0a000001);
+        addressCache.contains(0x0a000001);
+        addressCache.contains(InetAddress.getByName("10.0.0.1"));
+        addressCache.contains(0x0a000002);
+
+        CacheMetrics metrics = addressCache.metrics();
+        Assert.assertEquals(2, metrics.getHits());
+        Assert.assertEquals(1, metrics.getMisses());
+        Assert.assertEquals(3, metrics.getContainsLatency().getCount());
+    }
+
+    @Test
+    public void countsTakeTimeouts() throws Exception {
+        Assert.assertTrue(addressCache.takeN(5, 10, TimeUnit.MILLISECONDS).isEmpty());
+        addressCache.add(0x0a000001);
+        Assert.assertEquals(1, addressCache.takeN(5, 10, TimeUnit.MILLISECONDS).size());
+        Assert.assertEquals(1, addressCache.metrics().getTakeTimeouts());
+    }
+
+    @Test
+    public void countsExpirations() throws Exception {
+        AddressCache shortLived = new AddressCache(20, TimeUnit.MILLISECONDS);
+        try {
+            shortLived.add(0x0a000001);
+            shortLived.add(0x0a000002);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (shortLived.metrics().getExpirations() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(2, shortLived.metrics().getExpirations());
+            Assert.assertEquals(0, shortLived.metrics().getSize());
+        } finally {
+            shortLived.close();
+        }
+    }
+
+    @Test
+    public void recordsLatenciesPerOperation() throws Exception {
+        addressCache.add(0x0a000001);
+        addressCache.peek();
+        addressCache.take();
+
+        CacheMetrics metrics = addressCache.metrics();
+        Assert.assertEquals(1, metrics.getAddLatency().getCount());
+        Assert.assertEquals(1, metrics.getPeekLatency().getCount());
+        Assert.assertEquals(1, metrics.getTakeLatency().getCount());
+        Assert.assertEquals(0, metrics.getRemoveLatency().getCount());
+    }
+
+    @Test
+    public void histogramPercentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(500500, snapshot.getMean());
+        assertWithin(500000, snapshot.getP50());
+        assertWithin(990000, snapshot.getP99());
+        assertWithin(1000000, snapshot.getMax());
+    }
+
+    @Test
+    public void histogramBucketsAreContiguous() {
+        for (int index = 1; index < LatencyHistogram.indexOf((1L << 36) - 1); index++) {
+            long lowest = LatencyHistogram.highestValueAt(index - 1) + 1;
+            Assert.assertEquals(index, LatencyHistogram.indexOf(lowest));
+            Assert.assertEquals(index, LatencyHistogram.indexOf(LatencyHistogram.highestValueAt(index)));
+        }
+    }
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        Assert.assertEquals(0, snapshot.getCount());
+        Assert.assertEquals(0, snapshot.getMax());
+    }
+
+    @Test
+    public void exportedOverJmxUntilClosed() throws Exception {
+        AddressCache exported = new AddressCache(1, TimeUnit.HOURS);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = exported.exportMetrics("metrics-test");
+        try {
+            exported.add(0x0a000001);
+            exported.contains(0x0a000001);
+            Assert.assertEquals(1L, server.getAttribute(name, "Adds"));
+            Assert.assertEquals(1L, server.getAttribute(name, "Hits"));
+            Assert.assertEquals(1L, server.getAttribute(name, "Size"));
+            CompositeData latency = (CompositeData) server.getAttribute(name, "ContainsLatency");
+            Assert.assertEquals(1L, latency.get("count"));
+        } finally {
+            exported.close();
+        }
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        Assert.assertTrue(actual + " not within 1/16 of " + expected,
+                Math.abs(actual - expected) <= expected / 16);
+    }
+}
@@ -0,0 +1,161 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCs of the address ranges (CIDR) of AddressCache.
+ * TC`s names are self-explanatory.
+ */
+public class CidrAddressCacheTest {
+
+    private AddressCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new AddressCache(1, TimeUnit.HOURS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    @Test
+    public void addressesOfARangeAreContained() throws Exception {
+        Assert.assertTrue(cache.add(InetAddress.getByName("10.0.0.0"), 8));
+        Assert.assertTrue(cache.contains(InetAddress.getByName("10.1.2.3")));
+        Assert.assertTrue(cache.contains(0x0affffff));
+        Assert.assertTrue(cache.contains(new byte[]{10, 0, 0, 1}));
+        Assert.assertFalse(cache.contains(InetAddress.getByName("11.0.0.0")));
+        Assert.assertFalse(cache.contains(0x09ffffff));
+    }
+
+    @Test
+    public void longestMatchIsTheMostSpecificRange() throws Exception {
+        cache.add(InetAddress.getByName("10.0.0.0"), 8);
+        cache.add(InetAddress.getByName("10.1.0.0"), 16);
+        cache.add(InetAddress.getByName("10.1.2.0"), 24);
+        Assert.assertEquals(24, cache.longestMatch(InetAddress.getByName("10.1.2.3")));
+        Assert.assertEquals(16, cache.longestMatch(InetAddress.getByName("10.1.3.3")));
+        Assert.assertEquals(8, cache.longestMatch(new byte[]{10, 2, 3, 4}));
+        Assert.assertEquals(-1, cache.longestMatch(InetAddress.getByName("192.168.0.1")));
+    }
+
+    @Test
+    public void ipv6RangesAreContained() throws Exception {
+        cache.add(InetAddress.getByName("2001:db8::"), 32);
+        cache.add(InetAddress.getByName("2001:db8:1:2:3::"), 80);
+        Assert.assertTrue(cache.contains(InetAddress.getByName("2001:db8:ffff::1")));
+        Assert.assertEquals(80, cache.longestMatch(InetAddress.getByName("2001:db8:1:2:3::42")));
+        Assert.assertEquals(32, cache.longestMatch(InetAddress.getByName("2001:db8:1:2:4::42")));
+        Assert.assertFalse(cache.contains(InetAddress.getByName("2001:db9::1")));
+        Assert.assertFalse(cache.contains(InetAddress.getByName("10.0.0.1")));
+    }
+
+    @Test
+    public void rangesAreExactForAddRemoveAndContains() throws Exception {
+        InetAddress network = InetAddress.getByName("192.168.1.77");
+        Assert.assertTrue(cache.add(network, 24));
+        Assert.assertFalse(cache.add(InetAddress.getByName("192.168.1.0"), 24));
+        Assert.assertTrue(cache.contains(InetAddress.getByName("192.168.1.0"), 24));
+        Assert.assertFalse(cache.contains(InetAddress.getByName("192.168.1.0"), 25));
+        Assert.assertFalse(cache.remove(InetAddress.getByName("192.168.0.0"), 16));
+        Assert.assertTrue(cache.remove(network, 24));
+        Assert.assertFalse(cache.contains(InetAddress.getByName("192.168.1.1")));
+    }
+
+    @Test
+    public void rangesAndAddressesAreIndependent() throws Exception {
+        cache.add(InetAddress.getByName("10.0.0.1"));
+        cache.add(InetAddress.getByName("10.0.0.0"), 8);
+        Assert.assertEquals(InetAddress.getByName("10.0.0.1"), cache.peek());
+        Assert.assertTrue(cache.remove(InetAddress.getByName("10.0.0.1")));
+        // still covered by the range.
+        Assert.assertTrue(cache.contains(InetAddress.getByName("10.0.0.1")));
+        Assert.assertNull(cache.peek());
+    }
+
+    @Test
+    public void rangesAreLastInFirstOut() throws Exception {
+        cache.add(InetAddress.getByName("10.0.0.0"), 8);
+        cache.add(InetAddress.getByName("2001:db8::"), 32);
+        cache.add(InetAddress.getByName("172.16.0.0"), 12);
+        Assert.assertEquals(new AddressPrefix(InetAddress.getByName("172.16.0.0"), 12), cache.peekPrefix());
+        Assert.assertEquals("172.16.0.0/12", cache.takePrefix().toString());
+        Assert.assertEquals(new AddressPrefix(InetAddress.getByName("2001:db8::"), 32), cache.takePrefix());
+        Assert.assertEquals(new AddressPrefix(InetAddress.getByName("10.0.0.0"), 8), cache.takePrefix());
+        Assert.assertNull(cache.takePrefix());
+        Assert.assertFalse(cache.contains(InetAddress.getByName("10.0.0.1")));
+    }
+
+    @Test
+    public void rangesExpireLikeAddresses() throws Exception {
+        AddressCache shortLived = new AddressCache(50, TimeUnit.MILLISECONDS);
+        try {
+            shortLived.add(InetAddress.getByName("10.0.0.0"), 8);
+            Assert.assertTrue(shortLived.contains(InetAddress.getByName("10.0.0.1")));
+            Thread.sleep(100);
+            Assert.assertFalse(shortLived.contains(InetAddress.getByName("10.0.0.1")));
+            Assert.assertEquals(-1, shortLived.longestMatch(InetAddress.getByName("10.0.0.1")));
+            Assert.assertNull(shortLived.peekPrefix());
+        } finally {
+            shortLived.close();
+        }
+    }
+
+    @Test
+    public void clearDropsTheRanges() throws Exception {
+        cache.add(InetAddress.getByName("10.0.0.0"), 8);
+        cache.clear();
+        Assert.assertFalse(cache.contains(InetAddress.getByName("10.0.0.1")));
+        Assert.assertTrue(cache.add(InetAddress.getByName("10.0.0.0"), 8));
+    }
+
+    @Test
+    public void defaultRouteCoversEverything() throws Exception {
+        cache.add(InetAddress.getByName("0.0.0.0"), 0);
+        Assert.assertTrue(cache.contains(InetAddress.getByName("203.0.113.9")));
+        Assert.assertEquals(0, cache.longestMatch(InetAddress.getByName("203.0.113.9")));
+        Assert.assertFalse(cache.contains(InetAddress.getByName("::1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ipv4PrefixLongerThan32IsRejected() throws Exception {
+        cache.add(InetAddress.getByName("10.0.0.0"), 33);
+    }
+
+    @Test(expected = CacheExpiredException.class)
+    public void addRangeToClosedCacheThrows() throws Exception {
+        cache.close();
+        cache.add(InetAddress.getByName("10.0.0.0"), 8);
+    }
+
+    @Test
+    public void shardedCacheMatchesRanges() throws Exception {
+        AddressCache sharded = new ShardedAddressCache(1, TimeUnit.HOURS, 4);
+        try {
+            sharded.add(InetAddress.getByName("10.0.0.0"), 8);
+            Assert.assertTrue(sharded.contains(0x0a123456));
+        } finally {
+            sharded.close();
+        }
+    }
+
+    @Test
+    public void millionsOfRangesAreMatched() throws Exception {
+        for (int i = 0; i < 1 << 20; i++) {
+            cache.add(AddressCodec.toInetAddress(i << 8), 24);
+        }
+        for (int i = 0; i < 1 << 20; i += 4099) {
+            Assert.assertTrue(cache.contains(i << 8 | 0x7f));
+        }
+        Assert.assertFalse(cache.contains(1 << 28 | 0x7f));
+    }
+}
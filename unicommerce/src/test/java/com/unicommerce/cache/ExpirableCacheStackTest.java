@@ -1,5 +1,6 @@
 package com.unicommerce.cache;
 
+import com.unicommerce.cache.exception.CacheExpiredException;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -27,6 +28,7 @@ public class ExpirableCacheStackTest {
     @After
     public void tearDown() throws Exception {
         expirableCacheStack.clear();
+        expirableCacheStack.close();
     }
 
     @Test
@@ -41,6 +43,22 @@ public class ExpirableCacheStackTest {
         Assert.assertTrue(result);
     }
 
+    @Test
+    public void addDuplicateElementIsIgnored() throws Exception {
+        Assert.assertTrue(expirableCacheStack.add(7));
+        Assert.assertFalse(expirableCacheStack.add(7));
+        expirableCacheStack.take();
+        Assert.assertFalse(expirableCacheStack.contains(7));
+    }
+
+    @Test
+    public void boxedAndPrimitiveElementsAreTheSame() throws Exception {
+        Assert.assertTrue(expirableCacheStack.add(Integer.valueOf(-5)));
+        Assert.assertFalse(expirableCacheStack.add(-5));
+        Assert.assertTrue(expirableCacheStack.contains(Integer.valueOf(-5)));
+        Assert.assertEquals(-5, expirableCacheStack.take().intValue());
+    }
+
     @Test
     public void removeElementFromCache() throws Exception {
         expirableCacheStack.add(23);
@@ -98,12 +116,24 @@ public class ExpirableCacheStackTest {
     }
 
     @Test
-    public void checkCacheIsExpiredAfterAgeElapsed() throws Exception {
-        // adding delay in execution to let cache expire.
-        _delayer(15000);
-        boolean isExpired = expirableCacheStack.isExpired();
-        System.out.printf("isExpired" + isExpired);
-        Assert.assertTrue(isExpired);
+    public void elementExpiresAfterAgeElapsed() throws Exception {
+        ExpirableCacheStack shortLived = new ExpirableCacheStack(1, TimeUnit.SECONDS);
+        shortLived.add(50);
+        shortLived.add(51);
+        // adding delay in execution to let the elements expire.
+        _delayer(1500);
+        Assert.assertFalse(shortLived.contains(50));
+        Assert.assertNull(shortLived.peek());
+        Assert.assertFalse(shortLived.isExpired());
+        Assert.assertTrue(shortLived.add(52));
+        Assert.assertEquals(52, shortLived.take().intValue());
+    }
+
+    @Test(expected = CacheExpiredException.class)
+    public void closedCacheRejectsOperations() throws Exception {
+        expirableCacheStack.add(50);
+        expirableCacheStack.close();
+        expirableCacheStack.add(51);
     }
 
     private void _delayer(long total_delay_in_millis) {
@@ -0,0 +1,133 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCs of the generic ExpirableCache and of its int & long caches.
+ * TC`s names are self-explanatory.
+ */
+public class ExpirableCacheTest {
+
+    @Test
+    public void genericCacheIsLastInFirstOut() throws Exception {
+        ExpirableCache<String> cache = new ExpirableCache<String>(1, TimeUnit.HOURS);
+        try {
+            Assert.assertTrue(cache.add("a"));
+            Assert.assertTrue(cache.add("b"));
+            Assert.assertFalse(cache.add("a"));
+            Assert.assertTrue(cache.contains("a"));
+            Assert.assertEquals("b", cache.peek());
+            Assert.assertEquals("b", cache.take());
+            Assert.assertTrue(cache.remove("a"));
+            Assert.assertNull(cache.peek());
+            Assert.assertEquals(0, cache.metrics().getSize());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void genericCacheOnLockFreeEngine() throws Exception {
+        ExpirableCache<String> cache = new ExpirableCache<String>(1, TimeUnit.HOURS, CacheEngine.LOCK_FREE);
+        try {
+            Assert.assertEquals(3, cache.addAll(Arrays.asList("a", "b", "c")));
+            Assert.assertTrue(cache.containsAll(Arrays.asList("a", "c")));
+            Assert.assertEquals(Arrays.asList("c", "b"), cache.takeN(2, 1, TimeUnit.SECONDS));
+            Assert.assertEquals(1, cache.removeAll(Arrays.asList("a", "b")));
+            Assert.assertNull(cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void offHeapEngineOnlyStoresAddresses() {
+        new ExpirableCache<String>(1, TimeUnit.HOURS, CacheEngine.OFF_HEAP);
+    }
+
+    @Test
+    public void genericCacheElementsExpire() throws Exception {
+        ExpirableCache<String> cache = new ExpirableCache<String>(50, TimeUnit.MILLISECONDS);
+        try {
+            cache.add("a");
+            Thread.sleep(100);
+            Assert.assertFalse(cache.contains("a"));
+            Assert.assertNull(cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void genericTakeAsyncIsCompletedByTheNextAdd() throws Exception {
+        ExpirableCache<String> cache = new ExpirableCache<String>(1, TimeUnit.HOURS);
+        try {
+            CompletableFuture<String> future = cache.takeAsync();
+            cache.add("a");
+            Assert.assertEquals("a", future.get());
+            Assert.assertNull(cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test(expected = CacheExpiredException.class)
+    public void closedGenericCacheThrows() throws Exception {
+        ExpirableCache<String> cache = new ExpirableCache<String>(1, TimeUnit.HOURS);
+        cache.close();
+        cache.add("a");
+    }
+
+    @Test
+    public void intCacheMixesPrimitiveAndBoxedOperations() throws Exception {
+        IntExpirableCache cache = new IntExpirableCache(1, TimeUnit.HOURS);
+        try {
+            Assert.assertTrue(cache.add(1));
+            Assert.assertTrue(cache.add(Integer.valueOf(2)));
+            Assert.assertFalse(cache.add(2));
+            Assert.assertTrue(cache.contains(1));
+            Assert.assertTrue(cache.contains(Integer.valueOf(2)));
+            Assert.assertEquals(Integer.valueOf(2), cache.take());
+            Assert.assertTrue(cache.remove(1));
+            Assert.assertFalse(cache.contains(1));
+            Assert.assertNull(cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void longCacheKeepsTheWholeKey() throws Exception {
+        LongExpirableCache cache = new LongExpirableCache(1, TimeUnit.HOURS);
+        try {
+            Assert.assertTrue(cache.add(Long.MIN_VALUE));
+            Assert.assertTrue(cache.add(1L << 40));
+            Assert.assertTrue(cache.add(-1L));
+            Assert.assertFalse(cache.contains(1L));
+            Assert.assertEquals(Long.valueOf(-1L), cache.take());
+            Assert.assertEquals(Long.valueOf(1L << 40), cache.peek());
+            Assert.assertTrue(cache.remove(1L << 40));
+            Assert.assertEquals(Long.valueOf(Long.MIN_VALUE), cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void expirableCacheStackIsAnIntCache() throws Exception {
+        ExpirableCacheStack stack = new ExpirableCacheStack(1, TimeUnit.HOURS);
+        try {
+            stack.add(5);
+            Assert.assertEquals(Integer.valueOf(5), stack.take());
+            Assert.assertTrue(stack instanceof IntExpirableCache);
+        } finally {
+            stack.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.unicommerce.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test class for the shared ExpiryScheduler.
+ * TC`s names are self-explanatory.
+ */
+public class ExpirySchedulerTest {
+
+    @Test
+    public void purgeRunsPeriodicallyUntilCancelled() throws Exception {
+        final CountDownLatch ticks = new CountDownLatch(3);
+        final AtomicInteger runs = new AtomicInteger();
+        Object owner = new Object();
+        ExpiryScheduler.Registration registration = ExpiryScheduler.shared().register(owner, new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+                ticks.countDown();
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(5));
+
+        Assert.assertTrue(ticks.await(2, TimeUnit.SECONDS));
+        registration.cancel();
+        Assert.assertTrue(registration.isCancelled());
+        Thread.sleep(20);
+        int runsAfterCancel = runs.get();
+        Thread.sleep(50);
+        Assert.assertEquals(runsAfterCancel, runs.get());
+        // keeps the owner reachable, the scheduler only holds it weakly.
+        Assert.assertNotNull(owner);
+    }
+
+    @Test
+    public void ioRunsOffTheSchedulerThreadOneAtATime() throws Exception {
+        final CountDownLatch ticks = new CountDownLatch(3);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        Object owner = new Object();
+        ExpiryScheduler.Registration registration = ExpiryScheduler.shared().registerIo(owner, new Runnable() {
+            public void run() {
+                if (running.incrementAndGet() > 1) {
+                    overlaps.incrementAndGet();
+                }
+                threads.add(Thread.currentThread().getName());
+                try {
+                    // slower than the period, the ticks meanwhile are skipped.
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                ticks.countDown();
+            }
+        }, TimeUnit.MILLISECONDS.toNanos(1));
+
+        Assert.assertTrue(ticks.await(2, TimeUnit.SECONDS));
+        registration.cancel();
+        Assert.assertEquals(0, overlaps.get());
+        Assert.assertEquals(Collections.singleton("cache-io"), threads);
+        Assert.assertNotNull(owner);
+    }
+
+    @Test
+    public void cancelIsIdempotent() throws Exception {
+        int before = ExpiryScheduler.shared().registrations();
+        ExpiryScheduler.Registration registration = ExpiryScheduler.shared().register(new Object(), new Runnable() {
+            public void run() {
+            }
+        }, TimeUnit.SECONDS.toNanos(1));
+        Assert.assertEquals(before + 1, ExpiryScheduler.shared().registrations());
+        registration.cancel();
+        registration.cancel();
+        Assert.assertEquals(before, ExpiryScheduler.shared().registrations());
+    }
+}
@@ -0,0 +1,101 @@
+package com.unicommerce.cache;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Test class for the IndexedStack backing structure.
+ * TC`s names are self-explanatory.
+ */
+public class IndexedStackTest {
+
+    private IndexedStack<Integer> stack;
+
+    @Before
+    public void setUp() throws Exception {
+        stack = new IndexedStack<Integer>();
+    }
+
+    @Test
+    public void pollReturnsElementsInLifoOrder() throws Exception {
+        stack.push(1);
+        stack.push(2);
+        stack.push(3);
+        Assert.assertEquals(3, stack.poll(0).intValue());
+        Assert.assertEquals(2, stack.poll(0).intValue());
+        Assert.assertEquals(1, stack.poll(0).intValue());
+        Assert.assertNull(stack.poll(0));
+        Assert.assertTrue(stack.isEmpty());
+    }
+
+    @Test
+    public void pushIgnoresDuplicates() throws Exception {
+        Assert.assertTrue(stack.push(1));
+        Assert.assertTrue(stack.push(2));
+        Assert.assertFalse(stack.push(1));
+        Assert.assertEquals(2, stack.size());
+        Assert.assertEquals(2, stack.peek(0).intValue());
+    }
+
+    @Test
+    public void removeFromMiddleKeepsOrder() throws Exception {
+        stack.push(1);
+        stack.push(2);
+        stack.push(3);
+        Assert.assertTrue(stack.remove(2));
+        Assert.assertFalse(stack.remove(2));
+        Assert.assertFalse(stack.contains(2, 0));
+        Assert.assertEquals(Arrays.asList(1, 3), stack.toList());
+    }
+
+    @Test
+    public void removeTopAndBottom() throws Exception {
+        stack.push(1);
+        stack.push(2);
+        stack.push(3);
+        stack.remove(3);
+        stack.remove(1);
+        Assert.assertEquals(2, stack.peek(0).intValue());
+        Assert.assertEquals(Arrays.asList(2), stack.toList());
+        stack.push(4);
+        Assert.assertEquals(Arrays.asList(2, 4), stack.toList());
+    }
+
+    @Test
+    public void expiredElementsAreInvisibleThenDropped() throws Exception {
+        long now = System.nanoTime();
+        stack.push(1, now + 1000, now);
+        stack.push(2, IndexedStack.NEVER, now);
+        stack.push(3, now + 1000, now);
+        long later = now + 2000;
+        Assert.assertEquals(2, stack.peek(later).intValue());
+        Assert.assertFalse(stack.contains(3, later));
+        Assert.assertTrue(stack.push(3, IndexedStack.NEVER, later));
+        Assert.assertEquals(3, stack.peek(later).intValue());
+        Assert.assertEquals(1, stack.expire(later + stack.getTickNanos() * 2));
+        Assert.assertEquals(Arrays.asList(2, 3), stack.toList());
+    }
+
+    @Test
+    public void pollDropsExpiredElementsOnTheWay() throws Exception {
+        long now = System.nanoTime();
+        stack.push(1, IndexedStack.NEVER, now);
+        stack.push(2, now + 10, now);
+        stack.push(3, now + 10, now);
+        Assert.assertEquals(1, stack.poll(now + 20).intValue());
+        Assert.assertEquals(0, stack.size());
+    }
+
+    @Test
+    public void clearEmptiesTheStack() throws Exception {
+        stack.push(1);
+        stack.push(2);
+        stack.clear();
+        Assert.assertEquals(0, stack.size());
+        Assert.assertNull(stack.peek(0));
+        Assert.assertTrue(stack.push(1));
+    }
+}
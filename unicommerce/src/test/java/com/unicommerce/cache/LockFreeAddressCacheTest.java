@@ -0,0 +1,14 @@
+package com.unicommerce.cache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every AddressCache TC against the lock-free engine.
+ */
+public class LockFreeAddressCacheTest extends AddressCacheTest {
+
+    @Override
+    protected AddressCache newCache(long maxAge, TimeUnit unit) {
+        return new AddressCache(maxAge, unit, CacheEngine.LOCK_FREE);
+    }
+}
@@ -0,0 +1,240 @@
+package com.unicommerce.cache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * TCs of the Bloom filter answering the misses of AddressCache#contains, see filterMisses().
+ * TC`s names are self-explanatory.
+ */
+public class MissFilterTest {
+
+    private AddressCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new AddressCache(1, TimeUnit.HOURS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    @Test
+    public void missesAreAnsweredByTheFilter() throws Exception {
+        cache.filterMisses(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            cache.add(i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(cache.contains(i));
+        }
+        for (int i = 1000; i < 101000; i++) {
+            Assert.assertFalse(cache.contains(i));
+        }
+        CacheMetrics metrics = cache.metrics();
+        Assert.assertEquals(100000, metrics.getFilterNegatives() + metrics.getFilterFalsePositives());
+        Assert.assertTrue(metrics.getFilterFalsePositiveRate() < 0.03);
+        Assert.assertTrue(metrics.getFilterExpectedFalsePositiveRate() > 0);
+        Assert.assertTrue(metrics.getFilterBytes() > 0);
+    }
+
+    @Test
+    public void addressesAlreadyThereAreFiltered() throws Exception {
+        cache.add(InetAddress.getByName("10.0.0.1"));
+        cache.add(InetAddress.getByName("2001:db8::1"));
+        cache.filterMisses(100, 0.01);
+        Assert.assertTrue(cache.contains(InetAddress.getByName("10.0.0.1")));
+        Assert.assertTrue(cache.contains(0x0a000001));
+        Assert.assertTrue(cache.contains(InetAddress.getByName("2001:db8::1")));
+        Assert.assertFalse(cache.contains(InetAddress.getByName("2001:db8::2")));
+    }
+
+    @Test
+    public void removedAndTakenAddressesAreMisses() throws Exception {
+        cache.filterMisses(100, 0.01);
+        InetAddress address = InetAddress.getByName("10.0.0.1");
+        cache.add(address);
+        cache.add(0x0a000002);
+        Assert.assertTrue(cache.remove(address));
+        Assert.assertFalse(cache.contains(address));
+        Assert.assertEquals(InetAddress.getByName("10.0.0.2"), cache.take());
+        Assert.assertFalse(cache.contains(0x0a000002));
+        Assert.assertEquals(2, cache.metrics().getFilterNegatives());
+
+        Assert.assertTrue(cache.add(address));
+        Assert.assertTrue(cache.contains(address));
+    }
+
+    @Test
+    public void duplicatesAreCountedOnce() throws Exception {
+        cache.filterMisses(100, 0.01);
+        byte[] address = {10, 0, 0, 1};
+        Assert.assertTrue(cache.add(address));
+        Assert.assertFalse(cache.add(address));
+        Assert.assertTrue(cache.remove(address));
+        Assert.assertFalse(cache.contains(address));
+        Assert.assertEquals(1, cache.metrics().getFilterNegatives());
+    }
+
+    @Test
+    public void clearRestartsFromAnEmptyFilter() throws Exception {
+        cache.filterMisses(100, 0.01);
+        for (int i = 0; i < 100; i++) {
+            cache.add(i);
+        }
+        cache.clear();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertFalse(cache.contains(i));
+        }
+        Assert.assertEquals(100, cache.metrics().getFilterNegatives());
+        cache.add(42);
+        Assert.assertTrue(cache.contains(42));
+    }
+
+    @Test
+    public void rangesAreNotFiltered() throws Exception {
+        cache.filterMisses(100, 0.01);
+        cache.add(InetAddress.getByName("10.0.0.0"), 8);
+        Assert.assertTrue(cache.contains(0x0a010203));
+    }
+
+    @Test
+    public void expiredAddressesAreDroppedFromTheFilterOnRefresh() throws Exception {
+        FilteredAddressEngine filtered = new FilteredAddressEngine(new PrimitiveAddressEngine(TimeUnit.HOURS.toNanos(1)),
+                100, 0.01);
+        long now = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            filtered.push(i, now + 1, now);
+        }
+        filtered.push(-1, now + TimeUnit.HOURS.toNanos(1), now);
+        long later = now + TimeUnit.MINUTES.toNanos(30);
+        Assert.assertEquals(1000, filtered.expire(later));
+        Assert.assertTrue(filtered.refresh());
+        Assert.assertFalse(filtered.refresh());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertFalse(filtered.contains(i, later));
+        }
+        Assert.assertTrue(filtered.contains(-1, later));
+        Assert.assertTrue(filtered.negatives() > 900);
+    }
+
+    @Test
+    public void theFilterGrowsWithTheAddresses() throws Exception {
+        FilteredAddressEngine filtered = new FilteredAddressEngine(new PrimitiveAddressEngine(TimeUnit.HOURS.toNanos(1)),
+                100, 0.01);
+        long bytes = filtered.filterBytes();
+        long now = System.nanoTime();
+        for (int i = 0; i < 10000; i++) {
+            filtered.push(i, now + TimeUnit.HOURS.toNanos(1), now);
+        }
+        Assert.assertTrue(filtered.refresh());
+        Assert.assertTrue(filtered.filterBytes() > bytes);
+        Assert.assertTrue(filtered.expectedFalsePositiveRate() < 0.02);
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(filtered.contains(i, now));
+        }
+    }
+
+    @Test
+    public void boundedCachesEvictionsAreNeverMissedNorFalselyFound() throws Exception {
+        AddressCache bounded = new AddressCache(1, TimeUnit.HOURS, CacheEngine.LOCKING,
+                Capacity.entries(100, EvictionPolicy.OLDEST));
+        try {
+            bounded.filterMisses(100, 0.01);
+            for (int i = 0; i < 1000; i++) {
+                bounded.add(i);
+            }
+            for (int i = 900; i < 1000; i++) {
+                Assert.assertTrue(bounded.contains(i));
+            }
+            for (int i = 0; i < 900; i++) {
+                Assert.assertFalse(bounded.contains(i));
+            }
+        } finally {
+            bounded.close();
+        }
+    }
+
+    @Test
+    public void noFalseNegativeUnderConcurrentMutationsAndRebuilds() throws Exception {
+        final FilteredAddressEngine filtered = new FilteredAddressEngine(
+                new PrimitiveAddressEngine(TimeUnit.HOURS.toNanos(1)), 16, 0.01);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        // each writer owns its addresses: while it holds one, contains() must be true.
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int base = t << 20;
+            threads.add(new Thread() {
+                public void run() {
+                    Random random = new Random(base);
+                    while (!stop.get()) {
+                        int address = base + random.nextInt(1000);
+                        long now = System.nanoTime();
+                        if (filtered.push(address, now + TimeUnit.HOURS.toNanos(1), now)) {
+                            if (!filtered.contains(address, now)) {
+                                failure.compareAndSet(null, "missed " + address);
+                            }
+                            filtered.remove(address, now);
+                        }
+                    }
+                }
+            });
+        }
+        threads.add(new Thread() {
+            public void run() {
+                while (!stop.get()) {
+                    filtered.refresh();
+                }
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(500);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertNull(failure.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void logCannotBeOpenedOnceFiltered() throws Exception {
+        Path directory = Files.createTempDirectory("miss-filter");
+        cache.filterMisses(100, 0.01);
+        cache.openLog(directory, WriteAheadLog.Durability.ASYNC, 1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void filterAfterTheLogKeepsLogging() throws Exception {
+        Path directory = Files.createTempDirectory("miss-filter");
+        cache.openLog(directory, WriteAheadLog.Durability.FSYNC, 1, TimeUnit.MINUTES);
+        cache.filterMisses(100, 0.01);
+        cache.add(0x0a000001);
+        cache.close();
+
+        cache = new AddressCache(1, TimeUnit.HOURS);
+        Assert.assertEquals(1, cache.openLog(directory, WriteAheadLog.Durability.FSYNC, 1, TimeUnit.MINUTES));
+        Assert.assertTrue(cache.contains(0x0a000001));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void falsePositiveRateMustBeBetweenZeroAndOne() throws Exception {
+        cache.filterMisses(100, 1);
+    }
+}
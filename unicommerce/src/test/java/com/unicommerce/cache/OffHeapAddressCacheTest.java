@@ -0,0 +1,14 @@
+package com.unicommerce.cache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every AddressCache TC against the off-heap engine.
+ */
+public class OffHeapAddressCacheTest extends AddressCacheTest {
+
+    @Override
+    protected AddressCache newCache(long maxAge, TimeUnit unit) {
+        return new AddressCache(maxAge, unit, CacheEngine.OFF_HEAP);
+    }
+}
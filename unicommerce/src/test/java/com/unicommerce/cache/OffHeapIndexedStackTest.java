@@ -0,0 +1,133 @@
+package com.unicommerce.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test class for OffHeapIndexedStack & OffHeapAddressEngine.
+ * TC`s names are self-explanatory.
+ */
+public class OffHeapIndexedStackTest {
+
+    private static final long NEVER = IndexedStack.NEVER;
+
+    @Test
+    public void pollsInLifoOrder() throws Exception {
+        OffHeapIndexedStack stack = new OffHeapIndexedStack(0);
+        long now = System.nanoTime();
+        stack.push(0, 1, NEVER, now);
+        stack.push(0, 2, NEVER, now);
+        stack.push(7, 3, NEVER, now);
+        Assert.assertEquals(3, stack.lowAt(stack.peekSlot(now)));
+        int slot = stack.pollSlot(now);
+        Assert.assertEquals(7, stack.highAt(slot));
+        Assert.assertEquals(3, stack.lowAt(slot));
+        Assert.assertEquals(2, stack.lowAt(stack.pollSlot(now)));
+        Assert.assertEquals(1, stack.lowAt(stack.pollSlot(now)));
+        Assert.assertEquals(OffHeapIndexedStack.NIL, stack.pollSlot(now));
+        stack.free();
+    }
+
+    @Test
+    public void ignoresDuplicatesAndRemoves() throws Exception {
+        OffHeapIndexedStack stack = new OffHeapIndexedStack(0);
+        long now = System.nanoTime();
+        Assert.assertTrue(stack.push(0, 0, NEVER, now));
+        Assert.assertTrue(stack.push(-1, -1, NEVER, now));
+        Assert.assertFalse(stack.push(0, 0, NEVER, now));
+        Assert.assertTrue(stack.remove(0, 0, now));
+        Assert.assertFalse(stack.remove(0, 0, now));
+        Assert.assertFalse(stack.contains(0, 0, now));
+        Assert.assertTrue(stack.contains(-1, -1, now));
+        Assert.assertEquals(1, stack.size());
+        stack.free();
+    }
+
+    @Test
+    public void keepsOrderAcrossSlabsAndTombstones() throws Exception {
+        OffHeapIndexedStack stack = new OffHeapIndexedStack(0);
+        long now = System.nanoTime();
+        // 300K elements span several slabs once the table has grown.
+        for (int i = 0; i < 300000; i++) {
+            stack.push(i, i, NEVER, now);
+            if (i % 3 == 0) {
+                stack.remove(i, i, now);
+            }
+        }
+        for (int i = 1; i < 300000; i += 3) {
+            stack.remove(i, i, now);
+            stack.push(i, i, NEVER, now);
+        }
+        Assert.assertTrue(stack.offHeapBytes() > (long) OffHeapIndexedStack.SLAB_RECORDS * OffHeapIndexedStack.RECORD_BYTES);
+        Assert.assertEquals(200000, stack.size());
+        long previous = Long.MAX_VALUE;
+        int slot;
+        int count = 0;
+        // the re-added ones (i % 3 == 1) are on top, newest first.
+        while ((slot = stack.pollSlot(now)) != OffHeapIndexedStack.NIL) {
+            long key = stack.lowAt(slot);
+            Assert.assertEquals(key, stack.highAt(slot));
+            Assert.assertTrue(key % 3 != 0);
+            if (count < 100000) {
+                Assert.assertEquals(1, key % 3);
+                Assert.assertTrue(key < previous);
+                previous = key;
+            }
+            count++;
+        }
+        Assert.assertEquals(200000, count);
+        stack.free();
+    }
+
+    @Test
+    public void expiresFromTheBottom() throws Exception {
+        OffHeapIndexedStack stack = new OffHeapIndexedStack(0);
+        long now = System.nanoTime();
+        stack.push(0, 1, now + 10, now);
+        stack.push(0, 2, now + 20, now);
+        stack.push(0, 3, now + 30, now);
+        Assert.assertEquals(3, stack.lowAt(stack.peekSlot(now + 20)));
+        Assert.assertFalse(stack.contains(0, 2, now + 20));
+        Assert.assertEquals(2, stack.expire(now + 20));
+        Assert.assertEquals(1, stack.size());
+        Assert.assertEquals(OffHeapIndexedStack.NIL, stack.peekSlot(now + 30));
+        Assert.assertTrue(stack.push(0, 3, now + 60, now + 30));
+        Assert.assertEquals(1, stack.size());
+        stack.free();
+    }
+
+    @Test
+    public void clearGivesTheSlabsBack() throws Exception {
+        OffHeapAddressEngine engine = new OffHeapAddressEngine(TimeUnit.SECONDS.toNanos(10), 1000000);
+        long now = System.nanoTime();
+        long sized = engine.offHeapBytes();
+        Assert.assertTrue(sized >= 1000000L * OffHeapIndexedStack.RECORD_BYTES);
+        for (int i = 0; i < 1000000; i++) {
+            engine.push(i, NEVER, now);
+        }
+        // sized upfront, no rehashing on the way.
+        Assert.assertEquals(sized, engine.offHeapBytes());
+        Assert.assertEquals(1000000, engine.size());
+        engine.clear();
+        Assert.assertEquals(0, engine.size());
+        Assert.assertTrue(engine.offHeapBytes() < 1024);
+        Assert.assertTrue(engine.push(42, NEVER, now));
+        Assert.assertTrue(engine.contains(42, now));
+        engine.clear();
+    }
+
+    @Test
+    public void ipv4ComesOutAsIpv4() throws Exception {
+        OffHeapAddressEngine engine = new OffHeapAddressEngine(TimeUnit.SECONDS.toNanos(10));
+        long now = System.nanoTime();
+        byte[] mapped = AddressCodec.toInetAddress(0L, 0x0000ffff0a000001L).getAddress();
+        Assert.assertTrue(engine.push(0x0a000001, NEVER, now));
+        Assert.assertFalse(engine.push(mapped, NEVER, now));
+        byte[] into = new byte[AddressCodec.IPV6_LENGTH];
+        Assert.assertEquals(AddressCodec.IPV4_LENGTH, engine.pollInto(into, now));
+        Assert.assertEquals(0x0a000001, AddressCodec.ipv4(new byte[]{into[0], into[1], into[2], into[3]}));
+        engine.clear();
+    }
+}
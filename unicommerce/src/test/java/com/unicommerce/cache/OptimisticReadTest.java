@@ -0,0 +1,154 @@
+package com.unicommerce.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * TCs of the optimistic reads of PrimitiveAddressEngine & PrimitiveStackEngine racing writers
+ * which grow, shrink & rehash the stacks.
+ * TC`s names are self-explanatory.
+ */
+public class OptimisticReadTest {
+
+    private static final long TTL = TimeUnit.HOURS.toNanos(1);
+    private static final int PINNED = 0x0a000001;
+    private static final byte[] PINNED_IPV6 = ipv6(0x20010db800000000L, 1);
+    private static final int CHURN = 20000;
+
+    @Test
+    public void containsNeverMissesAnUntouchedAddressWhileWritersChurn() throws Exception {
+        final PrimitiveAddressEngine engine = new PrimitiveAddressEngine(TTL);
+        final long now = System.nanoTime();
+        engine.push(PINNED, now + TTL, now);
+        engine.push(PINNED_IPV6, now + TTL, now);
+        race(new Runnable() {
+            public void run() {
+                for (int i = 0; i < CHURN; i++) {
+                    engine.push(i << 8, now + TTL, now);
+                    engine.push(ipv6(0x20010db900000000L, i), now + TTL, now);
+                }
+                for (int i = 0; i < CHURN; i++) {
+                    engine.remove(i << 8, now);
+                    engine.remove(ipv6(0x20010db900000000L, i), now);
+                }
+            }
+        }, new Runnable() {
+            public void run() {
+                Assert.assertTrue(engine.contains(PINNED, now));
+                Assert.assertTrue(engine.contains(PINNED_IPV6, now));
+                Assert.assertFalse(engine.contains(PINNED + 1, now));
+                Assert.assertTrue(engine.size() >= 2);
+            }
+        });
+        Assert.assertEquals(2, engine.size());
+    }
+
+    @Test
+    public void peekReturnsOnlyAddressesPushed() throws Exception {
+        final PrimitiveAddressEngine engine = new PrimitiveAddressEngine(TTL);
+        final long now = System.nanoTime();
+        engine.push(PINNED, now + TTL, now);
+        race(new Runnable() {
+            public void run() {
+                for (int i = 1; i <= CHURN; i++) {
+                    engine.push(PINNED + i, now + TTL, now);
+                }
+                for (int i = CHURN; i >= 1; i--) {
+                    engine.remove(PINNED + i, now);
+                }
+            }
+        }, new Runnable() {
+            public void run() {
+                byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+                Assert.assertEquals(AddressCodec.IPV4_LENGTH, engine.peekInto(address, now));
+                int peeked = AddressCodec.readIpv4(address);
+                Assert.assertTrue(Integer.toHexString(peeked), peeked >= PINNED && peeked <= PINNED + CHURN);
+            }
+        });
+        Assert.assertEquals(PINNED, AddressCodec.readIpv4(engine.peek(now).getAddress()));
+    }
+
+    @Test
+    public void primitiveStackEngineReadsStayConsistentWhileWritersChurn() throws Exception {
+        final IntStackEngine engine = new IntStackEngine(TTL);
+        final long now = System.nanoTime();
+        engine.push(PINNED, now + TTL, now);
+        race(new Runnable() {
+            public void run() {
+                for (int i = 1; i <= CHURN; i++) {
+                    engine.push(PINNED + i, now + TTL, now);
+                }
+                for (int i = 1; i <= CHURN; i++) {
+                    engine.remove(PINNED + i, now);
+                }
+            }
+        }, new Runnable() {
+            public void run() {
+                Assert.assertTrue(engine.contains(PINNED, now));
+                Assert.assertTrue(engine.contains(Integer.valueOf(PINNED), now));
+                Assert.assertFalse(engine.contains(PINNED - 1, now));
+                Integer peeked = engine.peek(now);
+                Assert.assertTrue(String.valueOf(peeked), peeked >= PINNED && peeked <= PINNED + CHURN);
+            }
+        });
+        Assert.assertEquals(Integer.valueOf(PINNED), engine.peek(now));
+    }
+
+    private static byte[] ipv6(long high, long low) {
+        byte[] address = new byte[AddressCodec.IPV6_LENGTH];
+        AddressCodec.writeIpv6(high, low, address);
+        return address;
+    }
+
+    /**
+     * Runs the writer three times while 3 threads run the read until the writer is done.
+     */
+    private static void race(final Runnable writer, final Runnable read) throws Exception {
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        tasks.add(new Runnable() {
+            public void run() {
+                for (int round = 0; round < 3; round++) {
+                    writer.run();
+                }
+            }
+        });
+        for (int t = 0; t < 3; t++) {
+            tasks.add(new Runnable() {
+                public void run() {
+                    while (writing.get()) {
+                        read.run();
+                    }
+                }
+            });
+        }
+        for (final Runnable task : tasks) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    } finally {
+                        if (task == tasks.get(0)) {
+                            writing.set(false);
+                        }
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        Assert.assertTrue(failures.toString(), failures.isEmpty());
+    }
+}
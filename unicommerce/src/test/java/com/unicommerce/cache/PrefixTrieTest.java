@@ -0,0 +1,188 @@
+package com.unicommerce.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCs of PrefixTrie and PrefixIndexedStack.
+ * TC`s names are self-explanatory.
+ */
+public class PrefixTrieTest {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public void longestMatchIsTheMostSpecificPrefix() {
+        PrefixTrie trie = new PrefixTrie();
+        put(trie, 0x0a000000, 8, 1);
+        put(trie, 0x0a010000, 16, 2);
+        put(trie, 0x0a010100, 24, 3);
+        Assert.assertEquals(24, longest(trie, 0x0a010105));
+        Assert.assertEquals(16, longest(trie, 0x0a01ff05));
+        Assert.assertEquals(8, longest(trie, 0x0aff0000));
+        Assert.assertEquals(-1, longest(trie, 0x0b000000));
+    }
+
+    @Test
+    public void matchesAreWalkedFromTheShortest() {
+        PrefixTrie trie = new PrefixTrie();
+        trie.put(0, 0, 0, 0);
+        put(trie, 0x0a000000, 8, 1);
+        put(trie, 0x0a010100, 24, 2);
+        put(trie, 0x0a010105, 32, 3);
+        List<Integer> values = new ArrayList<Integer>();
+        long low = AddressCodec.mapped(0x0a010105);
+        for (int node = trie.nextMatch(0, low, PrefixTrie.NIL); node != PrefixTrie.NIL; node = trie.nextMatch(0, low, node)) {
+            values.add(trie.valueAt(node));
+        }
+        Assert.assertEquals(java.util.Arrays.asList(0, 1, 2, 3), values);
+    }
+
+    @Test
+    public void removeKeepsTheOtherPrefixes() {
+        PrefixTrie trie = new PrefixTrie();
+        put(trie, 0x0a000000, 8, 1);
+        put(trie, 0x0a010000, 16, 2);
+        put(trie, 0x0a800000, 9, 3);
+        Assert.assertTrue(trie.remove(0, AddressCodec.mapped(0x0a000000), 96 + 8));
+        Assert.assertFalse(trie.remove(0, AddressCodec.mapped(0x0a000000), 96 + 8));
+        Assert.assertFalse(trie.remove(0, AddressCodec.mapped(0x0a000000), 96 + 12));
+        Assert.assertEquals(2, trie.size());
+        Assert.assertEquals(16, longest(trie, 0x0a010203));
+        Assert.assertEquals(9, longest(trie, 0x0a810203));
+        Assert.assertEquals(-1, longest(trie, 0x0a400000));
+    }
+
+    @Test
+    public void ipv6PrefixesSpanBothHalves() {
+        PrefixTrie trie = new PrefixTrie();
+        long high = 0x20010db800000000L;
+        trie.put(high, 0, 32, 1);
+        trie.put(high | 0x12340000L, 0x8000000000000000L, 65, 2);
+        trie.put(high | 0x12340000L, 0x8000000000000001L, 128, 3);
+        Assert.assertEquals(128, longestOf(trie, high | 0x12340000L, 0x8000000000000001L));
+        Assert.assertEquals(65, longestOf(trie, high | 0x12340000L, 0x8000000000000002L));
+        Assert.assertEquals(32, longestOf(trie, high | 0x12340000L, 1));
+        Assert.assertEquals(-1, longestOf(trie, 0x20010db900000000L, 0));
+    }
+
+    @Test
+    public void removedNodesAreReused() {
+        PrefixTrie trie = new PrefixTrie();
+        Random random = new Random(7);
+        int[] keys = new int[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt();
+            put(trie, keys[i] & (int) PrefixTrie.highMask(24 + 32), 24, i);
+        }
+        long bytes = trie.estimatedBytes();
+        for (int round = 0; round < 10; round++) {
+            for (int key : keys) {
+                trie.remove(0, AddressCodec.mapped(key) & PrefixTrie.lowMask(96 + 24), 96 + 24);
+            }
+            Assert.assertEquals(0, trie.size());
+            for (int i = 0; i < keys.length; i++) {
+                put(trie, keys[i] & (int) PrefixTrie.highMask(24 + 32), 24, i);
+            }
+        }
+        Assert.assertEquals(bytes, trie.estimatedBytes());
+    }
+
+    @Test
+    public void randomPrefixesMatchLikeALinearScan() {
+        PrefixTrie trie = new PrefixTrie();
+        Random random = new Random(42);
+        List<int[]> prefixes = new ArrayList<int[]>();
+        for (int i = 0; i < 2000; i++) {
+            int length = random.nextInt(33);
+            int network = random.nextInt() & (int) PrefixTrie.highMask(32 + length);
+            trie.put(0, AddressCodec.mapped(network), 96 + length, i);
+            prefixes.add(new int[]{network, length});
+        }
+        for (int i = 0; i < 500; i++) {
+            int[] removed = prefixes.remove(random.nextInt(prefixes.size()));
+            // the same prefix may have been drawn twice.
+            boolean duplicate = false;
+            for (int[] prefix : prefixes) {
+                duplicate |= prefix[0] == removed[0] && prefix[1] == removed[1];
+            }
+            if (!duplicate) {
+                Assert.assertTrue(trie.remove(0, AddressCodec.mapped(removed[0]), 96 + removed[1]));
+            }
+        }
+        for (int i = 0; i < 20000; i++) {
+            int address = i % 2 == 0 ? random.nextInt() : prefixes.get(random.nextInt(prefixes.size()))[0] | random.nextInt(256);
+            int expected = -1;
+            for (int[] prefix : prefixes) {
+                if ((address & (int) PrefixTrie.highMask(32 + prefix[1])) == prefix[0]) {
+                    expected = Math.max(expected, prefix[1]);
+                }
+            }
+            Assert.assertEquals(expected, longest(trie, address));
+        }
+    }
+
+    @Test
+    public void stackDropsExpiredPrefixesFromTheTrie() throws Exception {
+        PrefixIndexedStack stack = new PrefixIndexedStack(TICK);
+        long now = System.nanoTime();
+        long low = AddressCodec.mapped(0x0a000000);
+        Assert.assertTrue(stack.push(0, low, 96 + 8, now + TimeUnit.MILLISECONDS.toNanos(20), now));
+        Assert.assertTrue(stack.push(0, AddressCodec.mapped(0x0a010000), 96 + 16, IndexedStack.NEVER, now));
+        Assert.assertEquals(96 + 16, stack.longestMatch(0, AddressCodec.mapped(0x0a010203), now));
+        long later = now + TimeUnit.MILLISECONDS.toNanos(50);
+        Assert.assertFalse(stack.matches(0, AddressCodec.mapped(0x0a020000), later));
+        Assert.assertEquals(1, stack.expire(later + TICK * 2));
+        Assert.assertTrue(stack.push(0, low, 96 + 8, IndexedStack.NEVER, later));
+        Assert.assertTrue(stack.matches(0, AddressCodec.mapped(0x0a020000), later));
+    }
+
+    @Test
+    public void stackHostBitsAreIgnored() {
+        PrefixIndexedStack stack = new PrefixIndexedStack(TICK);
+        long now = System.nanoTime();
+        Assert.assertTrue(stack.push(0, AddressCodec.mapped(0x0a0b0c0d), 96 + 8, IndexedStack.NEVER, now));
+        Assert.assertFalse(stack.push(0, AddressCodec.mapped(0x0a000000), 96 + 8, IndexedStack.NEVER, now));
+        Assert.assertTrue(stack.contains(0, AddressCodec.mapped(0x0affffff), 96 + 8, now));
+        Assert.assertFalse(stack.contains(0, AddressCodec.mapped(0x0a000000), 96 + 16, now));
+    }
+
+    @Test
+    public void stackGrowsWithTheTrieInStep() {
+        PrefixIndexedStack stack = new PrefixIndexedStack(TICK);
+        long now = System.nanoTime();
+        for (int i = 0; i < 100000; i++) {
+            stack.push(0, AddressCodec.mapped(i << 8), 96 + 24, IndexedStack.NEVER, now);
+        }
+        Assert.assertEquals(100000, stack.size());
+        for (int i = 0; i < 100000; i += 997) {
+            Assert.assertEquals(96 + 24, stack.longestMatch(0, AddressCodec.mapped(i << 8 | 0x42), now));
+        }
+        int slot = stack.pollSlot(now);
+        Assert.assertEquals(AddressCodec.mapped(99999 << 8), stack.lowAt(slot));
+        Assert.assertFalse(stack.matches(0, AddressCodec.mapped(99999 << 8), now));
+        Assert.assertTrue(stack.matches(0, AddressCodec.mapped(99998 << 8), now));
+    }
+
+    private static void put(PrefixTrie trie, int ipv4, int length, int value) {
+        trie.put(0, AddressCodec.mapped(ipv4), 96 + length, value);
+    }
+
+    private static int longest(PrefixTrie trie, int ipv4) {
+        int length = longestOf(trie, 0, AddressCodec.mapped(ipv4));
+        return length < 0 ? length : length - 96;
+    }
+
+    private static int longestOf(PrefixTrie trie, long high, long low) {
+        int longest = -1;
+        for (int node = trie.nextMatch(high, low, PrefixTrie.NIL); node != PrefixTrie.NIL; node = trie.nextMatch(high, low, node)) {
+            longest = trie.lengthAt(node);
+        }
+        return longest;
+    }
+}
@@ -0,0 +1,111 @@
+package com.unicommerce.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test class for the primitive indexed stacks (IntIndexedStack, LongPairIndexedStack).
+ * TC`s names are self-explanatory.
+ */
+public class PrimitiveIndexedStackTest {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long NEVER = IndexedStack.NEVER;
+
+    @Test
+    public void intStackPollsInLifoOrder() throws Exception {
+        IntIndexedStack stack = new IntIndexedStack(TICK);
+        long now = System.nanoTime();
+        stack.push(1, NEVER, now);
+        stack.push(2, NEVER, now);
+        stack.push(3, NEVER, now);
+        Assert.assertEquals(3, stack.keyAt(stack.peekSlot(now)));
+        Assert.assertEquals(3, stack.keyAt(stack.pollSlot(now)));
+        Assert.assertEquals(2, stack.keyAt(stack.pollSlot(now)));
+        Assert.assertEquals(1, stack.keyAt(stack.pollSlot(now)));
+        Assert.assertEquals(IntIndexedStack.NIL, stack.pollSlot(now));
+    }
+
+    @Test
+    public void intStackIgnoresDuplicatesAndRemoves() throws Exception {
+        IntIndexedStack stack = new IntIndexedStack(TICK);
+        long now = System.nanoTime();
+        Assert.assertTrue(stack.push(0, NEVER, now));
+        Assert.assertTrue(stack.push(-1, NEVER, now));
+        Assert.assertFalse(stack.push(0, NEVER, now));
+        Assert.assertTrue(stack.remove(0, now));
+        Assert.assertFalse(stack.remove(0, now));
+        Assert.assertFalse(stack.contains(0, now));
+        Assert.assertTrue(stack.contains(-1, now));
+        Assert.assertEquals(1, stack.size());
+    }
+
+    @Test
+    public void intStackKeepsOrderAcrossGrowthAndTombstones() throws Exception {
+        IntIndexedStack stack = new IntIndexedStack(TICK);
+        long now = System.nanoTime();
+        for (int i = 0; i < 100000; i++) {
+            stack.push(i, NEVER, now);
+            if (i % 3 == 0) {
+                stack.remove(i, now);
+            }
+        }
+        for (int round = 0; round < 10; round++) {
+            // churn of removes/re-adds exercising the tombstone purge.
+            for (int i = 1; i < 100000; i += 3) {
+                stack.remove(i, now);
+                stack.push(i, NEVER, now);
+            }
+        }
+        Assert.assertEquals(66666, stack.size());
+        int previous = Integer.MAX_VALUE;
+        int slot;
+        int count = 0;
+        // the re-added ones (i % 3 == 1) are on top, newest first.
+        while ((slot = stack.pollSlot(now)) != IntIndexedStack.NIL) {
+            int key = stack.keyAt(slot);
+            Assert.assertTrue(key % 3 != 0);
+            if (count < 33333) {
+                Assert.assertEquals(1, key % 3);
+                Assert.assertTrue(key < previous);
+                previous = key;
+            }
+            count++;
+        }
+        Assert.assertEquals(66666, count);
+    }
+
+    @Test
+    public void intStackExpiresElements() throws Exception {
+        IntIndexedStack stack = new IntIndexedStack(TICK);
+        long now = System.nanoTime();
+        stack.push(1, now + TICK, now);
+        stack.push(2, NEVER, now);
+        stack.push(3, now + TICK, now);
+        long later = now + 2 * TICK;
+        Assert.assertEquals(2, stack.keyAt(stack.peekSlot(later)));
+        Assert.assertFalse(stack.contains(3, later));
+        Assert.assertEquals(2, stack.expire(later + TICK));
+        Assert.assertEquals(1, stack.size());
+        Assert.assertTrue(stack.push(3, NEVER, later));
+    }
+
+    @Test
+    public void longPairStackStoresIpv6Keys() throws Exception {
+        LongPairIndexedStack stack = new LongPairIndexedStack(TICK);
+        long now = System.nanoTime();
+        for (long i = 0; i < 1000; i++) {
+            Assert.assertTrue(stack.push(0x20010db800000000L, i, NEVER, now));
+        }
+        Assert.assertFalse(stack.push(0x20010db800000000L, 5, NEVER, now));
+        Assert.assertTrue(stack.contains(0x20010db800000000L, 999, now));
+        Assert.assertFalse(stack.contains(0x20010db800000001L, 999, now));
+        Assert.assertTrue(stack.remove(0x20010db800000000L, 999, now));
+        int slot = stack.pollSlot(now);
+        Assert.assertEquals(0x20010db800000000L, stack.highAt(slot));
+        Assert.assertEquals(998, stack.lowAt(slot));
+        Assert.assertEquals(998, stack.size());
+    }
+}
@@ -0,0 +1,232 @@
+package com.unicommerce.cache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCs of the replication of AddressCache between nodes, over a LoopbackTransport.
+ * TC`s names are self-explanatory.
+ */
+public class ReplicationTest {
+
+    private static final long GOSSIP_MILLIS = 10;
+
+    private LoopbackTransport transport;
+    private AddressCache[] nodes;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new LoopbackTransport();
+        nodes = new AddressCache[3];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new AddressCache(1, TimeUnit.HOURS);
+            nodes[i].replicate(i, transport, GOSSIP_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (AddressCache node : nodes) {
+            node.close();
+        }
+        transport.close();
+    }
+
+    @Test
+    public void addOnOneNodeReachesTheOthers() throws Exception {
+        Assert.assertTrue(nodes[0].add(0x0a000001));
+        nodes[1].add(InetAddress.getByName("2001:db8::1"));
+        awaitOnEveryNode(true, 0x0a000001);
+        awaitTrue(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return nodes[2].contains(InetAddress.getByName("2001:db8::1"))
+                        && nodes[0].contains(InetAddress.getByName("2001:db8::1"));
+            }
+        });
+        Assert.assertEquals(1, nodes[0].metrics().getReplicationSent());
+        Assert.assertTrue(nodes[2].metrics().getReplicationApplied() >= 2);
+    }
+
+    @Test
+    public void removeAndTakeReachTheOthers() throws Exception {
+        nodes[0].add(0x0a000001);
+        nodes[0].add(0x0a000002);
+        awaitOnEveryNode(true, 0x0a000002);
+        Assert.assertTrue(nodes[1].remove(0x0a000001));
+        Assert.assertEquals(InetAddress.getByName("10.0.0.2"), nodes[2].take());
+        awaitOnEveryNode(false, 0x0a000001);
+        awaitOnEveryNode(false, 0x0a000002);
+    }
+
+    @Test
+    public void clearReachesTheOthers() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            nodes[0].add(i);
+        }
+        awaitOnEveryNode(true, 99);
+        nodes[1].clear();
+        awaitOnEveryNode(false, 99);
+        Assert.assertEquals(0, nodes[0].metrics().getSize());
+    }
+
+    @Test
+    public void concurrentAddWinsOverRemove() throws Exception {
+        nodes[0].add(0x0a000001);
+        awaitOnEveryNode(true, 0x0a000001);
+        transport.isolate(1);
+        // node 0 removes the add it saw while node 1 adds the address again.
+        nodes[0].remove(0x0a000001);
+        nodes[1].remove(0x0a000001);
+        nodes[1].add(0x0a000001);
+        awaitTrue(new Callable<Boolean>() {
+            public Boolean call() {
+                return !nodes[2].contains(0x0a000001);
+            }
+        });
+        transport.reconnect(1);
+        awaitOnEveryNode(true, 0x0a000001);
+    }
+
+    @Test
+    public void replicatedAddressesExpireWithTheirDeadline() throws Exception {
+        AddressCache shortLived = new AddressCache(200, TimeUnit.MILLISECONDS);
+        try {
+            shortLived.replicate(3, transport, GOSSIP_MILLIS, TimeUnit.MILLISECONDS);
+            shortLived.add(0x0a000001);
+            awaitOnEveryNode(true, 0x0a000001);
+            Thread.sleep(300);
+            for (AddressCache node : nodes) {
+                Assert.assertFalse(node.contains(0x0a000001));
+            }
+        } finally {
+            shortLived.close();
+        }
+    }
+
+    @Test
+    public void droppedDeltasAreRepairedByAntiEntropy() throws Exception {
+        transport.setDropRate(0.5);
+        for (int i = 0; i < 200; i++) {
+            nodes[i % 3].add(i);
+        }
+        // the deltas go out with the next rounds.
+        Thread.sleep(GOSSIP_MILLIS * 5);
+        Assert.assertTrue(transport.awaitDelivery(1, TimeUnit.SECONDS));
+        transport.setDropRate(0);
+        for (int i = 0; i < 200; i++) {
+            awaitOnEveryNode(true, i);
+        }
+    }
+
+    @Test
+    public void laggingNodeCatchesUpWithoutAFullCopy() throws Exception {
+        for (int i = 0; i < 10000; i++) {
+            nodes[0].add(i);
+        }
+        awaitOnEveryNode(true, 9999);
+        long repairedBefore = nodes[2].metrics().getReplicationRepaired();
+        transport.isolate(2);
+        for (int i = 10000; i < 10020; i++) {
+            nodes[0].add(i);
+        }
+        nodes[1].remove(0);
+        awaitTrue(new Callable<Boolean>() {
+            public Boolean call() {
+                return !nodes[1].contains(0) && nodes[1].contains(10019);
+            }
+        });
+        transport.reconnect(2);
+        for (int i = 10000; i < 10020; i++) {
+            awaitOnEveryNode(true, i);
+        }
+        awaitOnEveryNode(false, 0);
+        Assert.assertEquals(10019, nodes[2].metrics().getSize());
+        long repaired = nodes[2].metrics().getReplicationRepaired() - repairedBefore;
+        Assert.assertTrue("repaired " + repaired, repaired > 0 && repaired < 1000);
+    }
+
+    @Test
+    public void nodeJoiningLateGetsTheAddressesAndSharesItsOwn() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            nodes[0].add(i);
+        }
+        AddressCache late = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            late.add(1000);
+            late.replicate(3, transport, GOSSIP_MILLIS, TimeUnit.MILLISECONDS);
+            awaitOnEveryNode(true, 1000);
+            for (int i = 0; i < 100; i++) {
+                final int address = i;
+                awaitTrue(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return late.contains(address);
+                    }
+                });
+            }
+        } finally {
+            late.close();
+        }
+    }
+
+    @Test
+    public void waitingConsumerTakesAReplicatedAddress() throws Exception {
+        nodes[0].add(0x0a000001);
+        Assert.assertEquals(InetAddress.getByName("10.0.0.1"), nodes[1].take());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void logCannotBeOpenedOnceReplicated() throws Exception {
+        nodes[0].openLog(Files.createTempDirectory("replication"), WriteAheadLog.Durability.ASYNC, 1, TimeUnit.MINUTES);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void missFilterCannotBeSetOnceReplicated() throws Exception {
+        nodes[0].filterMisses(100, 0.01);
+    }
+
+    @Test
+    public void filteredAndLoggedCacheIsReplicated() throws Exception {
+        AddressCache durable = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            durable.openLog(Files.createTempDirectory("replication"), WriteAheadLog.Durability.ASYNC, 1, TimeUnit.MINUTES);
+            durable.filterMisses(100, 0.01);
+            durable.replicate(3, transport, GOSSIP_MILLIS, TimeUnit.MILLISECONDS);
+            nodes[0].add(0x0a000001);
+            awaitTrue(new Callable<Boolean>() {
+                public Boolean call() {
+                    return durable.contains(0x0a000001);
+                }
+            });
+        } finally {
+            durable.close();
+        }
+    }
+
+    private void awaitOnEveryNode(final boolean contained, final int address) throws Exception {
+        awaitTrue(new Callable<Boolean>() {
+            public Boolean call() {
+                for (AddressCache node : nodes) {
+                    if (node.contains(address) != contained) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    private static void awaitTrue(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.call()) {
+            Assert.assertTrue("not converged", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.unicommerce.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every AddressCache TC against the sharded cache, plus the ordering across stripes.
+ */
+public class ShardedAddressCacheTest extends AddressCacheTest {
+
+    @Override
+    protected AddressCache newCache(long maxAge, TimeUnit unit) {
+        return new ShardedAddressCache(maxAge, unit, 8);
+    }
+
+    @Test
+    public void takeFollowsInsertionOrderAcrossStripes() throws Exception {
+        AddressCache cache = newCache(10, TimeUnit.SECONDS);
+        for (int i = 0; i < 1000; i++) {
+            cache.add(InetAddress.getByAddress(new byte[]{10, 0, (byte) (i >> 8), (byte) i}));
+        }
+        cache.remove(InetAddress.getByAddress(new byte[]{10, 0, 3, (byte) 231}));
+        Assert.assertEquals(InetAddress.getByAddress(new byte[]{10, 0, 3, (byte) 230}), cache.peek());
+        for (int i = 998; i >= 0; i--) {
+            Assert.assertEquals(InetAddress.getByAddress(new byte[]{10, 0, (byte) (i >> 8), (byte) i}), cache.take());
+        }
+        Assert.assertNull(cache.peek());
+        cache.close();
+    }
+}
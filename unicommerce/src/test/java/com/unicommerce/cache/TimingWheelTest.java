@@ -0,0 +1,95 @@
+package com.unicommerce.cache;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test class for the TimingWheel, driven with a fake clock.
+ * TC`s names are self-explanatory.
+ */
+public class TimingWheelTest {
+
+    private static final long TICK = 10;
+
+    private TimingWheel wheel;
+    private List<Integer> expired;
+    private TimingWheel.Expiry collector;
+
+    @Before
+    public void setUp() throws Exception {
+        wheel = new TimingWheel(TICK, 8, 0);
+        expired = new ArrayList<Integer>();
+        collector = new TimingWheel.Expiry() {
+            public void expire(int handle) {
+                expired.add(handle);
+            }
+        };
+    }
+
+    @Test
+    public void handleExpiresOnceItsTickElapsed() throws Exception {
+        wheel.schedule(1, 25);
+        Assert.assertEquals(0, wheel.advance(20, collector));
+        Assert.assertEquals(0, wheel.advance(29, collector));
+        Assert.assertEquals(1, wheel.advance(30, collector));
+        Assert.assertEquals(Arrays.asList(1), expired);
+        Assert.assertFalse(wheel.isScheduled(1));
+    }
+
+    @Test
+    public void deadlineBeyondOneRevolutionWaitsForItsRound() throws Exception {
+        // 8 buckets of 10 = 80 per revolution, same bucket as tick 2.
+        wheel.schedule(1, 105);
+        wheel.schedule(2, 25);
+        wheel.advance(30, collector);
+        Assert.assertEquals(Arrays.asList(2), expired);
+        wheel.advance(100, collector);
+        Assert.assertEquals(Arrays.asList(2), expired);
+        wheel.advance(110, collector);
+        Assert.assertEquals(Arrays.asList(2, 1), expired);
+    }
+
+    @Test
+    public void cancelledHandleNeverExpires() throws Exception {
+        wheel.schedule(1, 15);
+        wheel.schedule(2, 15);
+        wheel.cancel(1);
+        wheel.cancel(1);
+        wheel.advance(50, collector);
+        Assert.assertEquals(Arrays.asList(2), expired);
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void rescheduleMovesTheDeadline() throws Exception {
+        wheel.schedule(1, 15);
+        wheel.schedule(1, 45);
+        Assert.assertEquals(1, wheel.size());
+        wheel.advance(40, collector);
+        Assert.assertTrue(expired.isEmpty());
+        wheel.advance(50, collector);
+        Assert.assertEquals(Arrays.asList(1), expired);
+    }
+
+    @Test
+    public void longIdleExpiresEverythingDue() throws Exception {
+        for (int handle = 0; handle < 20; handle++) {
+            wheel.schedule(handle, handle * 7);
+        }
+        wheel.schedule(20, 10000);
+        Assert.assertEquals(20, wheel.advance(1000, collector));
+        Assert.assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void pastDeadlineExpiresOnNextTick() throws Exception {
+        wheel.advance(100, collector);
+        wheel.schedule(1, 50);
+        Assert.assertEquals(1, wheel.advance(110, collector));
+    }
+}
@@ -0,0 +1,183 @@
+package com.unicommerce.cache;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test class for the lock-free TreiberStackEngine.
+ * TC`s names are self-explanatory.
+ */
+public class TreiberStackEngineTest {
+
+    private static final long TTL = TimeUnit.SECONDS.toNanos(10);
+
+    private TreiberStackEngine<Integer> engine;
+    private long now;
+
+    @Before
+    public void setUp() throws Exception {
+        engine = new TreiberStackEngine<Integer>(TTL);
+        now = System.nanoTime();
+    }
+
+    @Test
+    public void pollReturnsElementsInLifoOrder() throws Exception {
+        engine.push(1, now + TTL, now);
+        engine.push(2, now + TTL, now);
+        engine.push(3, now + TTL, now);
+        Assert.assertEquals(3, engine.poll(now).intValue());
+        Assert.assertEquals(2, engine.poll(now).intValue());
+        Assert.assertEquals(1, engine.poll(now).intValue());
+        Assert.assertNull(engine.poll(now));
+    }
+
+    @Test
+    public void pushIgnoresLiveDuplicatesOnly() throws Exception {
+        Assert.assertTrue(engine.push(1, now + 10, now));
+        Assert.assertFalse(engine.push(1, now + TTL, now));
+        Assert.assertTrue(engine.push(1, now + TTL, now + 20));
+        Assert.assertEquals(Arrays.asList(1), engine.toList());
+    }
+
+    @Test
+    public void removedElementsAreSkipped() throws Exception {
+        engine.push(1, now + TTL, now);
+        engine.push(2, now + TTL, now);
+        engine.push(3, now + TTL, now);
+        Assert.assertTrue(engine.remove(3, now));
+        Assert.assertTrue(engine.remove(2, now));
+        Assert.assertFalse(engine.remove(2, now));
+        Assert.assertFalse(engine.contains(2, now));
+        Assert.assertEquals(1, engine.peek(now).intValue());
+        Assert.assertEquals(1, engine.poll(now).intValue());
+    }
+
+    @Test
+    public void expireRetiresElementsPastTheirDeadline() throws Exception {
+        engine.push(1, now + 10, now);
+        engine.push(2, now + 20, now);
+        engine.push(3, now + TTL, now);
+        Assert.assertEquals(2, engine.expire(now + 30));
+        Assert.assertFalse(engine.contains(1, now));
+        Assert.assertEquals(1, engine.size());
+        Assert.assertEquals(Arrays.asList(3), engine.toList());
+    }
+
+    @Test
+    public void compactionKeepsLiveNodesInOrder() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            engine.push(i, now + TTL, now);
+        }
+        for (int i = 1; i < 4999; i++) {
+            engine.remove(i, now);
+        }
+        engine.expire(now);
+        Assert.assertEquals(Arrays.asList(0, 4999), engine.toList());
+        Assert.assertEquals(4999, engine.poll(now).intValue());
+        Assert.assertEquals(0, engine.peek(now).intValue());
+    }
+
+    @Test
+    public void takenNodesLeaveTheDeadlineQueue() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            engine.push(i, now + TTL, now);
+        }
+        long live = engine.estimatedBytes();
+        List<Integer> taken = new ArrayList<Integer>();
+        Assert.assertEquals(5000, engine.pollN(5000, taken, now));
+        Assert.assertEquals(0, engine.size());
+        Assert.assertTrue(engine.estimatedBytes() > 0 && engine.estimatedBytes() < live);
+        Assert.assertEquals(0, engine.expire(now));
+        Assert.assertEquals(0, engine.estimatedBytes());
+    }
+
+    @Test
+    public void clearKeepsThePushesLinkedAfterIt() throws Exception {
+        final int threads = 4;
+        final int pushes = 20000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < pushes; i++) {
+                        engine.push(thread * pushes + i, now + TTL, now);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        while (done.getCount() > 0) {
+            engine.clear();
+        }
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        Set<Integer> linked = new HashSet<Integer>(engine.toList());
+        Assert.assertEquals(engine.size(), linked.size());
+        for (int element = 0; element < threads * pushes; element++) {
+            Assert.assertEquals(linked.contains(element), engine.contains(element, now));
+        }
+    }
+
+    @Test
+    public void batchesLinkAndCutInOneGo() throws Exception {
+        Assert.assertEquals(3, engine.pushAll(Arrays.asList(1, 2, 3), now + TTL, now));
+        Assert.assertEquals(1, engine.pushAll(Arrays.asList(3, 4), now + TTL, now));
+        engine.remove(3, now);
+        List<Integer> taken = new ArrayList<Integer>();
+        Assert.assertEquals(2, engine.pollN(2, taken, now));
+        Assert.assertEquals(Arrays.asList(4, 2), taken);
+        Assert.assertEquals(Arrays.asList(1), engine.toList());
+    }
+
+    @Test
+    public void concurrentBatchesLoseNothing() throws Exception {
+        final int threads = 4;
+        final int batches = 500;
+        final Set<Integer> taken = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        final AtomicInteger pushed = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(2 * threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int b = 0; b < batches; b++) {
+                        List<Integer> batch = new ArrayList<Integer>();
+                        for (int i = 0; i < 10; i++) {
+                            batch.add((thread * batches + b) * 10 + i);
+                        }
+                        pushed.addAndGet(engine.pushAll(batch, now + TTL, now));
+                    }
+                    done.countDown();
+                }
+            }).start();
+            new Thread(new Runnable() {
+                public void run() {
+                    List<Integer> into = new ArrayList<Integer>();
+                    while (taken.size() < threads * batches * 10) {
+                        into.clear();
+                        engine.pollN(7, into, now);
+                        for (Integer element : into) {
+                            Assert.assertTrue(taken.add(element));
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(threads * batches * 10, pushed.get());
+        Assert.assertEquals(0, engine.size());
+    }
+}
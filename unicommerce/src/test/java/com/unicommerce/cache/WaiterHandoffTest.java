@@ -0,0 +1,213 @@
+package com.unicommerce.cache;
+
+import com.unicommerce.cache.exception.CacheExpiredException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCs of the handoff of the added addresses to the consumers blocked in take().
+ * TC`s names are self-explanatory.
+ */
+public class WaiterHandoffTest {
+
+    @Test
+    public void eachAddWakesExactlyOneWaiter() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        BlockingQueue<Object> taken = new LinkedBlockingQueue<Object>();
+        try {
+            Thread[] consumers = new Thread[8];
+            for (int i = 0; i < consumers.length; i++) {
+                consumers[i] = startTaker(cache, taken);
+            }
+            for (Thread consumer : consumers) {
+                awaitParked(consumer);
+            }
+            cache.add(1);
+            Assert.assertEquals(AddressCodec.toInetAddress(1), taken.poll(5, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            Assert.assertTrue(taken.isEmpty());
+            for (int i = 2; i <= consumers.length; i++) {
+                cache.add(i);
+            }
+            for (Thread consumer : consumers) {
+                consumer.join(5000);
+                Assert.assertFalse(consumer.isAlive());
+            }
+            Assert.assertEquals(consumers.length - 1, taken.size());
+            Assert.assertNull(cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void fifoServesTheLongestWaiterFirst() throws Exception {
+        Assert.assertEquals("first", firstServed(WaiterOrder.FIFO));
+    }
+
+    @Test
+    public void lifoServesTheLatestWaiterFirst() throws Exception {
+        Assert.assertEquals("second", firstServed(WaiterOrder.LIFO));
+    }
+
+    @Test
+    public void timedOutTakeNLeavesTheNextAddress() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            Assert.assertTrue(cache.takeN(10, 20, TimeUnit.MILLISECONDS).isEmpty());
+            Assert.assertEquals(1, cache.metrics().getTakeTimeouts());
+            cache.add(1);
+            Assert.assertEquals(AddressCodec.toInetAddress(1), cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void timedOutWaitersAreDroppedInBulk() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            cache.setWaiterOrder(WaiterOrder.LIFO);
+            for (int i = 0; i < 10000; i++) {
+                Assert.assertTrue(cache.takeN(1, 0, TimeUnit.MILLISECONDS).isEmpty());
+                Assert.assertTrue(cache.waitingConsumers() <= 64);
+            }
+            Assert.assertEquals(10000, cache.metrics().getTakeTimeouts());
+            cache.add(1);
+            Assert.assertFalse(cache.hasWaitingConsumers());
+            Assert.assertEquals(AddressCodec.toInetAddress(1), cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void takeNWaitsForTheFirstAndTakesTheOthersAlong() throws Exception {
+        final AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        try {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                        cache.add(1);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }).start();
+            List<InetAddress> taken = cache.takeN(10, 5, TimeUnit.SECONDS);
+            Assert.assertEquals(AddressCodec.toInetAddress(1), taken.get(0));
+            Assert.assertNull(cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void interruptedTakerLeavesTheNextAddress() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        BlockingQueue<Object> taken = new LinkedBlockingQueue<Object>();
+        try {
+            Thread consumer = startTaker(cache, taken);
+            awaitParked(consumer);
+            consumer.interrupt();
+            consumer.join(5000);
+            Assert.assertEquals("null", taken.poll(5, TimeUnit.SECONDS));
+            cache.add(1);
+            Assert.assertEquals(AddressCodec.toInetAddress(1), cache.peek());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void closeFailsTheBlockedTakers() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        BlockingQueue<Object> taken = new LinkedBlockingQueue<Object>();
+        Thread consumer = startTaker(cache, taken);
+        awaitParked(consumer);
+        cache.close();
+        Assert.assertTrue(taken.poll(5, TimeUnit.SECONDS) instanceof CacheExpiredException);
+    }
+
+    @Test
+    public void manyWaitersGetOneAddressEach() throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        BlockingQueue<Object> taken = new LinkedBlockingQueue<Object>();
+        try {
+            int consumers = 500;
+            for (int i = 0; i < consumers; i++) {
+                startTaker(cache, taken);
+            }
+            for (int i = 0; i < consumers; i++) {
+                cache.add(i);
+            }
+            Set<Object> distinct = new HashSet<Object>();
+            for (int i = 0; i < consumers; i++) {
+                Object address = taken.poll(10, TimeUnit.SECONDS);
+                Assert.assertTrue(String.valueOf(address), address instanceof InetAddress);
+                distinct.add(address);
+            }
+            Assert.assertEquals(consumers, distinct.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static String firstServed(WaiterOrder order) throws Exception {
+        AddressCache cache = new AddressCache(1, TimeUnit.HOURS);
+        cache.setWaiterOrder(order);
+        BlockingQueue<Object> first = new LinkedBlockingQueue<Object>();
+        BlockingQueue<Object> second = new LinkedBlockingQueue<Object>();
+        try {
+            awaitParked(startTaker(cache, first));
+            awaitParked(startTaker(cache, second));
+            cache.add(1);
+            for (int i = 0; i < 500; i++) {
+                if (!first.isEmpty()) {
+                    return "first";
+                }
+                if (!second.isEmpty()) {
+                    return "second";
+                }
+                Thread.sleep(10);
+            }
+            return "none";
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * @return consumer putting what take() returned in the queue: the address, "null" or the exception.
+     */
+    private static Thread startTaker(final AddressCache cache, final BlockingQueue<Object> taken) {
+        Thread consumer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    InetAddress address = cache.take();
+                    taken.add(address == null ? "null" : address);
+                } catch (CacheExpiredException e) {
+                    taken.add(e);
+                }
+            }
+        });
+        consumer.start();
+        return consumer;
+    }
+
+    private static void awaitParked(Thread consumer) throws InterruptedException {
+        for (int i = 0; i < 500 && consumer.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(Thread.State.WAITING, consumer.getState());
+    }
+}
@@ -0,0 +1,246 @@
+package com.unicommerce.cache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * TCs of the sighting counts of AddressCache, see trackFrequency(), and of the EXACT &
+ * SKETCH window counters on a clock of their own.
+ * TC`s names are self-explanatory.
+ */
+public class WindowFrequencyTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    // a 16s window, buckets of one second.
+    private static final long WINDOW = 16 * SECOND;
+
+    private AddressCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new AddressCache(1, TimeUnit.HOURS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    @Test
+    public void sightingsAreCountedPerBucketOfTheWindow() {
+        for (WindowCounting counting : WindowCounting.values()) {
+            for (long start : new long[]{0, -5 * SECOND, Long.MAX_VALUE / 2 / SECOND * SECOND}) {
+                WindowCounter counter = counting.create(WINDOW, 100);
+                counter.record(0, 7, start);
+                counter.record(0, 7, start + SECOND / 2);
+                counter.record(0, 7, start + 3 * SECOND);
+                counter.record(1, 7, start + 3 * SECOND);
+                String label = counting + " from " + start;
+                Assert.assertEquals(label, 3, counter.frequency(0, 7, counter.bucketsOf(WINDOW), start + 3 * SECOND));
+                Assert.assertEquals(label, 1, counter.frequency(0, 7, counter.bucketsOf(SECOND), start + 3 * SECOND));
+                Assert.assertEquals(label, 3, counter.frequency(0, 7, counter.bucketsOf(4 * SECOND), start + 3 * SECOND));
+                Assert.assertEquals(label, 1, counter.frequency(0, 7, counter.bucketsOf(3 * SECOND), start + 3 * SECOND));
+                Assert.assertEquals(label, 1, counter.frequency(0, 7, counter.bucketsOf(WINDOW), start + 16 * SECOND));
+                Assert.assertEquals(label, 0, counter.frequency(0, 7, counter.bucketsOf(WINDOW), start + 19 * SECOND));
+                Assert.assertEquals(label, 0, counter.frequency(0, 8, counter.bucketsOf(WINDOW), start + 3 * SECOND));
+            }
+        }
+    }
+
+    @Test
+    public void bucketsAreReusedWithoutTicks() {
+        for (WindowCounting counting : WindowCounting.values()) {
+            WindowCounter counter = counting.create(WINDOW, 100);
+            for (int second = 0; second < 100; second++) {
+                counter.record(0, 7, second * SECOND);
+                counter.record(0, 7, second * SECOND + SECOND / 2);
+                Assert.assertEquals(counting.name(), Math.min(2 * (second + 1), 32),
+                        counter.frequency(0, 7, WindowCounter.BUCKETS, second * SECOND));
+            }
+            // same bucket of the ring, many windows later.
+            counter.record(0, 7, 1000 * SECOND);
+            Assert.assertEquals(counting.name(), 1, counter.frequency(0, 7, WindowCounter.BUCKETS, 1000 * SECOND));
+        }
+    }
+
+    @Test
+    public void ticksPrepareTheNextBucket() {
+        for (WindowCounting counting : WindowCounting.values()) {
+            WindowCounter counter = counting.create(WINDOW, 100);
+            for (int second = 0; second < 40; second++) {
+                counter.tick(second * SECOND);
+                counter.record(0, 7, second * SECOND);
+                Assert.assertEquals(counting.name(), Math.min(second + 1, 16),
+                        counter.frequency(0, 7, WindowCounter.BUCKETS, second * SECOND));
+            }
+        }
+    }
+
+    @Test
+    public void windowOutOfTheTrackedOneIsRejected() {
+        WindowCounter counter = WindowCounting.EXACT.create(WINDOW, 100);
+        Assert.assertEquals(1, counter.bucketsOf(1));
+        Assert.assertEquals(16, counter.bucketsOf(WINDOW));
+        try {
+            counter.bucketsOf(WINDOW + 1);
+            Assert.fail("window too long");
+        } catch (IllegalArgumentException e) {
+            // expected.
+        }
+        try {
+            counter.bucketsOf(0);
+            Assert.fail("empty window");
+        } catch (IllegalArgumentException e) {
+            // expected.
+        }
+    }
+
+    @Test
+    public void exactCounterGrowsAndSweepsTheSilentKeys() {
+        RingWindowCounter counter = new RingWindowCounter(WINDOW, 16);
+        for (long key = 0; key < 50000; key++) {
+            counter.record(key, key * 31, 0);
+        }
+        for (long key = 50000; key < 100000; key++) {
+            counter.record(key, key * 31, 10 * SECOND);
+        }
+        Assert.assertEquals(100000, counter.size());
+        for (int tick = 0; tick < WindowCounter.BUCKETS; tick++) {
+            counter.tick(20 * SECOND);
+        }
+        Assert.assertEquals(50000, counter.size());
+        for (long key = 0; key < 100000; key++) {
+            Assert.assertEquals(key < 50000 ? 0 : 1, counter.frequency(key, key * 31, WindowCounter.BUCKETS, 20 * SECOND));
+        }
+        for (int tick = 0; tick < WindowCounter.BUCKETS; tick++) {
+            counter.tick(30 * SECOND);
+        }
+        Assert.assertEquals(0, counter.size());
+        counter.record(3, 93, 30 * SECOND);
+        Assert.assertEquals(1, counter.frequency(3, 93, WindowCounter.BUCKETS, 30 * SECOND));
+    }
+
+    @Test
+    public void sketchNeverCountsLess() {
+        SketchWindowCounter counter = new SketchWindowCounter(WINDOW, 10000);
+        Random random = new Random(42);
+        int[] counts = new int[10000];
+        for (int i = 0; i < 100000; i++) {
+            int key = (int) Math.min(counts.length - 1, Math.abs(random.nextGaussian()) * 2000);
+            counts[key]++;
+            counter.record(0, AddressCodec.mapped(key), (i % 16) * SECOND);
+        }
+        int exact = 0;
+        for (int key = 0; key < counts.length; key++) {
+            int estimate = counter.frequency(0, AddressCodec.mapped(key), WindowCounter.BUCKETS, 15 * SECOND);
+            Assert.assertTrue(estimate >= counts[key]);
+            if (estimate == counts[key]) {
+                exact++;
+            }
+        }
+        Assert.assertTrue("exact estimates : " + exact, exact > counts.length * 9 / 10);
+    }
+
+    @Test
+    public void addOfAnAddressAlreadyThereCountsASighting() throws Exception {
+        cache.trackFrequency(1, TimeUnit.MINUTES, WindowCounting.EXACT, 1000);
+        InetAddress address = InetAddress.getByName("10.0.0.1");
+        Assert.assertTrue(cache.add(0x0a000001));
+        Assert.assertFalse(cache.add(address));
+        Assert.assertFalse(cache.add(address.getAddress()));
+        cache.addAll(Arrays.asList(address, InetAddress.getByName("10.0.0.2")));
+        Assert.assertEquals(4, cache.frequency(0x0a000001, 1, TimeUnit.MINUTES));
+        Assert.assertEquals(4, cache.frequency(address, 10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, cache.frequency(InetAddress.getByName("10.0.0.2").getAddress(), 1, TimeUnit.MINUTES));
+        Assert.assertEquals(0, cache.frequency(0x0a000003, 1, TimeUnit.MINUTES));
+        // taking the address does not forget its sightings.
+        Assert.assertNotNull(cache.take());
+        Assert.assertEquals(4, cache.frequency(address, 1, TimeUnit.MINUTES));
+        cache.clear();
+        Assert.assertEquals(0, cache.frequency(address, 1, TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void sightingIsCountedBeforeTheAddressIsHandedOver() throws Exception {
+        cache.trackFrequency(1, TimeUnit.MINUTES, WindowCounting.EXACT, 1000);
+        final InetAddress address = InetAddress.getByName("10.0.0.1");
+        final AtomicInteger seenOnHandOver = new AtomicInteger(-1);
+        cache.takeAsync().thenAccept(new Consumer<InetAddress>() {
+            public void accept(InetAddress taken) {
+                seenOnHandOver.set(cache.frequency(taken, 1, TimeUnit.MINUTES));
+            }
+        });
+        Assert.assertTrue(cache.add(address));
+        Assert.assertEquals(1, seenOnHandOver.get());
+    }
+
+    @Test
+    public void sketchCountsIpv6Sightings() throws Exception {
+        cache.trackFrequency(1, TimeUnit.MINUTES, WindowCounting.SKETCH, 1000);
+        InetAddress ipv6 = InetAddress.getByName("2001:db8::1");
+        for (int i = 0; i < 5; i++) {
+            cache.add(ipv6);
+        }
+        cache.add(InetAddress.getByName("2001:db8::2"));
+        Assert.assertEquals(5, cache.frequency(ipv6, 1, TimeUnit.MINUTES));
+        Assert.assertEquals(1, cache.frequency(InetAddress.getByName("2001:db8::2"), 1, TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void concurrentSightingsAreAllCounted() throws Exception {
+        for (final WindowCounting counting : WindowCounting.values()) {
+            final AddressCache counted = new AddressCache(1, TimeUnit.HOURS);
+            try {
+                counted.trackFrequency(1, TimeUnit.HOURS, counting, 100000);
+                Thread[] threads = new Thread[4];
+                for (int t = 0; t < threads.length; t++) {
+                    threads[t] = new Thread(new Runnable() {
+                        public void run() {
+                            try {
+                                for (int i = 0; i < 10000; i++) {
+                                    counted.add(0x0a000001);
+                                    counted.add(0x0a000000 | i);
+                                }
+                            } catch (Exception e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+                    });
+                    threads[t].start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                Assert.assertEquals(counting.name(), 40004, counted.frequency(0x0a000001, 1, TimeUnit.HOURS));
+            } finally {
+                counted.close();
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void frequencyNotTrackedIsRejected() {
+        cache.frequency(0x0a000001, 1, TimeUnit.MINUTES);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void frequencyTrackedOnceOnly() throws Exception {
+        cache.trackFrequency(1, TimeUnit.MINUTES, WindowCounting.EXACT, 1000);
+        cache.trackFrequency(1, TimeUnit.MINUTES, WindowCounting.SKETCH, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowLongerThanTrackedIsRejected() throws Exception {
+        cache.trackFrequency(1, TimeUnit.MINUTES, WindowCounting.EXACT, 1000);
+        cache.frequency(0x0a000001, 2, TimeUnit.MINUTES);
+    }
+}
@@ -0,0 +1,228 @@
+package com.unicommerce.cache;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test class for WriteAheadLog & the durable AddressCache.
+ * TC`s names are self-explanatory.
+ */
+public class WriteAheadLogTest {
+
+    private static final long TTL = TimeUnit.SECONDS.toNanos(10);
+
+    private Path directory;
+    private List<AddressCache> caches = new ArrayList<AddressCache>();
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("address-cache-wal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (AddressCache cache : caches) {
+            cache.close();
+        }
+        for (String file : files()) {
+            Files.delete(directory.resolve(file));
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void recoveryReplaysTheLogOnTopOfTheSnapshot() throws Exception {
+        AddressCache crashed = open(WriteAheadLog.Durability.FSYNC);
+        crashed.add(1);
+        crashed.add(2);
+        crashed.add(3);
+        crashed.checkpoint();
+        crashed.add(4);
+        crashed.remove(2);
+        Assert.assertEquals(AddressCodec.toInetAddress(4), crashed.take());
+        InetAddress ipv6 = InetAddress.getByName("2001:db8::1");
+        crashed.add(ipv6);
+
+        // not closed: as if the process died here.
+        AddressCache recovered = new AddressCache(10, TimeUnit.SECONDS);
+        caches.add(recovered);
+        recovered.openLog(directory, WriteAheadLog.Durability.FSYNC, 1, TimeUnit.HOURS);
+        Assert.assertEquals(ipv6, recovered.take());
+        Assert.assertEquals(AddressCodec.toInetAddress(3), recovered.take());
+        Assert.assertEquals(AddressCodec.toInetAddress(1), recovered.take());
+        Assert.assertNull(recovered.peek());
+        caches.remove(crashed);
+    }
+
+    @Test
+    public void checkpointDeletesTheCoveredSegments() throws Exception {
+        AddressCache cache = open(WriteAheadLog.Durability.WRITE);
+        for (int i = 0; i < 100; i++) {
+            cache.add(i);
+        }
+        cache.checkpoint();
+        cache.add(100);
+        cache.checkpoint();
+        List<String> files = files();
+        Assert.assertEquals(2, files.size());
+        Assert.assertTrue(files.get(0).startsWith("snapshot-"));
+        Assert.assertTrue(files.get(1).startsWith("wal-"));
+        // both numbered after the last roll.
+        Assert.assertEquals(files.get(0).substring(9, 29), files.get(1).substring(4, 24));
+    }
+
+    @Test
+    public void closeCheckpointsAndReopenRestores() throws Exception {
+        AddressCache cache = open(WriteAheadLog.Durability.ASYNC);
+        cache.add(1);
+        cache.add(2);
+        cache.clear();
+        cache.add(3);
+        cache.close();
+
+        AddressCache reopened = open(WriteAheadLog.Durability.ASYNC);
+        Assert.assertTrue(reopened.contains(3));
+        Assert.assertFalse(reopened.contains(1));
+        Assert.assertFalse(reopened.contains(2));
+    }
+
+    @Test
+    public void asyncRecordsReachTheFileWithoutWaiting() throws Exception {
+        AddressCache crashed = open(WriteAheadLog.Durability.ASYNC);
+        crashed.add(1);
+        crashed.remove(1);
+        crashed.add(2);
+        Thread.sleep(WriteAheadLog.ASYNC_FLUSH_MILLIS * 20);
+
+        AddressCache recovered = open(WriteAheadLog.Durability.ASYNC);
+        Assert.assertTrue(recovered.contains(2));
+        Assert.assertFalse(recovered.contains(1));
+        caches.remove(crashed);
+    }
+
+    @Test
+    public void tornTailIsDropped() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.WRITE, WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+        AddressEngine engine = new LoggedAddressEngine(new PrimitiveAddressEngine(TTL), log);
+        log.recover(engine, TTL);
+        long now = System.nanoTime();
+        engine.push(1, now + TTL, now);
+        engine.push(2, now + TTL, now);
+        log.close();
+        Path segment = directory.resolve(files().get(0));
+        long size = Files.size(segment);
+        // half of a third record.
+        Files.write(segment, new byte[]{1, 4, 0, 0, 0}, StandardOpenOption.APPEND);
+
+        PrimitiveAddressEngine recovered = new PrimitiveAddressEngine(TTL);
+        WriteAheadLog reopened = new WriteAheadLog(directory, WriteAheadLog.Durability.WRITE, WriteAheadLog.DEFAULT_SEGMENT_BYTES);
+        Assert.assertEquals(2, reopened.recover(recovered, TTL));
+        Assert.assertEquals(2, recovered.size());
+        reopened.close();
+        Assert.assertEquals(size + 5, Files.size(segment));
+    }
+
+    @Test
+    public void segmentsRollOverAndAllReplay() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.WRITE, 1024);
+        AddressEngine engine = new LoggedAddressEngine(new PrimitiveAddressEngine(TTL), log);
+        log.recover(engine, TTL);
+        long now = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            engine.push(i, now + TTL, now);
+        }
+        log.close();
+        Assert.assertTrue(files().size() > 10);
+
+        PrimitiveAddressEngine recovered = new PrimitiveAddressEngine(TTL);
+        WriteAheadLog reopened = new WriteAheadLog(directory, WriteAheadLog.Durability.WRITE, 1024);
+        Assert.assertEquals(1000, reopened.recover(recovered, TTL));
+        byte[] address = new byte[16];
+        Assert.assertEquals(4, recovered.pollInto(address, System.nanoTime()));
+        Assert.assertEquals(999, AddressCodec.ipv4(Arrays.copyOf(address, 4)));
+        reopened.close();
+    }
+
+    @Test
+    public void batchesAreLogged() throws Exception {
+        AddressCache crashed = open(WriteAheadLog.Durability.WRITE);
+        crashed.addAll(Arrays.asList(AddressCodec.toInetAddress(1), AddressCodec.toInetAddress(2),
+                AddressCodec.toInetAddress(3), AddressCodec.toInetAddress(4)));
+        crashed.removeAll(Collections.singletonList(AddressCodec.toInetAddress(1)));
+        Assert.assertEquals(2, crashed.takeN(2, 0, TimeUnit.SECONDS).size());
+
+        AddressCache recovered = open(WriteAheadLog.Durability.WRITE);
+        Assert.assertEquals(Collections.singletonList(AddressCodec.toInetAddress(2)),
+                recovered.takeN(10, 0, TimeUnit.SECONDS));
+        caches.remove(crashed);
+    }
+
+    @Test
+    public void concurrentWritersShareTheCommits() throws Exception {
+        final AddressCache cache = open(WriteAheadLog.Durability.FSYNC);
+        final int threads = 8;
+        final int perThread = 500;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            cache.add(thread << 16 | i);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        AddressCache recovered = open(WriteAheadLog.Durability.FSYNC);
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < perThread; i++) {
+                Assert.assertTrue(recovered.contains(t << 16 | i));
+            }
+        }
+        caches.remove(cache);
+    }
+
+    private AddressCache open(WriteAheadLog.Durability durability) throws Exception {
+        AddressCache cache = new AddressCache(10, TimeUnit.SECONDS);
+        cache.openLog(directory, durability, 1, TimeUnit.HOURS);
+        caches.add(cache);
+        return cache;
+    }
+
+    private List<String> files() throws IOException {
+        List<String> names = new ArrayList<String>();
+        DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+        try {
+            for (Path file : files) {
+                names.add(file.getFileName().toString());
+            }
+        } finally {
+            files.close();
+        }
+        Collections.sort(names);
+        return names;
+    }
+}